@@ -0,0 +1,127 @@
+package learnopengl.util;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time per frame of {@link DepthSorter} along each of its paths, compared to the PriorityQueue of
+ * positions BlendingSorted used before.
+ *
+ * Run with gradle jmh, or only some of them as in gradle jmh -PjmhArgs="DepthSorterBenchmark.insertion -p count=1000"
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DepthSorterBenchmark {
+
+	@Param({ "10", "100", "1000", "10000", "100000" })
+	public int count;
+
+	// Objects in a 100 x 100 x 100 cube
+	private Vector3f[] objects;
+	// Their depths seen from the origin, from a camera moved a little, and from a camera somewhere else
+	private float[] depths;
+	private float[] movedDepths;
+	private float[] otherDepths;
+
+	private DepthSorter sorter;
+	private Queue<Vector3f> queue;
+	private boolean odd;
+
+	@Setup
+	public void setup() {
+
+		final Random random = new Random(1);
+
+		objects = new Vector3f[count];
+		for(int i = 0;i < count;i++) {
+			objects[i] = new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat()).mul(100.0f).sub(50.0f, 50.0f, 50.0f);
+		}
+
+		depths = depths(new Vector3f());
+		movedDepths = depths(new Vector3f(0.001f, 0.0f, 0.0005f));
+		otherDepths = depths(new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat()).mul(100.0f).sub(50.0f, 50.0f, 50.0f));
+
+		sorter = new DepthSorter();
+		final Vector3f eye = new Vector3f();
+		queue = new PriorityQueue<>(Comparator.<Vector3f>comparingDouble(eye::distance).reversed());
+	}
+
+	/**
+	 * A slowly moving camera: the previous order is almost right, so it is fixed by the insertion sort
+	 * */
+	@Benchmark
+	public int[] insertion() {
+		odd = !odd;
+		return sorter.sort(odd ? movedDepths : depths, count);
+	}
+
+	/**
+	 * A different number of objects every frame: there is no previous order, so they are sorted by the radix sort
+	 * */
+	@Benchmark
+	public int[] radix() {
+		odd = !odd;
+		return sorter.sort(depths, odd ? count - 1 : count);
+	}
+
+	/**
+	 * A camera jumping every frame: the insertion sort gives up and is skipped for the next frames, which are sorted by
+	 * the radix sort
+	 * */
+	@Benchmark
+	public int[] fallback() {
+		odd = !odd;
+		return sorter.sort(odd ? otherDepths : depths, count);
+	}
+
+	/**
+	 * The same objects added to and polled from a PriorityQueue ordered by their distance to the camera
+	 * */
+	@Benchmark
+	public Vector3f priorityQueue() {
+
+		for(final Vector3f object : objects) {
+			queue.add(object);
+		}
+
+		Vector3f nearest = null;
+		while(!queue.isEmpty()) {
+			nearest = queue.poll();
+		}
+
+		return nearest;
+	}
+
+	// ========== Utility functions ===========
+
+	private float[] depths(Vector3f eye) {
+
+		final float[] depths = new float[count];
+		for(int i = 0;i < count;i++) {
+			depths[i] = objects[i].distanceSquared(eye);
+		}
+
+		return depths;
+	}
+
+}
@@ -5,21 +5,19 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.p1_getting_started.ch04_4_textures_exercise3.TexturesExercise3;
 import learnopengl.util.Shader1;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class Textures {
 
@@ -96,11 +94,14 @@ public class Textures {
 		setUpVertexData(vao, vbo, ebo);
 		
 		// Load Texture
-		final int texture = loadTexture("resources/textures/container.jpg");
+		final int texture = TextureLoader.loadTexture("resources/textures/container.jpg", false, GL_REPEAT, GL_LINEAR);
 		
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Input
 			processInput(window);
 
@@ -125,7 +126,7 @@ public class Textures {
 		glDeleteVertexArrays(vao);
 		glDeleteBuffers(vbo);
 		glDeleteBuffers(ebo);
-		glDeleteTextures(texture);
+		TextureCache.release(texture);
 		ourShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -167,43 +168,6 @@ public class Textures {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT); // Set texture wrapping to GL_REPEAT (default wrapping method)
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-			
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-			
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-			
-			if(data != null) {
-				
-				glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, width.get(0), height.get(0), 0, GL_RGB, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-				
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-			
-			stbi_image_free(data);
-			
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
@@ -5,21 +5,19 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.p1_getting_started.ch04_4_textures_exercise3.TexturesExercise3;
 import learnopengl.util.Shader1;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class TexturesCombined {
 
@@ -96,8 +94,8 @@ public class TexturesCombined {
 		setUpVertexData(vao, vbo, ebo);
 		
 		// Load Textures
-		final int texture1 = loadTexture("resources/textures/container.jpg");
-		final int texture2 = loadTexture("resources/textures/awesomeface.png");
+		final int texture1 = TextureLoader.loadTexture("resources/textures/container.jpg", true, GL_REPEAT, GL_LINEAR);
+		final int texture2 = TextureLoader.loadTexture("resources/textures/awesomeface.png", true, GL_REPEAT, GL_LINEAR);
 		
 		ourShader.use();
 		
@@ -111,6 +109,9 @@ public class TexturesCombined {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Input
 			processInput(window);
 
@@ -138,8 +139,8 @@ public class TexturesCombined {
 		glDeleteVertexArrays(vao);
 		glDeleteBuffers(vbo);
 		glDeleteBuffers(ebo);
-		glDeleteTextures(texture1);
-		glDeleteTextures(texture2);
+		TextureCache.release(texture1);
+		TextureCache.release(texture2);
 		ourShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -181,65 +182,6 @@ public class TexturesCombined {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT); // Set texture wrapping to GL_REPEAT (default wrapping method)
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-			
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-			
-			stbi_set_flip_vertically_on_load(true); // Tell stb_image.h to flip loaded texture's on the y-axis.
-			
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-			
-			if(data != null) {
-				
-				int format = 0;
-				
-				switch(nrChannels.get(0)) {
-				
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-				
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-				
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-			
-			stbi_image_free(data);
-			
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
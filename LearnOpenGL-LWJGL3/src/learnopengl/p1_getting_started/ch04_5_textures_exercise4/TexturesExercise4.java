@@ -5,20 +5,18 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Shader1;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class TexturesExercise4 {
 
@@ -101,8 +99,8 @@ public class TexturesExercise4 {
 		// Load Textures
 		// Note that we set the container wrapping method to GL_CLAMP_TO_EDGE
 		// Set texture filtering to nearest neighbor to clearly see the texels/pixels
-		final int texture1 = loadTexture("resources/textures/container.jpg", true, GL_REPEAT, GL_LINEAR); 
-		final int texture2 = loadTexture("resources/textures/awesomeface.png", true, GL_REPEAT, GL_LINEAR);
+		final int texture1 = TextureLoader.loadTexture("resources/textures/container.jpg", true, GL_REPEAT, GL_LINEAR); 
+		final int texture2 = TextureLoader.loadTexture("resources/textures/awesomeface.png", true, GL_REPEAT, GL_LINEAR);
 
 		ourShader.use();
 
@@ -116,6 +114,9 @@ public class TexturesExercise4 {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Input
 			processInput(window);
 
@@ -144,8 +145,8 @@ public class TexturesExercise4 {
 		glDeleteVertexArrays(vao);
 		glDeleteBuffers(vbo);
 		glDeleteBuffers(ebo);
-		glDeleteTextures(texture1);
-		glDeleteTextures(texture2);
+		TextureCache.release(texture1);
+		TextureCache.release(texture2);
 		ourShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -187,65 +188,6 @@ public class TexturesExercise4 {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY, int wrapping, int filtering) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrapping); // Set texture wrapping to GL_REPEAT (default wrapping method)
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrapping);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filtering);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filtering);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-				
-				switch(nrChannels.get(0)) {
-				
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
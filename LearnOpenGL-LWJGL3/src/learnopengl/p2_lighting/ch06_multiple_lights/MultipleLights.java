@@ -5,26 +5,28 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
+import org.joml.Random;
 import org.joml.Vector3f;
 import org.lwjgl.glfw.GLFWCursorPosCallbackI;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
-import learnopengl.util.Shader2;
+import learnopengl.util.ClusteredLights;
+import learnopengl.util.GLState;
+import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class MultipleLights {
 
@@ -45,6 +47,11 @@ public class MultipleLights {
 	private static float lastY = (float)windowHeight / 2.0f;
 	private static boolean firstMouseInput = true;
 
+	// Clusters of the point lights: tiles across and down the screen, and slices in depth
+	private static final int CLUSTERS_X = 16;
+	private static final int CLUSTERS_Y = 9;
+	private static final int CLUSTERS_Z = 24;
+
 	// Timing
 	private static float deltaTime = 0.0f; // Time between current frame and last frame
 	private static float lastFrame = 0.0f;
@@ -152,6 +159,9 @@ public class MultipleLights {
 
 	public static void main(String[] args) {
 
+		// A number of random point lights can be given as the argument, added to the four of the scene
+		final int randomLights = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+
 		// Initialize GLFW
 		glfwInit();
 		glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -191,8 +201,8 @@ public class MultipleLights {
 
 		// Build and compile our shader programs
 		final String dir = MultipleLights.class.getResource(".").getFile();
-		Shader2 lightingShader = new Shader2(dir+"ch6_multiple_lights.vs", dir+"ch6_multiple_lights.fs");
-		Shader2 lampShader = new Shader2(dir+"ch6_lamp.vs", dir+"ch6_lamp.fs");
+		Shader lightingShader = new Shader(dir+"ch6_multiple_lights.vs", dir+"ch6_multiple_lights.fs");
+		Shader lampShader = new Shader(dir+"ch6_lamp.vs", dir+"ch6_lamp.fs");
 
 		// First, configure the cube's VAO (and VBO)
 		final int cubeVAO = glGenVertexArrays();
@@ -205,11 +215,35 @@ public class MultipleLights {
 		setUpVertexData(lightVAO, vbo);
 
 		// Load textures
-		final int diffuseMap = loadTexture("resources/textures/container2.png", false, GL_REPEAT, GL_LINEAR);
-		final int specularMap = loadTexture("resources/textures/container2_specular.png", false, GL_REPEAT, GL_LINEAR);
+		final int diffuseMap = TextureLoader.loadTexture("resources/textures/container2.png", false, GL_REPEAT, GL_LINEAR);
+		final int specularMap = TextureLoader.loadTexture("resources/textures/container2_specular.png", false, GL_REPEAT, GL_LINEAR);
+
+		// Point lights, white as in the original scene, and the random ones around the containers, which only reach
+		// a few units like the lights of the deferred shading sample
+		final ClusteredLights lights = new ClusteredLights(CLUSTERS_X, CLUSTERS_Y, CLUSTERS_Z, ForkJoinPool.commonPool());
+		final Vector3f white = new Vector3f(1.0f);
+		for(Vector3f position : pointLightPositions) {
+			lights.add(position, white, 1.0f, 0.09f, 0.032f);
+		}
+
+		final Vector3f[] lampPositions = new Vector3f[pointLightPositions.length + randomLights];
+		System.arraycopy(pointLightPositions, 0, lampPositions, 0, pointLightPositions.length);
+		final Random rand = new Random(13);
+		for(int i = pointLightPositions.length;i < lampPositions.length;i++) {
+			final float x = rand.nextFloat() * 10 - 5;
+			final float y = rand.nextFloat() * 10 - 4;
+			final float z = rand.nextFloat() * 20 - 17;
+			lampPositions[i] = new Vector3f(x, y, z);
+			// Values between 0.5 and 1.0
+			final float red = rand.nextFloat() / 2 + 0.5f;
+			final float green = rand.nextFloat() / 2 + 0.5f;
+			final float blue = rand.nextFloat() / 2 + 0.5f;
+			lights.add(lampPositions[i], new Vector3f(red, green, blue), 1.0f, 0.7f, 1.8f);
+		}
+		logger.info(lights.getLightCount() + " point lights, pass the number of random lights as the argument to add more");
 
 		// Shader configuration
-		// Assign the lighting maps to their corresponding texture units
+		// Assign the lighting maps to their corresponding texture units, the clusters take the three following ones
 		lightingShader.use();
 		lightingShader.setInt("material.diffuse", 0);
 		lightingShader.setInt("material.specular", 1);
@@ -222,9 +256,16 @@ public class MultipleLights {
 		// That's why I check every frame if the projection matrix has to be changed
 		Matrix4f projection = new Matrix4f();
 
+		long frames = 0;
+		long buildTime = 0;
+		long indexCount = 0;
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -254,38 +295,10 @@ public class MultipleLights {
 			lightingShader.setVec3("dirLight.ambient", 0.05f, 0.05f, 0.05f);
 			lightingShader.setVec3("dirLight.diffuse", 0.4f, 0.4f, 0.4f);
 			lightingShader.setVec3("dirLight.specular", 0.5f, 0.5f, 0.5f);
-			// Point light 1
-			lightingShader.setVec3("pointLights[0].position", pointLightPositions[0]);
-			lightingShader.setVec3("pointLights[0].ambient", 0.05f, 0.05f, 0.05f);
-			lightingShader.setVec3("pointLights[0].diffuse", 0.8f, 0.8f, 0.8f);
-			lightingShader.setVec3("pointLights[0].specular", 1.0f, 1.0f, 1.0f);
-			lightingShader.setFloat("pointLights[0].constant", 1.0f);
-			lightingShader.setFloat("pointLights[0].linear", 0.09f);
-			lightingShader.setFloat("pointLights[0].quadratic", 0.032f);
-			// Point light 2
-			lightingShader.setVec3("pointLights[1].position", pointLightPositions[1]);
-			lightingShader.setVec3("pointLights[1].ambient", 0.05f, 0.05f, 0.05f);
-			lightingShader.setVec3("pointLights[1].diffuse", 0.8f, 0.8f, 0.8f);
-			lightingShader.setVec3("pointLights[1].specular", 1.0f, 1.0f, 1.0f);
-			lightingShader.setFloat("pointLights[1].constant", 1.0f);
-			lightingShader.setFloat("pointLights[1].linear", 0.09f);
-			lightingShader.setFloat("pointLights[1].quadratic", 0.032f);
-			// Point light 3
-			lightingShader.setVec3("pointLights[2].position", pointLightPositions[2]);
-			lightingShader.setVec3("pointLights[2].ambient", 0.05f, 0.05f, 0.05f);
-			lightingShader.setVec3("pointLights[2].diffuse", 0.8f, 0.8f, 0.8f);
-			lightingShader.setVec3("pointLights[2].specular", 1.0f, 1.0f, 1.0f);
-			lightingShader.setFloat("pointLights[2].constant", 1.0f);
-			lightingShader.setFloat("pointLights[2].linear", 0.09f);
-			lightingShader.setFloat("pointLights[2].quadratic", 0.032f);
-			// Point light 4
-			lightingShader.setVec3("pointLights[3].position", pointLightPositions[3]);
-			lightingShader.setVec3("pointLights[3].ambient", 0.05f, 0.05f, 0.05f);
-			lightingShader.setVec3("pointLights[3].diffuse", 0.8f, 0.8f, 0.8f);
-			lightingShader.setVec3("pointLights[3].specular", 1.0f, 1.0f, 1.0f);
-			lightingShader.setFloat("pointLights[3].constant", 1.0f);
-			lightingShader.setFloat("pointLights[3].linear", 0.09f);
-			lightingShader.setFloat("pointLights[3].quadratic", 0.032f);
+			// Point lights, scaled by the color of each light
+			lightingShader.setVec3("pointLight.ambient", 0.05f, 0.05f, 0.05f);
+			lightingShader.setVec3("pointLight.diffuse", 0.8f, 0.8f, 0.8f);
+			lightingShader.setVec3("pointLight.specular", 1.0f, 1.0f, 1.0f);
 			// SpotLight
 			lightingShader.setVec3("spotLight.position", camera.position);
 			lightingShader.setVec3("spotLight.direction", camera.front);
@@ -304,6 +317,7 @@ public class MultipleLights {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 100.0f);
 				lightingShader.setMat4("projection", projection);
+				lights.setProjection(projection, 0.1f, 100.0f, windowWidth, windowHeight);
 				updateProjection = false;
 			}
 
@@ -311,12 +325,17 @@ public class MultipleLights {
 			final Matrix4f view = camera.getViewMatrix();
 			lightingShader.setMat4("view", view);
 
+			// Find the lights of each cluster from this point of view
+			lights.build(view);
+			lights.bind(lightingShader, 2);
+			buildTime += lights.getBuildNanos();
+			indexCount += lights.getIndexCount();
+			++frames;
+
 			// Bind diffuse map
-			glActiveTexture(GL_TEXTURE0);
-			glBindTexture(GL_TEXTURE_2D, diffuseMap);
+			GLState.bindTexture(0, GL_TEXTURE_2D, diffuseMap);
 			// Bind specular map
-			glActiveTexture(GL_TEXTURE1);
-			glBindTexture(GL_TEXTURE_2D, specularMap);
+			GLState.bindTexture(1, GL_TEXTURE_2D, specularMap);
 
 			// Render the cubes
 			glBindVertexArray(cubeVAO);
@@ -341,8 +360,8 @@ public class MultipleLights {
 			// We now draw as many light bulbs as we have point lights
 			glBindVertexArray(lightVAO);
 
-			for(int i = 0;i < 4;i++) {
-				model.translation(pointLightPositions[i]);
+			for(int i = 0;i < lampPositions.length;i++) {
+				model.translation(lampPositions[i]);
 				model.scale(0.2f); // Make it a smaller cube
 				lampShader.setMat4("model", model);
 
@@ -359,10 +378,15 @@ public class MultipleLights {
 		glDeleteVertexArrays(cubeVAO);
 		glDeleteVertexArrays(lightVAO);
 		glDeleteBuffers(vbo);
-		glDeleteTextures(diffuseMap);
-		glDeleteTextures(specularMap);
+		TextureCache.release(diffuseMap);
+		TextureCache.release(specularMap);
 		lightingShader.delete();
 		lampShader.delete();
+		lights.delete();
+
+		logger.info(String.format("%.2f ms per frame assigning %d point lights to the clusters on %d threads, %.1f lights per cluster on average", 
+				buildTime / 1e6 / Math.max(frames, 1), lights.getLightCount(), ForkJoinPool.commonPool().getParallelism(), 
+				(double)indexCount / Math.max(frames, 1) / (CLUSTERS_X * CLUSTERS_Y * CLUSTERS_Z)));
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
@@ -396,65 +420,6 @@ public class MultipleLights {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY, int wrapping, int filtering) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrapping);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrapping);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filtering);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filtering);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
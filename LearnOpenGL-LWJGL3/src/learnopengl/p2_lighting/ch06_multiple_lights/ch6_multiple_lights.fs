@@ -15,13 +15,8 @@ struct DirLight {
     vec3 specular;
 };
 
+// the position, color and attenuation of each point light are in lightData, these are scaled by its color
 struct PointLight {
-    vec3 position;
-    
-    float constant;
-    float linear;
-    float quadratic;
-	
     vec3 ambient;
     vec3 diffuse;
     vec3 specular;
@@ -42,7 +37,20 @@ struct SpotLight {
     vec3 specular;       
 };
 
-#define NR_POINT_LIGHTS 4
+// point lights split into the clusters of the view frustum, see ClusteredLights
+layout (std140) uniform Lights
+{
+    int clusterCountX;
+    int clusterCountY;
+    int clusterCountZ;
+    vec2 clusterTileSize;
+    vec2 clusterDepthScaleBias;
+    vec2 clusterDepthRange;
+};
+
+uniform samplerBuffer lightData;
+uniform usamplerBuffer lightGrid;
+uniform usamplerBuffer lightIndices;
 
 in vec3 FragPos;
 in vec3 Normal;
@@ -50,13 +58,14 @@ in vec2 TexCoords;
 
 uniform vec3 viewPos;
 uniform DirLight dirLight;
-uniform PointLight pointLights[NR_POINT_LIGHTS];
+uniform PointLight pointLight;
 uniform SpotLight spotLight;
 uniform Material material;
 
 // function prototypes
+uvec2 GetCluster();
 vec3 CalcDirLight(DirLight light, vec3 normal, vec3 viewDir);
-vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir);
+vec3 CalcPointLight(int light, vec3 normal, vec3 fragPos, vec3 viewDir);
 vec3 CalcSpotLight(SpotLight light, vec3 normal, vec3 fragPos, vec3 viewDir);
 
 void main()
@@ -73,15 +82,28 @@ void main()
     // == =====================================================
     // phase 1: directional lighting
     vec3 result = CalcDirLight(dirLight, norm, viewDir);
-    // phase 2: point lights
-    for(int i = 0; i < NR_POINT_LIGHTS; i++)
-        result += CalcPointLight(pointLights[i], norm, FragPos, viewDir);    
+    // phase 2: point lights, only the ones reaching the cluster of this fragment
+    uvec2 cluster = GetCluster();
+    for(uint i = 0u; i < cluster.y; i++)
+        result += CalcPointLight(int(texelFetch(lightIndices, int(cluster.x + i)).r), norm, FragPos, viewDir);
     // phase 3: spot light
     result += CalcSpotLight(spotLight, norm, FragPos, viewDir);    
     
     FragColor = vec4(result, 1.0);
 }
 
+// returns the offset and the number of the light indices of the cluster of this fragment.
+uvec2 GetCluster()
+{
+    // back to the depth in view space from the depth buffer value
+    float near = clusterDepthRange.x;
+    float far = clusterDepthRange.y;
+    float depth = near * far / (far - gl_FragCoord.z * (far - near));
+    int slice = clamp(int(log(depth) * clusterDepthScaleBias.x + clusterDepthScaleBias.y), 0, clusterCountZ - 1);
+    ivec2 tile = min(ivec2(gl_FragCoord.xy / clusterTileSize), ivec2(clusterCountX - 1, clusterCountY - 1));
+    return texelFetch(lightGrid, (slice * clusterCountY + tile.y) * clusterCountX + tile.x).rg;
+}
+
 // calculates the color when using a directional light.
 vec3 CalcDirLight(DirLight light, vec3 normal, vec3 viewDir)
 {
@@ -98,22 +120,28 @@ vec3 CalcDirLight(DirLight light, vec3 normal, vec3 viewDir)
     return (ambient + diffuse + specular);
 }
 
-// calculates the color when using a point light.
-vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir)
+// calculates the color when using the point light of the given index.
+vec3 CalcPointLight(int light, vec3 normal, vec3 fragPos, vec3 viewDir)
 {
-    vec3 lightDir = normalize(light.position - fragPos);
+    vec4 positionRadius = texelFetch(lightData, light * 3);
+    vec3 color = texelFetch(lightData, light * 3 + 1).rgb;
+    vec3 factors = texelFetch(lightData, light * 3 + 2).xyz;
+    // the light is too faint past its radius
+    float distance = length(positionRadius.xyz - fragPos);
+    if(distance >= positionRadius.w)
+        return vec3(0.0);
+    vec3 lightDir = normalize(positionRadius.xyz - fragPos);
     // diffuse shading
     float diff = max(dot(normal, lightDir), 0.0);
     // specular shading
     vec3 reflectDir = reflect(-lightDir, normal);
     float spec = pow(max(dot(viewDir, reflectDir), 0.0), material.shininess);
     // attenuation
-    float distance = length(light.position - fragPos);
-    float attenuation = 1.0 / (light.constant + light.linear * distance + light.quadratic * (distance * distance));    
+    float attenuation = 1.0 / (factors.x + factors.y * distance + factors.z * (distance * distance));    
     // combine results
-    vec3 ambient = light.ambient * vec3(texture(material.diffuse, TexCoords));
-    vec3 diffuse = light.diffuse * diff * vec3(texture(material.diffuse, TexCoords));
-    vec3 specular = light.specular * spec * vec3(texture(material.specular, TexCoords));
+    vec3 ambient = pointLight.ambient * color * vec3(texture(material.diffuse, TexCoords));
+    vec3 diffuse = pointLight.diffuse * color * diff * vec3(texture(material.diffuse, TexCoords));
+    vec3 specular = pointLight.specular * color * spec * vec3(texture(material.specular, TexCoords));
     ambient *= attenuation;
     diffuse *= attenuation;
     specular *= attenuation;
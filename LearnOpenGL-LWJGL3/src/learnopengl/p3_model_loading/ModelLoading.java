@@ -20,8 +20,10 @@ import org.lwjgl.system.Platform;
 import learnopengl.p2_lighting.ch01_colors.Colors;
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.GLState;
 import learnopengl.util.Model;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureLoader;
 
 public class ModelLoading {
 	
@@ -51,7 +53,7 @@ public class ModelLoading {
 	private static final GLFWFramebufferSizeCallbackI FRAMEBUFFER_SIZE_CALLBACK = (window, width, height) -> {
 		// make sure the viewport matches the new window dimensions; note that width and 
 		// height will be significantly larger than specified on retina displays.
-		glViewport(0, 0, width, height);
+		GLState.viewport(0, 0, width, height);
 		// Also update the window width and height variables to correctly set the projection matrix
 		windowWidth = width;
 		windowHeight = height;
@@ -129,8 +131,11 @@ public class ModelLoading {
 	    // Draw in wireframe
 		// glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
 		
+		// All the state changes of this sample go through GLState, so the redundant ones can be skipped
+		GLState.setFiltering(true);
+
 		// Configure global OpenGL state
-		glEnable(GL_DEPTH_TEST);
+		GLState.enable(GL_DEPTH_TEST);
 
 		// Pass projection matrix to shader (as projection matrix rarely changes there's no need to do this per frame)
 		// ** This is true as long as you don't change the window size!
@@ -143,6 +148,12 @@ public class ModelLoading {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Count the state changes of each frame
+			GLState.resetCounters();
+
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -186,6 +197,8 @@ public class ModelLoading {
 		ourModel.delete();
 		ourShader.delete();
 		
+		logger.info(GLState.getStats() + " in the last frame");
+
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
 
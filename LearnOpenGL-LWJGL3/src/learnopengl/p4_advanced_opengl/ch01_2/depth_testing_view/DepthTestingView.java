@@ -6,11 +6,8 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -19,13 +16,14 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.p3_model_loading.ModelLoading;
 import learnopengl.util.Camera;
 import learnopengl.util.Model;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 import learnopengl.util.Camera.CameraMovement;
 
 public class DepthTestingView {
@@ -201,8 +199,8 @@ public class DepthTestingView {
 		setUpVertexData(planeVAO, planeVBO, PLANE_VERTICES);
 		
 		// Load textures
-		final int cubeTexture = loadTexture("resources/textures/marble.jpg", false);
-		final int planeTexture = loadTexture("resources/textures/metal.png", false);
+		final int cubeTexture = TextureLoader.loadTexture("resources/textures/marble.jpg", false);
+		final int planeTexture = TextureLoader.loadTexture("resources/textures/metal.png", false);
 		
 		// Build and compile our shader program
 		final String dir = DepthTestingView.class.getResource(".").getFile();
@@ -224,6 +222,9 @@ public class DepthTestingView {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -283,8 +284,8 @@ public class DepthTestingView {
 		glDeleteVertexArrays(planeVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(planeVBO);
-		glDeleteTextures(cubeTexture);
-		glDeleteTextures(planeTexture);
+		TextureCache.release(cubeTexture);
+		TextureCache.release(planeTexture);
 		ourShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -315,65 +316,6 @@ public class DepthTestingView {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
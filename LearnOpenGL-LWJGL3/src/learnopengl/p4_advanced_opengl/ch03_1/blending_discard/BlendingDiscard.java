@@ -6,11 +6,8 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -20,12 +17,13 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class BlendingDiscard {
 
@@ -214,9 +212,9 @@ public class BlendingDiscard {
 		setUpVertexData(transparentVAO, transparentVBO, TRANSPARENT_VERTICES);
 
 		// Load textures
-		final int cubeTexture = loadTexture("resources/textures/marble.jpg", false, GL_REPEAT, GL_LINEAR);
-		final int planeTexture = loadTexture("resources/textures/metal.png", false, GL_REPEAT, GL_LINEAR);
-		final int transparentTexture = loadTexture("resources/textures/grass.png", false, GL_CLAMP_TO_EDGE, GL_LINEAR);
+		final int cubeTexture = TextureLoader.loadTexture("resources/textures/marble.jpg", false, GL_REPEAT, GL_LINEAR);
+		final int planeTexture = TextureLoader.loadTexture("resources/textures/metal.png", false, GL_REPEAT, GL_LINEAR);
+		final int transparentTexture = TextureLoader.loadTexture("resources/textures/grass.png", false, GL_CLAMP_TO_EDGE, GL_LINEAR);
 
 		// Build and compile our shader program
 		final String dir = BlendingDiscard.class.getResource(".").getFile();
@@ -245,6 +243,9 @@ public class BlendingDiscard {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -313,9 +314,9 @@ public class BlendingDiscard {
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(planeVBO);
 		glDeleteBuffers(transparentVBO);
-		glDeleteTextures(cubeTexture);
-		glDeleteTextures(planeTexture);
-		glDeleteTextures(transparentTexture);
+		TextureCache.release(cubeTexture);
+		TextureCache.release(planeTexture);
+		TextureCache.release(transparentTexture);
 		shader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -346,65 +347,6 @@ public class BlendingDiscard {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY, int wrapping, int filtering) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrapping);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrapping);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filtering);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filtering);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
@@ -6,29 +6,31 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Random;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.lwjgl.glfw.GLFWCursorPosCallbackI;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
+import org.lwjgl.glfw.GLFWKeyCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.DepthSorter;
 import learnopengl.util.Shader;
+import learnopengl.util.StreamBuffer;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class BlendingSorted {
 
@@ -53,6 +55,16 @@ public class BlendingSorted {
 	private static float deltaTime = 0.0f; // Time between current frame and last frame
 	private static float lastFrame = 0.0f;
 
+	// Numbers of windows rendered when run with the benchmark-oit argument
+	private static final int[] BENCHMARK_COUNTS = { 10, 100, 1000, 10000, 100000 };
+	// Frames rendered for each number of windows and mode when run with the benchmark-oit argument, with the first
+	// ones as warm up
+	private static final int BENCHMARK_WARMUP_FRAMES = 60;
+	private static final int BENCHMARK_FRAMES = 300;
+
+	// Weighted blended order independent transparency instead of sorting the windows, toggled with O
+	private static boolean oitEnabled = false;
+
 
 	// Vertex Data
 	private static final float CUBE_VERTICES[] = {
@@ -124,6 +136,14 @@ public class BlendingSorted {
 			1.0f, 0.5f, 0.0f, 1.0f, 0.0f
 	};
 
+	private static final float[] QUAD_VERTICES = {
+			// positions        // texture Coords
+			-1.0f,  1.0f, 0.0f, 0.0f, 1.0f,
+			-1.0f, -1.0f, 0.0f, 0.0f, 0.0f,
+			1.0f,  1.0f, 0.0f, 1.0f, 1.0f,
+			1.0f, -1.0f, 0.0f, 1.0f, 0.0f,
+	};
+
 
 	// ============== Callbacks ==============
 
@@ -153,6 +173,13 @@ public class BlendingSorted {
 		camera.processMouseMovement(xoffset, yoffset, true);
 	};
 
+	private static final GLFWKeyCallbackI KEY_CALLBACK = (window, key, scancode, action, mods) -> {
+		if(key == GLFW_KEY_O && action == GLFW_PRESS) {
+			oitEnabled = !oitEnabled;
+			logger.info(oitEnabled ? "Order independent transparency" : "Sorted transparency");
+		}
+	};
+
 	private static final GLFWScrollCallbackI SCROLL_CALLBACK = (window, xoffset, yoffset) -> {
 		camera.processMouseScroll((float)yoffset);
 		updateProjection = true;
@@ -161,6 +188,10 @@ public class BlendingSorted {
 
 	public static void main(String[] args) {
 
+		// With "benchmark-oit", render more and more windows, sorted and with order independent transparency, and log
+		// the time per frame of both
+		final boolean benchmarkOIT = args.length > 0 && args[0].equals("benchmark-oit");
+
 		// Initialize GLFW
 		glfwInit();
 		glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -186,6 +217,7 @@ public class BlendingSorted {
 		glfwSetFramebufferSizeCallback(window, FRAMEBUFFER_SIZE_CALLBACK);
 		glfwSetCursorPosCallback(window, MOUSE_MOVE_CALLBACK);
 		glfwSetScrollCallback(window, SCROLL_CALLBACK);
+		glfwSetKeyCallback(window, KEY_CALLBACK);
 
 		// Tell GLFW to capture our mouse
 		glfwSetInputMode(window, GLFW_CURSOR, GLFW_CURSOR_DISABLED);
@@ -203,6 +235,11 @@ public class BlendingSorted {
 		glEnable(GL_BLEND);
 		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
+		if(benchmarkOIT) {
+			// Measure the frames, not the refresh rate
+			glfwSwapInterval(0);
+		}
+
 		// Cube
 		final int cubeVAO = glGenVertexArrays();
 		final int cubeVBO = glGenBuffers();
@@ -217,15 +254,28 @@ public class BlendingSorted {
 		final int transparentVAO = glGenVertexArrays();
 		final int transparentVBO = glGenBuffers();
 		setUpVertexData(transparentVAO, transparentVBO, TRANSPARENT_VERTICES);
+		// The windows are instanced, with their position as attribute 2, from the buffer of the mode that draws them
+		glBindVertexArray(transparentVAO);
+		glEnableVertexAttribArray(2);
+		glVertexAttribDivisor(2, 1);
+		glBindVertexArray(0);
+
+		// Quad
+		final int quadVAO = glGenVertexArrays();
+		final int quadVBO = glGenBuffers();
+		setUpVertexData(quadVAO, quadVBO, QUAD_VERTICES);
 
 		// Load textures
-		final int cubeTexture = loadTexture("resources/textures/marble.jpg", false, GL_REPEAT, GL_LINEAR);
-		final int planeTexture = loadTexture("resources/textures/metal.png", false, GL_REPEAT, GL_LINEAR);
-		final int transparentTexture = loadTexture("resources/textures/window.png", false, GL_REPEAT, GL_LINEAR);
+		final int cubeTexture = TextureLoader.loadTexture("resources/textures/marble.jpg", false, GL_REPEAT, GL_LINEAR);
+		final int planeTexture = TextureLoader.loadTexture("resources/textures/metal.png", false, GL_REPEAT, GL_LINEAR);
+		final int transparentTexture = TextureLoader.loadTexture("resources/textures/window.png", false, GL_REPEAT, GL_LINEAR);
 
 		// Build and compile our shader program
 		final String dir = BlendingSorted.class.getResource(".").getFile();
 		Shader shader = new Shader(dir+"blending.vs", dir+"blending.fs");
+		Shader windowShader = new Shader(dir+"window.vs", dir+"blending.fs");
+		Shader oitShader = new Shader(dir+"window.vs", dir+"oit.fs");
+		Shader compositeShader = new Shader(dir+"oit_composite.vs", dir+"oit_composite.fs");
 
 		// Pass projection matrix to shader (as projection matrix rarely changes there's no need to do this per frame)
 		// ** This is true as long as you don't change the window size!
@@ -244,26 +294,86 @@ public class BlendingSorted {
 				new Vector3f (0.5f, 0.0f, -0.6f)
 		};
 
+		// The benchmark adds windows at random positions over the floor
+		final int maxWindows = benchmarkOIT ? BENCHMARK_COUNTS[BENCHMARK_COUNTS.length - 1] : windows.length;
+		final float[] windowPositions = createWindowPositions(windows, maxWindows);
+		int windowCount = windows.length;
+
 		shader.use();
 		shader.setInt("texture1", 0);
+		windowShader.use();
+		windowShader.setInt("texture1", 0);
+		oitShader.use();
+		oitShader.setInt("texture1", 0);
+		compositeShader.use();
+		compositeShader.setInt("accumulation", 0);
+		compositeShader.setInt("weights", 1);
+
+
+		// Instead of a SortedMap or a PriorityQueue of the positions, which allocate and compute the distances again for
+		// every comparison, we sort the indices of the windows by their distance, stored in a float array. The sorter
+		// starts from the order of the previous frame, which is usually almost right
+		final DepthSorter sorter = new DepthSorter();
+		// The sorted positions are streamed every frame
+		final StreamBuffer sortedWindowBuffer = new StreamBuffer(GL_ARRAY_BUFFER, maxWindows * 3 * Float.BYTES);
+
+		// Order independent transparency draws the windows in any order, so their positions never change
+		final int windowBuffer = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, windowBuffer);
+		glBufferData(GL_ARRAY_BUFFER, windowPositions, GL_STATIC_DRAW);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		// The opaque scene is rendered to its own framebuffer, so the transparent pass can test against its depth
+		final int sceneFBO = glGenFramebuffers();
+		final int sceneColor = glGenRenderbuffers();
+		final int sceneDepth = glGenRenderbuffers();
+		// The transparent pass sums the weighted colors and the revealage into one target, and the weights into another
+		final int oitFBO = glGenFramebuffers();
+		final int accumulationTexture = glGenTextures();
+		final int weightTexture = glGenTextures();
+		resizeTargets(sceneColor, sceneDepth, accumulationTexture, weightTexture, windowWidth, windowHeight);
+		int targetWidth = windowWidth;
+		int targetHeight = windowHeight;
+
+		glBindFramebuffer(GL_FRAMEBUFFER, sceneFBO);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, sceneColor);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, sceneDepth);
+		if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+			throw new RuntimeException("Framebuffer is not complete");
+		}
+
+		glBindFramebuffer(GL_FRAMEBUFFER, oitFBO);
+		glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, accumulationTexture, 0);
+		glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, GL_TEXTURE_2D, weightTexture, 0);
+		// Same depth as the scene, tested but not written
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, sceneDepth);
+		glDrawBuffers(new int[] { GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1 });
+		if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+			throw new RuntimeException("Framebuffer is not complete");
+		}
+		glBindFramebuffer(GL_FRAMEBUFFER, 0);
 
+		final float[] accumulationClear = { 0.0f, 0.0f, 0.0f, 1.0f };
+		final float[] weightClear = { 0.0f, 0.0f, 0.0f, 0.0f };
 
-		// Since we only want to sort the windows, we can use a PriorityQueue (Heap tree) instead of a SortedMap, which is usually faster
-		// First of all, we have to define a compare function for the Vector3f class, because it doesn't define one
-		// We can do that by creating a Comparator object
-		Comparator<Vector3f> comparator = (v1, v2) -> {
-			final float v1Distance = camera.position.distance(v1);
-			final float v2Distance = camera.position.distance(v2);
-			return Float.compare(v1Distance, v2Distance);
-		};
-		// Reversed the comparator, since we want to sort from furthest to nearest
-		comparator = comparator.reversed();
-		// Now create the Sorted Queue and pass in the comparator
-		Queue<Vector3f> sorted = new PriorityQueue<>(comparator);
+		// Benchmark state: the number of windows and the mode are given by the phase, two per number of windows
+		int benchmarkPhase = 0;
+		int benchmarkFrame = 0;
+		long benchmarkStart = 0L;
+		long benchmarkSortNanos = 0L;
+		double sortedMillis = 0.0;
+		double sortingMillis = 0.0;
+
+		if(!benchmarkOIT) {
+			logger.info("Press O to switch between sorted and order independent transparency");
+		}
 
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -272,12 +382,55 @@ public class BlendingSorted {
 			// Input
 			processInput(window);
 
-			// Sort the transparent windows before rendering
-			// All we have to do is add the window's positions to the queue
-			for(Vector3f winPos : windows) {
-				sorted.add(winPos);
+			if(benchmarkOIT) {
+				windowCount = BENCHMARK_COUNTS[benchmarkPhase / 2];
+				oitEnabled = benchmarkPhase % 2 == 1;
+				// The camera moves sideways, so the sorted path has to sort again every frame
+				camera.position.set((float)Math.sin(benchmarkFrame * 0.02f) * 2.0f, 0.0f, 3.0f);
 			}
 
+			// Update projection matrix if necessary
+			if(updateProjection) {
+				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
+						0.1f, 100.0f);
+				shader.use();
+				shader.setMat4("projection", projection);
+				windowShader.use();
+				windowShader.setMat4("projection", projection);
+				oitShader.use();
+				oitShader.setMat4("projection", projection);
+				updateProjection = false;
+			}
+
+			// The render targets follow the size of the window
+			if(targetWidth != windowWidth || targetHeight != windowHeight) {
+				resizeTargets(sceneColor, sceneDepth, accumulationTexture, weightTexture, windowWidth, windowHeight);
+				targetWidth = windowWidth;
+				targetHeight = windowHeight;
+			}
+
+			final long sortStart = System.nanoTime();
+			int windowOffset = 0;
+			if(!oitEnabled) {
+				// Sort the transparent windows before rendering, and stream their positions from the furthest to the nearest
+				final int[] sorted = sorter.sortByDistance(windowPositions, windowCount, camera.position);
+
+				sortedWindowBuffer.beginFrame();
+				windowOffset = sortedWindowBuffer.allocate(windowCount * 3 * Float.BYTES, Float.BYTES);
+				final ByteBuffer data = sortedWindowBuffer.getData();
+				for(int i = 0;i < windowCount;i++) {
+					final int offset = windowOffset + i * 3 * Float.BYTES;
+					data.putFloat(offset, windowPositions[sorted[i] * 3]);
+					data.putFloat(offset + Float.BYTES, windowPositions[sorted[i] * 3 + 1]);
+					data.putFloat(offset + 2 * Float.BYTES, windowPositions[sorted[i] * 3 + 2]);
+				}
+				sortedWindowBuffer.flush();
+			}
+			benchmarkSortNanos += System.nanoTime() - sortStart;
+
+			// With order independent transparency, the opaque scene goes to its own framebuffer
+			glBindFramebuffer(GL_FRAMEBUFFER, oitEnabled ? sceneFBO : 0);
+
 			// Clear the screen
 			glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 			// Don't forget to clear the stencil buffer!
@@ -288,14 +441,6 @@ public class BlendingSorted {
 			final Matrix4f view = camera.getViewMatrix();
 			shader.setMat4("view", view);
 
-			// Update projection matrix if necessary
-			if(updateProjection) {
-				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
-						0.1f, 100.0f);
-				shader.setMat4("projection", projection);
-				updateProjection = false;
-			}
-
 			// Cubes
 			glBindVertexArray(cubeVAO);
 			glActiveTexture(GL_TEXTURE0);
@@ -320,36 +465,176 @@ public class BlendingSorted {
 			glBindVertexArray(transparentVAO);
 			glBindTexture(GL_TEXTURE_2D, transparentTexture);
 
-			while(!sorted.isEmpty()) {
-				final Vector3f winPos = sorted.poll();
-				model.translation(winPos);
-				shader.setMat4("model", model);
-				glDrawArrays(GL_TRIANGLES, 0, 6);
+			if(!oitEnabled) {
+
+				// From the furthest to the nearest, all in one draw
+				windowShader.use();
+				windowShader.setMat4("view", view);
+				glBindBuffer(GL_ARRAY_BUFFER, sortedWindowBuffer.id);
+				glVertexAttribPointer(2, 3, GL_FLOAT, false, 3 * Float.BYTES, windowOffset);
+				glBindBuffer(GL_ARRAY_BUFFER, 0);
+				glDrawArraysInstanced(GL_TRIANGLES, 0, 6, windowCount);
+				glBindVertexArray(0);
+
+				sortedWindowBuffer.endFrame();
+
+			} else {
+
+				// Accumulate the windows in any order. OpenGL 3.3 can't blend each target differently, so the revealage,
+				// the product of (1 - alpha), goes to the alpha of the accumulation: the colors are added, and the alphas
+				// multiplied by (1 - alpha)
+				glBindFramebuffer(GL_FRAMEBUFFER, oitFBO);
+				glClearBufferfv(GL_COLOR, 0, accumulationClear);
+				glClearBufferfv(GL_COLOR, 1, weightClear);
+				glDepthMask(false);
+				glBlendFuncSeparate(GL_ONE, GL_ONE, GL_ZERO, GL_ONE_MINUS_SRC_ALPHA);
+
+				oitShader.use();
+				oitShader.setMat4("view", view);
+				glBindBuffer(GL_ARRAY_BUFFER, windowBuffer);
+				glVertexAttribPointer(2, 3, GL_FLOAT, false, 3 * Float.BYTES, 0L);
+				glBindBuffer(GL_ARRAY_BUFFER, 0);
+				glDrawArraysInstanced(GL_TRIANGLES, 0, 6, windowCount);
+
+				// Composite the average color of the windows over the opaque scene
+				glBindFramebuffer(GL_FRAMEBUFFER, sceneFBO);
+				glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+				glDisable(GL_DEPTH_TEST);
+
+				compositeShader.use();
+				glActiveTexture(GL_TEXTURE0);
+				glBindTexture(GL_TEXTURE_2D, accumulationTexture);
+				glActiveTexture(GL_TEXTURE1);
+				glBindTexture(GL_TEXTURE_2D, weightTexture);
+				glBindVertexArray(quadVAO);
+				glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+				glBindVertexArray(0);
+				glActiveTexture(GL_TEXTURE0);
+
+				glEnable(GL_DEPTH_TEST);
+				glDepthMask(true);
+
+				// Copy the result to the default framebuffer
+				glBindFramebuffer(GL_READ_FRAMEBUFFER, sceneFBO);
+				glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+				glBlitFramebuffer(0, 0, targetWidth, targetHeight, 0, 0, windowWidth, windowHeight, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+				glBindFramebuffer(GL_FRAMEBUFFER, 0);
 			}
 
 			// Swap buffers and poll IO events (key/mouse events)
 			glfwSwapBuffers(window);
 			glfwPollEvents();
 
+			if(benchmarkOIT) {
+
+				++benchmarkFrame;
+
+				if(benchmarkFrame == BENCHMARK_WARMUP_FRAMES) {
+					// Wait for the warm up frames, so the measure starts with the GPU idle
+					glFinish();
+					benchmarkStart = System.nanoTime();
+					benchmarkSortNanos = 0L;
+
+				} else if(benchmarkFrame == BENCHMARK_WARMUP_FRAMES + BENCHMARK_FRAMES) {
+
+					glFinish();
+					final double millis = (System.nanoTime() - benchmarkStart) / 1e6 / BENCHMARK_FRAMES;
+
+					if(!oitEnabled) {
+						sortedMillis = millis;
+						sortingMillis = benchmarkSortNanos / 1e6 / BENCHMARK_FRAMES;
+					} else {
+						logger.info(String.format("%d windows: sorted %.2f ms per frame (%.2f ms sorting and streaming), order independent %.2f ms per frame", 
+								windowCount, sortedMillis, sortingMillis, millis));
+					}
+
+					benchmarkFrame = 0;
+					if(++benchmarkPhase == BENCHMARK_COUNTS.length * 2) {
+						glfwSetWindowShouldClose(window, true);
+					}
+				}
+			}
+
 		}
 
 		// Deallocate all resources when no longer necessary
 		glDeleteVertexArrays(cubeVAO);
 		glDeleteVertexArrays(planeVAO);
 		glDeleteVertexArrays(transparentVAO);
+		glDeleteVertexArrays(quadVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(planeVBO);
 		glDeleteBuffers(transparentVBO);
-		glDeleteTextures(cubeTexture);
-		glDeleteTextures(planeTexture);
-		glDeleteTextures(transparentTexture);
+		glDeleteBuffers(quadVBO);
+		glDeleteBuffers(windowBuffer);
+		sortedWindowBuffer.delete();
+		glDeleteFramebuffers(sceneFBO);
+		glDeleteFramebuffers(oitFBO);
+		glDeleteRenderbuffers(sceneColor);
+		glDeleteRenderbuffers(sceneDepth);
+		glDeleteTextures(accumulationTexture);
+		glDeleteTextures(weightTexture);
+		TextureCache.release(cubeTexture);
+		TextureCache.release(planeTexture);
+		TextureCache.release(transparentTexture);
 		shader.delete();
+		windowShader.delete();
+		oitShader.delete();
+		compositeShader.delete();
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
 
 	}
 
+	/**
+	 * Returns the positions of the given windows followed by windows at random positions over the floor, up to count,
+	 * as 3 floats each
+	 * */
+	private static float[] createWindowPositions(Vector3f[] windows, int count) {
+
+		final float[] positions = new float[count * 3];
+		final Random random = new Random(1);
+
+		for(int i = 0;i < count;i++) {
+			if(i < windows.length) {
+				positions[i * 3] = windows[i].x;
+				positions[i * 3 + 1] = windows[i].y;
+				positions[i * 3 + 2] = windows[i].z;
+			} else {
+				// The windows are one unit wide, starting at their position
+				positions[i * 3] = random.nextFloat() * 9.0f - 5.0f;
+				positions[i * 3 + 1] = 0.0f;
+				positions[i * 3 + 2] = random.nextFloat() * 10.0f - 5.0f;
+			}
+		}
+
+		return positions;
+	}
+
+	/**
+	 * Allocates the render targets of order independent transparency with the given size
+	 * */
+	private static void resizeTargets(int sceneColor, int sceneDepth, int accumulationTexture, int weightTexture, int width, int height) {
+
+		glBindRenderbuffer(GL_RENDERBUFFER, sceneColor);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+		glBindRenderbuffer(GL_RENDERBUFFER, sceneDepth);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+		glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+		// Half floats hold the sums of the weighted colors, which the weights keep under their range
+		glBindTexture(GL_TEXTURE_2D, accumulationTexture);
+		nglTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA16F, width, height, 0, GL_RGBA, GL_FLOAT, NULL);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glBindTexture(GL_TEXTURE_2D, weightTexture);
+		nglTexImage2D(GL_TEXTURE_2D, 0, GL_R16F, width, height, 0, GL_RED, GL_FLOAT, NULL);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
 	private static void setUpVertexData(int vao, int vbo, float[] vertexData) {
 		// Bind the Vertex Array Object first, then bind and set vertex buffer(s), and then configure vertex attributes(s).
 		glBindVertexArray(vao);
@@ -373,65 +658,6 @@ public class BlendingSorted {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY, int wrapping, int filtering) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrapping);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrapping);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filtering);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filtering);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
@@ -0,0 +1,22 @@
+#version 330 core
+// Blended with GL_ONE, GL_ONE for the colors and GL_ZERO, GL_ONE_MINUS_SRC_ALPHA for the alphas, as OpenGL 3.3 can't
+// blend each target differently: the first target sums the weighted colors and multiplies the alphas into the
+// revealage, and the second target sums the weights
+layout (location = 0) out vec4 Accumulation;
+layout (location = 1) out vec4 Weight;
+
+in vec2 TexCoords;
+in float ViewDepth;
+
+uniform sampler2D texture1;
+
+void main()
+{
+    vec4 color = texture(texture1, TexCoords);
+
+    // Nearer fragments weigh more, within what half floats can sum (McGuire and Bavoil, equation 7)
+    float weight = color.a * clamp(10.0f / (1e-5f + pow(ViewDepth / 5.0f, 2.0f) + pow(ViewDepth / 200.0f, 6.0f)), 1e-2f, 3e3f);
+
+    Accumulation = vec4(color.rgb * weight, color.a);
+    Weight = vec4(weight);
+}
\ No newline at end of file
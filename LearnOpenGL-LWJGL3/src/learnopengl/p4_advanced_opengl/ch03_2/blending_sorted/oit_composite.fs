@@ -0,0 +1,20 @@
+#version 330 core
+out vec4 FragColor;
+
+uniform sampler2D accumulation;
+uniform sampler2D weights;
+
+void main()
+{
+    ivec2 pixel = ivec2(gl_FragCoord.xy);
+    vec4 accumulated = texelFetch(accumulation, pixel, 0);
+
+    // The alpha is the product of (1 - alpha) of the transparent fragments, how much of the opaque scene shows
+    float revealage = accumulated.a;
+    if(revealage >= 1.0f)
+        discard;
+
+    // Weighted average of the colors, blended over the opaque scene with GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA
+    float weight = texelFetch(weights, pixel, 0).r;
+    FragColor = vec4(accumulated.rgb / max(weight, 1e-5f), 1.0f - revealage);
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+#version 330 core
+layout (location = 0) in vec3 aPos;
+layout (location = 1) in vec2 aTexCoords;
+layout (location = 2) in vec3 aOffset;
+
+out vec2 TexCoords;
+out float ViewDepth;
+
+uniform mat4 view;
+uniform mat4 projection;
+
+void main()
+{
+    TexCoords = aTexCoords;
+    // Each instance is a window, moved to its position
+    vec4 viewPosition = view * vec4(aPos + aOffset, 1.0f);
+    ViewDepth = -viewPosition.z;
+    gl_Position = projection * viewPosition;
+}
\ No newline at end of file
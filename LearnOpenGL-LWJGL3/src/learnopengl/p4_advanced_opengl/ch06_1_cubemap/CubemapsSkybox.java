@@ -27,6 +27,8 @@ import org.lwjgl.system.Platform;
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class CubemapsSkybox {
 
@@ -240,7 +242,7 @@ public class CubemapsSkybox {
 		glVertexAttribPointer(0, 3, GL_FLOAT, false, 3 * Float.BYTES, 0L);
 
 		// Load textures
-		final int cubeTexture = loadTexture("resources/textures/marble.jpg", false);
+		final int cubeTexture = TextureLoader.loadTexture("resources/textures/marble.jpg", false);
 
 		final String[] faces = {
 				"resources/textures/skybox/right.jpg",
@@ -270,6 +272,9 @@ public class CubemapsSkybox {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -328,7 +333,7 @@ public class CubemapsSkybox {
 		glDeleteVertexArrays(skyboxVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(skyboxVBO);
-		glDeleteTextures(cubeTexture);
+		TextureCache.release(cubeTexture);
 		shader.delete();
 		skyboxShader.delete();
 
@@ -409,47 +414,6 @@ public class CubemapsSkybox {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = getImageFormat(nrChannels.get(0));
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static int getImageFormat(int nrChannels) {
 		switch(nrChannels) {
@@ -7,11 +7,8 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL44.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix3f;
@@ -21,12 +18,12 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader;
+import learnopengl.util.StreamBuffer;
 
 public class UniformBufferObjects {
 
@@ -201,24 +198,16 @@ public class UniformBufferObjects {
 		glUniformBlockBinding(shaderGreen.id, blockIndexGreen, 0);
 		glUniformBlockBinding(shaderBlue.id, blockIndexBlue, 0);
 		glUniformBlockBinding(shaderYellow.id, blockIndexYellow, 0);
-		// Now actually create the buffer
-		final int uboMatrices = glGenBuffers();
-		glBindBuffer(GL_UNIFORM_BUFFER, uboMatrices);
+		// Now actually create the buffer. The block changes every frame, so it is streamed through a ring buffer
+		// instead of updating the same buffer the GPU may still be reading from with glBufferSubData
 		final int sizeofMat4 = 16 * Float.BYTES;
-		nglBufferData(GL_UNIFORM_BUFFER, 2 * sizeofMat4, NULL, GL_STATIC_DRAW); // Reserve enough memory
-		glBindBuffer(GL_UNIFORM_BUFFER, 0);
-		// Define the range of the buffer that links to a uniform binding point
-		glBindBufferRange(GL_UNIFORM_BUFFER, 0, uboMatrices, 0, 2 * sizeofMat4);
+		final int uniformAlignment = StreamBuffer.getUniformAlignment();
+		StreamBuffer uboMatrices = new StreamBuffer(GL_UNIFORM_BUFFER, 2 * sizeofMat4 + uniformAlignment);
 
-		// Store the projection matrix (we only do this once now) 
+		// Store the projection matrix (it is the same every frame) 
 		// Note: we are not using zoom anymore by changing the FoV
 		Matrix4f projection = new Matrix4f();
 		projection.perspective((float)Math.toRadians(45.0f), (float)windowWidth / (float)windowHeight, 0.1f, 100.0f);
-		glBindBuffer(GL_UNIFORM_BUFFER, uboMatrices);
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-			glBufferSubData(GL_UNIFORM_BUFFER, 0, projection.get(stack.mallocFloat(16)));		
-		}
-		glBindBuffer(GL_UNIFORM_BUFFER, 0);
 
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
@@ -235,13 +224,15 @@ public class UniformBufferObjects {
 			glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-			// Set the view matrix in the uniform block - we only have to do this once per render iteration
+			// Set the matrices in the uniform block - we only have to do this once per render iteration
 			final Matrix4f view = camera.getViewMatrix();
-			glBindBuffer(GL_UNIFORM_BUFFER, uboMatrices);
-			try(MemoryStack stack = MemoryStack.stackPush()) {
-				glBufferSubData(GL_UNIFORM_BUFFER, sizeofMat4, view.get(stack.mallocFloat(16)));
-			}
-			glBindBuffer(GL_UNIFORM_BUFFER, 0);
+			uboMatrices.beginFrame();
+			final int offset = uboMatrices.allocate(2 * sizeofMat4, uniformAlignment);
+			projection.get(offset, uboMatrices.getData());
+			view.get(offset + sizeofMat4, uboMatrices.getData());
+			uboMatrices.flush();
+			// Define the range of the buffer that links to a uniform binding point
+			glBindBufferRange(GL_UNIFORM_BUFFER, 0, uboMatrices.id, offset, 2 * sizeofMat4);
 
 			// Draw 4 cubes
 			// RED
@@ -266,6 +257,8 @@ public class UniformBufferObjects {
 			shaderBlue.setMat4("model", model);
 			glDrawArrays(GL_TRIANGLES, 0, 36);
 
+			uboMatrices.endFrame();
+
 			// Swap buffers and poll IO events (key/mouse events)
 			glfwSwapBuffers(window);
 			glfwPollEvents();
@@ -275,7 +268,7 @@ public class UniformBufferObjects {
 		// Deallocate all resources when no longer necessary
 		glDeleteVertexArrays(cubeVAO);
 		glDeleteBuffers(cubeVBO);
-		glDeleteBuffers(uboMatrices);
+		uboMatrices.delete();
 		shaderRed.delete();
 		shaderGreen.delete();
 		shaderBlue.delete();
@@ -305,63 +298,6 @@ public class UniformBufferObjects {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = getImageFormat(nrChannels.get(0));
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-
-	private static int getImageFormat(int nrChannels) {
-		switch(nrChannels) {
-		case 1:
-			return GL_RED;
-		case 2:
-			return GL_RG;
-		case 3:
-			return GL_RGB;
-		case 4:
-			return GL_RGBA;
-		default:
-			throw new RuntimeException("Unexpected number of channels");
-		}
-	}
-
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
 		if(glfwGetKey(window, GLFW_KEY_ESCAPE) == GLFW_PRESS) {
@@ -18,6 +18,7 @@ import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Model;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureLoader;
 
 public class GeometryShaderNormals {
 
@@ -138,6 +139,9 @@ public class GeometryShaderNormals {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
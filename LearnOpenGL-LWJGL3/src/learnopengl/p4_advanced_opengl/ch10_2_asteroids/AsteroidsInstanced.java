@@ -8,14 +8,23 @@ import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.opengl.GL31.*;
 import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT;
+import static org.lwjgl.opengl.GL43.GL_TEXTURE_BUFFER_OFFSET_ALIGNMENT;
 import static org.lwjgl.system.MemoryUtil.*;
 
 import java.nio.FloatBuffer;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 import org.lwjgl.glfw.GLFWCursorPosCallbackI;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
@@ -26,17 +35,68 @@ import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.Frustum;
+import learnopengl.util.GPUCuller;
+import learnopengl.util.ImpostorAtlas;
+import learnopengl.util.InstanceBVH;
+import learnopengl.util.LodSelector;
 import learnopengl.util.Mesh;
 import learnopengl.util.Mesh.Texture;
 import learnopengl.util.Model;
+import learnopengl.util.OrbitSimulation;
 import learnopengl.util.Shader;
+import learnopengl.util.StreamBuffer;
+import learnopengl.util.TextureLoader;
 
 public class AsteroidsInstanced {
 
 	private static Logger logger = Logger.getAnonymousLogger();
 
+	private static final int MATRIX_SIZE = 16 * Float.BYTES;
+	// Attribute of the instance indices written by the GPU culling, after the 4 of the instance matrix, and the texture
+	// unit of the matrices they index
+	private static final int INSTANCE_INDEX_LOCATION = 7;
+	private static final int INSTANCE_MATRICES_UNIT = 1;
+
+	// Pixels the surface of a simplified asteroid may move from the full resolution one
+	private static final float LOD_PIXEL_ERROR = 1.0f;
+
+	// Asteroids smaller than this radius on the screen, in pixels, are drawn as impostors, crossfading from 50% larger
+	private static final float IMPOSTOR_PIXELS = 24.0f;
+	private static final float IMPOSTOR_FADE = 0.5f;
+	private static final int IMPOSTOR_FRAMES = 16;
+	private static final int IMPOSTOR_FRAME_SIZE = 64;
+
+	// Same light for the meshes and the impostors, so they match while crossfading
+	private static final Vector3fc LIGHT_DIRECTION = new Vector3f(-0.6f, -0.3f, -0.75f).normalize();
+
+	// The belt is generated from this seed, so every run has the same asteroids
+	private static final long BELT_SEED = 0x5eed;
+	private static final float BELT_RADIUS = 150.0f;
+	private static final float BELT_OFFSET = 25.0f;
+	// While orbiting, the BVH is refitted every frame and rebuilt every this many frames, as the asteroids drift apart
+	private static final int BVH_REBUILD_FRAMES = 120;
+	// Frames simulated for each thread count, with the first half as warm up, when run with the benchmark argument
+	private static final int BENCHMARK_FRAMES = 400;
+
 	private static boolean updateProjection = true;
 
+	// Move the asteroids along their orbits, toggled with O
+	private static boolean orbiting;
+	private static boolean orbitingKeyPressed;
+
+	// Cull the asteroids with a compute shader instead of the BVH, toggled with G
+	private static boolean gpuCulling;
+	private static boolean gpuCullingKeyPressed;
+
+	// Draw the far asteroids with fewer triangles, toggled with L
+	private static boolean lodEnabled = true;
+	private static boolean lodKeyPressed;
+
+	// Draw the farthest asteroids as impostors, toggled with I. They are levels of detail too, so L disables them
+	private static boolean impostorsEnabled = true;
+	private static boolean impostorsKeyPressed;
+
 	// Window size
 	private static int windowWidth = 1280;
 	private static int windowHeight = 720;
@@ -90,6 +150,14 @@ public class AsteroidsInstanced {
 
 	public static void main(String[] args) {
 
+		// The number of asteroids can be given as the first argument, and "benchmark" as the second measures how many of
+		// them can be simulated at 60 Hz with each number of threads, without opening a window
+		final int amount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		if(args.length > 1 && args[1].equals("benchmark")) {
+			benchmarkBelt(amount);
+			return;
+		}
+
 		// Initialize GLFW
 		glfwInit();
 		glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -134,32 +202,109 @@ public class AsteroidsInstanced {
 		final String dir = AsteroidsInstanced.class.getResource(".").getFile();
 		Shader asteroidShader = new Shader(dir+"asteroids.vs", dir+"asteroids.fs");
 		Shader planetShader = new Shader(dir+"planet.vs", dir+"planet.fs");
+		Shader impostorShader = new Shader(dir+"impostor.vs", dir+"impostor.fs");
 
-		// Load models
-		Model rock = new Model("resources/objects/rock/rock.obj");
+		// Load models. Only the rock is simplified into levels of detail, as there are so many of them
+		Model rock = new Model("resources/objects/rock/rock.obj", false, true, true);
 		Model planet = new Model("resources/objects/planet/planet.obj");
 
-		// Generate a large list of semi-random model transformation matrices
+		// Render the rock from all around into an atlas, for the asteroids that only cover a few pixels
+		final Shader impostorBakeShader = new Shader(dir+"impostor_bake.vs", dir+"impostor_bake.fs");
+		final ImpostorAtlas impostors = new ImpostorAtlas(rock, impostorBakeShader, IMPOSTOR_FRAMES, IMPOSTOR_FRAME_SIZE);
+		impostorBakeShader.delete();
+
+		// Generate a belt of semi-random asteroids, in parallel. Their orbits are kept in arrays, one per parameter, and
+		// their matrices are computed from them
+		final Vector3f rockCenter = rock.aabbMin.add(rock.aabbMax, new Vector3f()).mul(0.5f);
+		final OrbitSimulation belt = new OrbitSimulation(amount, BELT_SEED, BELT_RADIUS, BELT_OFFSET, rockCenter, 
+				rockCenter.distance(rock.aabbMax), ForkJoinPool.commonPool());
+		logger.info("Press O to make the asteroids orbit");
+
 		// As long as we need to pass the matrices to LWJGL (and thus in a form of a java.nio.Buffer object)
 		// we generate directly the required buffer
-		final int amount = 100000;
-		FloatBuffer modelMatrices = generateTransformations(amount);
-
-		// Configure instanced array
-		final int instancedBuffer = glGenBuffers();
+		FloatBuffer modelMatrices = MemoryUtil.memAllocFloat(amount * 16); // Each Matrix4f contains 16 floats
+		belt.writeMatrices(null, amount, memAddress(modelMatrices));
+
+		// Build a BVH over the bounding spheres of the asteroids, so only the visible ones are drawn. The belt updates
+		// the same array when the asteroids move
+		final float[] spheres = belt.getSpheres();
+		final InstanceBVH bvh = new InstanceBVH();
+		final long buildStart = System.nanoTime();
+		bvh.build(spheres, amount);
+		logger.info(String.format("Built the BVH of %d asteroids in %.1f ms, %d nodes", amount, 
+				(System.nanoTime() - buildStart) / 1e6, bvh.getNodeCount()));
+
+		// Configure instanced array. Every frame, the matrices of the visible asteroids are streamed into it
+		final StreamBuffer instanceBuffer = new StreamBuffer(GL_ARRAY_BUFFER, amount * MATRIX_SIZE);
+		final int instancedBuffer = instanceBuffer.id;
 		glBindBuffer(GL_ARRAY_BUFFER, instancedBuffer);
-		glBufferData(GL_ARRAY_BUFFER, modelMatrices, GL_STATIC_DRAW);
 
-		// Don't forget to free the buffer
-		MemoryUtil.memFree(modelMatrices);
+		// With compute shaders, the asteroids can be culled on the GPU too, without reading the visible count back
+		Shader cullShader = null;
+		GPUCuller gpuCuller = null;
+		// While orbiting, all the matrices and spheres are streamed to the compute shader every frame
+		StreamBuffer gpuInstanceBuffer = null;
+		int storageAlignment = 1;
+		if(GPUCuller.isSupported(amount)) {
+			cullShader = new Shader(dir+"cull.cs");
+			gpuCuller = new GPUCuller(cullShader, modelMatrices, spheres, amount, rock.getLodCount(), true, 
+					rock.meshes.toArray(new Mesh[0]));
+			// The matrices are read by the compute shader and through a buffer texture
+			storageAlignment = Math.max(glGetInteger(GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT),
+					glGetInteger(GL_TEXTURE_BUFFER_OFFSET_ALIGNMENT));
+			gpuInstanceBuffer = new StreamBuffer(GL_SHADER_STORAGE_BUFFER, amount * (MATRIX_SIZE + 4 * Float.BYTES) + 2 * storageAlignment);
+			gpuCulling = true;
+			logger.info("Culling the asteroids on the GPU, press G to switch between the GPU and the CPU");
+		} else {
+			logger.info("Compute shaders are not supported, culling the asteroids on the CPU");
+		}
+
+		// The rock was simplified into levels of detail when it was imported
+		final LodSelector lods = new LodSelector(rock, LOD_PIXEL_ERROR);
+		lods.setImpostors(IMPOSTOR_PIXELS, IMPOSTOR_FADE);
+		final int[] lodTriangles = new int[lods.getLodCount()];
+		for(final Mesh mesh : rock.meshes) {
+			for(int i = 0;i < lodTriangles.length;i++) {
+				lodTriangles[i] += mesh.getLodIndexCount(i) / 3;
+			}
+		}
+		logger.info("Triangles of each level of detail of the asteroids: " + Arrays.toString(lodTriangles));
+
+		final Frustum frustum = new Frustum();
+		final Matrix4f viewProjection = new Matrix4f();
+		final int[] visible = new int[amount];
+		// The visible asteroids sorted by level of detail and impostor, and where each group starts, see sortByLod
+		final int[] sortedVisible = new int[amount];
+		final byte[] visibleLods = new byte[amount];
+		final int[] lodStarts = new int[2 * lods.getLodCount() + 2];
+		final int impostorGroup = 2 * lods.getLodCount();
+		int visibleCount = 0;
+		long triangles = 0;
+		long fullTriangles = 0;
+		long impostorCount = 0;
+		long cullTime = 0;
+		long frames = 0;
+		long gpuCullTime = 0;
+		long gpuFrames = 0;
+		boolean wasOrbiting = false;
+		int refits = 0;
+		long simulationTime = 0;
+		long simulationFrames = 0;
 
 		// Set transformation matrices as an instance vertex attribute (with divisor 1)
 		// Note: we're cheating a little by taking the, now publicly declared, VAO of the model's mesh(es)
 		// and adding new vertexAttribPointers
 		// Normally you'd want to do this in a more organized fashion, but for learning purposes this will do.
+		final List<Integer> instancedArrays = new ArrayList<>();
 		for(final Mesh mesh : rock.meshes) {
+			instancedArrays.add(mesh.vao);
+		}
+		// The impostor quads are instanced with the same matrices
+		instancedArrays.add(impostors.vao);
+
+		for(final int vao : instancedArrays) {
 
-			glBindVertexArray(mesh.vao);
+			glBindVertexArray(vao);
 			// Set attribute pointers (mat4 = 4 times vec4)
 			glEnableVertexAttribArray(3);
 			glVertexAttribPointer(3, 4, GL_FLOAT, false, 16 * Float.BYTES, 0);
@@ -174,10 +319,13 @@ public class AsteroidsInstanced {
 			glVertexAttribDivisor(4, 1);
 			glVertexAttribDivisor(5, 1);
 			glVertexAttribDivisor(6, 1);
+			glVertexAttribDivisor(INSTANCE_INDEX_LOCATION, 1);
 
 			glBindVertexArray(0);
 		}
 
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
 		// Pass projection matrix to shader (as projection matrix rarely changes there's no need to do this per frame)
 		// ** This is true as long as you don't change the window size!
 		// That's why I check every frame if the projection matrix has to be changed
@@ -189,6 +337,9 @@ public class AsteroidsInstanced {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -205,11 +356,101 @@ public class AsteroidsInstanced {
 			if(updateProjection) {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 1000.0f); // Set far plane to 1000!
+				lods.setImpostors(impostorsEnabled ? IMPOSTOR_PIXELS : 0.0f, IMPOSTOR_FADE);
+				lods.update(projection, windowHeight);
 				updateProjection = false;
 			}
 
+			// Where the asteroids crossfade to their impostors, relative to their radius
+			final boolean useImpostors = lodEnabled && impostorsEnabled;
+			final float impostorStart = useImpostors ? lods.getImpostorStart() : Float.POSITIVE_INFINITY;
+			final float impostorEnd = useImpostors ? lods.getImpostorEnd() : Float.POSITIVE_INFINITY;
+
 			final Matrix4f view = camera.getViewMatrix();
 
+			projection.mul(view, viewProjection);
+			final boolean culledOnGPU = gpuCulling && gpuCuller != null;
+
+			// Move the asteroids. When they stop, their matrices are written once more for the static path
+			if(orbiting) {
+				final long simulationStart = System.nanoTime();
+				belt.update(deltaTime);
+				simulationTime += System.nanoTime() - simulationStart;
+			} else if(wasOrbiting) {
+				belt.writeMatrices(null, amount, memAddress(modelMatrices));
+				bvh.build(spheres, amount);
+				if(gpuCuller != null) {
+					gpuCuller.upload(modelMatrices, spheres);
+				}
+			}
+			wasOrbiting = orbiting;
+
+			// Find the visible asteroids and copy their matrices to the instanced array
+			final long cullStart = System.nanoTime();
+			int instanceOffset = 0;
+			instanceBuffer.beginFrame();
+			if(culledOnGPU) {
+				if(orbiting) {
+					// The compute shader reads the matrices and spheres of this frame straight from the mapped buffer
+					final long simulationStart = System.nanoTime();
+					gpuInstanceBuffer.beginFrame();
+					final int matrixOffset = gpuInstanceBuffer.allocate(amount * MATRIX_SIZE, storageAlignment);
+					final int sphereOffset = gpuInstanceBuffer.allocate(amount * 4 * Float.BYTES, storageAlignment);
+					final long data = memAddress(gpuInstanceBuffer.getData());
+					belt.writeMatrices(null, amount, data + matrixOffset);
+					memFloatBuffer(data + sphereOffset, amount * 4).put(spheres, 0, amount * 4);
+					gpuInstanceBuffer.flush();
+					gpuCuller.setInstanceSource(gpuInstanceBuffer.id, matrixOffset, sphereOffset);
+					simulationTime += System.nanoTime() - simulationStart;
+					++simulationFrames;
+				}
+				if(lodEnabled) {
+					gpuCuller.cull(viewProjection, camera.position, lods);
+				} else {
+					gpuCuller.cull(viewProjection);
+				}
+				gpuCullTime += System.nanoTime() - cullStart;
+				++gpuFrames;
+			} else {
+				frustum.set(viewProjection);
+				if(orbiting) {
+					// Refitting keeps the tree, which gets looser as the inner asteroids overtake the outer ones
+					if(++refits >= BVH_REBUILD_FRAMES) {
+						bvh.build(spheres, amount);
+						refits = 0;
+					} else {
+						bvh.refit(spheres);
+					}
+				}
+				visibleCount = bvh.cull(frustum, visible);
+				// Group the visible asteroids by level of detail, so each level is one instanced draw
+				sortByLod(visible, visibleCount, spheres, camera.position, lods, lodEnabled ? lods.getLodCount() : 1, 
+						impostorStart, impostorEnd, visibleLods, sortedVisible, lodStarts);
+				instanceOffset = instanceBuffer.allocate(Math.max(visibleCount, 1) * MATRIX_SIZE, MATRIX_SIZE);
+				if(orbiting) {
+					// Only the matrices of the visible asteroids are computed, directly into the mapped buffer
+					final long simulationStart = System.nanoTime();
+					belt.writeMatrices(sortedVisible, visibleCount, memAddress(instanceBuffer.getData()) + instanceOffset);
+					simulationTime += System.nanoTime() - simulationStart;
+					++simulationFrames;
+				} else {
+					gatherMatrices(modelMatrices, sortedVisible, visibleCount, memAddress(instanceBuffer.getData()) + instanceOffset);
+				}
+				instanceBuffer.flush();
+				cullTime += System.nanoTime() - cullStart;
+				++frames;
+
+				// Two triangles for each impostor
+				int frameImpostors = lodStarts[impostorGroup + 1] - lodStarts[impostorGroup];
+				for(int i = 0;i < lodTriangles.length;i++) {
+					triangles += (long)(lodStarts[2 * i + 2] - lodStarts[2 * i]) * lodTriangles[i];
+					frameImpostors += lodStarts[2 * i + 2] - lodStarts[2 * i + 1];
+				}
+				triangles += 2L * frameImpostors;
+				impostorCount += frameImpostors;
+				fullTriangles += (long)visibleCount * lodTriangles[0];
+			}
+
 			// Draw planet
 			planetShader.use();
 			planetShader.setMat4("view", view);
@@ -224,16 +465,71 @@ public class AsteroidsInstanced {
 			asteroidShader.setMat4("view", view);
 			asteroidShader.setMat4("projection", projection);
 			asteroidShader.setInt("texture_diffuse1", 0);
+			setLightingUniforms(asteroidShader, impostors, impostorStart, impostorEnd);
+			setInstanceUniforms(asteroidShader, culledOnGPU);
 			glActiveTexture(GL_TEXTURE0);
 			final Texture texture = rock.texturesLoaded.values().iterator().next(); // We also made the texturesLoaded map public
 			glBindTexture(GL_TEXTURE_2D, texture.id); 
 			
-			for(final Mesh mesh : rock.meshes) {
-				glBindVertexArray(mesh.vao);
-				glDrawElementsInstanced(GL_TRIANGLES, mesh.indices.size(), GL_UNSIGNED_INT, 0, amount);
-				// glBindVertexArray(0);
+			if(culledOnGPU) {
+				// The indices of the visible asteroids and the instance counts were written by the compute shader
+				glActiveTexture(GL_TEXTURE0 + INSTANCE_MATRICES_UNIT);
+				glBindTexture(GL_TEXTURE_BUFFER, gpuCuller.matrixTexture);
+				glActiveTexture(GL_TEXTURE0);
+				glBindBuffer(GL_ARRAY_BUFFER, gpuCuller.visibleBuffer);
+				glBindBuffer(GL_DRAW_INDIRECT_BUFFER, gpuCuller.commandBuffer);
+				for(int i = 0;i < rock.meshes.size();i++) {
+					glBindVertexArray(rock.meshes.get(i).vao);
+					setInstanceIndices(true);
+					// Each level of detail starts reading its indices from its base instance
+					for(int lod = 0;lod < gpuCuller.getLodCount();lod++) {
+						gpuCuller.draw(i, lod, GL_TRIANGLES);
+					}
+				}
+				if(useImpostors) {
+					drawImpostors(impostorShader, impostors, view, projection, impostorStart, impostorEnd, true);
+					setInstanceIndices(true);
+					gpuCuller.drawImpostors();
+				}
+				glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+			} else {
+				glBindBuffer(GL_ARRAY_BUFFER, instancedBuffer);
+				for(final Mesh mesh : rock.meshes) {
+					glBindVertexArray(mesh.vao);
+					setInstanceIndices(false);
+					for(int lod = 0;lod < lodTriangles.length;lod++) {
+						// The asteroids of this level, then those of this level that fade to their impostor
+						final int count = lodStarts[2 * lod + 2] - lodStarts[2 * lod];
+						if(count == 0) {
+							continue;
+						}
+						// The matrices of this level start at the offset allocated for this frame, plus the previous levels
+						setInstanceAttributes(instanceOffset + (long)lodStarts[2 * lod] * MATRIX_SIZE);
+						glDrawElementsInstanced(GL_TRIANGLES, mesh.getLodIndexCount(lod), GL_UNSIGNED_INT, 
+								(long)mesh.getLodFirstIndex(lod) * Integer.BYTES, count);
+					}
+					// glBindVertexArray(0);
+				}
+				if(useImpostors) {
+					drawImpostors(impostorShader, impostors, view, projection, impostorStart, impostorEnd, false);
+					setInstanceIndices(false);
+					// The fading asteroids of each level, then those that are only impostors
+					for(int lod = 0;lod <= lodTriangles.length;lod++) {
+						final int group = lod < lodTriangles.length ? 2 * lod + 1 : impostorGroup;
+						final int count = lodStarts[group + 1] - lodStarts[group];
+						if(count > 0) {
+							setInstanceAttributes(instanceOffset + (long)lodStarts[group] * MATRIX_SIZE);
+							impostors.drawInstanced(count);
+						}
+					}
+				}
 			}
 			glBindVertexArray(0);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			instanceBuffer.endFrame();
+			if(culledOnGPU && orbiting) {
+				gpuInstanceBuffer.endFrame();
+			}
 
 			// Swap buffers and poll IO events (key/mouse events)
 			glfwSwapBuffers(window);
@@ -241,60 +537,203 @@ public class AsteroidsInstanced {
 
 		}
 
+		logger.info(String.format("CPU: %d of %d asteroids visible in the last frame, %.2f ms per frame culling and streaming them", 
+				visibleCount, amount, cullTime / 1e6 / Math.max(frames, 1)));
+		logger.info(String.format("CPU: %d triangles per frame, %.0f%% of the triangles at full resolution, %d impostors per frame", 
+				triangles / Math.max(frames, 1), 100.0 * triangles / Math.max(fullTriangles, 1), impostorCount / Math.max(frames, 1)));
+
+		if(simulationFrames > 0) {
+			final double simulationMs = simulationTime / 1e6 / simulationFrames;
+			logger.info(String.format("Belt: %.2f ms per frame moving %d asteroids and writing their matrices on %d threads, about %d asteroids at 60 Hz", 
+					simulationMs, amount, ForkJoinPool.commonPool().getParallelism(), (long)(amount * (1000.0 / 60.0) / Math.max(simulationMs, 1e-3))));
+		}
+
+		if(gpuCuller != null) {
+			// The last count is the impostors
+			final int[] lodCounts = new int[gpuCuller.getLodCount() + 1];
+			logger.info(String.format("GPU: %d meshes of %d asteroids drawn in the last frame, %s by level of detail and impostors, %.2f ms per frame on the CPU, %.2f ms on the GPU", 
+					gpuCuller.readVisibleCounts(lodCounts), amount, Arrays.toString(lodCounts),
+					gpuCullTime / 1e6 / Math.max(gpuFrames, 1), gpuCuller.getAverageTime()));
+			gpuCuller.delete();
+			cullShader.delete();
+			gpuInstanceBuffer.delete();
+		}
+
 		// Deallocate all resources when no longer necessary
-		glDeleteBuffers(instancedBuffer);
+		instanceBuffer.delete();
+		MemoryUtil.memFree(modelMatrices);
+		impostors.delete();
 		rock.delete();
 		planet.delete();
 		asteroidShader.delete();
 		planetShader.delete();
+		impostorShader.delete();
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
 
 	}
 
-	private static FloatBuffer generateTransformations(int amount) {
+	/**
+	 * Picks the level of detail of each visible asteroid, in parallel, and whether it is an impostor, from the given
+	 * distances relative to its radius, and sorts them by group into sorted. Group 2 * i has the asteroids of level i,
+	 * group 2 * i + 1 those of level i that fade to their impostor, and the last group the impostors only, so each
+	 * level is one range and the impostors one range per level plus the last. The asteroids of group i end up between
+	 * starts[i] and starts[i + 1]
+	 * */
+	private static void sortByLod(int[] visible, int count, float[] spheres, Vector3fc cameraPosition, LodSelector lods, 
+			int lodCount, float impostorStart, float impostorEnd, byte[] levels, int[] sorted, int[] starts) {
+
+		final int chunkSize = 4096;
+		final int impostorGroup = starts.length - 2;
+
+		IntStream.range(0, (count + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+			final int end = Math.min(count, (chunk + 1) * chunkSize);
+			for(int i = chunk * chunkSize;i < end;i++) {
+				final int sphere = visible[i] * 4;
+				final float radius = spheres[sphere + 3];
+				final float distance = cameraPosition.distance(spheres[sphere], spheres[sphere + 1], spheres[sphere + 2]);
+				if(distance >= impostorEnd * radius) {
+					levels[i] = (byte)impostorGroup;
+				} else {
+					final int level = Math.min(lods.select(distance, radius), lodCount - 1);
+					levels[i] = (byte)(2 * level + (distance >= impostorStart * radius ? 1 : 0));
+				}
+			}
+		});
 
-		FloatBuffer modelMatrices = MemoryUtil.memAllocFloat(amount * 16); // Each Matrix4f contains 16 floats
-		Random rand = new Random(System.currentTimeMillis());
+		// Counting sort, which keeps the order of the BVH within each group
+		Arrays.fill(starts, 0);
+		for(int i = 0;i < count;i++) {
+			++starts[levels[i] + 1];
+		}
+		for(int i = 1;i < starts.length;i++) {
+			starts[i] += starts[i - 1];
+		}
+
+		final int[] heads = Arrays.copyOf(starts, starts.length);
+		for(int i = 0;i < count;i++) {
+			sorted[heads[levels[i]]++] = visible[i];
+		}
+	}
+
+	/**
+	 * Uses the impostor shader, with the atlas, the vertex array of the quad and the uniforms of the frame
+	 * */
+	private static void drawImpostors(Shader impostorShader, ImpostorAtlas impostors, Matrix4f view, Matrix4f projection, 
+			float impostorStart, float impostorEnd, boolean instanceIndices) {
+		impostorShader.use();
+		impostorShader.setMat4("view", view);
+		impostorShader.setMat4("projection", projection);
+		setLightingUniforms(impostorShader, impostors, impostorStart, impostorEnd);
+		setInstanceUniforms(impostorShader, instanceIndices);
+		impostors.bind(impostorShader, 0);
+		glBindVertexArray(impostors.vao);
+	}
+
+	/**
+	 * Sets the light, the camera position and the crossfade between the meshes and the impostors, in distances relative
+	 * to the radius of the asteroids. Fading over an empty range never fades
+	 * */
+	private static void setLightingUniforms(Shader shader, ImpostorAtlas impostors, float impostorStart, float impostorEnd) {
+		shader.setVec3("lightDirection", LIGHT_DIRECTION);
+		shader.setVec3("cameraPosition", camera.position);
+		shader.setVec3("impostorCenter", impostors.center);
+		shader.setFloat("impostorRadius", impostors.radius);
+		final boolean fades = impostorStart < impostorEnd && impostorEnd < Float.POSITIVE_INFINITY;
+		shader.setFloat("impostorFadeStart", fades ? impostorStart : Float.MAX_VALUE);
+		shader.setFloat("impostorFadeScale", fades ? 1.0f / (impostorEnd - impostorStart) : 0.0f);
+	}
+
+	/**
+	 * Sets whether the instances are indices written by the GPU culling, whose matrices are read from the buffer
+	 * texture, or their matrices themselves. The sampler has its own unit even when it is not read
+	 * */
+	private static void setInstanceUniforms(Shader shader, boolean instanceIndices) {
+		shader.setBool("instanceIndices", instanceIndices);
+		shader.setInt("instanceMatrices", INSTANCE_MATRICES_UNIT);
+	}
 
-		float radius = 150.0f;
-		float offset = 25.0f;
+	/**
+	 * Copies the matrices of the given asteroids, in parallel, to consecutive matrices starting at the given address
+	 * */
+	private static void gatherMatrices(FloatBuffer modelMatrices, int[] indices, int count, long address) {
 
-		final Vector3f rotationVector = new Vector3f(0.4f, 0.6f, 0.8f).normalize();
+		final long matrices = memAddress(modelMatrices);
+		final int chunkSize = 4096;
 
-		// Create this once and change it each iteration
-		final Matrix4f model = new Matrix4f();
+		IntStream.range(0, (count + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+			final int end = Math.min(count, (chunk + 1) * chunkSize);
+			for(int i = chunk * chunkSize;i < end;i++) {
+				memCopy(matrices + (long)indices[i] * MATRIX_SIZE, address + (long)i * MATRIX_SIZE, MATRIX_SIZE);
+			}
+		});
+	}
 
-		for(int i = 0;i < amount;i++) {
+	/**
+	 * Reads the instances of the bound vertex array as indices from the start of the bound array buffer, or as the
+	 * matrices set with setInstanceAttributes
+	 * */
+	private static void setInstanceIndices(boolean indices) {
+		for(int i = 0;i < 4;i++) {
+			if(indices) {
+				glDisableVertexAttribArray(3 + i);
+			} else {
+				glEnableVertexAttribArray(3 + i);
+			}
+		}
+		if(indices) {
+			glEnableVertexAttribArray(INSTANCE_INDEX_LOCATION);
+			glVertexAttribIPointer(INSTANCE_INDEX_LOCATION, 1, GL_UNSIGNED_INT, Integer.BYTES, 0L);
+		} else {
+			glDisableVertexAttribArray(INSTANCE_INDEX_LOCATION);
+		}
+	}
 
-			// 1. Translation: displace along circle with 'radius' in range [-offset, offset]
-			final float angle = (float)i / (float)amount * 360.0f;
-			float displacement = ((float)rand.nextInt(2 * (int)offset * 100) / 100.0f - offset);
+	/**
+	 * Points the instance matrix attributes (mat4 = 4 times vec4) of the bound vertex array to the given offset
+	 * */
+	private static void setInstanceAttributes(long offset) {
+		for(int i = 0;i < 4;i++) {
+			glVertexAttribPointer(3 + i, 4, GL_FLOAT, false, MATRIX_SIZE, offset + i * 4 * Float.BYTES);
+		}
+	}
 
-			final float x = (float)Math.sin(angle) * radius + displacement;
-			displacement = ((float)rand.nextInt(2 * (int)offset * 100) / 100.0f - offset);
+	/**
+	 * Moves a belt of the given number of asteroids and writes all their matrices, as when they are all visible, with
+	 * 1, 2, 4... threads up to the number of cores, and logs how many asteroids each can move at 60 Hz
+	 * */
+	private static void benchmarkBelt(int amount) {
 
-			final float y = displacement * 0.4f; // Keep height of asteroid field smaller compared to width of x and z
-			displacement = ((float)rand.nextInt(2 * (int)offset * 100) / 100.0f - offset);
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final long matrices = nmemAlloc((long)amount * MATRIX_SIZE);
 
-			final float z = (float)Math.cos(angle) * radius + displacement;
+		for(int threads = 1;;threads = Math.min(threads * 2, cores)) {
 
-			model.translation(x, y, z);
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			final OrbitSimulation belt = new OrbitSimulation(amount, BELT_SEED, BELT_RADIUS, BELT_OFFSET, new Vector3f(), 1.0f, pool);
 
-			// 2. Scale: scale between 0.05 and 0.25
-			final float scale = (float)rand.nextInt(20) / 100.0f + 0.05f;
-			model.scale(scale);
+			long time = 0;
+			for(int frame = 0;frame < BENCHMARK_FRAMES;frame++) {
+				final long start = System.nanoTime();
+				belt.update(1.0f / 60.0f);
+				belt.writeMatrices(null, amount, matrices);
+				if(frame >= BENCHMARK_FRAMES / 2) {
+					time += System.nanoTime() - start;
+				}
+			}
+			pool.shutdown();
 
-			// 3. Rotation: add random rotation around a (semi)randomly picked rotation axis vector
-			final float rotAngle = (float)rand.nextInt(360);
-			model.rotate(rotAngle, rotationVector);
+			final double frameMs = time / 1e6 / (BENCHMARK_FRAMES - BENCHMARK_FRAMES / 2);
+			logger.info(String.format("%d of %d threads: %.2f ms per frame for %d asteroids, about %d asteroids at 60 Hz", 
+					threads, cores, frameMs, amount, (long)(amount * (1000.0 / 60.0) / frameMs)));
 
-			// 4. Now add to the buffer
-			model.get(i*16, modelMatrices);
+			if(threads == cores) {
+				break;
+			}
 		}
 
-		return modelMatrices;
+		nmemFree(matrices);
 	}
 
 	private static void processInput(long window) {
@@ -329,6 +768,44 @@ public class AsteroidsInstanced {
 
 		camera.movementSpeed = speed;
 
+		if(glfwGetKey(window, GLFW_KEY_G) == GLFW_PRESS && !gpuCullingKeyPressed) {
+			gpuCulling = !gpuCulling;
+			gpuCullingKeyPressed = true;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_G) == GLFW_RELEASE) {
+			gpuCullingKeyPressed = false;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_L) == GLFW_PRESS && !lodKeyPressed) {
+			lodEnabled = !lodEnabled;
+			lodKeyPressed = true;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_L) == GLFW_RELEASE) {
+			lodKeyPressed = false;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_I) == GLFW_PRESS && !impostorsKeyPressed) {
+			impostorsEnabled = !impostorsEnabled;
+			impostorsKeyPressed = true;
+			// The impostor distances are computed with the projection
+			updateProjection = true;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_I) == GLFW_RELEASE) {
+			impostorsKeyPressed = false;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_O) == GLFW_PRESS && !orbitingKeyPressed) {
+			orbiting = !orbiting;
+			orbitingKeyPressed = true;
+		}
+
+		if(glfwGetKey(window, GLFW_KEY_O) == GLFW_RELEASE) {
+			orbitingKeyPressed = false;
+		}
+
 	}
 
 }
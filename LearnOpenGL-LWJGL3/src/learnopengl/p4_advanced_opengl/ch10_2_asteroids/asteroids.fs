@@ -2,10 +2,27 @@
 out vec4 FragColor;
 
 in vec2 TexCoords;
+in vec3 Normal;
+in float Fade;
 
 uniform sampler2D texture_diffuse1;
+uniform vec3 lightDirection;
+
+// Ordered dither threshold in (0, 1), so the mesh and its impostor cover complementary pixels while they crossfade
+float dither()
+{
+    const float bayer[16] = float[](0.0f, 8.0f, 2.0f, 10.0f, 12.0f, 4.0f, 14.0f, 6.0f,
+                                    3.0f, 11.0f, 1.0f, 9.0f, 15.0f, 7.0f, 13.0f, 5.0f);
+    ivec2 pixel = ivec2(gl_FragCoord.xy) & 3;
+    return (bayer[pixel.y * 4 + pixel.x] + 0.5f) / 16.0f;
+}
 
 void main()
 {
-    FragColor = texture(texture_diffuse1, TexCoords);
+    if(dither() < Fade)
+        discard;
+
+    vec4 color = texture(texture_diffuse1, TexCoords);
+    float diffuse = max(dot(normalize(Normal), -lightDirection), 0.0f);
+    FragColor = vec4(color.rgb * (0.35f + 0.65f * diffuse), color.a);
 }
\ No newline at end of file
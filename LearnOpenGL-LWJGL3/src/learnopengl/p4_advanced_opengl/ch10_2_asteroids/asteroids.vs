@@ -1,15 +1,47 @@
 #version 330 core
 layout (location = 0) in vec3 aPos;
+layout (location = 1) in vec3 aNormal;
 layout (location = 2) in vec2 aTexCoords;
 layout (location = 3) in mat4 aInstanceMatrix;
+// When culled on the GPU, the index of the instance instead, whose matrix is read from instanceMatrices
+layout (location = 7) in uint aInstanceIndex;
 
 out vec2 TexCoords;
+out vec3 Normal;
+out float Fade;
 
 uniform mat4 projection;
 uniform mat4 view;
+uniform vec3 cameraPosition;
+// Bounding sphere of the model, and where the crossfade to its impostor starts and how fast, relative to its radius
+uniform vec3 impostorCenter;
+uniform float impostorRadius;
+uniform float impostorFadeStart;
+uniform float impostorFadeScale;
+uniform bool instanceIndices;
+uniform samplerBuffer instanceMatrices;
+
+mat4 getInstanceMatrix()
+{
+    if(!instanceIndices)
+        return aInstanceMatrix;
+    // One texel per column
+    int texel = int(aInstanceIndex) * 4;
+    return mat4(texelFetch(instanceMatrices, texel), texelFetch(instanceMatrices, texel + 1),
+                texelFetch(instanceMatrices, texel + 2), texelFetch(instanceMatrices, texel + 3));
+}
 
 void main()
 {
+    mat4 instanceMatrix = getInstanceMatrix();
+
     TexCoords = aTexCoords;
-    gl_Position = projection * view * aInstanceMatrix * vec4(aPos, 1.0f); 
+    // The instances are only rotated and uniformly scaled
+    Normal = mat3(instanceMatrix) * aNormal;
+
+    vec3 center = (instanceMatrix * vec4(impostorCenter, 1.0f)).xyz;
+    float radius = impostorRadius * length(instanceMatrix[0].xyz);
+    Fade = clamp((length(cameraPosition - center) / radius - impostorFadeStart) * impostorFadeScale, 0.0f, 1.0f);
+
+    gl_Position = projection * view * instanceMatrix * vec4(aPos, 1.0f); 
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+#version 430 core
+layout (local_size_x = 256) in;
+
+#define MAX_LODS 4
+
+struct DrawCommand
+{
+    uint count;
+    uint instanceCount;
+    uint firstIndex;
+    int baseVertex;
+    uint baseInstance;
+};
+
+layout (std430, binding = 1) readonly buffer Spheres { vec4 spheres[]; };
+// Indices of the visible instances, whose matrices the vertex shaders read from a buffer texture
+layout (std430, binding = 2) writeonly buffer Visible { uint visible[]; };
+// One command per level of detail and mesh, then the impostor command
+layout (std430, binding = 3) buffer Commands { DrawCommand commands[]; };
+
+uniform vec4 planes[6];
+uniform vec3 cameraPosition;
+// Distance, relative to the radius, from which each level of detail is used
+uniform float lodFactors[MAX_LODS];
+uniform int instanceCount;
+uniform int lodCount;
+uniform int meshCount;
+// Distances, relative to the radius, from which the impostor is drawn and from which the mesh isn't
+uniform float impostorStart;
+uniform float impostorEnd;
+// Index of the impostor command, counter and region, after all the levels of detail
+uniform int impostorLevel;
+
+// Visible instances of each level of detail and of the impostors in this work group, and where they start in the
+// visible array
+shared uint groupCounts[MAX_LODS + 1];
+shared uint groupOffsets[MAX_LODS + 1];
+
+void main()
+{
+    uint index = gl_GlobalInvocationID.x;
+
+    if(gl_LocalInvocationIndex <= uint(MAX_LODS))
+        groupCounts[gl_LocalInvocationIndex] = 0u;
+    barrier();
+
+    // Every invocation has to reach the barriers, so the ones past the end just aren't visible
+    bool isVisible = index < uint(instanceCount);
+    int lod = 0;
+    // While they crossfade, instances are drawn both as a mesh and as an impostor
+    bool hasMesh = false;
+    bool hasImpostor = false;
+    if(isVisible)
+    {
+        vec4 sphere = spheres[index];
+        for(int i = 0; i < 6; i++)
+            isVisible = isVisible && dot(planes[i].xyz, sphere.xyz) + planes[i].w >= -sphere.w;
+
+        float distance = length(sphere.xyz - cameraPosition);
+        while(lod + 1 < lodCount && distance >= lodFactors[lod + 1] * sphere.w)
+            lod++;
+
+        hasMesh = isVisible && distance < impostorEnd * sphere.w;
+        hasImpostor = isVisible && distance >= impostorStart * sphere.w;
+    }
+
+    uint localIndex = 0u;
+    uint localImpostorIndex = 0u;
+    if(hasMesh)
+        localIndex = atomicAdd(groupCounts[lod], 1u);
+    if(hasImpostor)
+        localImpostorIndex = atomicAdd(groupCounts[impostorLevel], 1u);
+    barrier();
+
+    // One atomic per work group, level and mesh, instead of one per visible instance
+    if(gl_LocalInvocationIndex < uint(lodCount) && groupCounts[gl_LocalInvocationIndex] > 0u)
+    {
+        int level = int(gl_LocalInvocationIndex);
+        uint count = groupCounts[level];
+        groupOffsets[level] = atomicAdd(commands[level * meshCount].instanceCount, count);
+        for(int i = 1; i < meshCount; i++)
+            atomicAdd(commands[level * meshCount + i].instanceCount, count);
+    }
+    else if(gl_LocalInvocationIndex == uint(impostorLevel) && groupCounts[impostorLevel] > 0u)
+    {
+        uint count = groupCounts[impostorLevel];
+        groupOffsets[impostorLevel] = atomicAdd(commands[impostorLevel * meshCount].instanceCount, count);
+    }
+    barrier();
+
+    // Each level, and the impostors, has its own region of the visible array, where its commands start reading
+    if(hasMesh)
+        visible[uint(lod) * uint(instanceCount) + groupOffsets[lod] + localIndex] = index;
+    if(hasImpostor)
+        visible[uint(impostorLevel) * uint(instanceCount) + groupOffsets[impostorLevel] + localImpostorIndex] = index;
+}
@@ -0,0 +1,32 @@
+#version 330 core
+out vec4 FragColor;
+
+in vec2 TexCoords;
+flat in mat3 Rotation;
+in float Fade;
+
+uniform sampler2DArray impostorAtlas;
+uniform vec3 lightDirection;
+
+// Same threshold as asteroids.fs, the impostor covers the pixels the mesh discards
+float dither()
+{
+    const float bayer[16] = float[](0.0f, 8.0f, 2.0f, 10.0f, 12.0f, 4.0f, 14.0f, 6.0f,
+                                    3.0f, 11.0f, 1.0f, 9.0f, 15.0f, 7.0f, 13.0f, 5.0f);
+    ivec2 pixel = ivec2(gl_FragCoord.xy) & 3;
+    return (bayer[pixel.y * 4 + pixel.x] + 0.5f) / 16.0f;
+}
+
+void main()
+{
+    vec4 albedo = texture(impostorAtlas, vec3(TexCoords, 0.0f));
+    if(albedo.a < 0.5f || dither() >= Fade)
+        discard;
+
+    // The background of the frames is transparent black, which the mipmaps blend into the edges
+    vec4 normal = texture(impostorAtlas, vec3(TexCoords, 1.0f));
+    vec3 n = normalize(Rotation * (normal.xyz / normal.a * 2.0f - 1.0f));
+
+    float diffuse = max(dot(n, -lightDirection), 0.0f);
+    FragColor = vec4(albedo.rgb / albedo.a * (0.35f + 0.65f * diffuse), 1.0f);
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+#version 330 core
+layout (location = 0) in vec2 aCorner;
+layout (location = 3) in mat4 aInstanceMatrix;
+// When culled on the GPU, the index of the instance instead, whose matrix is read from instanceMatrices
+layout (location = 7) in uint aInstanceIndex;
+
+out vec2 TexCoords;
+flat out mat3 Rotation;
+out float Fade;
+
+uniform mat4 projection;
+uniform mat4 view;
+uniform vec3 cameraPosition;
+uniform int impostorFrames;
+uniform vec3 impostorCenter;
+uniform float impostorRadius;
+uniform float impostorFadeStart;
+uniform float impostorFadeScale;
+uniform bool instanceIndices;
+uniform samplerBuffer instanceMatrices;
+
+mat4 getInstanceMatrix()
+{
+    if(!instanceIndices)
+        return aInstanceMatrix;
+    // One texel per column
+    int texel = int(aInstanceIndex) * 4;
+    return mat4(texelFetch(instanceMatrices, texel), texelFetch(instanceMatrices, texel + 1),
+                texelFetch(instanceMatrices, texel + 2), texelFetch(instanceMatrices, texel + 3));
+}
+
+// Same mapping as ImpostorAtlas.octEncode: +Y at the center of the square, -Y folded onto the corners
+vec2 octEncode(vec3 direction)
+{
+    vec3 p = direction / (abs(direction.x) + abs(direction.y) + abs(direction.z));
+    vec2 xz = p.xz;
+    if(p.y < 0.0f)
+        xz = (1.0f - abs(p.zx)) * vec2(p.x >= 0.0f ? 1.0f : -1.0f, p.z >= 0.0f ? 1.0f : -1.0f);
+    return xz * 0.5f + 0.5f;
+}
+
+vec3 octDecode(vec2 uv)
+{
+    vec2 xz = uv * 2.0f - 1.0f;
+    float y = 1.0f - abs(xz.x) - abs(xz.y);
+    if(y < 0.0f)
+        xz = (1.0f - abs(xz.yx)) * vec2(xz.x >= 0.0f ? 1.0f : -1.0f, xz.y >= 0.0f ? 1.0f : -1.0f);
+    return normalize(vec3(xz.x, y, xz.y));
+}
+
+void main()
+{
+    mat4 instanceMatrix = getInstanceMatrix();
+    mat3 basis = mat3(instanceMatrix);
+    float scale = length(basis[0]);
+    Rotation = basis / scale;
+
+    vec3 center = (instanceMatrix * vec4(impostorCenter, 1.0f)).xyz;
+    float radius = impostorRadius * scale;
+    vec3 toCamera = cameraPosition - center;
+    float distance = length(toCamera);
+
+    // The frame that was baked from the closest direction to the camera, in the model space of the instance
+    vec2 cell = clamp(floor(octEncode(transpose(Rotation) * (toCamera / distance)) * float(impostorFrames)),
+                      0.0f, float(impostorFrames - 1));
+    vec3 frameDirection = octDecode((cell + 0.5f) / float(impostorFrames));
+
+    // Same basis as the view of the frame, see ImpostorAtlas.frameUp
+    vec3 frameUp = abs(frameDirection.y) > 0.999f ? vec3(0.0f, 0.0f, 1.0f) : vec3(0.0f, 1.0f, 0.0f);
+    vec3 right = normalize(cross(frameUp, frameDirection));
+    vec3 up = cross(frameDirection, right);
+
+    vec3 position = center + Rotation * (right * aCorner.x + up * aCorner.y) * radius;
+    TexCoords = (cell + aCorner * 0.5f + 0.5f) / float(impostorFrames);
+    Fade = clamp((distance / radius - impostorFadeStart) * impostorFadeScale, 0.0f, 1.0f);
+
+    gl_Position = projection * view * vec4(position, 1.0f);
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+#version 330 core
+layout (location = 0) out vec4 Albedo;
+layout (location = 1) out vec4 NormalOut;
+
+in vec2 TexCoords;
+in vec3 Normal;
+
+uniform sampler2D texture_diffuse1;
+
+void main()
+{
+    // The alpha of both layers is the coverage of the frame
+    Albedo = vec4(texture(texture_diffuse1, TexCoords).rgb, 1.0f);
+    NormalOut = vec4(normalize(Normal) * 0.5f + 0.5f, 1.0f);
+}
\ No newline at end of file
@@ -7,12 +7,9 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -22,13 +19,14 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader2;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class GammaCorrection {
 
@@ -151,8 +149,8 @@ public class GammaCorrection {
 		setUpVertexData(planeVAO, planeVBO);
 
 		// Load textures
-		final int floorTexture = loadTexture("resources/textures/wood.png", false);
-		final int floorTextureGammaCorrected = loadTexture("resources/textures/wood.png", true);
+		final int floorTexture = TextureLoader.loadTexture("resources/textures/wood.png", false, false);
+		final int floorTextureGammaCorrected = TextureLoader.loadTexture("resources/textures/wood.png", false, true);
 
 		// Configure global OpenGL state
 		glEnable(GL_DEPTH_TEST);
@@ -207,6 +205,9 @@ public class GammaCorrection {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -257,8 +258,8 @@ public class GammaCorrection {
 		// Deallocate all resources when no longer necessary
 		glDeleteVertexArrays(planeVAO);
 		glDeleteBuffers(planeVBO);
-		glDeleteTextures(floorTexture);
-		glDeleteTextures(floorTextureGammaCorrected);
+		TextureCache.release(floorTexture);
+		TextureCache.release(floorTextureGammaCorrected);
 		shader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -266,76 +267,6 @@ public class GammaCorrection {
 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrected) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				final int format = getImageFormat(nrChannels.get(0));
-				final int internalFormat = getImageInternalFormat(format, gammaCorrected);
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-	private static int getImageInternalFormat(int format, boolean gammaCorrected) {
-		if(!gammaCorrected) {
-			return format;
-		}
-		switch(format) {
-		case GL_RGB:
-			return GL_SRGB;
-		case GL_RGBA:
-			return GL_SRGB_ALPHA;
-		default:
-			throw new RuntimeException("Unsupported image format");
-		}
-	}
-
-	private static int getImageFormat(int nrChannels) {
-
-		switch(nrChannels) {
-		case 1:
-			return GL_RED;
-		case 2:
-			return GL_RG;
-		case 3:
-			return GL_RGB;
-		case 4:
-			return GL_RGBA;
-		default:
-			throw new RuntimeException("Unexpected number of channels");
-		}
-	}
-
 	private static void setUpVertexData(int vao, int vbo) {
 		// Bind the Vertex Array Object first, then bind and set vertex buffer(s), and then configure vertex attributes(s).
 		glBindVertexArray(vao);
@@ -6,16 +6,14 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 import org.lwjgl.glfw.GLFWCursorPosCallbackI;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
@@ -26,7 +24,14 @@ import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.Frustum;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
+import learnopengl.util.UniformBuffer;
+import learnopengl.util.UniformLayout;
+import learnopengl.util.UniformLayout.Packing;
+import learnopengl.util.UniformLayout.Type;
 
 public class ShadowMapping {
 
@@ -98,6 +103,12 @@ public class ShadowMapping {
 			-1.0f, 1.0f, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f // bottom-left       
 	};
 
+	// Bounds of the vertex data, in model space
+	private static final Vector3fc PLANE_MIN = new Vector3f(-25.0f, -0.5f, -25.0f);
+	private static final Vector3fc PLANE_MAX = new Vector3f(25.0f, -0.5f, 25.0f);
+	private static final Vector3fc CUBE_MIN = new Vector3f(-1.0f);
+	private static final Vector3fc CUBE_MAX = new Vector3f(1.0f);
+
 	// Vertex attributes for a quad that fills the entire screen in Normalized Device Coordinates.
 	private static final float PLANE_VERTICES[] = {   
 	        // positions            // normals         // texcoords
@@ -228,7 +239,7 @@ public class ShadowMapping {
 		glBindVertexArray(0);
 
 		// Load textures
-		final int woodTexture = loadTexture("resources/textures/wood.png", false);
+		final int woodTexture = TextureLoader.loadTexture("resources/textures/wood.png", false, false, TextureLoader.WRAP_CLAMP_IF_ALPHA, GL_LINEAR_MIPMAP_LINEAR, GL_LINEAR);
 
 		// Configure depth map framebuffer
 		final int shadowWidth = 1024;
@@ -287,9 +298,30 @@ public class ShadowMapping {
 			lightSpaceMatrix = lightProjection.mul(lightView);
 		}
 
+		// Each pass only draws the objects inside its frustum: the light's one for the depth pass, the camera's one for the lighting pass
+		final Frustum lightFrustum = new Frustum(lightSpaceMatrix);
+		final Frustum cameraFrustum = new Frustum();
+		final Matrix4f viewProjection = new Matrix4f();
+
+		// Uniform blocks, bound once to their binding points. The shaders bind their blocks to the same points
+		UniformBuffer frame = new UniformBuffer(new UniformLayout(Packing.STD140)
+				.add("projection", Type.MAT4)
+				.add("view", Type.MAT4)
+				.add("viewPos", Type.VEC3), UniformBuffer.FRAME);
+		frame.bind();
+
+		// The light is shared by the depth and the lighting passes, so it is set once for both
+		UniformBuffer light = new UniformBuffer(new UniformLayout(Packing.STD140)
+				.add("lightSpaceMatrix", Type.MAT4)
+				.add("lightPos", Type.VEC3), UniformBuffer.PASS);
+		light.bind();
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -307,16 +339,19 @@ public class ShadowMapping {
 			glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
+			// Set the light once for both passes. Nothing is uploaded unless it moves
+			light.set("lightSpaceMatrix", lightSpaceMatrix).set("lightPos", lightPos).upload();
+
 			// 1. Render depth of scene to texture (from light's perspective)
 			simpleDepthShader.use();
-			simpleDepthShader.setMat4("lightSpaceMatrix", lightSpaceMatrix);
 			// Render scene from light's point of view
 			glViewport(0, 0, shadowWidth, shadowHeight);
 			glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
 			glClear(GL_DEPTH_BUFFER_BIT);
 			glActiveTexture(GL_TEXTURE0);
 			glBindTexture(GL_TEXTURE_2D, woodTexture);
-			renderScene(simpleDepthShader, planeVAO, cubeVAO, model);
+			lightFrustum.resetCounters();
+			renderScene(simpleDepthShader, planeVAO, cubeVAO, model, lightFrustum);
 			glBindFramebuffer(GL_FRAMEBUFFER, 0);
 
 
@@ -330,17 +365,15 @@ public class ShadowMapping {
 						0.1f, 100.0f);
 				updateProjection = false;
 			}
-			shader.setMat4("projection", projection);
-			shader.setMat4("view", camera.getViewMatrix());
-			// Set light uniforms
-			shader.setVec3("viewPos", camera.position);
-			shader.setVec3("lightPos", lightPos);
-			shader.setMat4("lightSpaceMatrix", lightSpaceMatrix);
+			final Matrix4f view = camera.getViewMatrix();
+			frame.set("projection", projection).set("view", view).set("viewPos", camera.position).upload();
+			cameraFrustum.set(projection.mul(view, viewProjection));
+			cameraFrustum.resetCounters();
 			glActiveTexture(GL_TEXTURE0);
 			glBindTexture(GL_TEXTURE_2D, woodTexture);
 			glActiveTexture(GL_TEXTURE1);
 			glBindTexture(GL_TEXTURE_2D, depthMap);
-			renderScene(shader, planeVAO, cubeVAO, model);
+			renderScene(shader, planeVAO, cubeVAO, model, cameraFrustum);
 
 			// Render depth map onto the quad for visual debugging
 			// debugDepthQuadShader.use();
@@ -361,13 +394,17 @@ public class ShadowMapping {
 		glDeleteVertexArrays(quadVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(quadVAO);
-		glDeleteTextures(woodTexture);
+		TextureCache.release(woodTexture);
 		glDeleteTextures(depthMap);
 		shader.delete();
 		simpleDepthShader.delete();
 		debugDepthQuadShader.delete();
+		frame.delete();
+		light.delete();
 		glDeleteFramebuffers(depthMapFBO);
 
+		logger.info("Depth pass: " + lightFrustum.getStats() + ", lighting pass: " + cameraFrustum.getStats() + " in the last frame");
+
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
 
@@ -379,25 +416,35 @@ public class ShadowMapping {
 		glBindVertexArray(0);
 	}
 
-	private static void renderScene(Shader shader, int planeVAO, int cubeVAO, Matrix4f model) {
+	/**
+	 * Draws the objects of the scene that may be visible in the given frustum
+	 * */
+	private static void renderScene(Shader shader, int planeVAO, int cubeVAO, Matrix4f model, Frustum frustum) {
 		// Floor 
-		shader.setMat4("model", model.identity());
-		glBindVertexArray(planeVAO);
-		glDrawArrays(GL_TRIANGLES, 0, 6);
+		model.identity();
+		if(frustum.isVisible(PLANE_MIN, PLANE_MAX, model)) {
+			shader.setMat4("model", model);
+			glBindVertexArray(planeVAO);
+			glDrawArrays(GL_TRIANGLES, 0, 6);
+		}
 		// Cubes
 		model.translate(0.0f, 1.5f, 0.0f);
 		model.scale(0.5f);
-		shader.setMat4("model", model);
-		renderCube(cubeVAO);
+		renderCube(shader, cubeVAO, model, frustum);
 		model.translation(2.0f, 0.0f, 1.0f);
 		model.scale(0.5f);
-		shader.setMat4("model", model);
-		renderCube(cubeVAO);
+		renderCube(shader, cubeVAO, model, frustum);
 		model.translation(-1.0f, 0.0f, 2.0f);
 		model.rotate((float)Math.toRadians(60.0f), new Vector3f(1.0f, 0.0f, 1.0f).normalize());
 		model.scale(0.25f);
-		shader.setMat4("model", model);
-		renderCube(cubeVAO);
+		renderCube(shader, cubeVAO, model, frustum);
+	}
+
+	private static void renderCube(Shader shader, int cubeVAO, Matrix4f model, Frustum frustum) {
+		if(frustum.isVisible(CUBE_MIN, CUBE_MAX, model)) {
+			shader.setMat4("model", model);
+			renderCube(cubeVAO);
+		}
 	}
 
 	private static void renderCube(int cubeVAO) {
@@ -431,66 +478,6 @@ public class ShadowMapping {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean flipY) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			stbi_set_flip_vertically_on_load(flipY); // Tell stb_image.h whether to flip loaded texture's on the y-axis or not.
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int format = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					format = GL_RED;
-					break;
-				case 2:
-					format = GL_RG;
-					break;
-				case 3:
-					format = GL_RGB;
-					break;
-				case 4:
-					format = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				// Set the texture wrapping parameters
-				// For this tutorial: use GL_CLAMP_TO_EDGE to prevent semi-transparent borders. Due to interpolation it takes texels from next repeat 
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, format == GL_RGBA ? GL_CLAMP_TO_EDGE : GL_REPEAT); 
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, format == GL_RGBA ? GL_CLAMP_TO_EDGE : GL_REPEAT);
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
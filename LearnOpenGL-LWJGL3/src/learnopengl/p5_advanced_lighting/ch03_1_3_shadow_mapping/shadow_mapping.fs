@@ -11,8 +11,17 @@ in VS_OUT {
 uniform sampler2D diffuseTexture;
 uniform sampler2D shadowMap;
 
-uniform vec3 lightPos;
-uniform vec3 viewPos;
+layout (std140) uniform Frame
+{
+    mat4 projection;
+    mat4 view;
+    vec3 viewPos;
+};
+layout (std140) uniform Pass
+{
+    mat4 lightSpaceMatrix;
+    vec3 lightPos;
+};
 
 float ShadowCalculation(vec4 fragPosLightSpace)
 {
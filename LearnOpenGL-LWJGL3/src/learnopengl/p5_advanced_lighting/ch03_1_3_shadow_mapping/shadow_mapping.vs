@@ -12,10 +12,18 @@ out VS_OUT {
     vec4 FragPosLightSpace;
 } vs_out;
 
-uniform mat4 projection;
-uniform mat4 view;
+layout (std140) uniform Frame
+{
+    mat4 projection;
+    mat4 view;
+    vec3 viewPos;
+};
+layout (std140) uniform Pass
+{
+    mat4 lightSpaceMatrix;
+    vec3 lightPos;
+};
 uniform mat4 model;
-uniform mat4 lightSpaceMatrix;
 
 void main()
 {
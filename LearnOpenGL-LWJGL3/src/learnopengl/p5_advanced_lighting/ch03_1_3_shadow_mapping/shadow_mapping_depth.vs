@@ -1,7 +1,11 @@
 #version 330 core
 layout (location = 0) in vec3 aPos;
 
-uniform mat4 lightSpaceMatrix;
+layout (std140) uniform Pass
+{
+    mat4 lightSpaceMatrix;
+    vec3 lightPos;
+};
 uniform mat4 model;
 
 void main()
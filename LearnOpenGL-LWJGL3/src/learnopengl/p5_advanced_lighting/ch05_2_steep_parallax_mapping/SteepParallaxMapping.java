@@ -5,11 +5,8 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -22,12 +19,13 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader2;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class SteepParallaxMapping {
 
@@ -140,12 +138,12 @@ public class SteepParallaxMapping {
 		setUpQuadVertexData(quadVAO, quadVBO);
 
 		// Load textures
-		final int diffuseMap = loadTexture("resources/textures/bricks2.jpg");
-		final int normalMap = loadTexture("resources/textures/bricks2_normal.jpg");
-		final int heightMap = loadTexture("resources/textures/bricks2_disp.jpg");
-		// final int diffuseMap = loadTexture("resources/textures/toy_box_diffuse.png");
-		// final int normalMap = loadTexture("resources/textures/toy_box_normal.png");
-		// final int heightMap = loadTexture("resources/textures/toy_box_disp.png");
+		final int diffuseMap = TextureLoader.loadTexture("resources/textures/bricks2.jpg");
+		final int normalMap = TextureLoader.loadTexture("resources/textures/bricks2_normal.jpg");
+		final int heightMap = TextureLoader.loadTexture("resources/textures/bricks2_disp.jpg");
+		// final int diffuseMap = TextureLoader.loadTexture("resources/textures/toy_box_diffuse.png");
+		// final int normalMap = TextureLoader.loadTexture("resources/textures/toy_box_normal.png");
+		// final int heightMap = TextureLoader.loadTexture("resources/textures/toy_box_disp.png");
 
 		shader.use();
 		shader.setInt("diffuseMap", 0);
@@ -168,6 +166,9 @@ public class SteepParallaxMapping {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -221,9 +222,9 @@ public class SteepParallaxMapping {
 		// Deallocate all resources when no longer necessary
 		glDeleteVertexArrays(quadVAO);
 		glDeleteBuffers(quadVBO);
-		glDeleteTextures(diffuseMap);
-		glDeleteTextures(normalMap);
-		glDeleteTextures(heightMap);
+		TextureCache.release(diffuseMap);
+		TextureCache.release(normalMap);
+		TextureCache.release(heightMap);
 		shader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -241,61 +242,6 @@ public class SteepParallaxMapping {
 		glBindVertexArray(0);
 	}
 
-	private static int loadTexture(String path) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture); // All upcoming GL_TEXTURE_2D operations now have effect on this texture object
-		// Set the texture wrapping parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-		// Set texture filtering parameters
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				final int format = getImageFormat(nrChannels.get(0));
-
-				glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-	private static int getImageFormat(int nrChannels) {
-
-		switch(nrChannels) {
-		case 1:
-			return GL_RED;
-		case 2:
-			return GL_RG;
-		case 3:
-			return GL_RGB;
-		case 4:
-			return GL_RGBA;
-		default:
-			throw new RuntimeException("Unexpected number of channels");
-		}
-	}
-
 	private static void setUpQuadVertexData(int vao, int vbo) {
 
 		float[] quadVertices = getQuadVertices();
@@ -7,11 +7,8 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -21,12 +18,13 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class HDR {
 
@@ -215,7 +213,7 @@ public class HDR {
 		glBindVertexArray(0);
 
 		// Load textures
-		final int woodTexture = loadTexture("resources/textures/wood.png", true);
+		final int woodTexture = TextureLoader.loadTexture("resources/textures/wood.png", false, true);
 
 		// Configure floating point framebuffer
 		final int hdrFBO = glGenFramebuffers();
@@ -281,6 +279,9 @@ public class HDR {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -341,7 +342,7 @@ public class HDR {
 		glDeleteVertexArrays(quadVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(quadVAO);
-		glDeleteTextures(woodTexture);
+		TextureCache.release(woodTexture);
 		glDeleteTextures(colorBuffer);
 		shader.delete();
 		hdrShader.delete();
@@ -389,65 +390,6 @@ public class HDR {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-				
-		        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-		        glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
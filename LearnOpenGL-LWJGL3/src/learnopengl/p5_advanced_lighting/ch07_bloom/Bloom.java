@@ -8,11 +8,8 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -23,12 +20,13 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class Bloom {
 
@@ -219,8 +217,8 @@ public class Bloom {
 		glBindVertexArray(0);
 
 		// Load textures
-		final int woodTexture = loadTexture("resources/textures/wood.png", true);
-		final int containerTexture = loadTexture("resources/textures/container2.png", true);
+		final int woodTexture = TextureLoader.loadTexture("resources/textures/wood.png", false, true);
+		final int containerTexture = TextureLoader.loadTexture("resources/textures/container2.png", false, true);
 
 		// Configure floating point framebuffer
 		final int hdrFBO = glGenFramebuffers();
@@ -320,6 +318,9 @@ public class Bloom {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -442,8 +443,8 @@ public class Bloom {
 		glDeleteVertexArrays(quadVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(quadVAO);
-		glDeleteTextures(woodTexture);
-		glDeleteTextures(containerTexture);
+		TextureCache.release(woodTexture);
+		TextureCache.release(containerTexture);
 		glDeleteTextures(colorBuffers);
 		glDeleteTextures(pingpongColorbuffers);
 		shader.delete();
@@ -495,65 +496,6 @@ public class Bloom {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
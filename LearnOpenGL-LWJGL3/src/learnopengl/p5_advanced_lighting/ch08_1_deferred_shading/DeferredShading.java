@@ -7,11 +7,8 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -23,13 +20,19 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.Frustum;
+import learnopengl.util.GLState;
+import learnopengl.util.Mesh;
+import learnopengl.util.MeshArena;
 import learnopengl.util.Model;
+import learnopengl.util.ModelBatch;
+import learnopengl.util.RenderQueue;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureLoader;
 
 public class DeferredShading {
 
@@ -37,6 +40,10 @@ public class DeferredShading {
 
 	private static boolean updateProjection = true;
 
+	// Draw the geometry pass with a ModelBatch instead of one draw per mesh. Toggled with B
+	private static boolean batch = false;
+	private static boolean batchKeyPressed = false;
+
 	// Window size
 	private static int windowWidth = 1280;
 	private static int windowHeight = 720;
@@ -115,7 +122,7 @@ public class DeferredShading {
 	private static final GLFWFramebufferSizeCallbackI FRAMEBUFFER_SIZE_CALLBACK = (window, width, height) -> {
 		// make sure the viewport matches the new window dimensions; note that width and 
 		// height will be significantly larger than specified on retina displays.
-		glViewport(0, 0, width, height);
+		GLState.viewport(0, 0, width, height);
 		// Also update the window width and height variables to correctly set the projection matrix
 		windowWidth = width;
 		windowHeight = height;
@@ -183,15 +190,23 @@ public class DeferredShading {
 			return;
 		}
 
+		// All the state changes of this sample go through GLState, so the redundant ones can be skipped
+		GLState.setFiltering(true);
+
 		// Configure global OpenGL state
-		glEnable(GL_DEPTH_TEST);
+		GLState.enable(GL_DEPTH_TEST);
 
 		// Build and compile our shader program
 		final String dir = DeferredShading.class.getResource(".").getFile();
 		Shader shaderGeometryPass = new Shader(dir+"g_buffer.vs", dir+"g_buffer.fs");
+		Shader shaderGeometryBatch = new Shader(dir+"g_buffer_batch.vs", dir+"g_buffer.fs");
 		Shader shaderLightingPass = new Shader(dir+"deferred_shading.vs", dir+"deferred_shading.fs");
 		Shader shaderLightBox = new Shader(dir+"deferred_light_box.vs", dir+"deferred_light_box.fs");
 
+		// The meshes of the models share the buffers and the vertex array of an arena
+		final MeshArena meshArena = new MeshArena(1 << 16, 1 << 18);
+		Mesh.setArena(meshArena);
+
 		// Load models
 		final Model nanosuit = new Model("resources/objects/nanosuit/nanosuit.obj");
 
@@ -215,7 +230,7 @@ public class DeferredShading {
 		// Quad
 		final int quadVAO = glGenVertexArrays();
 		final int quadVBO = glGenBuffers();
-		glBindVertexArray(quadVAO);
+		GLState.bindVertexArray(quadVAO);
 		glBindBuffer(GL_ARRAY_BUFFER, quadVBO);
 		glBufferData(GL_ARRAY_BUFFER, QUAD_VERTICES, GL_STATIC_DRAW);
 		// Position
@@ -226,29 +241,29 @@ public class DeferredShading {
 		glVertexAttribPointer(1, 2, GL_FLOAT, false, 5 * Float.BYTES, 3 * Float.BYTES);
 
 		glBindBuffer(GL_ARRAY_BUFFER, 0);
-		glBindVertexArray(0);
+		GLState.bindVertexArray(0);
 
 
 		// Configure GBuffer Framebuffer
 		final int gBuffer = glGenFramebuffers();
-		glBindFramebuffer(GL_FRAMEBUFFER, gBuffer);
+		GLState.bindFramebuffer(GL_FRAMEBUFFER, gBuffer);
 		// Position color buffer
 		final int gPosition = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, gPosition);
+		GLState.bindTexture(GL_TEXTURE_2D, gPosition);
 		nglTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, windowWidth, windowHeight, 0, GL_RGB, GL_FLOAT, NULL);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
 		glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, gPosition, 0);
 		// Normal color buffer
 		final int gNormal = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, gNormal);
+		GLState.bindTexture(GL_TEXTURE_2D, gNormal);
 		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, windowWidth, windowHeight, 0, GL_RGB, GL_FLOAT, NULL);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
 		glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, GL_TEXTURE_2D, gNormal, 0);
 		// Color + specular color buffer
 		final int gAlbedoSpec = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, gAlbedoSpec);
+		GLState.bindTexture(GL_TEXTURE_2D, gAlbedoSpec);
 		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, windowWidth, windowHeight, 0, GL_RGBA, GL_UNSIGNED_BYTE, NULL);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
 		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
@@ -268,7 +283,7 @@ public class DeferredShading {
 		if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
 			throw new RuntimeException("Framebuffer is not complete");
 		}
-		glBindFramebuffer(GL_FRAMEBUFFER, 0);
+		GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
 
 		// Lighting info
 		final int numberOfLights = 32;
@@ -313,9 +328,43 @@ public class DeferredShading {
 		// Create the model matrix before enter the loop to avoid calling new every frame
 		Matrix4f model = new Matrix4f();
 
+		// The camera frustum, to skip the meshes that are not visible
+		final Matrix4f viewProjection = new Matrix4f();
+		final Frustum frustum = new Frustum();
+
+		// Resolve the uniforms updated every frame once, so the render loop doesn't look them up by name
+		final Shader.Uniform geometryProjection = shaderGeometryPass.getUniform("projection");
+		final Shader.Uniform geometryView = shaderGeometryPass.getUniform("view");
+		final Shader.Uniform lightingViewPos = shaderLightingPass.getUniform("viewPos");
+		final Shader.Uniform lightBoxProjection = shaderLightBox.getUniform("projection");
+		final Shader.Uniform lightBoxView = shaderLightBox.getUniform("view");
+		final Shader.Uniform lightBoxModel = shaderLightBox.getUniform("model");
+		final Shader.Uniform lightBoxColor = shaderLightBox.getUniform("lightColor");
+
+		// The geometry pass is submitted to a queue, which draws it sorted by state and front to back
+		final RenderQueue renderQueue = new RenderQueue();
+
+		// Or packed into shared buffers and drawn with a few multi-draw calls
+		final ModelBatch modelBatch = new ModelBatch(objectPositions.length, nanosuit);
+		final Shader.Uniform batchProjection = shaderGeometryBatch.getUniform("projection");
+		final Shader.Uniform batchView = shaderGeometryBatch.getUniform("view");
+
+		// CPU time spent on the geometry pass with each path (per mesh, batched), split in the same two stages so they
+		// can be compared: culling and collecting the draws, then sorting or writing them and issuing the draw calls
+		final long[] collectTime = new long[2];
+		final long[] drawTime = new long[2];
+		final long[] passFrames = new long[2];
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Count the state changes and uniform uploads of each frame
+			GLState.resetCounters();
+			Shader.resetCounters();
+
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -330,51 +379,77 @@ public class DeferredShading {
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
+			frustum.set(projection.mul(view, viewProjection));
+			frustum.resetCounters();
 
 			// 1. Geometry pass: render scene's geometry/color data into the GBuffer
-			glBindFramebuffer(GL_FRAMEBUFFER, gBuffer);
+			GLState.bindFramebuffer(GL_FRAMEBUFFER, gBuffer);
 
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-			shaderGeometryPass.use();
-			shaderGeometryPass.setMat4("projection", projection);
-			shaderGeometryPass.setMat4("view", view);
-			for(int i = 0;i < objectPositions.length;i++) {
-				model.translation(objectPositions[i]);
-				model.scale(0.25f);
-				shaderGeometryPass.setMat4("model", model);
-				nanosuit.draw(shaderGeometryPass);
+			final int path = batch ? 1 : 0;
+			if(batch) {
+				shaderGeometryBatch.use();
+				batchProjection.set(projection);
+				batchView.set(view);
+				final long collectStart = System.nanoTime();
+				// Culled per model, all the meshes of a visible model are drawn
+				for(int i = 0;i < objectPositions.length;i++) {
+					model.translation(objectPositions[i]);
+					model.scale(0.25f);
+					if(frustum.isVisible(nanosuit.aabbMin, nanosuit.aabbMax, model)) {
+						modelBatch.add(nanosuit, model);
+					}
+				}
+				final long drawStart = System.nanoTime();
+				modelBatch.draw(shaderGeometryBatch);
+				collectTime[path] += drawStart - collectStart;
+				drawTime[path] += System.nanoTime() - drawStart;
+			} else {
+				shaderGeometryPass.use();
+				geometryProjection.set(projection);
+				geometryView.set(view);
+				renderQueue.setView(view);
+				final long collectStart = System.nanoTime();
+				// Culled per model and then per mesh
+				for(int i = 0;i < objectPositions.length;i++) {
+					model.translation(objectPositions[i]);
+					model.scale(0.25f);
+					nanosuit.submit(renderQueue, shaderGeometryPass, model, frustum);
+				}
+				final long drawStart = System.nanoTime();
+				renderQueue.flush();
+				collectTime[path] += drawStart - collectStart;
+				drawTime[path] += System.nanoTime() - drawStart;
 			}
+			++passFrames[path];
 
-			glBindFramebuffer(GL_FRAMEBUFFER, 0);
+			GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
 
 			// 2. Lighting pass: calculate lighting by iterating over a screen filled quad pixel-by-pixel using the GBuffer's content
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 			shaderLightingPass.use();
-			glActiveTexture(GL_TEXTURE0);
-			glBindTexture(GL_TEXTURE_2D, gPosition);
-			glActiveTexture(GL_TEXTURE1);
-			glBindTexture(GL_TEXTURE_2D, gNormal);
-			glActiveTexture(GL_TEXTURE2);
-			glBindTexture(GL_TEXTURE_2D, gAlbedoSpec);
-			shaderLightingPass.setVec3("viewPos", camera.position);
+			GLState.bindTexture(0, GL_TEXTURE_2D, gPosition);
+			GLState.bindTexture(1, GL_TEXTURE_2D, gNormal);
+			GLState.bindTexture(2, GL_TEXTURE_2D, gAlbedoSpec);
+			lightingViewPos.set(camera.position);
 			// Finally render quad
 			renderQuad(quadVAO);
 
 			// 2.5. Copy content of geometry's depth buffer to default framebuffer's depth buffer
-			glBindFramebuffer(GL_READ_FRAMEBUFFER, gBuffer);
-			glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+			GLState.bindFramebuffer(GL_READ_FRAMEBUFFER, gBuffer);
+			GLState.bindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
 			glBlitFramebuffer(0, 0, windowWidth, windowHeight, 0, 0, windowWidth, windowHeight, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
-			glBindFramebuffer(GL_FRAMEBUFFER, 0);
+			GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
 
 			// 3. Render lights on top of scene
 			shaderLightBox.use();
-			shaderLightBox.setMat4("projection", projection);
-			shaderLightBox.setMat4("view", view);
+			lightBoxProjection.set(projection);
+			lightBoxView.set(view);
 			for(int i = 0;i < lightPositions.length;i++) {
 				model.translation(lightPositions[i]);
 				model.scale(0.125f);
-				shaderLightBox.setMat4("model", model);
-				shaderLightBox.setVec3("lightColor", lightColors[i]);
+				lightBoxModel.set(model);
+				lightBoxColor.set(lightColors[i]);
 				renderCube(cubeVAO);
 			}
 
@@ -385,19 +460,36 @@ public class DeferredShading {
 		}
 
 		// Deallocate all resources when no longer necessary
-		glDeleteVertexArrays(cubeVAO);
-		glDeleteVertexArrays(quadVAO);
+		GLState.deleteVertexArray(cubeVAO);
+		GLState.deleteVertexArray(quadVAO);
 		glDeleteBuffers(cubeVBO);
 		glDeleteBuffers(quadVAO);
-		glDeleteTextures(gPosition);
-		glDeleteTextures(gNormal);
-		glDeleteTextures(gAlbedoSpec);
+		GLState.deleteTexture(gPosition);
+		GLState.deleteTexture(gNormal);
+		GLState.deleteTexture(gAlbedoSpec);
 		glDeleteRenderbuffers(rboDepth);
 		shaderGeometryPass.delete();
+		shaderGeometryBatch.delete();
+		modelBatch.delete();
 		shaderLightBox.delete();
 		shaderLightingPass.delete();
-		glDeleteFramebuffers(gBuffer);
+		GLState.deleteFramebuffer(gBuffer);
+		logger.info(meshArena.getStats());
 		nanosuit.delete();
+		Mesh.setArena(null);
+		meshArena.delete();
+
+		logger.info(GLState.getStats() + " in the last frame");
+		logger.info(Shader.getStats() + " in the last frame");
+		logger.info(renderQueue.getStats() + " in the last frame");
+		logger.info(frustum.getStats() + " in the last frame");
+		logger.info(String.format("Geometry pass per mesh: %.1f us/frame culling per model and mesh and queuing the draws, "
+				+ "%.1f us/frame radix sorting and drawing them",
+				collectTime[0] / 1e3 / Math.max(passFrames[0], 1), drawTime[0] / 1e3 / Math.max(passFrames[0], 1)));
+		logger.info(String.format("Geometry pass batched: %.1f us/frame culling per model and adding the models, "
+				+ "%.1f us/frame writing their matrices and draw commands and drawing them (%d draw calls, %s)",
+				collectTime[1] / 1e3 / Math.max(passFrames[1], 1), drawTime[1] / 1e3 / Math.max(passFrames[1], 1),
+				modelBatch.getDrawCalls(), modelBatch.multiDrawIndirect ? "multi-draw indirect" : "one draw per mesh"));
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
@@ -405,20 +497,18 @@ public class DeferredShading {
 	}
 
 	private static void renderQuad(int quadVAO) {
-		glBindVertexArray(quadVAO);
+		GLState.bindVertexArray(quadVAO);
 		glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
-		glBindVertexArray(0);
 	}
 
 	private static void renderCube(int cubeVAO) {
-		glBindVertexArray(cubeVAO);
+		GLState.bindVertexArray(cubeVAO);
 		glDrawArrays(GL_TRIANGLES, 0, 36);
-		glBindVertexArray(0);
 	}
 
 	private static void setUpVertexData(int vao, int vbo, float[] vertexData) {
 		// Bind the Vertex Array Object first, then bind and set vertex buffer(s), and then configure vertex attributes(s).
-		glBindVertexArray(vao);
+		GLState.bindVertexArray(vao);
 
 		glBindBuffer(GL_ARRAY_BUFFER, vbo);
 		glBufferData(GL_ARRAY_BUFFER, vertexData, GL_STATIC_DRAW);
@@ -438,66 +528,7 @@ public class DeferredShading {
 
 		// You can unbind the VAO afterwards so other VAO calls won't accidentally modify this VAO, but this rarely happens. Modifying other
 		// VAOs requires a call to glBindVertexArray anyways so we generally don't unbind VAOs (nor VBOs) when it's not directly necessary.
-		glBindVertexArray(0); 
-	}
-
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
+		GLState.bindVertexArray(0); 
 	}
 
 
@@ -533,6 +564,13 @@ public class DeferredShading {
 
 		camera.movementSpeed = speed;
 
+		if(glfwGetKey(window, GLFW_KEY_B) == GLFW_PRESS && !batchKeyPressed) {
+			batch = !batch;
+			batchKeyPressed = true;
+		} else if(glfwGetKey(window, GLFW_KEY_B) == GLFW_RELEASE) {
+			batchKeyPressed = false;
+		}
+
 	}
 
 }
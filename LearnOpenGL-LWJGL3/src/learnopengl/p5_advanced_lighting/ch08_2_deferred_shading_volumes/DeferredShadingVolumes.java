@@ -7,11 +7,8 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -24,13 +21,14 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.Frustum;
 import learnopengl.util.Model;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureLoader;
 
 public class DeferredShadingVolumes {
 
@@ -330,9 +328,26 @@ public class DeferredShadingVolumes {
 		// Create the model matrix before enter the loop to avoid calling new every frame
 		Matrix4f model = new Matrix4f();
 
+		// The camera frustum, to skip the meshes that are not visible
+		final Matrix4f viewProjection = new Matrix4f();
+		final Frustum frustum = new Frustum();
+
+		// Resolve the uniforms updated every frame once, so the render loop doesn't look them up by name
+		final Shader.Uniform geometryProjection = shaderGeometryPass.getUniform("projection");
+		final Shader.Uniform geometryView = shaderGeometryPass.getUniform("view");
+		final Shader.Uniform geometryModel = shaderGeometryPass.getUniform("model");
+		final Shader.Uniform lightingViewPos = shaderLightingPass.getUniform("viewPos");
+		final Shader.Uniform lightBoxProjection = shaderLightBox.getUniform("projection");
+		final Shader.Uniform lightBoxView = shaderLightBox.getUniform("view");
+		final Shader.Uniform lightBoxModel = shaderLightBox.getUniform("model");
+		final Shader.Uniform lightBoxColor = shaderLightBox.getUniform("lightColor");
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -347,19 +362,21 @@ public class DeferredShadingVolumes {
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
+			frustum.set(projection.mul(view, viewProjection));
+			frustum.resetCounters();
 
 			// 1. Geometry pass: render scene's geometry/color data into the GBuffer
 			glBindFramebuffer(GL_FRAMEBUFFER, gBuffer);
 
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 			shaderGeometryPass.use();
-			shaderGeometryPass.setMat4("projection", projection);
-			shaderGeometryPass.setMat4("view", view);
+			geometryProjection.set(projection);
+			geometryView.set(view);
 			for(int i = 0;i < objectPositions.length;i++) {
 				model.translation(objectPositions[i]);
 				model.scale(0.25f);
-				shaderGeometryPass.setMat4("model", model);
-				nanosuit.draw(shaderGeometryPass);
+				geometryModel.set(model);
+				nanosuit.draw(shaderGeometryPass, model, frustum);
 			}
 
 			glBindFramebuffer(GL_FRAMEBUFFER, 0);
@@ -373,7 +390,7 @@ public class DeferredShadingVolumes {
 			glBindTexture(GL_TEXTURE_2D, gNormal);
 			glActiveTexture(GL_TEXTURE2);
 			glBindTexture(GL_TEXTURE_2D, gAlbedoSpec);
-			shaderLightingPass.setVec3("viewPos", camera.position);
+			lightingViewPos.set(camera.position);
 			// Finally render quad
 			renderQuad(quadVAO);
 
@@ -385,13 +402,13 @@ public class DeferredShadingVolumes {
 
 			// 3. Render lights on top of scene
 			shaderLightBox.use();
-			shaderLightBox.setMat4("projection", projection);
-			shaderLightBox.setMat4("view", view);
+			lightBoxProjection.set(projection);
+			lightBoxView.set(view);
 			for(int i = 0;i < lightPositions.length;i++) {
 				model.translation(lightPositions[i]);
 				model.scale(0.125f);
-				shaderLightBox.setMat4("model", model);
-				shaderLightBox.setVec3("lightColor", lightColors[i]);
+				lightBoxModel.set(model);
+				lightBoxColor.set(lightColors[i]);
 				renderCube(cubeVAO);
 			}
 
@@ -416,6 +433,8 @@ public class DeferredShadingVolumes {
 		glDeleteFramebuffers(gBuffer);
 		nanosuit.delete();
 
+		logger.info(frustum.getStats() + " in the last frame");
+
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
 
@@ -458,65 +477,6 @@ public class DeferredShadingVolumes {
 		glBindVertexArray(0); 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
 
 	private static void processInput(long window) {
 		// Close window when ESC key is pressed
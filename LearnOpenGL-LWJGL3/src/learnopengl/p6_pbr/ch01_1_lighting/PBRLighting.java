@@ -10,6 +10,7 @@ import static org.lwjgl.system.MemoryUtil.*;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -25,7 +26,12 @@ import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.ClusteredLights;
 import learnopengl.util.Shader;
+import learnopengl.util.UniformBuffer;
+import learnopengl.util.UniformLayout;
+import learnopengl.util.UniformLayout.Packing;
+import learnopengl.util.UniformLayout.Type;
 
 public class PBRLighting {
 
@@ -130,10 +136,6 @@ public class PBRLighting {
 		final String dir = PBRLighting.class.getResource(".").getFile();
 		Shader shader = new Shader(dir+"pbr.vs", dir+"pbr.fs");
 
-		shader.use();
-		shader.setVec3("albedo", new Vector3f(0.5f, 0, 0));
-		shader.setFloat("ao", 1);
-
 		// Sphere
 		final int sphereVAO = glGenVertexArrays();
 		final int sphereVBO = glGenBuffers();
@@ -162,6 +164,42 @@ public class PBRLighting {
 		// Create the model matrix before enter the loop to avoid calling new every frame
 		Matrix4f model = new Matrix4f();
 
+		// Uniform blocks, bound once to their binding points. The shader binds its blocks to the same points
+		UniformBuffer frame = new UniformBuffer(new UniformLayout(Packing.STD140)
+				.add("projection", Type.MAT4)
+				.add("view", Type.MAT4)
+				.add("viewPos", Type.VEC3), UniformBuffer.FRAME);
+		frame.bind();
+
+		final ClusteredLights lights = new ClusteredLights(ForkJoinPool.commonPool());
+		for(Vector3fc position : lightPositions) {
+			// Only the inverse square falloff
+			lights.add(position, lightColor, 0.0f, 0.0f, 1.0f);
+		}
+
+		// One material per sphere, with varying metallic/roughness values scaled by rows and columns respectively.
+		// They never change, so each one is uploaded once and then only bound
+		final UniformLayout materialLayout = new UniformLayout(Packing.STD140)
+				.add("albedo", Type.VEC3)
+				.add("metallic", Type.FLOAT)
+				.add("roughness", Type.FLOAT)
+				.add("ao", Type.FLOAT);
+		UniformBuffer[] materials = new UniformBuffer[nRows * nColumns];
+		for(int row = 0;row < nRows;row++) {
+			for(int col = 0;col < nColumns;col++) {
+				// We clamp the roughness to 0.025 - 1.0 as perfectly smooth surfaces (roughness of 0.0) tend to look a bit off
+				// on direct lighting.
+				materials[row * nColumns + col] = new UniformBuffer(materialLayout, UniformBuffer.MATERIAL)
+						.set("albedo", 0.5f, 0.0f, 0.0f)
+						.set("metallic", (float)row/(float)nRows)
+						.set("roughness", min(max((float)col/(float)nColumns, 0.025f), 1.0f))
+						.set("ao", 1.0f);
+			}
+		}
+
+		// Resolve the uniforms updated every frame once, so the render loop doesn't look them up by name
+		final Shader.Uniform modelUniform = shader.getUniform("model");
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
@@ -176,6 +214,7 @@ public class PBRLighting {
 			if(updateProjection) {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 100.0f);
+				lights.setProjection(projection, 0.1f, 100.0f, windowWidth, windowHeight);
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
@@ -183,27 +222,27 @@ public class PBRLighting {
 			glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
+			// Set the camera once for every program that uses the Frame block
+			frame.set("projection", projection).set("view", view).set("viewPos", camera.position).upload();
+
 			shader.use();
-			shader.setMat4("view", view);
-			shader.setMat4("projection", projection);
-			shader.setVec3("camPos", camera.position);
+
+			// Find the lights of each cluster from this point of view
+			lights.build(view);
+			lights.bind(shader, 0);
 			
 			// Render rows * columns number of spheres with varying matallic/roughness values scaled by rows and columns respectively
 			for(int row = 0;row < nRows;row++) {
 				
-				shader.setFloat("metallic", (float)row/(float)nRows);
-				
 				for(int col = 0;col < nColumns;col++) {
 					
-					// We clamp the roughness to 0.025 - 1.0 as perfectly smooth surfaces (roughness of 0.0) tend to look a bit off
-					// on direct lighting.
-					shader.setFloat("roughness", min(max((float)col/(float)nColumns, 0.025f), 1.0f));
+					materials[row * nColumns + col].bind();
 					
 					model.translation(
 							(col - (nColumns / 2)) * spacing, 
 		                    (row - (nRows / 2)) * spacing, 
 		                    0.0f);
-					shader.setMat4("model", model);
+					modelUniform.set(model);
 					
 					renderSphere(sphereVAO, indicesCount);
 				}
@@ -218,12 +257,9 @@ public class PBRLighting {
 				// Vector3f newPos = lightPositions[i].add((float)sin(glfwGetTime()*5)*5, 0, 0, new Vector3f());
 				Vector3fc newPos = lightPositions[i];
 				
-				shader.setVec3("lightPositions[" + i + "]", newPos);
-				shader.setVec3("lightColors["+i+"]", lightColor);
-				
 				model.translation(newPos);
 				model.scale(0.5f);
-				shader.setMat4("model", model);
+				modelUniform.set(model);
 				renderSphere(sphereVAO, indicesCount);
 			}
 
@@ -239,6 +275,11 @@ public class PBRLighting {
 		glDeleteBuffers(sphereVBO);
 		glDeleteBuffers(sphereEBO);
 		shader.delete();
+		frame.delete();
+		lights.delete();
+		for(final UniformBuffer material : materials) {
+			material.delete();
+		}
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
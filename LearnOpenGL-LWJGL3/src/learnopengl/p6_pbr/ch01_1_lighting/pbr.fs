@@ -5,16 +5,35 @@ in vec3 WorldPos;
 in vec3 Normal;
 
 // material parameters
-uniform vec3 albedo;
-uniform float metallic;
-uniform float roughness;
-uniform float ao;
-
-// lights
-uniform vec3 lightPositions[4];
-uniform vec3 lightColors[4];
-
-uniform vec3 camPos;
+layout (std140) uniform Material
+{
+    vec3 albedo;
+    float metallic;
+    float roughness;
+    float ao;
+};
+
+// lights, split into the clusters of the view frustum (see ClusteredLights)
+layout (std140) uniform Lights
+{
+    int clusterCountX;
+    int clusterCountY;
+    int clusterCountZ;
+    vec2 clusterTileSize;
+    vec2 clusterDepthScaleBias;
+    vec2 clusterDepthRange;
+};
+
+uniform samplerBuffer lightData;
+uniform usamplerBuffer lightGrid;
+uniform usamplerBuffer lightIndices;
+
+layout (std140) uniform Frame
+{
+    mat4 projection;
+    mat4 view;
+    vec3 viewPos;
+};
 
 const float PI = 3.14159265359;
 // ----------------------------------------------------------------------------
@@ -58,10 +77,22 @@ vec3 fresnelSchlick(float cosTheta, vec3 F0)
     return F0 + (1.0 - F0) * pow(1.0 - cosTheta, 5.0);
 }
 // ----------------------------------------------------------------------------
+// offset and number of the light indices of the cluster of this fragment
+uvec2 GetCluster()
+{
+    // back to the depth in view space from the depth buffer value
+    float near = clusterDepthRange.x;
+    float far = clusterDepthRange.y;
+    float depth = near * far / (far - gl_FragCoord.z * (far - near));
+    int slice = clamp(int(log(depth) * clusterDepthScaleBias.x + clusterDepthScaleBias.y), 0, clusterCountZ - 1);
+    ivec2 tile = min(ivec2(gl_FragCoord.xy / clusterTileSize), ivec2(clusterCountX - 1, clusterCountY - 1));
+    return texelFetch(lightGrid, (slice * clusterCountY + tile.y) * clusterCountX + tile.x).rg;
+}
+// ----------------------------------------------------------------------------
 void main()
 {		
     vec3 N = normalize(Normal);
-    vec3 V = normalize(camPos - WorldPos);
+    vec3 V = normalize(viewPos - WorldPos);
 
     // calculate reflectance at normal incidence; if dia-electric (like plastic) use F0 
     // of 0.04 and if it's a metal, use the albedo color as F0 (metallic workflow)    
@@ -70,15 +101,25 @@ void main()
 
     // reflectance equation
     vec3 Lo = vec3(0.0);
-    int nLights = 4;
-    for(int i = 0; i < nLights; ++i) 
+    // only the lights reaching the cluster of this fragment
+    uvec2 cluster = GetCluster();
+    for(uint i = 0u; i < cluster.y; ++i) 
     {
+        int light = int(texelFetch(lightIndices, int(cluster.x + i)).r) * 3;
+        vec4 positionRadius = texelFetch(lightData, light);
+        vec3 lightColor = texelFetch(lightData, light + 1).rgb;
+        vec3 factors = texelFetch(lightData, light + 2).xyz;
+
+        // the light is too faint past its radius
+        float distance = length(positionRadius.xyz - WorldPos);
+        if(distance >= positionRadius.w)
+            continue;
+
         // calculate per-light radiance
-        vec3 L = normalize(lightPositions[i] - WorldPos);
+        vec3 L = normalize(positionRadius.xyz - WorldPos);
         vec3 H = normalize(V + L);
-        float distance = length(lightPositions[i] - WorldPos);
-        float attenuation = 1.0 / (distance * distance);
-        vec3 radiance = lightColors[i] * attenuation;
+        float attenuation = 1.0 / (factors.x + factors.y * distance + factors.z * (distance * distance));
+        vec3 radiance = lightColor * attenuation;
 
         // Cook-Torrance BRDF
         float NDF = DistributionGGX(N, H, roughness);   
@@ -7,12 +7,11 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -23,13 +22,19 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.ClusteredLights;
 import learnopengl.util.Shader;
+import learnopengl.util.UniformBuffer;
+import learnopengl.util.UniformLayout;
+import learnopengl.util.UniformLayout.Packing;
+import learnopengl.util.UniformLayout.Type;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class PBRLightingTextured {
 
@@ -142,11 +147,11 @@ public class PBRLightingTextured {
 		shader.setInt("aoMap", 4);
 
 		// Load PBR material textures
-		final int albedo    = loadTexture("resources/textures/pbr/rusted_iron/albedo.png", false);
-		final int normal    = loadTexture("resources/textures/pbr/rusted_iron/normal.png", false);
-		final int metallic  = loadTexture("resources/textures/pbr/rusted_iron/metallic.png", false);
-		final int roughness = loadTexture("resources/textures/pbr/rusted_iron/roughness.png", false);
-		final int ao        = loadTexture("resources/textures/pbr/rusted_iron/ao.png", false);
+		final int albedo    = TextureLoader.loadTexture("resources/textures/pbr/rusted_iron/albedo.png", false, false);
+		final int normal    = TextureLoader.loadTexture("resources/textures/pbr/rusted_iron/normal.png", false, false);
+		final int metallic  = TextureLoader.loadTexture("resources/textures/pbr/rusted_iron/metallic.png", false, false);
+		final int roughness = TextureLoader.loadTexture("resources/textures/pbr/rusted_iron/roughness.png", false, false);
+		final int ao        = TextureLoader.loadTexture("resources/textures/pbr/rusted_iron/ao.png", false, false);
 
 		// Sphere
 		final int sphereVAO = glGenVertexArrays();
@@ -173,9 +178,30 @@ public class PBRLightingTextured {
 		// Create the model matrix before enter the loop to avoid calling new every frame
 		Matrix4f model = new Matrix4f();
 
+		// Uniform blocks, bound once to their binding points. The shader binds its blocks to the same points
+		UniformBuffer frame = new UniformBuffer(new UniformLayout(Packing.STD140)
+				.add("projection", Type.MAT4)
+				.add("view", Type.MAT4)
+				.add("viewPos", Type.VEC3), UniformBuffer.FRAME);
+		frame.bind();
+
+		final ClusteredLights lights = new ClusteredLights(ForkJoinPool.commonPool());
+		for(Vector3fc position : lightPositions) {
+			// Only the inverse square falloff
+			lights.add(position, lightColor, 0.0f, 0.0f, 1.0f);
+		}
+
+		// Resolve the uniforms updated every frame once, so the render loop doesn't look them up by name
+		final Shader.Uniform metallicUniform = shader.getUniform("metallic");
+		final Shader.Uniform roughnessUniform = shader.getUniform("roughness");
+		final Shader.Uniform modelUniform = shader.getUniform("model");
+
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -187,6 +213,7 @@ public class PBRLightingTextured {
 			if(updateProjection) {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 100.0f);
+				lights.setProjection(projection, 0.1f, 100.0f, windowWidth, windowHeight);
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
@@ -194,10 +221,14 @@ public class PBRLightingTextured {
 			glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
+			// Set the camera once for every program that uses the Frame block
+			frame.set("projection", projection).set("view", view).set("viewPos", camera.position).upload();
+
 			shader.use();
-			shader.setMat4("view", view);
-			shader.setMat4("projection", projection);
-			shader.setVec3("camPos", camera.position);
+
+			// Find the lights of each cluster from this point of view
+			lights.build(view);
+			lights.bind(shader, 5);
 
 			glActiveTexture(GL_TEXTURE0);
 			glBindTexture(GL_TEXTURE_2D, albedo);
@@ -213,19 +244,19 @@ public class PBRLightingTextured {
 			// Render rows * columns number of spheres with varying matallic/roughness values scaled by rows and columns respectively
 			for(int row = 0;row < nRows;row++) {
 
-				shader.setFloat("metallic", (float)row/(float)nRows);
+				metallicUniform.set((float)row/(float)nRows);
 
 				for(int col = 0;col < nColumns;col++) {
 
 					// We clamp the roughness to 0.025 - 1.0 as perfectly smooth surfaces (roughness of 0.0) tend to look a bit off
 					// on direct lighting.
-					shader.setFloat("roughness", min(max((float)col/(float)nColumns, 0.025f), 1.0f));
+					roughnessUniform.set(min(max((float)col/(float)nColumns, 0.025f), 1.0f));
 
 					model.translation(
 							(col - (nColumns / 2)) * spacing, 
 							(row - (nRows / 2)) * spacing, 
 							0.0f);
-					shader.setMat4("model", model);
+					modelUniform.set(model);
 
 					renderSphere(sphereVAO, indicesCount);
 				}
@@ -240,12 +271,9 @@ public class PBRLightingTextured {
 				// Vector3f newPos = lightPositions[i].add((float)sin(glfwGetTime()*5)*5, 0, 0, new Vector3f());
 				Vector3fc newPos = lightPositions[i];
 
-				shader.setVec3("lightPositions[" + i + "]", newPos);
-				shader.setVec3("lightColors["+i+"]", lightColor);
-
 				model.translation(newPos);
 				model.scale(0.5f);
-				shader.setMat4("model", model);
+				modelUniform.set(model);
 				renderSphere(sphereVAO, indicesCount);
 			}
 
@@ -260,12 +288,14 @@ public class PBRLightingTextured {
 		glDeleteBuffers(sphereVBO);
 		glDeleteBuffers(sphereVBO);
 		glDeleteBuffers(sphereEBO);
-		glDeleteTextures(albedo);
-		glDeleteTextures(normal);
-		glDeleteTextures(metallic);
-		glDeleteTextures(roughness);
-		glDeleteTextures(ao);
+		TextureCache.release(albedo);
+		TextureCache.release(normal);
+		TextureCache.release(metallic);
+		TextureCache.release(roughness);
+		TextureCache.release(ao);
 		shader.delete();
+		frame.delete();
+		lights.delete();
 
 		// Clear all allocated resources by GLFW
 		glfwTerminate();
@@ -394,64 +424,4 @@ public class PBRLightingTextured {
 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-
 }
@@ -10,12 +10,11 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -27,13 +26,15 @@ import org.lwjgl.glfw.GLFWFramebufferSizeCallbackI;
 import org.lwjgl.glfw.GLFWScrollCallbackI;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.ClusteredLights;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class IBLIrradianceConversion {
 
@@ -211,6 +212,12 @@ public class IBLIrradianceConversion {
 
 		Vector3fc lightColor = new Vector3f(300.0f);
 
+		final ClusteredLights lights = new ClusteredLights(ForkJoinPool.commonPool());
+		for(Vector3fc position : lightPositions) {
+			// Only the inverse square falloff
+			lights.add(position, lightColor, 0.0f, 0.0f, 1.0f);
+		}
+
 		final int nRows = 7;
 		final int nColumns = 7;
 		final float spacing = 2.5f;
@@ -236,6 +243,9 @@ public class IBLIrradianceConversion {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -247,6 +257,7 @@ public class IBLIrradianceConversion {
 			if(updateProjection) {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 100.0f);
+				lights.setProjection(projection, 0.1f, 100.0f, windowWidth, windowHeight);
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
@@ -255,6 +266,11 @@ public class IBLIrradianceConversion {
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
 			pbrShader.use();
+
+			// Find the lights of each cluster from this point of view
+			lights.build(view);
+			lights.bind(pbrShader, 0);
+
 			pbrShader.setMat4("projection", projection);
 			pbrShader.setMat4("view", view);
 			pbrShader.setVec3("camPos", camera.position);
@@ -289,9 +305,6 @@ public class IBLIrradianceConversion {
 				// Vector3f newPos = lightPositions[i].add((float)sin(glfwGetTime()*5)*5, 0, 0, new Vector3f());
 				Vector3fc newPos = lightPositions[i];
 
-				pbrShader.setVec3("lightPositions[" + i + "]", newPos);
-				pbrShader.setVec3("lightColors["+i+"]", lightColor);
-
 				model.translation(newPos);
 				model.scale(0.5f);
 				pbrShader.setMat4("model", model);
@@ -320,6 +333,7 @@ public class IBLIrradianceConversion {
 		glDeleteBuffers(sphereEBO);
 		glDeleteTextures(environmentMap);
 		pbrShader.delete();
+		lights.delete();
 		backgroundShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -336,7 +350,9 @@ public class IBLIrradianceConversion {
 		final int captureRBO = glGenRenderbuffers();
 		setUpCaptureFramebuffer(captureFBO, captureRBO);
 
-		final int hdrTexture = loadHDRTexture("resources/textures/hdr/newport_loft.hdr");
+		final int hdrTexture = TextureLoader.loadHDRTexture("resources/textures/hdr/newport_loft.hdr");
+		// The environment cubemap is rendered from it at startup, so wait until it has been uploaded
+		TextureLoader.finish();
 
 		final int environmentMap = createEnvironmentCubemap(hdrTexture);
 
@@ -345,7 +361,7 @@ public class IBLIrradianceConversion {
 		equirectToCubemapShader.delete();
 		glDeleteFramebuffers(captureFBO);
 		glDeleteRenderbuffers(captureRBO);
-		glDeleteTextures(hdrTexture);
+		TextureCache.release(hdrTexture);
 		
 		return environmentMap;
 	}
@@ -435,38 +451,6 @@ public class IBLIrradianceConversion {
 		return envCubemap;
 	}
 
-	private static int loadHDRTexture(String filename) {
-
-		final int texture = glGenTextures();
-
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.mallocInt(1);
-			IntBuffer height = stack.mallocInt(1);
-			IntBuffer channels = stack.mallocInt(1);
-
-			stbi_set_flip_vertically_on_load(true);
-			
-			FloatBuffer data = stbi_loadf(filename, width, height, channels, 0);
-
-			if(data == null) {
-				throw new RuntimeException("Could not load image: " + filename);
-			}
-
-			glBindTexture(GL_TEXTURE_2D, texture);
-			// Note how we specify the texture's data value to be float
-			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, width.get(0), height.get(0), 0, GL_RGB, GL_FLOAT, data); 
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			stbi_image_free(data);
-		}
-
-		return texture;
-	}
-
 	private static void setUpCaptureFramebuffer(int captureFBO, int captureRBO) {
 		glBindFramebuffer(GL_FRAMEBUFFER, captureFBO);
 		glBindRenderbuffer(GL_RENDERBUFFER, captureRBO);
@@ -596,64 +580,4 @@ public class IBLIrradianceConversion {
 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-
 }
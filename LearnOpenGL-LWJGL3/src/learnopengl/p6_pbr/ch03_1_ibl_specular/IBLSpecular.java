@@ -10,12 +10,11 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL44.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.joml.Matrix4f;
@@ -33,7 +32,11 @@ import org.lwjgl.system.Platform;
 
 import learnopengl.util.Camera;
 import learnopengl.util.Camera.CameraMovement;
+import learnopengl.util.ClusteredLights;
+import learnopengl.util.IBLBakeCache;
 import learnopengl.util.Shader;
+import learnopengl.util.TextureCache;
+import learnopengl.util.TextureLoader;
 
 public class IBLSpecular {
 
@@ -213,6 +216,12 @@ public class IBLSpecular {
 
 		Vector3fc lightColor = new Vector3f(300.0f);
 
+		final ClusteredLights lights = new ClusteredLights(ForkJoinPool.commonPool());
+		for(Vector3fc position : lightPositions) {
+			// Only the inverse square falloff
+			lights.add(position, lightColor, 0.0f, 0.0f, 1.0f);
+		}
+
 		final int nRows = 7;
 		final int nColumns = 7;
 		final float spacing = 2.5f;
@@ -280,6 +289,9 @@ public class IBLSpecular {
 		// Render loop
 		while(!glfwWindowShouldClose(window)) {
 
+			// Upload the textures that finished loading in the background
+			TextureLoader.update();
+
 			// Per-frame time logic
 			final float currentFrame = (float)glfwGetTime();
 			deltaTime = currentFrame - lastFrame;
@@ -291,6 +303,7 @@ public class IBLSpecular {
 			if(updateProjection) {
 				projection.setPerspective((float)Math.toRadians(camera.zoom), (float)windowWidth / (float)windowHeight, 
 						0.1f, 100.0f);
+				lights.setProjection(projection, 0.1f, 100.0f, windowWidth, windowHeight);
 				updateProjection = false;
 			}
 			final Matrix4f view = camera.getViewMatrix();
@@ -300,6 +313,11 @@ public class IBLSpecular {
 
 			// Render scene, supplying the convoluted irradiance map to the final shader.
 			pbrShader.use();
+
+			// Find the lights of each cluster from this point of view
+			lights.build(view);
+			lights.bind(pbrShader, 3);
+
 			pbrShader.setMat4("projection", projection);
 			pbrShader.setMat4("view", view);
 			pbrShader.setVec3("camPos", camera.position);
@@ -342,9 +360,6 @@ public class IBLSpecular {
 				// Vector3f newPos = lightPositions[i].add((float)sin(glfwGetTime()*5)*5, 0, 0, new Vector3f());
 				Vector3fc newPos = lightPositions[i];
 
-				pbrShader.setVec3("lightPositions[" + i + "]", newPos);
-				pbrShader.setVec3("lightColors["+i+"]", lightColor);
-
 				model.translation(newPos);
 				model.scale(0.5f);
 				pbrShader.setMat4("model", model);
@@ -378,6 +393,7 @@ public class IBLSpecular {
 		glDeleteTextures(prefilterMap);
 		glDeleteTextures(brdfTable);
 		pbrShader.delete();
+		lights.delete();
 		backgroundShader.delete();
 
 		// Clear all allocated resources by GLFW
@@ -388,6 +404,20 @@ public class IBLSpecular {
 	private static void computePBRMaps(IntBuffer outputMapsBuffer, int cubeVAO, int quadVAO) {
 
 		final String dir = IBLSpecular.class.getResource(".").getFile();
+		final String hdrPath = "resources/textures/hdr/newport_loft.hdr";
+
+		// The maps only need to be baked again if the HDR image, the shaders or the sizes of the maps have changed
+		final long bakeKey = IBLBakeCache.computeKey(hdrPath, "environment=512,irradiance=32,prefilter=128x5,brdf=512",
+				dir+"cubemap.vs", dir+"equirectangular_to_cubemap.fs", dir+"irradiance_convolution.fs",
+				dir+"prefilter.fs", dir+"brdf.vs", dir+"brdf.fs");
+
+		final int[] bakedMaps = IBLBakeCache.load(hdrPath, bakeKey);
+
+		if(bakedMaps != null) {
+			outputMapsBuffer.put(bakedMaps).rewind();
+			return;
+		}
+
 		final Shader equirectToCubemapShader = new Shader(dir+"cubemap.vs", dir+"equirectangular_to_cubemap.fs");
 		final Shader irradianceShader = new Shader(dir+"cubemap.vs", dir+"irradiance_convolution.fs");
 		final Shader prefilterShader = new Shader(dir+"cubemap.vs", dir+"prefilter.fs");
@@ -402,7 +432,9 @@ public class IBLSpecular {
 
 		final Matrix4fc[] captureViews = getCaptureViewMatrices();
 
-		final int hdrTexture = loadHDRTexture("resources/textures/hdr/newport_loft.hdr");
+		final int hdrTexture = TextureLoader.loadHDRTexture(hdrPath);
+		// The environment cubemap is rendered from it at startup, so wait until it has been uploaded
+		TextureLoader.finish();
 
 		final int envMap = createEnvironmentCubemap();
 
@@ -427,7 +459,11 @@ public class IBLSpecular {
 		brdfShader.delete();
 		glDeleteFramebuffers(captureFBO);
 		glDeleteRenderbuffers(captureRBO);
-		glDeleteTextures(hdrTexture);
+		TextureCache.release(hdrTexture);
+
+		IBLBakeCache.save(hdrPath, bakeKey,
+				new int[] {GL_TEXTURE_CUBE_MAP, GL_TEXTURE_CUBE_MAP, GL_TEXTURE_CUBE_MAP, GL_TEXTURE_2D},
+				new int[] {envMap, irradianceMap, prefilterMap, brdfTable});
 
 		outputMapsBuffer.put(0, envMap);
 		outputMapsBuffer.put(1, irradianceMap);
@@ -665,38 +701,6 @@ public class IBLSpecular {
 		return envCubemap;
 	}
 
-	private static int loadHDRTexture(String filename) {
-
-		final int texture = glGenTextures();
-
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.mallocInt(1);
-			IntBuffer height = stack.mallocInt(1);
-			IntBuffer channels = stack.mallocInt(1);
-
-			stbi_set_flip_vertically_on_load(true);
-
-			FloatBuffer data = stbi_loadf(filename, width, height, channels, 0);
-
-			if(data == null) {
-				throw new RuntimeException("Could not load image: " + filename);
-			}
-
-			glBindTexture(GL_TEXTURE_2D, texture);
-			// Note how we specify the texture's data value to be float
-			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, width.get(0), height.get(0), 0, GL_RGB, GL_FLOAT, data); 
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			stbi_image_free(data);
-		}
-
-		return texture;
-	}
-
 	private static void setUpCaptureFramebuffer(int captureFBO, int captureRBO) {
 		glBindFramebuffer(GL_FRAMEBUFFER, captureFBO);
 		glBindRenderbuffer(GL_RENDERBUFFER, captureRBO);
@@ -826,64 +830,4 @@ public class IBLSpecular {
 
 	}
 
-	private static int loadTexture(String path, boolean gammaCorrection) {
-
-		final int texture = glGenTextures();
-
-		glBindTexture(GL_TEXTURE_2D, texture);
-
-		// Load image, create texture and generate mipmaps
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrChannels = stack.ints(0);
-
-			ByteBuffer data = stbi_load(path, width, height, nrChannels, 0);
-
-			if(data != null) {
-
-				int internalFormat = 0;
-				int dataFormat = 0;
-
-				switch(nrChannels.get(0)) {
-
-				case 1:
-					internalFormat = dataFormat = GL_RED;
-					break;
-				case 2:
-					internalFormat = dataFormat = GL_RG;
-					break;
-				case 3:
-					internalFormat = gammaCorrection ? GL_SRGB : GL_RGB;
-					dataFormat = GL_RGB;
-					break;
-				case 4:
-					internalFormat = gammaCorrection ? GL_SRGB_ALPHA : GL_RGBA;
-					dataFormat = GL_RGBA;
-					break;
-				default:
-					logger.severe("Unexpected number of channels");
-				}
-
-				glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width.get(0), height.get(0), 0, dataFormat, GL_UNSIGNED_BYTE, data);
-				glGenerateMipmap(GL_TEXTURE_2D);
-
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-
-			} else {
-				logger.severe("Failed to load texture: " + path);
-			}
-
-			stbi_image_free(data);
-
-		}
-
-		return texture;
-	}
-
-
 }
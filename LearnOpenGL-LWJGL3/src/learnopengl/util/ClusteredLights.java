@@ -0,0 +1,551 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+
+import learnopengl.util.RangeTask.Range;
+import learnopengl.util.UniformLayout.Packing;
+import learnopengl.util.UniformLayout.Type;
+
+/**
+ * Point lights split into the clusters of the view frustum, so each fragment only shades the lights that can reach
+ * it (clustered forward shading).
+ *
+ * The frustum is divided into countX * countY tiles on the screen and countZ slices in depth, whose thickness grows
+ * exponentially with the distance, as the clusters far away cover more of the scene. Every frame,
+ * {@link #build(Matrix4fc)} finds the clusters each light overlaps: first the range of slices of its bounding sphere,
+ * then, in each slice, the rectangle of tiles of its projection, and then the clusters of that rectangle whose bounds
+ * intersect the sphere. The slices are processed in parallel by the given ForkJoinPool, each into its own lists, so
+ * the threads never write to the same memory.
+ *
+ * The clusters are found again by every build, even when the lights don't move, as in the PBR samples: the clusters
+ * are fixed in view space, so the ones a light reaches change whenever the camera moves. Keeping the result when
+ * neither the lights nor the view changed is not worth it, as a few lights are binned in a fraction of the frame.
+ *
+ * The lights, the offset and count of the lights of each cluster, and the list of light indices they point to are
+ * uploaded to texture buffers, which OpenGL 3.3 shaders read with texelFetch, and the parameters of the grid to the
+ * uniform block "Lights" (binding point {@link UniformBuffer#LIGHTS}). The shaders declare:
+ *
+ * layout (std140) uniform Lights { int clusterCountX; int clusterCountY; int clusterCountZ; vec2 clusterTileSize;
+ * vec2 clusterDepthScaleBias; vec2 clusterDepthRange; };
+ * uniform samplerBuffer lightData; uniform usamplerBuffer lightGrid; uniform usamplerBuffer lightIndices;
+ *
+ * Each light takes {@link #LIGHT_TEXELS} texels of lightData: its position and radius, its color, and its constant,
+ * linear and quadratic attenuation. A light is ignored past its radius, as the light volumes of deferred shading,
+ * where its brightness falls under {@link #CUTOFF}.
+ *
+ * The grid assumes a symmetric perspective projection and the default depth range.
+ * */
+public class ClusteredLights {
+
+	/** Texels of lightData per light */
+	public static final int LIGHT_TEXELS = 3;
+	/** Brightness under which a light is ignored, as the light volumes of deferred shading */
+	public static final float CUTOFF = 5.0f / 256.0f;
+
+	/** Default clusters: tiles across and down the screen, and slices in depth */
+	public static final int DEFAULT_COUNT_X = 16;
+	public static final int DEFAULT_COUNT_Y = 9;
+	public static final int DEFAULT_COUNT_Z = 24;
+
+	// Lights transformed to view space by a single task
+	private static final int LIGHT_TASK_SIZE = 1024;
+
+	public final int countX;
+	public final int countY;
+	public final int countZ;
+
+	private final ForkJoinPool pool;
+
+	/* Lights: position, radius, color and attenuation */
+	private int lightCount;
+	private float[] positionX = new float[0];
+	private float[] positionY = new float[0];
+	private float[] positionZ = new float[0];
+	private float[] radius = new float[0];
+	private float[] colorR = new float[0];
+	private float[] colorG = new float[0];
+	private float[] colorB = new float[0];
+	private float[] constant = new float[0];
+	private float[] linear = new float[0];
+	private float[] quadratic = new float[0];
+	private boolean lightsModified = true;
+
+	// Centers of the lights in view space, with the depth positive
+	private float[] viewX = new float[0];
+	private float[] viewY = new float[0];
+	private float[] viewDepth = new float[0];
+
+	/* Grid: projection scale, depth of the slices and bounds of the clusters in view space (min and max xy) */
+	private float projectionX;
+	private float projectionY;
+	private final float[] sliceDepths;
+	private final float[] clusterBounds;
+
+	/* Clusters of each slice: tile and light of each pair, and number of lights per tile */
+	private final int[][] sliceTiles;
+	private final int[][] sliceLights;
+	private final int[] slicePairs;
+	private final int[][] tileCounts;
+	private final int[] sliceOffsets;
+
+	/* Data uploaded to the texture buffers */
+	private ByteBuffer lightData = memAlloc(0);
+	private ByteBuffer gridData;
+	private ByteBuffer indexData = memAlloc(Integer.BYTES);
+	private int indexCount;
+
+	private final int lightBuffer;
+	private final int gridBuffer;
+	private final int indexBuffer;
+	private final int lightTexture;
+	private final int gridTexture;
+	private final int indexTexture;
+	private final UniformBuffer block;
+
+	private long buildNanos;
+
+	/**
+	 * Creates the default clusters, {@link #DEFAULT_COUNT_X} * {@link #DEFAULT_COUNT_Y} tiles and
+	 * {@link #DEFAULT_COUNT_Z} slices
+	 * */
+	public ClusteredLights(ForkJoinPool pool) {
+		this(DEFAULT_COUNT_X, DEFAULT_COUNT_Y, DEFAULT_COUNT_Z, pool);
+	}
+
+	/**
+	 * Creates the clusters of countX * countY tiles and countZ slices. Call
+	 * {@link #setProjection(Matrix4fc, float, float, int, int)} before the first build
+	 * */
+	public ClusteredLights(int countX, int countY, int countZ, ForkJoinPool pool) {
+
+		this.countX = countX;
+		this.countY = countY;
+		this.countZ = countZ;
+		this.pool = pool;
+
+		sliceDepths = new float[countZ + 1];
+		clusterBounds = new float[countX * countY * countZ * 4];
+
+		sliceTiles = new int[countZ][64];
+		sliceLights = new int[countZ][64];
+		slicePairs = new int[countZ];
+		tileCounts = new int[countZ][countX * countY];
+		sliceOffsets = new int[countZ + 1];
+
+		gridData = memAlloc(countX * countY * countZ * 2 * Integer.BYTES);
+
+		lightBuffer = glGenBuffers();
+		gridBuffer = glGenBuffers();
+		indexBuffer = glGenBuffers();
+
+		lightTexture = createTexture(lightBuffer, GL_RGBA32F);
+		gridTexture = createTexture(gridBuffer, GL_RG32UI);
+		indexTexture = createTexture(indexBuffer, GL_R32UI);
+
+		block = new UniformBuffer(new UniformLayout(Packing.STD140)
+				.add("clusterCountX", Type.INT)
+				.add("clusterCountY", Type.INT)
+				.add("clusterCountZ", Type.INT)
+				.add("clusterTileSize", Type.VEC2)
+				.add("clusterDepthScaleBias", Type.VEC2)
+				.add("clusterDepthRange", Type.VEC2), UniformBuffer.LIGHTS);
+		block.set("clusterCountX", countX).set("clusterCountY", countY).set("clusterCountZ", countZ);
+	}
+
+	/**
+	 * Returns the distance at which a light with the given attenuation and brightest color component falls under
+	 * {@link #CUTOFF}
+	 * */
+	public static float getRadius(float constant, float linear, float quadratic, float maxBrightness) {
+
+		// Solve constant + linear * d + quadratic * d^2 = maxBrightness / CUTOFF
+		final float c = constant - maxBrightness / CUTOFF;
+
+		if(quadratic > 0.0f) {
+			return (-linear + (float)Math.sqrt(linear * linear - 4.0f * quadratic * c)) / (2.0f * quadratic);
+		}
+
+		return linear > 0.0f ? Math.max(-c / linear, 0.0f) : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a point light, reaching up to {@link #getRadius(float, float, float, float)}, and returns its index
+	 * */
+	public int add(Vector3fc position, Vector3fc color, float constant, float linear, float quadratic) {
+
+		if(lightCount == radius.length) {
+			grow(Math.max(lightCount * 2, 16));
+		}
+
+		final int light = lightCount++;
+
+		this.constant[light] = constant;
+		this.linear[light] = linear;
+		this.quadratic[light] = quadratic;
+		set(light, position, color);
+
+		return light;
+	}
+
+	/**
+	 * Moves the given light, and changes its color
+	 * */
+	public void set(int light, Vector3fc position, Vector3fc color) {
+
+		positionX[light] = position.x();
+		positionY[light] = position.y();
+		positionZ[light] = position.z();
+		colorR[light] = color.x();
+		colorG[light] = color.y();
+		colorB[light] = color.z();
+		radius[light] = getRadius(constant[light], linear[light], quadratic[light],
+				Math.max(color.x(), Math.max(color.y(), color.z())));
+
+		lightsModified = true;
+	}
+
+	public void clear() {
+		lightCount = 0;
+		lightsModified = true;
+	}
+
+	public int getLightCount() {
+		return lightCount;
+	}
+
+	/**
+	 * Computes the bounds of the clusters for the given perspective projection, with its near and far planes, and
+	 * the size of the viewport in pixels
+	 * */
+	public void setProjection(Matrix4fc projection, float near, float far, int width, int height) {
+
+		projectionX = projection.m00();
+		projectionY = projection.m11();
+
+		// Slice k starts at near * (far / near)^(k / countZ), so log(depth) maps linearly to the slices
+		final double logRatio = Math.log(far / near);
+		for(int k = 0;k <= countZ;k++) {
+			sliceDepths[k] = (float)(near * Math.exp(logRatio * k / countZ));
+		}
+
+		for(int k = 0;k < countZ;k++) {
+			for(int y = 0;y < countY;y++) {
+				for(int x = 0;x < countX;x++) {
+
+					// The sides of the cluster go through the camera, so its bounds are given by the far slice
+					final float far0 = sliceDepths[k + 1];
+					final float x0 = (x * 2.0f / countX - 1.0f) / projectionX;
+					final float x1 = ((x + 1) * 2.0f / countX - 1.0f) / projectionX;
+					final float y0 = (y * 2.0f / countY - 1.0f) / projectionY;
+					final float y1 = ((y + 1) * 2.0f / countY - 1.0f) / projectionY;
+
+					final int o = ((k * countY + y) * countX + x) * 4;
+					clusterBounds[o] = Math.min(x0 * far0, x0 * sliceDepths[k]);
+					clusterBounds[o + 1] = Math.min(y0 * far0, y0 * sliceDepths[k]);
+					clusterBounds[o + 2] = Math.max(x1 * far0, x1 * sliceDepths[k]);
+					clusterBounds[o + 3] = Math.max(y1 * far0, y1 * sliceDepths[k]);
+				}
+			}
+		}
+
+		block.set("clusterTileSize", (float)width / countX, (float)height / countY)
+				.set("clusterDepthScaleBias", (float)(countZ / logRatio), (float)(-countZ * Math.log(near) / logRatio))
+				.set("clusterDepthRange", near, far);
+	}
+
+	/**
+	 * Assigns the lights to the clusters of the given view, and uploads the lights and the clusters
+	 * */
+	public void build(Matrix4fc view) {
+
+		final long start = System.nanoTime();
+
+		final float m00 = view.m00(), m10 = view.m10(), m20 = view.m20(), m30 = view.m30();
+		final float m01 = view.m01(), m11 = view.m11(), m21 = view.m21(), m31 = view.m31();
+		final float m02 = view.m02(), m12 = view.m12(), m22 = view.m22(), m32 = view.m32();
+
+		run(0, lightCount, LIGHT_TASK_SIZE, (begin, end) -> {
+			for(int i = begin;i < end;i++) {
+				final float x = positionX[i], y = positionY[i], z = positionZ[i];
+				viewX[i] = m00 * x + m10 * y + m20 * z + m30;
+				viewY[i] = m01 * x + m11 * y + m21 * z + m31;
+				viewDepth[i] = -(m02 * x + m12 * y + m22 * z + m32);
+			}
+		});
+
+		// Each slice collects its own pairs of tile and light
+		run(0, countZ, 1, (begin, end) -> {
+			for(int k = begin;k < end;k++) {
+				assignSlice(k);
+			}
+		});
+
+		// The lists of the slices are stored one after the other
+		for(int k = 0;k < countZ;k++) {
+			sliceOffsets[k + 1] = sliceOffsets[k] + slicePairs[k];
+		}
+		indexCount = sliceOffsets[countZ];
+
+		if(indexData.capacity() < indexCount * Integer.BYTES) {
+			indexData = memRealloc(indexData, Math.max(indexCount, indexData.capacity() / Integer.BYTES * 2) * Integer.BYTES);
+		}
+
+		run(0, countZ, 1, (begin, end) -> {
+			for(int k = begin;k < end;k++) {
+				writeSlice(k);
+			}
+		});
+
+		upload();
+
+		buildNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Binds the texture buffers to the given texture unit and the two following ones, sets the samplers lightData,
+	 * lightGrid and lightIndices of the given shader, which must be in use, and binds the block Lights
+	 * */
+	public void bind(Shader shader, int unit) {
+
+		GLState.bindTexture(unit, GL_TEXTURE_BUFFER, lightTexture);
+		GLState.bindTexture(unit + 1, GL_TEXTURE_BUFFER, gridTexture);
+		GLState.bindTexture(unit + 2, GL_TEXTURE_BUFFER, indexTexture);
+
+		shader.getUniform("lightData").set(unit);
+		shader.getUniform("lightGrid").set(unit + 1);
+		shader.getUniform("lightIndices").set(unit + 2);
+
+		block.bind();
+	}
+
+	/**
+	 * Returns the number of light indices in the clusters of the last build, one per light and cluster it reaches
+	 * */
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	/**
+	 * Returns the time the last build took, in nanoseconds, uploads included
+	 * */
+	public long getBuildNanos() {
+		return buildNanos;
+	}
+
+	public void delete() {
+		GLState.deleteTexture(lightTexture);
+		GLState.deleteTexture(gridTexture);
+		GLState.deleteTexture(indexTexture);
+		glDeleteBuffers(lightBuffer);
+		glDeleteBuffers(gridBuffer);
+		glDeleteBuffers(indexBuffer);
+		block.delete();
+		memFree(lightData);
+		memFree(gridData);
+		memFree(indexData);
+	}
+
+	// ========== Utility functions ===========
+
+	private static int createTexture(int buffer, int format) {
+
+		glBindBuffer(GL_TEXTURE_BUFFER, buffer);
+		glBufferData(GL_TEXTURE_BUFFER, 4L * Integer.BYTES, GL_STREAM_DRAW);
+		glBindBuffer(GL_TEXTURE_BUFFER, 0);
+
+		final int texture = glGenTextures();
+		GLState.bindTexture(GL_TEXTURE_BUFFER, texture);
+		glTexBuffer(GL_TEXTURE_BUFFER, format, buffer);
+		GLState.bindTexture(GL_TEXTURE_BUFFER, 0);
+
+		return texture;
+	}
+
+	private void grow(int capacity) {
+
+		positionX = Arrays.copyOf(positionX, capacity);
+		positionY = Arrays.copyOf(positionY, capacity);
+		positionZ = Arrays.copyOf(positionZ, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		colorR = Arrays.copyOf(colorR, capacity);
+		colorG = Arrays.copyOf(colorG, capacity);
+		colorB = Arrays.copyOf(colorB, capacity);
+		constant = Arrays.copyOf(constant, capacity);
+		linear = Arrays.copyOf(linear, capacity);
+		quadratic = Arrays.copyOf(quadratic, capacity);
+
+		viewX = new float[capacity];
+		viewY = new float[capacity];
+		viewDepth = new float[capacity];
+	}
+
+	/**
+	 * Collects the pairs of tile and light of the clusters of slice k, and counts the lights of each tile
+	 * */
+	private void assignSlice(int k) {
+
+		final float sliceNear = sliceDepths[k];
+		final float sliceFar = sliceDepths[k + 1];
+		final int[] counts = tileCounts[k];
+		int pairs = 0;
+
+		Arrays.fill(counts, 0);
+
+		for(int i = 0;i < lightCount;i++) {
+
+			final float r = radius[i];
+			final float depth = viewDepth[i];
+
+			if(depth + r < sliceNear || depth - r > sliceFar) {
+				continue;
+			}
+
+			// Part of the bounding box of the sphere inside the slice, projected: x / depth is smallest at the nearest
+			// depth when x is negative, and at the farthest one when it is positive
+			final float near = Math.max(depth - r, sliceNear);
+			final float far = Math.min(depth + r, sliceFar);
+			final float minX = viewX[i] - r, maxX = viewX[i] + r;
+			final float minY = viewY[i] - r, maxY = viewY[i] + r;
+
+			final int x0 = tile(minX / (minX < 0.0f ? near : far) * projectionX, countX);
+			final int x1 = tile(maxX / (maxX < 0.0f ? far : near) * projectionX, countX);
+			final int y0 = tile(minY / (minY < 0.0f ? near : far) * projectionY, countY);
+			final int y1 = tile(maxY / (maxY < 0.0f ? far : near) * projectionY, countY);
+
+			if(x1 < 0 || y1 < 0 || x0 >= countX || y0 >= countY) {
+				continue;
+			}
+
+			for(int y = Math.max(y0, 0);y <= Math.min(y1, countY - 1);y++) {
+				for(int x = Math.max(x0, 0);x <= Math.min(x1, countX - 1);x++) {
+
+					final int tile = y * countX + x;
+					if(!intersects(k, tile, viewX[i], viewY[i], depth, r)) {
+						continue;
+					}
+
+					if(pairs == sliceTiles[k].length) {
+						sliceTiles[k] = Arrays.copyOf(sliceTiles[k], pairs * 2);
+						sliceLights[k] = Arrays.copyOf(sliceLights[k], pairs * 2);
+					}
+
+					sliceTiles[k][pairs] = tile;
+					sliceLights[k][pairs] = i;
+					++pairs;
+					++counts[tile];
+				}
+			}
+		}
+
+		slicePairs[k] = pairs;
+	}
+
+	/**
+	 * Writes the offset and count of the clusters of slice k, and their lights sorted by tile
+	 * */
+	private void writeSlice(int k) {
+
+		final int[] counts = tileCounts[k];
+		final long grid = memAddress(gridData);
+		final long indices = memAddress(indexData);
+
+		// Counting sort of the pairs by tile, the counts become the next position of each tile
+		int offset = sliceOffsets[k];
+		for(int tile = 0;tile < counts.length;tile++) {
+			final long cluster = grid + (long)(k * counts.length + tile) * 2 * Integer.BYTES;
+			memPutInt(cluster, offset);
+			memPutInt(cluster + Integer.BYTES, counts[tile]);
+
+			final int count = counts[tile];
+			counts[tile] = offset;
+			offset += count;
+		}
+
+		final int[] tiles = sliceTiles[k];
+		final int[] lights = sliceLights[k];
+		for(int i = 0;i < slicePairs[k];i++) {
+			memPutInt(indices + (long)counts[tiles[i]]++ * Integer.BYTES, lights[i]);
+		}
+	}
+
+	/**
+	 * Returns true if the sphere, in view space with a positive depth, intersects the bounds of the given cluster
+	 * */
+	private boolean intersects(int k, int tile, float x, float y, float depth, float r) {
+
+		final int o = (k * countX * countY + tile) * 4;
+
+		final float dx = x - Math.max(clusterBounds[o], Math.min(x, clusterBounds[o + 2]));
+		final float dy = y - Math.max(clusterBounds[o + 1], Math.min(y, clusterBounds[o + 3]));
+		final float dz = depth - Math.max(sliceDepths[k], Math.min(depth, sliceDepths[k + 1]));
+
+		return dx * dx + dy * dy + dz * dz <= r * r;
+	}
+
+	/**
+	 * Returns the tile of the given normalized device coordinate, out of range outside the screen
+	 * */
+	private static int tile(float ndc, int count) {
+		return (int)Math.floor((ndc * 0.5f + 0.5f) * count);
+	}
+
+	private void upload() {
+
+		if(lightsModified) {
+
+			if(lightData.capacity() < lightCount * LIGHT_TEXELS * 4 * Float.BYTES) {
+				lightData = memRealloc(lightData, radius.length * LIGHT_TEXELS * 4 * Float.BYTES);
+			}
+
+			final long address = memAddress(lightData);
+			for(int i = 0;i < lightCount;i++) {
+				final long light = address + (long)i * LIGHT_TEXELS * 4 * Float.BYTES;
+				memPutFloat(light, positionX[i]);
+				memPutFloat(light + 4, positionY[i]);
+				memPutFloat(light + 8, positionZ[i]);
+				memPutFloat(light + 12, radius[i]);
+				memPutFloat(light + 16, colorR[i]);
+				memPutFloat(light + 20, colorG[i]);
+				memPutFloat(light + 24, colorB[i]);
+				memPutFloat(light + 28, 0.0f);
+				memPutFloat(light + 32, constant[i]);
+				memPutFloat(light + 36, linear[i]);
+				memPutFloat(light + 40, quadratic[i]);
+				memPutFloat(light + 44, 0.0f);
+			}
+
+			upload(lightBuffer, lightData, lightCount * LIGHT_TEXELS * 4 * Float.BYTES);
+			lightsModified = false;
+		}
+
+		upload(gridBuffer, gridData, gridData.capacity());
+		upload(indexBuffer, indexData, indexCount * Integer.BYTES);
+	}
+
+	/**
+	 * Replaces the storage of the buffer with the first size bytes of data, so the GPU can keep reading the previous
+	 * one. Without data, the buffer keeps its previous storage, as nothing reads it
+	 * */
+	private static void upload(int buffer, ByteBuffer data, int size) {
+		glBindBuffer(GL_TEXTURE_BUFFER, buffer);
+		if(size > 0) {
+			nglBufferData(GL_TEXTURE_BUFFER, size, memAddress(data), GL_STREAM_DRAW);
+		}
+		glBindBuffer(GL_TEXTURE_BUFFER, 0);
+	}
+
+	private void run(int start, int end, int grain, Range range) {
+		RangeTask.run(pool, start, end, grain, range);
+	}
+
+}
@@ -0,0 +1,249 @@
+package learnopengl.util;
+
+import org.joml.Vector3fc;
+
+/**
+ * Sorts transparent objects back to front every frame, without allocating.
+ *
+ * The depths are float keys in a primitive array, and the result is an array of object indices, from the farthest to
+ * the nearest, which is kept for the next frame. As the camera and the objects move a little between frames, the
+ * previous order is usually almost sorted, so it is first fixed with an insertion sort, which only costs a pass over
+ * the objects plus one move per pair out of order. If the moves exceed {@link #INSERTION_MOVES} per object, or when
+ * there is no previous order, the objects are sorted from scratch with a radix sort of their depths quantized to 22
+ * bits over the range of depths of the frame: two stable passes of 11 bits, whose histograms fit in the L1 cache.
+ * Depths closer than 1 / 2^22 of that range may come out in any order, which the insertion sort of the next frame
+ * fixes. When the insertion sort gives up, it is skipped for the next 1, 2, 4... up to {@link #MAX_INSERTION_SKIPS}
+ * frames, so a camera moving too fast for it doesn't waste its moves every frame.
+ *
+ * The arrays only grow when there are more objects than ever, so sorting the same number of objects allocates
+ * nothing.
+ * */
+public class DepthSorter {
+
+	/** Moves per object allowed to the insertion sort before falling back to the radix sort */
+	public static final int INSERTION_MOVES = 4;
+	/** Frames the insertion sort is skipped for, at most, after giving up repeatedly */
+	public static final int MAX_INSERTION_SKIPS = 16;
+
+	// Few objects are always sorted by insertion, as the radix sort has to go through its histograms
+	private static final int MIN_INSERTION_MOVES = 1024;
+
+	private static final int RADIX_BITS = 11;
+	private static final int RADIX_SIZE = 1 << RADIX_BITS;
+	private static final int QUANTIZATION = (1 << (2 * RADIX_BITS)) - 1;
+
+	private int count;
+	// Object indices from back to front, and their depths in the same order
+	private int[] order = new int[0];
+	private float[] keys = new float[0];
+	private float[] depths = new float[0];
+
+	/* Radix sort */
+	private int[] quantized = new int[0];
+	private int[] orderTemp = new int[0];
+	private int[] quantizedTemp = new int[0];
+	private final int[] histogram = new int[RADIX_SIZE];
+
+	// Radix sorts left before trying the insertion sort again, and how many were skipped after the last failure
+	private int insertionSkips;
+	private int insertionBackoff;
+
+	private long insertionSorts;
+	private long radixSorts;
+
+	/**
+	 * Sorts the first count objects by the given depths, from the largest to the smallest, and returns their indices
+	 * in that order. The array is reused by the next sort
+	 * */
+	public int[] sort(float[] depths, int count) {
+
+		if(count != this.count || order.length < count) {
+			// No previous order to start from
+			reset(count);
+			radixSort(depths);
+			return order;
+		}
+
+		if(insertionSkips > 0) {
+			--insertionSkips;
+			radixSort(depths);
+			return order;
+		}
+
+		for(int i = 0;i < count;i++) {
+			keys[i] = depths[order[i]];
+		}
+
+		if(insertionSort()) {
+			insertionBackoff = 0;
+		} else {
+			insertionBackoff = Math.min(Math.max(insertionBackoff * 2, 1), MAX_INSERTION_SKIPS);
+			insertionSkips = insertionBackoff;
+			radixSort(depths);
+		}
+
+		return order;
+	}
+
+	/**
+	 * Sorts the first count objects, whose positions are given as 3 floats each, from the farthest to the nearest to
+	 * the given eye position
+	 * */
+	public int[] sortByDistance(float[] positions, int count, Vector3fc eye) {
+
+		if(depths.length < count) {
+			depths = new float[count];
+		}
+
+		// The squared distances have the same order, without the square roots
+		for(int i = 0;i < count;i++) {
+			final float x = positions[i * 3] - eye.x();
+			final float y = positions[i * 3 + 1] - eye.y();
+			final float z = positions[i * 3 + 2] - eye.z();
+			depths[i] = x * x + y * y + z * z;
+		}
+
+		return sort(depths, count);
+	}
+
+	/**
+	 * Returns the object indices of the last sort, from back to front
+	 * */
+	public int[] getOrder() {
+		return order;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of sorts that only needed the insertion sort
+	 * */
+	public long getInsertionSorts() {
+		return insertionSorts;
+	}
+
+	/**
+	 * Returns the number of sorts that fell back to the radix sort
+	 * */
+	public long getRadixSorts() {
+		return radixSorts;
+	}
+
+	// ========== Utility functions ===========
+
+	private void reset(int count) {
+
+		this.count = count;
+		insertionSkips = 0;
+		insertionBackoff = 0;
+
+		if(order.length < count) {
+			order = new int[count];
+			keys = new float[count];
+			quantized = new int[count];
+			orderTemp = new int[count];
+			quantizedTemp = new int[count];
+		}
+
+		for(int i = 0;i < count;i++) {
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Sorts the keys, and the order with them, in decreasing order. Returns false if it gave up after too many moves,
+	 * leaving them partially sorted
+	 * */
+	private boolean insertionSort() {
+
+		long moves = 0;
+		final long maxMoves = Math.max((long)count * INSERTION_MOVES, MIN_INSERTION_MOVES);
+
+		for(int i = 1;i < count;i++) {
+
+			final float key = keys[i];
+			if(keys[i - 1] >= key) {
+				continue;
+			}
+
+			final int index = order[i];
+			int j = i;
+			do {
+				keys[j] = keys[j - 1];
+				order[j] = order[j - 1];
+				--j;
+			} while(j > 0 && keys[j - 1] < key);
+			keys[j] = key;
+			order[j] = index;
+
+			moves += i - j;
+			if(moves > maxMoves) {
+				return false;
+			}
+		}
+
+		++insertionSorts;
+		return true;
+	}
+
+	/**
+	 * Sorts the order by the given depths, in decreasing order. The previous order doesn't help, so it starts from
+	 * the objects in their order, which reads the depths sequentially
+	 * */
+	private void radixSort(float[] depths) {
+
+		++radixSorts;
+
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for(int i = 0;i < count;i++) {
+			min = Math.min(min, depths[i]);
+			max = Math.max(max, depths[i]);
+		}
+
+		// The farthest get 0, so increasing keys go from back to front
+		final float scale = max > min ? QUANTIZATION / (max - min) : 0.0f;
+		for(int i = 0;i < count;i++) {
+			order[i] = i;
+			quantized[i] = (int)((max - depths[i]) * scale);
+		}
+
+		radixPass(0, order, quantized, orderTemp, quantizedTemp);
+		radixPass(RADIX_BITS, orderTemp, quantizedTemp, order, quantized);
+
+		for(int i = 0;i < count;i++) {
+			keys[i] = depths[order[i]];
+		}
+	}
+
+	/**
+	 * Stable counting sort of the order by the digit of the quantized keys at the given shift
+	 * */
+	private void radixPass(int shift, int[] order, int[] keys, int[] orderOut, int[] keysOut) {
+
+		final int mask = RADIX_SIZE - 1;
+
+		for(int i = 0;i < RADIX_SIZE;i++) {
+			histogram[i] = 0;
+		}
+		for(int i = 0;i < count;i++) {
+			++histogram[(keys[i] >>> shift) & mask];
+		}
+
+		int offset = 0;
+		for(int i = 0;i < RADIX_SIZE;i++) {
+			final int digitCount = histogram[i];
+			histogram[i] = offset;
+			offset += digitCount;
+		}
+
+		for(int i = 0;i < count;i++) {
+			final int destination = histogram[(keys[i] >>> shift) & mask]++;
+			orderOut[destination] = order[i];
+			keysOut[destination] = keys[i];
+		}
+	}
+
+}
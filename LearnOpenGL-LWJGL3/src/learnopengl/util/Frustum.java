@@ -0,0 +1,168 @@
+package learnopengl.util;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * View frustum to skip the draws of objects that are not visible.
+ *
+ * The six planes are extracted from a projection * view matrix. Bounds are given in model space with the model
+ * matrix of the object, and tested in world space: first the bounding sphere, which is cheap and rejects most
+ * objects far from the frustum, and then the bounding box transformed by the model matrix.
+ *
+ * The visible and culled tests are counted, and meant to be reset once per frame with {@link #resetCounters()}.
+ * Both testSphere methods, {@link #testAab(Vector3fc, Vector3fc)} and
+ * {@link #intersectAab(float, float, float, float, float, float)} only read the planes, so they can be run from
+ * several threads at once. The tests of bounds in model space use temporary vectors of the frustum, like the
+ * counters, so they belong to a single thread.
+ *
+ * frustum.set(projection.mul(view, viewProjection));
+ * model.draw(shader, modelMatrix, frustum);
+ * */
+public class Frustum {
+
+	/** Results of {@link #intersectAab(float, float, float, float, float, float)} */
+	public static final int OUTSIDE = 0;
+	public static final int INTERSECT = 1;
+	public static final int INSIDE = 2;
+
+	private final FrustumIntersection planes = new FrustumIntersection();
+
+	private final Vector3f boxCenter = new Vector3f();
+	private final Vector3f center = new Vector3f();
+	private final Vector3f scale = new Vector3f();
+	private final Vector3f min = new Vector3f();
+	private final Vector3f max = new Vector3f();
+
+	private int visible;
+	private int culled;
+
+	public Frustum() {
+	}
+
+	public Frustum(Matrix4fc viewProjection) {
+		set(viewProjection);
+	}
+
+	/**
+	 * Extracts the planes of the given projection * view matrix
+	 * */
+	public Frustum set(Matrix4fc viewProjection) {
+		planes.set(viewProjection, false);
+		return this;
+	}
+
+	/**
+	 * Returns true if the given sphere, in world space, is at least partially inside the frustum
+	 * */
+	public boolean testSphere(Vector3fc center, float radius) {
+		return planes.testSphere(center, radius);
+	}
+
+	/**
+	 * Returns true if the given axis aligned box, in world space, is at least partially inside the frustum
+	 * */
+	public boolean testAab(Vector3fc min, Vector3fc max) {
+		return planes.testAab(min, max);
+	}
+
+	/**
+	 * Same as {@link #testSphere(Vector3fc, float)}, for callers that store the bounds in arrays
+	 * */
+	public boolean testSphere(float x, float y, float z, float radius) {
+		return planes.testSphere(x, y, z, radius);
+	}
+
+	/**
+	 * Returns whether the given axis aligned box, in world space, is {@link #OUTSIDE}, {@link #INSIDE} or
+	 * {@link #INTERSECT}s the frustum. Boxes inside the frustum don't need their contents tested
+	 * */
+	public int intersectAab(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+
+		final int result = planes.intersectAab(minX, minY, minZ, maxX, maxY, maxZ);
+
+		if(result == FrustumIntersection.INSIDE) {
+			return INSIDE;
+		}
+
+		return result == FrustumIntersection.INTERSECT ? INTERSECT : OUTSIDE;
+	}
+
+	/**
+	 * Returns true if the mesh, with the given model matrix, may be visible
+	 * */
+	public boolean isVisible(Mesh mesh, Matrix4fc model) {
+		return count(test(mesh.sphereCenter, mesh.sphereRadius, mesh.aabbMin, mesh.aabbMax, model));
+	}
+
+	/**
+	 * Returns true if the box, in model space, may be visible with the given model matrix
+	 * */
+	public boolean isVisible(Vector3fc aabbMin, Vector3fc aabbMax, Matrix4fc model) {
+		return count(testBox(aabbMin, aabbMax, model));
+	}
+
+	/**
+	 * Same as {@link #isVisible(Vector3fc, Vector3fc, Matrix4fc)}, without counting the test
+	 * */
+	public boolean testBox(Vector3fc aabbMin, Vector3fc aabbMax, Matrix4fc model) {
+		boxCenter.set(aabbMin).add(aabbMax).mul(0.5f);
+		return test(boxCenter, boxCenter.distance(aabbMax), aabbMin, aabbMax, model);
+	}
+
+	/**
+	 * Counts the given number of objects as culled, when they are rejected together, like the meshes of a model
+	 * */
+	public void addCulled(int count) {
+		culled += count;
+	}
+
+	public int getVisible() {
+		return visible;
+	}
+
+	public int getCulled() {
+		return culled;
+	}
+
+	public void resetCounters() {
+		visible = 0;
+		culled = 0;
+	}
+
+	public String getStats() {
+		return String.format("Frustum: %d visible, %d culled", visible, culled);
+	}
+
+	// ========== Utility functions ===========
+
+	private boolean test(Vector3fc sphereCenter, float sphereRadius, Vector3fc aabbMin, Vector3fc aabbMax, Matrix4fc model) {
+
+		// The radius grows with the largest scale of the model matrix
+		model.getScale(scale);
+		final float radius = sphereRadius * Math.max(scale.x, Math.max(scale.y, scale.z));
+
+		if(!planes.testSphere(model.transformPosition(sphereCenter, center), radius)) {
+			return false;
+		}
+
+		// The box that contains the transformed box, which is tighter than the sphere for long objects
+		model.transformAab(aabbMin, aabbMax, min, max);
+
+		return planes.testAab(min, max);
+	}
+
+	private boolean count(boolean visible) {
+
+		if(visible) {
+			++this.visible;
+		} else {
+			++culled;
+		}
+
+		return visible;
+	}
+
+}
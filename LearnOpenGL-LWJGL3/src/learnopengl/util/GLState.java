@@ -0,0 +1,408 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the OpenGL state set through it, so binds and state changes that would not change anything can be skipped.
+ *
+ * It covers the program, vertex array, the 2D and cube map textures of each texture unit, the framebuffers, the
+ * viewport and the blend, depth, stencil and face culling state. The utility classes (Shader, Mesh, TextureLoader...)
+ * always go through it, so it always knows what they bound.
+ *
+ * Skipping redundant calls is only correct if all the code changing that state goes through this class, which is
+ * not the case for most samples, so it is disabled by default and every call is issued. Samples that route their
+ * state changes through it enable it with {@link #setFiltering(boolean)}. State changed behind its back must be
+ * reported with {@link #invalidate()}.
+ *
+ * The counters of issued and filtered calls are meant to be reset once per frame, with {@link #resetCounters()}.
+ * */
+public final class GLState {
+
+	private static final int UNKNOWN = -1;
+
+	// Texture units whose bindings are tracked. Other units are always bound
+	private static final int MAX_TEXTURE_UNITS = 32;
+
+	private static final int TEXTURE_2D = 0;
+	private static final int TEXTURE_CUBE_MAP = 1;
+
+	private static final int BLEND = 0;
+	private static final int DEPTH_TEST = 1;
+	private static final int STENCIL_TEST = 2;
+	private static final int CULL_FACE = 3;
+	private static final int FRAMEBUFFER_SRGB = 4;
+	private static final int MULTISAMPLE = 5;
+
+	private static boolean filtering;
+
+	private static int program;
+	private static int vertexArray;
+	private static int activeTexture;
+	private static final int[][] textures = new int[MAX_TEXTURE_UNITS][2];
+	private static int drawFramebuffer;
+	private static int readFramebuffer;
+	private static final int[] viewport = new int[4];
+	// UNKNOWN, GL_FALSE or GL_TRUE
+	private static final int[] capabilities = new int[6];
+	private static int blendSource;
+	private static int blendDestination;
+	private static int depthFunc;
+	private static int depthMask;
+	private static int stencilFunc;
+	// Masks and the reference value may be any int, so they are stored unsigned, where UNKNOWN can't be a value
+	private static long stencilRef;
+	private static long stencilFuncMask;
+	private static int stencilFail;
+	private static int stencilDepthFail;
+	private static int stencilDepthPass;
+	private static long stencilMask;
+
+	private static long issued;
+	private static long filtered;
+
+	static {
+		invalidate();
+	}
+
+	/**
+	 * Enables or disables skipping the calls that would not change the state. Disabled by default
+	 * */
+	public static void setFiltering(boolean enabled) {
+		filtering = enabled;
+		invalidate();
+	}
+
+	public static boolean isFiltering() {
+		return filtering;
+	}
+
+	/**
+	 * Forgets all the tracked state, so the next calls are issued. Call it after changing the state with
+	 * direct OpenGL calls
+	 * */
+	public static void invalidate() {
+		program = UNKNOWN;
+		vertexArray = UNKNOWN;
+		activeTexture = UNKNOWN;
+		for(final int[] unit : textures) {
+			Arrays.fill(unit, UNKNOWN);
+		}
+		drawFramebuffer = UNKNOWN;
+		readFramebuffer = UNKNOWN;
+		Arrays.fill(viewport, UNKNOWN);
+		Arrays.fill(capabilities, UNKNOWN);
+		blendSource = UNKNOWN;
+		blendDestination = UNKNOWN;
+		depthFunc = UNKNOWN;
+		depthMask = UNKNOWN;
+		stencilFunc = UNKNOWN;
+		stencilRef = UNKNOWN;
+		stencilFuncMask = UNKNOWN;
+		stencilFail = UNKNOWN;
+		stencilDepthFail = UNKNOWN;
+		stencilDepthPass = UNKNOWN;
+		stencilMask = UNKNOWN;
+	}
+
+	public static long getIssued() {
+		return issued;
+	}
+
+	public static long getFiltered() {
+		return filtered;
+	}
+
+	public static void resetCounters() {
+		issued = 0;
+		filtered = 0;
+	}
+
+	public static String getStats() {
+		return String.format("GLState: %d state changes issued, %d filtered", issued, filtered);
+	}
+
+	// ========== Bindings ===========
+
+	public static void useProgram(int program) {
+		if(changed(GLState.program == program)) {
+			glUseProgram(program);
+			GLState.program = program;
+		}
+	}
+
+	public static void bindVertexArray(int vertexArray) {
+		if(changed(GLState.vertexArray == vertexArray)) {
+			glBindVertexArray(vertexArray);
+			GLState.vertexArray = vertexArray;
+		}
+	}
+
+	/**
+	 * Selects the active texture unit, as glActiveTexture(GL_TEXTURE0 + unit)
+	 * */
+	public static void activeTexture(int unit) {
+		if(changed(activeTexture == unit)) {
+			glActiveTexture(GL_TEXTURE0 + unit);
+			activeTexture = unit;
+		}
+	}
+
+	/**
+	 * Binds the texture to the given unit, only activating the unit if the texture is not already bound to it
+	 * */
+	public static void bindTexture(int unit, int target, int texture) {
+
+		final int index = getTargetIndex(target);
+
+		if(index != UNKNOWN && unit < MAX_TEXTURE_UNITS && filtering && textures[unit][index] == texture) {
+			++filtered;
+			return;
+		}
+
+		activeTexture(unit);
+		bindTexture(target, texture);
+	}
+
+	/**
+	 * Binds the texture to the active texture unit, as glBindTexture
+	 * */
+	public static void bindTexture(int target, int texture) {
+
+		final int index = getTargetIndex(target);
+
+		if(index == UNKNOWN) {
+			++issued;
+			glBindTexture(target, texture);
+			return;
+		}
+
+		if(activeTexture == UNKNOWN || activeTexture >= MAX_TEXTURE_UNITS) {
+			// The unit the texture is bound to is not known, so no unit can be trusted anymore
+			++issued;
+			glBindTexture(target, texture);
+			for(final int[] unit : textures) {
+				unit[index] = UNKNOWN;
+			}
+			return;
+		}
+
+		if(changed(textures[activeTexture][index] == texture)) {
+			glBindTexture(target, texture);
+			textures[activeTexture][index] = texture;
+		}
+	}
+
+	public static void bindFramebuffer(int target, int framebuffer) {
+
+		switch(target) {
+
+		case GL_DRAW_FRAMEBUFFER:
+			if(changed(drawFramebuffer == framebuffer)) {
+				glBindFramebuffer(target, framebuffer);
+				drawFramebuffer = framebuffer;
+			}
+			break;
+		case GL_READ_FRAMEBUFFER:
+			if(changed(readFramebuffer == framebuffer)) {
+				glBindFramebuffer(target, framebuffer);
+				readFramebuffer = framebuffer;
+			}
+			break;
+		default:
+			if(changed(drawFramebuffer == framebuffer && readFramebuffer == framebuffer)) {
+				glBindFramebuffer(target, framebuffer);
+				drawFramebuffer = framebuffer;
+				readFramebuffer = framebuffer;
+			}
+		}
+	}
+
+	// ========== Deletion ===========
+
+	// Deleting a bound object unbinds it, and its name may be reused by a new object
+
+	public static void deleteProgram(int program) {
+		glDeleteProgram(program);
+		if(GLState.program == program) {
+			GLState.program = UNKNOWN;
+		}
+	}
+
+	public static void deleteVertexArray(int vertexArray) {
+		glDeleteVertexArrays(vertexArray);
+		if(GLState.vertexArray == vertexArray) {
+			GLState.vertexArray = UNKNOWN;
+		}
+	}
+
+	public static void deleteTexture(int texture) {
+		glDeleteTextures(texture);
+		for(final int[] unit : textures) {
+			for(int i = 0;i < unit.length;i++) {
+				if(unit[i] == texture) {
+					unit[i] = UNKNOWN;
+				}
+			}
+		}
+	}
+
+	public static void deleteFramebuffer(int framebuffer) {
+		glDeleteFramebuffers(framebuffer);
+		if(drawFramebuffer == framebuffer) {
+			drawFramebuffer = UNKNOWN;
+		}
+		if(readFramebuffer == framebuffer) {
+			readFramebuffer = UNKNOWN;
+		}
+	}
+
+	// ========== Fixed function state ===========
+
+	public static void viewport(int x, int y, int width, int height) {
+		if(changed(viewport[0] == x && viewport[1] == y && viewport[2] == width && viewport[3] == height)) {
+			glViewport(x, y, width, height);
+			viewport[0] = x;
+			viewport[1] = y;
+			viewport[2] = width;
+			viewport[3] = height;
+		}
+	}
+
+	/**
+	 * Enables the given capability, as glEnable. GL_BLEND, GL_DEPTH_TEST, GL_STENCIL_TEST, GL_CULL_FACE,
+	 * GL_FRAMEBUFFER_SRGB and GL_MULTISAMPLE are tracked, the others are always issued
+	 * */
+	public static void enable(int capability) {
+		setCapability(capability, true);
+	}
+
+	public static void disable(int capability) {
+		setCapability(capability, false);
+	}
+
+	public static void blendFunc(int source, int destination) {
+		if(changed(blendSource == source && blendDestination == destination)) {
+			glBlendFunc(source, destination);
+			blendSource = source;
+			blendDestination = destination;
+		}
+	}
+
+	public static void depthFunc(int func) {
+		if(changed(depthFunc == func)) {
+			glDepthFunc(func);
+			depthFunc = func;
+		}
+	}
+
+	public static void depthMask(boolean flag) {
+		final int value = flag ? GL_TRUE : GL_FALSE;
+		if(changed(depthMask == value)) {
+			glDepthMask(flag);
+			depthMask = value;
+		}
+	}
+
+	public static void stencilFunc(int func, int ref, int mask) {
+		if(changed(stencilFunc == func && stencilRef == Integer.toUnsignedLong(ref) && stencilFuncMask == Integer.toUnsignedLong(mask))) {
+			glStencilFunc(func, ref, mask);
+			stencilFunc = func;
+			stencilRef = Integer.toUnsignedLong(ref);
+			stencilFuncMask = Integer.toUnsignedLong(mask);
+		}
+	}
+
+	public static void stencilOp(int fail, int depthFail, int depthPass) {
+		if(changed(stencilFail == fail && stencilDepthFail == depthFail && stencilDepthPass == depthPass)) {
+			glStencilOp(fail, depthFail, depthPass);
+			stencilFail = fail;
+			stencilDepthFail = depthFail;
+			stencilDepthPass = depthPass;
+		}
+	}
+
+	public static void stencilMask(int mask) {
+		if(changed(stencilMask == Integer.toUnsignedLong(mask))) {
+			glStencilMask(mask);
+			stencilMask = Integer.toUnsignedLong(mask);
+		}
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Returns true if the call has to be issued, counting it as issued or filtered
+	 * */
+	private static boolean changed(boolean same) {
+
+		if(filtering && same) {
+			++filtered;
+			return false;
+		}
+
+		++issued;
+
+		return true;
+	}
+
+	private static void setCapability(int capability, boolean enabled) {
+
+		final int index = getCapabilityIndex(capability);
+		final int value = enabled ? GL_TRUE : GL_FALSE;
+
+		if(index == UNKNOWN) {
+			++issued;
+		} else if(changed(capabilities[index] == value)) {
+			capabilities[index] = value;
+		} else {
+			return;
+		}
+
+		if(enabled) {
+			glEnable(capability);
+		} else {
+			glDisable(capability);
+		}
+	}
+
+	private static int getCapabilityIndex(int capability) {
+
+		switch(capability) {
+
+		case GL_BLEND:
+			return BLEND;
+		case GL_DEPTH_TEST:
+			return DEPTH_TEST;
+		case GL_STENCIL_TEST:
+			return STENCIL_TEST;
+		case GL_CULL_FACE:
+			return CULL_FACE;
+		case GL_FRAMEBUFFER_SRGB:
+			return FRAMEBUFFER_SRGB;
+		case GL_MULTISAMPLE:
+			return MULTISAMPLE;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	private static int getTargetIndex(int target) {
+
+		switch(target) {
+
+		case GL_TEXTURE_2D:
+			return TEXTURE_2D;
+		case GL_TEXTURE_CUBE_MAP:
+			return TEXTURE_CUBE_MAP;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+}
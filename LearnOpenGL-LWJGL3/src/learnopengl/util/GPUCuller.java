@@ -0,0 +1,392 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Frustum culling of instances on the GPU, drawn with indirect draws so the CPU never reads the visible count.
+ *
+ * The matrices and the world space bounding spheres of the instances are uploaded once. Every frame, {@link #cull(Matrix4fc)}
+ * resets one DrawElementsIndirectCommand per mesh and dispatches a compute shader with one invocation per instance.
+ * Each invocation tests its sphere against the frustum planes, and the visible ones of a work group are counted in
+ * shared memory, so only one atomicAdd per work group reaches the instance count of the commands. The indices of the
+ * visible instances are appended to {@link #visibleBuffer}, which is bound as an instanced uint attribute of the
+ * meshes, and {@link #draw(int, int, int)} consumes the commands with glDrawElementsIndirect. The vertex shader reads
+ * the matrix of each index from {@link #matrixTexture}, a buffer texture of the matrices, so a visible instance only
+ * takes 4 bytes instead of a whole matrix.
+ *
+ * With levels of detail, each visible instance also picks its level with the distance factors of a {@link LodSelector},
+ * and there is one command per level and mesh. Each level appends its instances to its own region of the visible
+ * buffer, which its commands start reading from with their base instance.
+ *
+ * With impostors, there is one more command, after those of the levels of detail, which draws the quad of an
+ * {@link ImpostorAtlas} with {@link #drawImpostors()}. The instances past the impostor distance of the selector are
+ * appended to their own region, and those in the crossfade to both the region of their level and that of the
+ * impostors.
+ *
+ * Instances that move can be uploaded again with {@link #upload(FloatBuffer, float[])}, or streamed by the caller,
+ * for example into a {@link StreamBuffer}, and read from there with {@link #setInstanceSource(int, long, long)}.
+ *
+ * The compute shader must declare these buffers and uniforms:
+ *
+ * layout(std430, binding = 1) readonly buffer Spheres { vec4 spheres[]; };
+ * layout(std430, binding = 2) writeonly buffer Visible { uint visible[]; };
+ * layout(std430, binding = 3) buffer Commands { DrawCommand commands[]; };
+ * uniform vec4 planes[6];
+ * uniform vec3 cameraPosition;
+ * uniform float lodFactors[MAX_LODS];
+ * uniform int instanceCount;
+ * uniform int lodCount;
+ * uniform int meshCount;
+ * uniform float impostorStart;
+ * uniform float impostorEnd;
+ * uniform int impostorLevel;
+ *
+ * It requires OpenGL 4.3, as the compute shader is #version 430, see {@link #isSupported(int)}.
+ * */
+public class GPUCuller {
+
+	/** Invocations per work group, the local_size_x of the compute shader */
+	public static final int WORK_GROUP_SIZE = 256;
+
+	private static final int MATRIX_SIZE = 16 * Float.BYTES;
+	// count, instanceCount, firstIndex, baseVertex, baseInstance
+	private static final int COMMAND_SIZE = 5 * Integer.BYTES;
+
+	private static final int SPHERES_BINDING = 1;
+	private static final int VISIBLE_BINDING = 2;
+	private static final int COMMANDS_BINDING = 3;
+
+	/** Indices of the visible instances of the last cull, one uint each, to be used as the instanced array */
+	public final int visibleBuffer;
+	/** Buffer texture of the matrices of the instances, four GL_RGBA32F texels each, in the order of their indices */
+	public final int matrixTexture;
+	/** The draw commands, one per level of detail and mesh, then the impostor command */
+	public final int commandBuffer;
+	public final int instanceCount;
+
+	private final Shader shader;
+	private final Shader.Uniform[] planeUniforms;
+	private final Shader.Uniform cameraPositionUniform;
+	private final Shader.Uniform[] lodFactorUniforms;
+	private final Shader.Uniform instanceCountUniform;
+	private final Shader.Uniform lodCountUniform;
+	private final Shader.Uniform meshCountUniform;
+	private final Shader.Uniform impostorStartUniform;
+	private final Shader.Uniform impostorEndUniform;
+	private final Shader.Uniform impostorLevelUniform;
+
+	private final int matrixBuffer;
+	private final int sphereBuffer;
+	private final int lodCount;
+	private final int meshCount;
+	private final boolean impostors;
+	// The commands with an instance count of 0, uploaded before every cull
+	private final ByteBuffer commands;
+	private final Vector4f plane = new Vector4f();
+
+	// Buffer the spheres are read from, if not the ones uploaded, and where they start in it
+	private int sourceBuffer;
+	private long sourceSphereOffset;
+
+	// Time elapsed queries of the last two dispatches, read one frame late so they don't wait for the GPU
+	private final int[] queries = new int[2];
+	private long frames;
+	private long gpuTime;
+	private long measuredFrames;
+
+	/**
+	 * Returns true if the current context can cull and draw the given number of instances on the GPU
+	 * */
+	public static boolean isSupported(int instanceCount) {
+		final GLCapabilities caps = GL.getCapabilities();
+		return caps.OpenGL43 && (long)instanceCount * 4 <= glGetInteger(GL_MAX_TEXTURE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Uploads the matrices (16 floats each) and the bounding spheres (center and radius) of the given number of
+	 * instances, and creates a draw command for each of the given levels of detail of each mesh, and one for the
+	 * impostors if enabled
+	 * */
+	public GPUCuller(Shader shader, FloatBuffer matrices, float[] spheres, int instanceCount, int lodCount, boolean impostors,
+			Mesh... meshes) {
+
+		this.shader = shader;
+		this.instanceCount = instanceCount;
+		this.meshCount = meshes.length;
+		this.impostors = impostors;
+
+		int lods = Math.min(lodCount, Model.MAX_LODS);
+		for(final Mesh mesh : meshes) {
+			lods = Math.min(lods, mesh.getLodCount());
+		}
+		this.lodCount = Math.max(lods, 1);
+
+		planeUniforms = shader.getUniformArray("planes[%d]", 6);
+		cameraPositionUniform = shader.getUniform("cameraPosition");
+		lodFactorUniforms = shader.getUniformArray("lodFactors[%d]", Model.MAX_LODS);
+		instanceCountUniform = shader.getUniform("instanceCount");
+		lodCountUniform = shader.getUniform("lodCount");
+		meshCountUniform = shader.getUniform("meshCount");
+		impostorStartUniform = shader.getUniform("impostorStart");
+		impostorEndUniform = shader.getUniform("impostorEnd");
+		impostorLevelUniform = shader.getUniform("impostorLevel");
+
+		// The impostors have a region of the visible buffer after those of the levels
+		final int regions = this.lodCount + (impostors ? 1 : 0);
+
+		matrixBuffer = glGenBuffers();
+		sphereBuffer = glGenBuffers();
+		matrixTexture = glGenTextures();
+		upload(matrices, spheres);
+
+		visibleBuffer = glGenBuffers();
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, visibleBuffer);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, (long)Math.max(instanceCount, 1) * regions * Integer.BYTES, GL_DYNAMIC_COPY);
+
+		commands = memAlloc((this.lodCount * meshes.length + (impostors ? 1 : 0)) * COMMAND_SIZE);
+		for(int lod = 0;lod < this.lodCount;lod++) {
+			for(final Mesh mesh : meshes) {
+				final MeshArena.Allocation allocation = mesh.getAllocation();
+				commands.putInt(mesh.getLodIndexCount(lod));
+				commands.putInt(0);
+				commands.putInt((allocation != null ? allocation.getFirstIndex() : 0) + mesh.getLodFirstIndex(lod));
+				commands.putInt(allocation != null ? allocation.getBaseVertex() : 0);
+				// Each level reads the indices of its own region
+				commands.putInt(lod * instanceCount);
+			}
+		}
+		if(impostors) {
+			// The two triangles of the quad
+			commands.putInt(6).putInt(0).putInt(0).putInt(0).putInt(this.lodCount * instanceCount);
+		}
+		commands.flip();
+
+		commandBuffer = glGenBuffers();
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBuffer);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, commands, GL_DYNAMIC_COPY);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+		glGenQueries(queries);
+	}
+
+	/**
+	 * Uploads the instances and creates a draw command for each of the given levels of detail of each mesh, without
+	 * impostors
+	 * */
+	public GPUCuller(Shader shader, FloatBuffer matrices, float[] spheres, int instanceCount, int lodCount, Mesh... meshes) {
+		this(shader, matrices, spheres, instanceCount, lodCount, false, meshes);
+	}
+
+	/**
+	 * Uploads the instances and creates a draw command for each mesh, without levels of detail
+	 * */
+	public GPUCuller(Shader shader, FloatBuffer matrices, float[] spheres, int instanceCount, Mesh... meshes) {
+		this(shader, matrices, spheres, instanceCount, 1, false, meshes);
+	}
+
+	/**
+	 * Uploads the matrices and the bounding spheres of the instances again, after they have moved, and reads them
+	 * from the uploaded buffers again
+	 * */
+	public void upload(FloatBuffer matrices, float[] spheres) {
+
+		final FloatBuffer matrixData = matrices.duplicate();
+		matrixData.position(0).limit(instanceCount * 16);
+		uploadBuffer(matrixBuffer, matrixData);
+
+		final FloatBuffer sphereData = memAllocFloat(instanceCount * 4);
+		sphereData.put(spheres, 0, instanceCount * 4).flip();
+		uploadBuffer(sphereBuffer, sphereData);
+		memFree(sphereData);
+
+		sourceBuffer = 0;
+		setMatrixTexture(matrixBuffer, 0L);
+	}
+
+	/**
+	 * Reads the matrices and the bounding spheres of the next culls and draws from the given offsets of the given
+	 * buffer, in the same layout as the uploaded ones, or from the uploaded buffers if it is 0. The offsets must be
+	 * multiples of GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT, the matrix offset of GL_TEXTURE_BUFFER_OFFSET_ALIGNMENT
+	 * too, and the data must be written before each cull and kept until the draws
+	 * */
+	public void setInstanceSource(int buffer, long matrixOffset, long sphereOffset) {
+		sourceBuffer = buffer;
+		sourceSphereOffset = sphereOffset;
+		setMatrixTexture(buffer != 0 ? buffer : matrixBuffer, buffer != 0 ? matrixOffset : 0L);
+	}
+
+	/**
+	 * Culls the instances with the frustum of the given projection * view matrix, drawing all of them at full
+	 * resolution
+	 * */
+	public void cull(Matrix4fc viewProjection) {
+		cull(viewProjection, null, null);
+	}
+
+	/**
+	 * Culls the instances with the frustum of the given projection * view matrix, and picks the level of detail of the
+	 * visible ones with the given selector and camera position, if not null, as well as whether they are impostors. The
+	 * result is only written on the GPU, ready for the draws
+	 * */
+	public void cull(Matrix4fc viewProjection, Vector3fc cameraPosition, LodSelector lods) {
+
+		// The query of two frames ago has most likely finished by now
+		final int query = queries[(int)(frames & 1)];
+		if(frames >= 2 && glGetQueryObjecti(query, GL_QUERY_RESULT_AVAILABLE) == GL_TRUE) {
+			gpuTime += glGetQueryObjecti64(query, GL_QUERY_RESULT);
+			++measuredFrames;
+		}
+		++frames;
+
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBuffer);
+		glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, commands);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+		// The matrices are only read by the draws, through the matrix texture
+		if(sourceBuffer != 0) {
+			glBindBufferRange(GL_SHADER_STORAGE_BUFFER, SPHERES_BINDING, sourceBuffer, sourceSphereOffset, 
+					(long)Math.max(instanceCount, 1) * 4 * Float.BYTES);
+		} else {
+			glBindBufferBase(GL_SHADER_STORAGE_BUFFER, SPHERES_BINDING, sphereBuffer);
+		}
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, VISIBLE_BINDING, visibleBuffer);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, COMMANDS_BINDING, commandBuffer);
+
+		shader.use();
+		for(int i = 0;i < 6;i++) {
+			planeUniforms[i].set(viewProjection.frustumPlane(i, plane));
+		}
+		instanceCountUniform.set(instanceCount);
+		meshCountUniform.set(meshCount);
+		impostorLevelUniform.set(lodCount);
+
+		if(lods != null && cameraPosition != null) {
+			cameraPositionUniform.set(cameraPosition);
+			for(int i = 0;i < lodCount;i++) {
+				lodFactorUniforms[i].set(lods.getDistanceFactor(Math.min(i, lods.getLodCount() - 1)));
+			}
+			lodCountUniform.set(Math.min(lodCount, lods.getLodCount()));
+		} else {
+			lodCountUniform.set(1);
+		}
+
+		// Without impostors every visible instance is a mesh, and the impostor command stays empty
+		if(impostors && lods != null && cameraPosition != null) {
+			impostorStartUniform.set(Math.min(lods.getImpostorStart(), Float.MAX_VALUE));
+			impostorEndUniform.set(Math.min(lods.getImpostorEnd(), Float.MAX_VALUE));
+		} else {
+			impostorStartUniform.set(Float.MAX_VALUE);
+			impostorEndUniform.set(Float.MAX_VALUE);
+		}
+
+		glBeginQuery(GL_TIME_ELAPSED, query);
+		glDispatchCompute((instanceCount + WORK_GROUP_SIZE - 1) / WORK_GROUP_SIZE, 1, 1);
+		glEndQuery(GL_TIME_ELAPSED);
+
+		// The draws read the visible indices as vertex attributes and the instance counts as commands
+		glMemoryBarrier(GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT | GL_COMMAND_BARRIER_BIT);
+	}
+
+	/**
+	 * Draws the given level of detail of the given mesh with its command, with the vertex array of the mesh,
+	 * {@link #commandBuffer} bound to GL_DRAW_INDIRECT_BUFFER and {@link #matrixTexture} to the sampler of the matrices
+	 * */
+	public void draw(int mesh, int lod, int mode) {
+		glDrawElementsIndirect(mode, GL_UNSIGNED_INT, (long)(lod * meshCount + mesh) * COMMAND_SIZE);
+	}
+
+	/**
+	 * Draws the impostors with their command, with the vertex array of the {@link ImpostorAtlas},
+	 * {@link #commandBuffer} bound to GL_DRAW_INDIRECT_BUFFER and {@link #matrixTexture} to the sampler of the matrices
+	 * */
+	public void drawImpostors() {
+		glDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, (long)(lodCount * meshCount) * COMMAND_SIZE);
+	}
+
+	/**
+	 * Reads the number of visible instances of each level of detail in the last cull into counts, if not null,
+	 * followed by the number of impostors if counts is long enough, and returns the total of the levels. The
+	 * instances in the crossfade are counted both in their level and as impostors. It waits for the GPU to finish, so
+	 * it is only meant for debugging and statistics
+	 * */
+	public int readVisibleCounts(int[] counts) {
+
+		final int[] data = new int[(lodCount * meshCount + (impostors ? 1 : 0)) * COMMAND_SIZE / Integer.BYTES];
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBuffer);
+		glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, data);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+		int total = 0;
+		for(int lod = 0;lod < lodCount;lod++) {
+			// The instance count of the first mesh of the level
+			final int count = data[lod * meshCount * COMMAND_SIZE / Integer.BYTES + 1];
+			if(counts != null && lod < counts.length) {
+				counts[lod] = count;
+			}
+			total += count;
+		}
+
+		if(counts != null && lodCount < counts.length) {
+			counts[lodCount] = impostors ? data[lodCount * meshCount * COMMAND_SIZE / Integer.BYTES + 1] : 0;
+		}
+
+		return total;
+	}
+
+	public int getLodCount() {
+		return lodCount;
+	}
+
+	/**
+	 * Returns the average time of the dispatches, in milliseconds, as measured on the GPU
+	 * */
+	public double getAverageTime() {
+		return gpuTime / 1e6 / Math.max(measuredFrames, 1);
+	}
+
+	public void delete() {
+		glDeleteBuffers(matrixBuffer);
+		glDeleteBuffers(sphereBuffer);
+		glDeleteBuffers(visibleBuffer);
+		glDeleteBuffers(commandBuffer);
+		glDeleteTextures(matrixTexture);
+		glDeleteQueries(queries);
+		memFree(commands);
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Points the matrix texture to the matrices of the instances at the given offset of the given buffer. The texture
+	 * is only bound to the active unit meanwhile
+	 * */
+	private void setMatrixTexture(int buffer, long offset) {
+		glBindTexture(GL_TEXTURE_BUFFER, matrixTexture);
+		glTexBufferRange(GL_TEXTURE_BUFFER, GL_RGBA32F, buffer, offset, (long)Math.max(instanceCount, 1) * MATRIX_SIZE);
+		glBindTexture(GL_TEXTURE_BUFFER, 0);
+	}
+
+	private static void uploadBuffer(int buffer, FloatBuffer data) {
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, data, GL_STATIC_DRAW);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+	}
+
+}
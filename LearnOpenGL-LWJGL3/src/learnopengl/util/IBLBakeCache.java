@@ -0,0 +1,432 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Persistent cache of the maps baked for image based lighting.
+ *
+ * The environment cubemap, irradiance map, prefiltered map and BRDF look up table only depend on the source HDR
+ * image, the shaders that bake them and their sizes. Once baked, their texels are read back as half floats and
+ * stored in a binary file next to the HDR image, named after a hash of all of that. The next runs create the
+ * textures straight from that file, with one glTexImage2D call per face and mip level, instead of baking them again.
+ *
+ * Layout (little endian):
+ *
+ * header: magic, version, key, texture count
+ * per texture: target, internal format, format, width, height, level count, min filter, mag filter, wrap s, t and r,
+ * 				then the texels of each level and face, from the largest level to the smallest
+ * */
+public final class IBLBakeCache {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	private static final String EXTENSION = ".iblbake";
+
+	private static final int MAGIC = 0x4B424C49; // "ILBK"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int TEXTURE_HEADER_SIZE = 11 * Integer.BYTES;
+
+	private IBLBakeCache() {}
+
+	/**
+	 * Computes the key of the maps baked from the given HDR image. The parameters should describe everything
+	 * else that changes the result (as the sizes of the maps), and the dependencies are the files of the shaders used
+	 * */
+	public static long computeKey(String hdrPath, String parameters, String... dependencies) {
+
+		long key = hashString(parameters, VERSION);
+
+		key = hashFile(hdrPath, key);
+
+		for(final String dependency : dependencies) {
+			key = hashFile(dependency, key);
+		}
+
+		return key;
+	}
+
+	/**
+	 * Creates the textures stored in the cache of the given key, in the same order they were saved.
+	 * Returns null if there is no valid cache for that key.
+	 * */
+	public static int[] load(String hdrPath, long key) {
+
+		final List<Texture> textures = read(getCacheFile(hdrPath, key), key);
+
+		if(textures == null) {
+			return null;
+		}
+
+		int[] handles = new int[textures.size()];
+
+		// Rows of the small levels are not 4 bytes aligned
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+		for(int i = 0;i < handles.length;i++) {
+			handles[i] = upload(textures.get(i));
+		}
+
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+
+		return handles;
+	}
+
+	/**
+	 * Reads back the given textures and stores them in the cache of the given key.
+	 * The targets are either GL_TEXTURE_2D or GL_TEXTURE_CUBE_MAP, and the textures must use a 16 bits floating
+	 * point format, so they are stored without loss
+	 * */
+	public static void save(String hdrPath, long key, int[] targets, int[] textures) {
+
+		List<Texture> readBack = new ArrayList<>(textures.length);
+
+		glPixelStorei(GL_PACK_ALIGNMENT, 1);
+
+		try {
+
+			for(int i = 0;i < textures.length;i++) {
+				readBack.add(download(targets[i], textures[i]));
+			}
+
+			write(getCacheFile(hdrPath, key), key, readBack);
+
+		} catch(IllegalArgumentException e) {
+			logger.warning("Failed to read back the baked maps: " + e);
+		} finally {
+
+			glPixelStorei(GL_PACK_ALIGNMENT, 4);
+
+			for(final Texture texture : readBack) {
+				memFree(texture.texels);
+			}
+		}
+	}
+
+	// ========== Used by IBLBaker ===========
+
+	/**
+	 * A baked texture with the half float texels of all its levels and faces,
+	 * from the largest level to the smallest, with the faces of each level one after the other
+	 * */
+	static class Texture {
+
+		int target;
+		int internalFormat;
+		int format;
+		int width;
+		int height;
+		int levels;
+		int minFilter;
+		int magFilter;
+		int wrapS;
+		int wrapT;
+		int wrapR;
+		ByteBuffer texels;
+
+		int getFaceCount() {
+			return target == GL_TEXTURE_CUBE_MAP ? 6 : 1;
+		}
+
+		int getLevelWidth(int level) {
+			return Math.max(1, width >> level);
+		}
+
+		int getLevelHeight(int level) {
+			return Math.max(1, height >> level);
+		}
+
+		/**
+		 * Size in bytes of each face of the given level
+		 * */
+		int getFaceSize(int level) {
+			return getLevelWidth(level) * getLevelHeight(level) * getComponents(format) * 2;
+		}
+
+		int getOffset(int level, int face) {
+
+			int offset = 0;
+
+			for(int i = 0;i < level;i++) {
+				offset += getFaceSize(i) * getFaceCount();
+			}
+
+			return offset + face * getFaceSize(level);
+		}
+
+		long getSize() {
+			return getOffset(levels, 0);
+		}
+
+		ByteBuffer getFace(int level, int face) {
+			ByteBuffer buffer = texels.duplicate();
+			buffer.position(getOffset(level, face));
+			buffer.limit(buffer.position() + getFaceSize(level));
+			return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+	}
+
+	static File getCacheFile(String hdrPath, long key) {
+		return new File(hdrPath + '.' + Long.toHexString(key) + EXTENSION);
+	}
+
+	/**
+	 * Maps the given cache file. If the key is not 0, the cache must have been saved with that key.
+	 * Returns null if the file does not exist or is not valid
+	 * */
+	static List<Texture> read(File cache, long key) {
+
+		if(!cache.isFile()) {
+			return null;
+		}
+
+		try(FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION || (buffer.getLong() != key && key != 0)) {
+				logger.warning("Ignoring invalid IBL bake cache: " + cache);
+				return null;
+			}
+
+			final int count = buffer.getInt();
+
+			List<Texture> textures = new ArrayList<>(count);
+
+			for(int i = 0;i < count;i++) {
+
+				Texture texture = new Texture();
+
+				texture.target = buffer.getInt();
+				texture.internalFormat = buffer.getInt();
+				texture.format = buffer.getInt();
+				texture.width = buffer.getInt();
+				texture.height = buffer.getInt();
+				texture.levels = buffer.getInt();
+				texture.minFilter = buffer.getInt();
+				texture.magFilter = buffer.getInt();
+				texture.wrapS = buffer.getInt();
+				texture.wrapT = buffer.getInt();
+				texture.wrapR = buffer.getInt();
+
+				final long size = texture.getSize();
+
+				if(size > buffer.remaining()) {
+					throw new BufferUnderflowException();
+				}
+
+				texture.texels = buffer.slice();
+				texture.texels.limit((int)size);
+				buffer.position(buffer.position() + (int)size);
+
+				textures.add(texture);
+			}
+
+			return textures;
+
+		} catch(IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.warning("Failed to read IBL bake cache " + cache + ": " + e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Writes the given textures to a cache file
+	 * */
+	static void write(File cache, long key, List<Texture> textures) {
+
+		final Path tmp = new File(cache.getPath() + ".tmp").toPath();
+
+		ByteBuffer buffer = null;
+
+		try {
+
+			long size = HEADER_SIZE;
+
+			for(final Texture texture : textures) {
+				size += TEXTURE_HEADER_SIZE + texture.getSize();
+			}
+
+			if(size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Baked maps too big to be cached: " + size + " bytes");
+			}
+
+			buffer = memAlloc((int)size).order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(textures.size());
+
+			for(final Texture texture : textures) {
+				buffer.putInt(texture.target).putInt(texture.internalFormat).putInt(texture.format);
+				buffer.putInt(texture.width).putInt(texture.height).putInt(texture.levels);
+				buffer.putInt(texture.minFilter).putInt(texture.magFilter);
+				buffer.putInt(texture.wrapS).putInt(texture.wrapT).putInt(texture.wrapR);
+				buffer.put(texture.texels.duplicate());
+			}
+
+			buffer.flip();
+
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			Files.move(tmp, cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} catch(IOException | IllegalArgumentException e) {
+			logger.warning("Failed to write IBL bake cache " + cache + ": " + e);
+		} finally {
+			memFree(buffer);
+		}
+	}
+
+	static int getComponents(int format) {
+
+		switch(format) {
+
+		case GL_RED:
+			return 1;
+		case GL_RG:
+			return 2;
+		case GL_RGB:
+			return 3;
+		case GL_RGBA:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Unsupported format: " + format);
+		}
+	}
+
+	// ========== Utility functions ===========
+
+	private static long hashFile(String path, long seed) {
+
+		try(FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+			return XXH64(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), seed);
+		} catch(IOException e) {
+			// Missing files still change the key, so the cache is not reused when they appear
+			return hashString(path, ~seed);
+		}
+	}
+
+	private static long hashString(String str, long seed) {
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+			return XXH64(stack.UTF8(str, false), seed);
+		}
+	}
+
+	private static int upload(Texture texture) {
+
+		final int handle = glGenTextures();
+		final int target = texture.target;
+
+		GLState.bindTexture(target, handle);
+
+		for(int level = 0;level < texture.levels;level++) {
+			for(int face = 0;face < texture.getFaceCount();face++) {
+				glTexImage2D(getFaceTarget(target, face), level, texture.internalFormat, texture.getLevelWidth(level),
+						texture.getLevelHeight(level), 0, texture.format, GL_HALF_FLOAT, texture.getFace(level, face));
+			}
+		}
+
+		glTexParameteri(target, GL_TEXTURE_MAX_LEVEL, texture.levels - 1);
+		glTexParameteri(target, GL_TEXTURE_MIN_FILTER, texture.minFilter);
+		glTexParameteri(target, GL_TEXTURE_MAG_FILTER, texture.magFilter);
+		glTexParameteri(target, GL_TEXTURE_WRAP_S, texture.wrapS);
+		glTexParameteri(target, GL_TEXTURE_WRAP_T, texture.wrapT);
+		glTexParameteri(target, GL_TEXTURE_WRAP_R, texture.wrapR);
+
+		return handle;
+	}
+
+	private static Texture download(int target, int handle) {
+
+		GLState.bindTexture(target, handle);
+
+		final int faceTarget = getFaceTarget(target, 0);
+
+		Texture texture = new Texture();
+
+		texture.target = target;
+		texture.internalFormat = glGetTexLevelParameteri(faceTarget, 0, GL_TEXTURE_INTERNAL_FORMAT);
+		texture.format = getFormat(texture.internalFormat);
+		texture.width = glGetTexLevelParameteri(faceTarget, 0, GL_TEXTURE_WIDTH);
+		texture.height = glGetTexLevelParameteri(faceTarget, 0, GL_TEXTURE_HEIGHT);
+		texture.minFilter = glGetTexParameteri(target, GL_TEXTURE_MIN_FILTER);
+		texture.magFilter = glGetTexParameteri(target, GL_TEXTURE_MAG_FILTER);
+		texture.wrapS = glGetTexParameteri(target, GL_TEXTURE_WRAP_S);
+		texture.wrapT = glGetTexParameteri(target, GL_TEXTURE_WRAP_T);
+		texture.wrapR = glGetTexParameteri(target, GL_TEXTURE_WRAP_R);
+		texture.levels = getLevelCount(texture.minFilter, texture.width, texture.height);
+
+		texture.texels = memAlloc((int)texture.getSize());
+
+		for(int level = 0;level < texture.levels;level++) {
+			for(int face = 0;face < texture.getFaceCount();face++) {
+				glGetTexImage(getFaceTarget(target, face), level, texture.format, GL_HALF_FLOAT, texture.getFace(level, face));
+			}
+		}
+
+		return texture;
+	}
+
+	private static int getLevelCount(int minFilter, int width, int height) {
+
+		if(minFilter == GL_NEAREST || minFilter == GL_LINEAR) {
+			return 1;
+		}
+
+		// Mipmapped textures are expected to have their full mip chain
+		return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+	}
+
+	private static int getFormat(int internalFormat) {
+
+		switch(internalFormat) {
+
+		case GL_R16F:
+			return GL_RED;
+		case GL_RG16F:
+			return GL_RG;
+		case GL_RGB16F:
+			return GL_RGB;
+		case GL_RGBA16F:
+			return GL_RGBA;
+		default:
+			throw new IllegalArgumentException("Unsupported internal format: " + internalFormat);
+		}
+	}
+
+	private static int getFaceTarget(int target, int face) {
+		return target == GL_TEXTURE_CUBE_MAP ? GL_TEXTURE_CUBE_MAP_POSITIVE_X + face : target;
+	}
+
+}
@@ -0,0 +1,998 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Bakes the image based lighting maps of the p6_pbr samples on the CPU, without OpenGL.
+ *
+ * It produces the same maps as the shaders of IBLSpecular: the environment cubemap converted from an equirectangular
+ * HDR image, the irradiance map, the GGX prefiltered map and the BRDF look up table. The prefiltered map and the
+ * BRDF look up table are straight ports of prefilter.fs and brdf.fs. The irradiance is projected into 9 spherical
+ * harmonics coefficients instead of brute force convolution, which is what irradiance_convolution.fs does.
+ * All the stages run in parallel across all the cores.
+ *
+ * Usage: IBLBaker [hdr image] [--size environment size] [--shaders directory] [--compare cache file] [--verify] [--benchmark]
+ *
+ * By default, it bakes resources/textures/hdr/newport_loft.hdr and stores the maps in the {@link IBLBakeCache}, with
+ * the key IBLSpecular uses, and the environment and irradiance maps alone with the key IBLIrradiance uses, so the
+ * samples load them instead of baking them at startup.
+ * --compare reports the error against a cache baked by the samples on the GPU.
+ * --verify reports the error of the spherical harmonics irradiance against a port of irradiance_convolution.fs.
+ * --benchmark measures each stage for 512x512 and 1024x1024 environment cubemaps.
+ * */
+public final class IBLBaker {
+
+	// Sizes used by the IBL samples. The parameters of the cache key must match the ones they use
+	public static final int ENVIRONMENT_SIZE = 512;
+	public static final int IRRADIANCE_SIZE = 32;
+	public static final int PREFILTER_SIZE = 128;
+	public static final int PREFILTER_LEVELS = 5;
+	public static final int BRDF_SIZE = 512;
+	public static final int SAMPLE_COUNT = 1024;
+
+	private static final String DEFAULT_HDR = "resources/textures/hdr/newport_loft.hdr";
+	private static final String DEFAULT_SHADERS = "src/learnopengl/p6_pbr/ch03_1_ibl_specular/";
+	// IBLIrradiance has its own copy of the shaders, which are part of its key
+	private static final String IRRADIANCE_SHADERS = "src/learnopengl/p6_pbr/ch02_2_ibl_irradiance/";
+
+	private static final float PI = (float)Math.PI;
+
+	/**
+	 * A cubemap of RGB floats. Texels are stored as OpenGL expects them: face by face, from the first row (t = 0)
+	 * */
+	public static class Cubemap {
+
+		public final int size;
+		// [level][face]
+		public final float[][][] texels;
+
+		public Cubemap(int size, int levels) {
+
+			this.size = size;
+			texels = new float[levels][6][];
+
+			for(int level = 0;level < levels;level++) {
+				final int levelSize = getLevelSize(level);
+				for(int face = 0;face < 6;face++) {
+					texels[level][face] = new float[levelSize * levelSize * 3];
+				}
+			}
+		}
+
+		public int getLevelCount() {
+			return texels.length;
+		}
+
+		public int getLevelSize(int level) {
+			return Math.max(1, size >> level);
+		}
+
+		/**
+		 * Samples the given direction with bilinear filtering in the given level
+		 * */
+		public void sample(float x, float y, float z, int level, float[] color) {
+
+			final float ax = Math.abs(x);
+			final float ay = Math.abs(y);
+			final float az = Math.abs(z);
+
+			final int face;
+			final float sc;
+			final float tc;
+			final float ma;
+
+			if(ax >= ay && ax >= az) {
+				face = x > 0.0f ? 0 : 1;
+				sc = x > 0.0f ? -z : z;
+				tc = -y;
+				ma = ax;
+			} else if(ay >= az) {
+				face = y > 0.0f ? 2 : 3;
+				sc = x;
+				tc = y > 0.0f ? z : -z;
+				ma = ay;
+			} else {
+				face = z > 0.0f ? 4 : 5;
+				sc = z > 0.0f ? x : -x;
+				tc = -y;
+				ma = az;
+			}
+
+			final int levelSize = getLevelSize(level);
+			final float u = (sc / ma + 1.0f) * 0.5f * levelSize - 0.5f;
+			final float v = (tc / ma + 1.0f) * 0.5f * levelSize - 0.5f;
+
+			bilinear(texels[level][face], levelSize, levelSize, u, v, color);
+		}
+
+		/**
+		 * Samples the given direction with trilinear filtering, as textureLod does
+		 * */
+		public void sampleLod(float x, float y, float z, float lod, float[] color, float[] tmp) {
+
+			lod = Math.max(0.0f, Math.min(lod, getLevelCount() - 1));
+
+			final int level = (int)lod;
+			final float t = lod - level;
+
+			sample(x, y, z, level, color);
+
+			if(t > 0.0f) {
+				sample(x, y, z, level + 1, tmp);
+				for(int i = 0;i < 3;i++) {
+					color[i] += (tmp[i] - color[i]) * t;
+				}
+			}
+		}
+
+		/**
+		 * Computes all the levels from the first one, as glGenerateMipmap does
+		 * */
+		public void generateMipmaps() {
+
+			for(int level = 1;level < getLevelCount();level++) {
+
+				final int srcSize = getLevelSize(level - 1);
+				final int dstSize = getLevelSize(level);
+				final int currentLevel = level;
+
+				IntStream.range(0, 6 * dstSize).parallel().forEach(row -> {
+
+					final int face = row / dstSize;
+					final int y = row % dstSize;
+					final float[] src = texels[currentLevel - 1][face];
+					final float[] dst = texels[currentLevel][face];
+
+					for(int x = 0;x < dstSize;x++) {
+						for(int c = 0;c < 3;c++) {
+							final int x0 = Math.min(x * 2, srcSize - 1);
+							final int x1 = Math.min(x * 2 + 1, srcSize - 1);
+							final int y0 = Math.min(y * 2, srcSize - 1);
+							final int y1 = Math.min(y * 2 + 1, srcSize - 1);
+							dst[(y * dstSize + x) * 3 + c] = 0.25f * (src[(y0 * srcSize + x0) * 3 + c]
+									+ src[(y0 * srcSize + x1) * 3 + c]
+									+ src[(y1 * srcSize + x0) * 3 + c]
+									+ src[(y1 * srcSize + x1) * 3 + c]);
+						}
+					}
+				});
+			}
+		}
+
+	}
+
+	private interface TexelShader {
+		void shade(float x, float y, float z, float[] color);
+	}
+
+	private IBLBaker() {}
+
+	/**
+	 * Converts an equirectangular image, as returned by stbi_loadf with 3 channels, into a cubemap with its full mip
+	 * chain, as equirectangular_to_cubemap.fs does with the flipped HDR texture
+	 * */
+	public static Cubemap toCubemap(FloatBuffer image, int width, int height, int size) {
+
+		final int levels = 32 - Integer.numberOfLeadingZeros(size);
+
+		Cubemap cubemap = new Cubemap(size, levels);
+
+		renderFaces(cubemap, 0, (x, y, z, color) -> {
+
+			final float length = (float)Math.sqrt(x * x + y * y + z * z);
+			final float u = (float)Math.atan2(z, x) * 0.1591f + 0.5f;
+			final float v = (float)Math.asin(y / length) * 0.3183f + 0.5f;
+
+			// The texture is flipped when loaded, so v = 0 is the last row of the image
+			bilinear(image, width, height, u * width - 0.5f, (1.0f - v) * height - 0.5f, color);
+		});
+
+		cubemap.generateMipmaps();
+
+		return cubemap;
+	}
+
+	/**
+	 * Projects the radiance of the environment into 9 spherical harmonics coefficients (3 bands, RGB) and convolves
+	 * them with the clamped cosine lobe. The result is scaled by 1 / PI, so evaluating them gives the same values as
+	 * irradiance_convolution.fs stores in the irradiance map.
+	 * */
+	public static float[] computeIrradianceSH(Cubemap environment) {
+
+		final int size = environment.size;
+
+		// One partial sum per row, added afterwards so the result does not depend on the scheduling
+		final double[][] rows = new double[6 * size][];
+
+		IntStream.range(0, 6 * size).parallel().forEach(row -> {
+
+			final int face = row / size;
+			final int j = row % size;
+			final float[] texels = environment.texels[0][face];
+			final float[] direction = new float[3];
+			final float[] basis = new float[9];
+			final double[] sum = new double[27];
+
+			for(int i = 0;i < size;i++) {
+
+				final float s = 2.0f * (i + 0.5f) / size - 1.0f;
+				final float t = 2.0f * (j + 0.5f) / size - 1.0f;
+
+				// Solid angle of the texel
+				final float d = 1.0f + s * s + t * t;
+				final float weight = 4.0f / (size * size * d * (float)Math.sqrt(d));
+
+				getDirection(face, s, t, direction);
+				normalize(direction);
+				evaluateBasis(direction[0], direction[1], direction[2], basis);
+
+				final int index = (j * size + i) * 3;
+
+				for(int k = 0;k < 9;k++) {
+					for(int c = 0;c < 3;c++) {
+						sum[k * 3 + c] += texels[index + c] * basis[k] * weight;
+					}
+				}
+			}
+
+			rows[row] = sum;
+		});
+
+		// Cosine lobe convolution divided by PI: PI, 2PI/3 and PI/4 for each band
+		final float[] bands = {1.0f, 2.0f / 3.0f, 2.0f / 3.0f, 2.0f / 3.0f, 0.25f, 0.25f, 0.25f, 0.25f, 0.25f};
+
+		float[] sh = new float[27];
+
+		for(int k = 0;k < 27;k++) {
+
+			double sum = 0.0;
+
+			for(final double[] row : rows) {
+				sum += row[k];
+			}
+
+			sh[k] = (float)sum * bands[k / 3];
+		}
+
+		return sh;
+	}
+
+	/**
+	 * Evaluates the given spherical harmonics coefficients in each texel of a new cubemap
+	 * */
+	public static Cubemap renderIrradiance(float[] sh, int size) {
+
+		Cubemap irradiance = new Cubemap(size, 1);
+
+		renderFaces(irradiance, 0, (x, y, z, color) -> {
+
+			final float[] basis = new float[9];
+			final float length = (float)Math.sqrt(x * x + y * y + z * z);
+
+			evaluateBasis(x / length, y / length, z / length, basis);
+
+			for(int c = 0;c < 3;c++) {
+
+				float value = 0.0f;
+
+				for(int k = 0;k < 9;k++) {
+					value += sh[k * 3 + c] * basis[k];
+				}
+
+				color[c] = Math.max(value, 0.0f);
+			}
+		});
+
+		return irradiance;
+	}
+
+	/**
+	 * Port of irradiance_convolution.fs, used as reference for the spherical harmonics irradiance
+	 * */
+	public static Cubemap convolveIrradiance(Cubemap environment, int size) {
+
+		Cubemap irradiance = new Cubemap(size, 1);
+
+		final float sampleDelta = 0.025f;
+
+		renderFaces(irradiance, 0, (x, y, z, color) -> {
+
+			final float[] n = {x, y, z};
+			normalize(n);
+
+			// Tangent space calculation from origin point
+			final float[] right = cross(0.0f, 1.0f, 0.0f, n[0], n[1], n[2]);
+			final float[] up = cross(n[0], n[1], n[2], right[0], right[1], right[2]);
+
+			final float[] sample = new float[3];
+			float r = 0.0f, g = 0.0f, b = 0.0f;
+			int samples = 0;
+
+			for(float phi = 0.0f;phi < 2.0f * PI;phi += sampleDelta) {
+				for(float theta = 0.0f;theta < 0.5f * PI;theta += sampleDelta) {
+
+					final float sinTheta = (float)Math.sin(theta);
+					final float cosTheta = (float)Math.cos(theta);
+					final float tx = sinTheta * (float)Math.cos(phi);
+					final float ty = sinTheta * (float)Math.sin(phi);
+
+					environment.sample(tx * right[0] + ty * up[0] + cosTheta * n[0],
+							tx * right[1] + ty * up[1] + cosTheta * n[1],
+							tx * right[2] + ty * up[2] + cosTheta * n[2], 0, sample);
+
+					r += sample[0] * cosTheta * sinTheta;
+					g += sample[1] * cosTheta * sinTheta;
+					b += sample[2] * cosTheta * sinTheta;
+					samples++;
+				}
+			}
+
+			color[0] = PI * r / samples;
+			color[1] = PI * g / samples;
+			color[2] = PI * b / samples;
+		});
+
+		return irradiance;
+	}
+
+	/**
+	 * Port of prefilter.fs. Each level uses a roughness from 0 to 1
+	 * */
+	public static Cubemap prefilter(Cubemap environment, int size, int levels) {
+
+		Cubemap prefiltered = new Cubemap(size, levels);
+
+		final float resolution = environment.size;
+		final float saTexel = 4.0f * PI / (6.0f * resolution * resolution);
+
+		for(int level = 0;level < levels;level++) {
+
+			final float roughness = (float)level / (float)(levels - 1);
+
+			if(roughness == 0.0f) {
+				// All the samples are the normal itself
+				renderFaces(prefiltered, level, (x, y, z, color) -> environment.sample(x, y, z, 0, color));
+				continue;
+			}
+
+			// With V = R = N, the samples only depend on the roughness in tangent space, so they are computed once per level
+			final float[] samples = createGGXSamples(roughness);
+			final float[] lods = new float[SAMPLE_COUNT];
+
+			for(int i = 0;i < SAMPLE_COUNT;i++) {
+
+				// Sample from the environment's mip level based on roughness/pdf. NdotH = HdotV = H.z
+				final float nDotH = Math.max(samples[i * 3 + 2], 0.0f);
+				final float pdf = distributionGGX(nDotH, roughness) * nDotH / (4.0f * nDotH) + 0.0001f;
+
+				final float saSample = 1.0f / (SAMPLE_COUNT * pdf + 0.0001f);
+				lods[i] = 0.5f * log2(saSample / saTexel);
+			}
+
+			renderFaces(prefiltered, level, (x, y, z, color) -> {
+
+				final float[] n = {x, y, z};
+				normalize(n);
+
+				// From tangent-space H vector to world-space sample vector
+				final float[] tangent = Math.abs(n[2]) < 0.999f ? cross(0.0f, 0.0f, 1.0f, n[0], n[1], n[2]) : cross(1.0f, 0.0f, 0.0f, n[0], n[1], n[2]);
+				normalize(tangent);
+				final float[] bitangent = cross(n[0], n[1], n[2], tangent[0], tangent[1], tangent[2]);
+
+				final float[] sample = new float[3];
+				final float[] tmp = new float[3];
+
+				float r = 0.0f, g = 0.0f, b = 0.0f;
+				float totalWeight = 0.0f;
+
+				for(int i = 0;i < SAMPLE_COUNT;i++) {
+
+					final float hx = samples[i * 3];
+					final float hy = samples[i * 3 + 1];
+					final float hz = samples[i * 3 + 2];
+
+					// L = 2 * dot(V, H) * H - V, so dot(N, L) = 2 * H.z * H.z - 1
+					final float nDotL = Math.max(2.0f * hz * hz - 1.0f, 0.0f);
+
+					if(nDotL > 0.0f) {
+
+						final float wx = tangent[0] * hx + bitangent[0] * hy + n[0] * hz;
+						final float wy = tangent[1] * hx + bitangent[1] * hy + n[1] * hz;
+						final float wz = tangent[2] * hx + bitangent[2] * hy + n[2] * hz;
+
+						environment.sampleLod(2.0f * hz * wx - n[0], 2.0f * hz * wy - n[1], 2.0f * hz * wz - n[2],
+								lods[i], sample, tmp);
+
+						r += sample[0] * nDotL;
+						g += sample[1] * nDotL;
+						b += sample[2] * nDotL;
+						totalWeight += nDotL;
+					}
+				}
+
+				color[0] = r / totalWeight;
+				color[1] = g / totalWeight;
+				color[2] = b / totalWeight;
+			});
+		}
+
+		return prefiltered;
+	}
+
+	/**
+	 * Port of brdf.fs. Returns the scale and bias to F0 as RG pairs, with NdotV along x and roughness along y
+	 * */
+	public static float[] integrateBRDF(int size) {
+
+		final float[] lut = new float[size * size * 2];
+
+		IntStream.range(0, size).parallel().forEach(j -> {
+
+			final float roughness = (j + 0.5f) / size;
+			// N = (0, 0, 1), so the tangent space is the world space up to a rotation: (x, y) -> (y, -x)
+			final float[] samples = createGGXSamples(roughness);
+
+			for(int i = 0;i < size;i++) {
+
+				final float nDotV = (i + 0.5f) / size;
+				final float vx = (float)Math.sqrt(1.0f - nDotV * nDotV);
+				final float vz = nDotV;
+
+				float a = 0.0f;
+				float b = 0.0f;
+
+				for(int k = 0;k < SAMPLE_COUNT;k++) {
+
+					final float hx = samples[k * 3 + 1];
+					final float hz = samples[k * 3 + 2];
+
+					final float vDotH = Math.max(vx * hx + vz * hz, 0.0f);
+					final float nDotL = Math.max(2.0f * vDotH * hz - vz, 0.0f);
+					final float nDotH = Math.max(hz, 0.0f);
+
+					if(nDotL > 0.0f) {
+
+						final float g = geometrySchlickGGX(nDotV, roughness) * geometrySchlickGGX(nDotL, roughness);
+						final float gVis = (g * vDotH) / (nDotH * nDotV);
+						final float fc = pow5(1.0f - vDotH);
+
+						a += (1.0f - fc) * gVis;
+						b += fc * gVis;
+					}
+				}
+
+				lut[(j * size + i) * 2] = a / SAMPLE_COUNT;
+				lut[(j * size + i) * 2 + 1] = b / SAMPLE_COUNT;
+			}
+		});
+
+		return lut;
+	}
+
+	public static void main(String[] args) {
+
+		String hdrPath = DEFAULT_HDR;
+		String shaders = DEFAULT_SHADERS;
+		String compare = null;
+		int size = ENVIRONMENT_SIZE;
+		boolean verify = false;
+		boolean benchmark = false;
+
+		for(int i = 0;i < args.length;i++) {
+
+			switch(args[i]) {
+
+			case "--size":
+				size = Integer.parseInt(args[++i]);
+				break;
+			case "--shaders":
+				shaders = args[++i].endsWith("/") ? args[i] : args[i] + "/";
+				break;
+			case "--compare":
+				compare = args[++i];
+				break;
+			case "--verify":
+				verify = true;
+				break;
+			case "--benchmark":
+				benchmark = true;
+				break;
+			default:
+				hdrPath = args[i];
+			}
+		}
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			IntBuffer width = stack.mallocInt(1);
+			IntBuffer height = stack.mallocInt(1);
+			IntBuffer channels = stack.mallocInt(1);
+
+			final FloatBuffer image = stbi_loadf(hdrPath, width, height, channels, 3);
+
+			if(image == null) {
+				System.err.println("Failed to load " + hdrPath + ": " + stbi_failure_reason());
+				return;
+			}
+
+			System.out.println("Using " + Runtime.getRuntime().availableProcessors() + " threads");
+
+			if(benchmark) {
+				benchmark(image, width.get(0), height.get(0));
+			} else {
+				bake(hdrPath, shaders, compare, verify, image, width.get(0), height.get(0), size);
+			}
+
+			stbi_image_free(image);
+		}
+	}
+
+	// ========== Utility functions ===========
+
+	private static void bake(String hdrPath, String shaders, String compare, boolean verify,
+			FloatBuffer image, int width, int height, int size) {
+
+		long start = System.nanoTime();
+
+		final Cubemap environment = toCubemap(image, width, height, size);
+		final Cubemap irradiance = renderIrradiance(computeIrradianceSH(environment), IRRADIANCE_SIZE);
+		final Cubemap prefiltered = prefilter(environment, PREFILTER_SIZE, PREFILTER_LEVELS);
+		final float[] brdf = integrateBRDF(BRDF_SIZE);
+
+		System.out.printf("Baked in %.2f s%n", (System.nanoTime() - start) / 1e9);
+
+		if(verify) {
+			final Cubemap reference = convolveIrradiance(environment, IRRADIANCE_SIZE);
+			System.out.printf("Irradiance, spherical harmonics vs convolution: %s%n", compare(irradiance, reference));
+		}
+
+		List<IBLBakeCache.Texture> textures = new ArrayList<>();
+		textures.add(toTexture(environment, GL_LINEAR_MIPMAP_LINEAR));
+		textures.add(toTexture(irradiance, GL_LINEAR));
+		textures.add(toTexture(prefiltered, GL_LINEAR_MIPMAP_LINEAR));
+		textures.add(toTexture(brdf, BRDF_SIZE));
+
+		if(compare != null) {
+
+			final List<IBLBakeCache.Texture> gpu = IBLBakeCache.read(new File(compare), 0L);
+
+			if(gpu == null || gpu.size() != textures.size()) {
+				System.err.println("Cannot compare with " + compare);
+			} else {
+				final String[] names = {"Environment", "Irradiance", "Prefilter", "BRDF"};
+				for(int i = 0;i < names.length;i++) {
+					System.out.printf("%s, CPU vs GPU: %s%n", names[i], compare(textures.get(i), gpu.get(i)));
+				}
+			}
+		}
+
+		if(size == ENVIRONMENT_SIZE) {
+
+			final long key = IBLBakeCache.computeKey(hdrPath,
+					"environment=" + ENVIRONMENT_SIZE + ",irradiance=" + IRRADIANCE_SIZE
+					+ ",prefilter=" + PREFILTER_SIZE + "x" + PREFILTER_LEVELS + ",brdf=" + BRDF_SIZE,
+					shaders+"cubemap.vs", shaders+"equirectangular_to_cubemap.fs", shaders+"irradiance_convolution.fs",
+					shaders+"prefilter.fs", shaders+"brdf.vs", shaders+"brdf.fs");
+
+			final File cache = IBLBakeCache.getCacheFile(hdrPath, key);
+
+			IBLBakeCache.write(cache, key, textures);
+
+			System.out.println("Written " + cache);
+
+			final long irradianceKey = IBLBakeCache.computeKey(hdrPath,
+					"environment=" + ENVIRONMENT_SIZE + ",irradiance=" + IRRADIANCE_SIZE,
+					IRRADIANCE_SHADERS+"cubemap.vs", IRRADIANCE_SHADERS+"equirectangular_to_cubemap.fs",
+					IRRADIANCE_SHADERS+"irradiance_convolution.fs");
+
+			final File irradianceCache = IBLBakeCache.getCacheFile(hdrPath, irradianceKey);
+
+			IBLBakeCache.write(irradianceCache, irradianceKey, textures.subList(0, 2));
+
+			System.out.println("Written " + irradianceCache);
+
+		} else {
+			System.out.println("Not cached, the samples use " + ENVIRONMENT_SIZE + "x" + ENVIRONMENT_SIZE + " environment maps");
+		}
+
+		for(final IBLBakeCache.Texture texture : textures) {
+			memFree(texture.texels);
+		}
+	}
+
+	private static void benchmark(FloatBuffer image, int width, int height) {
+
+		// Warm up the JIT first
+		integrateBRDF(64);
+		prefilter(toCubemap(image, width, height, 64), 16, PREFILTER_LEVELS);
+
+		long start = System.nanoTime();
+		integrateBRDF(BRDF_SIZE);
+		report("BRDF LUT " + BRDF_SIZE + "x" + BRDF_SIZE, start, (long)BRDF_SIZE * BRDF_SIZE);
+
+		for(final int size : new int[] {512, 1024}) {
+
+			start = System.nanoTime();
+			final Cubemap environment = toCubemap(image, width, height, size);
+			report("Environment " + size + "x" + size, start, 6L * size * size);
+
+			start = System.nanoTime();
+			final float[] sh = computeIrradianceSH(environment);
+			report("SH projection " + size + "x" + size, start, 6L * size * size);
+
+			start = System.nanoTime();
+			renderIrradiance(sh, IRRADIANCE_SIZE);
+			report("Irradiance " + IRRADIANCE_SIZE + "x" + IRRADIANCE_SIZE, start, 6L * IRRADIANCE_SIZE * IRRADIANCE_SIZE);
+
+			start = System.nanoTime();
+			prefilter(environment, PREFILTER_SIZE, PREFILTER_LEVELS);
+			long texels = 0;
+			for(int level = 0;level < PREFILTER_LEVELS;level++) {
+				texels += 6L * (PREFILTER_SIZE >> level) * (PREFILTER_SIZE >> level);
+			}
+			report("Prefilter " + PREFILTER_SIZE + "x" + PREFILTER_SIZE + "x" + PREFILTER_LEVELS + " from " + size, start, texels);
+		}
+	}
+
+	private static void report(String stage, long start, long texels) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-40s %8.3f s %10.2f Mtexels/s%n", stage, seconds, texels / seconds / 1e6);
+	}
+
+	private static void renderFaces(Cubemap cubemap, int level, TexelShader shader) {
+
+		final int size = cubemap.getLevelSize(level);
+
+		IntStream.range(0, 6 * size).parallel().forEach(row -> {
+
+			final int face = row / size;
+			final int j = row % size;
+			final float[] texels = cubemap.texels[level][face];
+			final float[] direction = new float[3];
+			final float[] color = new float[3];
+
+			for(int i = 0;i < size;i++) {
+
+				getDirection(face, 2.0f * (i + 0.5f) / size - 1.0f, 2.0f * (j + 0.5f) / size - 1.0f, direction);
+
+				shader.shade(direction[0], direction[1], direction[2], color);
+
+				final int index = (j * size + i) * 3;
+				texels[index] = color[0];
+				texels[index + 1] = color[1];
+				texels[index + 2] = color[2];
+			}
+		});
+	}
+
+	/**
+	 * Direction of the texel at the given face coordinates, in [-1, 1], following the OpenGL cubemap conventions
+	 * */
+	private static void getDirection(int face, float sc, float tc, float[] direction) {
+
+		switch(face) {
+
+		case 0: // +X
+			direction[0] = 1.0f; direction[1] = -tc; direction[2] = -sc;
+			break;
+		case 1: // -X
+			direction[0] = -1.0f; direction[1] = -tc; direction[2] = sc;
+			break;
+		case 2: // +Y
+			direction[0] = sc; direction[1] = 1.0f; direction[2] = tc;
+			break;
+		case 3: // -Y
+			direction[0] = sc; direction[1] = -1.0f; direction[2] = -tc;
+			break;
+		case 4: // +Z
+			direction[0] = sc; direction[1] = -tc; direction[2] = 1.0f;
+			break;
+		default: // -Z
+			direction[0] = -sc; direction[1] = -tc; direction[2] = -1.0f;
+		}
+	}
+
+	private static void bilinear(float[] texels, int width, int height, float u, float v, float[] color) {
+
+		final int x0 = clamp((int)Math.floor(u), width);
+		final int y0 = clamp((int)Math.floor(v), height);
+		final int x1 = clamp((int)Math.floor(u) + 1, width);
+		final int y1 = clamp((int)Math.floor(v) + 1, height);
+		final float fx = u - (float)Math.floor(u);
+		final float fy = v - (float)Math.floor(v);
+
+		for(int c = 0;c < 3;c++) {
+			final float top = lerp(texels[(y0 * width + x0) * 3 + c], texels[(y0 * width + x1) * 3 + c], fx);
+			final float bottom = lerp(texels[(y1 * width + x0) * 3 + c], texels[(y1 * width + x1) * 3 + c], fx);
+			color[c] = lerp(top, bottom, fy);
+		}
+	}
+
+	private static void bilinear(FloatBuffer texels, int width, int height, float u, float v, float[] color) {
+
+		final int x0 = clamp((int)Math.floor(u), width);
+		final int y0 = clamp((int)Math.floor(v), height);
+		final int x1 = clamp((int)Math.floor(u) + 1, width);
+		final int y1 = clamp((int)Math.floor(v) + 1, height);
+		final float fx = u - (float)Math.floor(u);
+		final float fy = v - (float)Math.floor(v);
+
+		for(int c = 0;c < 3;c++) {
+			final float top = lerp(texels.get((y0 * width + x0) * 3 + c), texels.get((y0 * width + x1) * 3 + c), fx);
+			final float bottom = lerp(texels.get((y1 * width + x0) * 3 + c), texels.get((y1 * width + x1) * 3 + c), fx);
+			color[c] = lerp(top, bottom, fy);
+		}
+	}
+
+	private static int clamp(int value, int size) {
+		return Math.max(0, Math.min(value, size - 1));
+	}
+
+	private static float lerp(float a, float b, float t) {
+		return a + (b - a) * t;
+	}
+
+	private static void evaluateBasis(float x, float y, float z, float[] basis) {
+		basis[0] = 0.282095f;
+		basis[1] = 0.488603f * y;
+		basis[2] = 0.488603f * z;
+		basis[3] = 0.488603f * x;
+		basis[4] = 1.092548f * x * y;
+		basis[5] = 1.092548f * y * z;
+		basis[6] = 0.315392f * (3.0f * z * z - 1.0f);
+		basis[7] = 1.092548f * x * z;
+		basis[8] = 0.546274f * (x * x - y * y);
+	}
+
+	/**
+	 * Halfway vectors importance sampled for the given roughness around (0, 0, 1), using the Hammersley sequence
+	 * */
+	private static float[] createGGXSamples(float roughness) {
+
+		final float a = roughness * roughness;
+
+		float[] samples = new float[SAMPLE_COUNT * 3];
+
+		for(int i = 0;i < SAMPLE_COUNT;i++) {
+
+			final float xi0 = (float)i / (float)SAMPLE_COUNT;
+			// Van der Corpus radical inverse
+			final float xi1 = (float)((Integer.reverse(i) & 0xFFFFFFFFL) * 2.3283064365386963e-10);
+
+			final float phi = 2.0f * PI * xi0;
+			final float cosTheta = (float)Math.sqrt((1.0f - xi1) / (1.0f + (a * a - 1.0f) * xi1));
+			final float sinTheta = (float)Math.sqrt(1.0f - cosTheta * cosTheta);
+
+			// From spherical coordinates to cartesian coordinates - halfway vector
+			samples[i * 3] = (float)Math.cos(phi) * sinTheta;
+			samples[i * 3 + 1] = (float)Math.sin(phi) * sinTheta;
+			samples[i * 3 + 2] = cosTheta;
+		}
+
+		return samples;
+	}
+
+	private static float distributionGGX(float nDotH, float roughness) {
+		final float a = roughness * roughness;
+		final float a2 = a * a;
+		final float denom = nDotH * nDotH * (a2 - 1.0f) + 1.0f;
+		return a2 / (PI * denom * denom);
+	}
+
+	private static float geometrySchlickGGX(float nDotV, float roughness) {
+		// Note that we use a different k for IBL
+		final float k = (roughness * roughness) / 2.0f;
+		return nDotV / (nDotV * (1.0f - k) + k);
+	}
+
+	private static float pow5(float value) {
+		final float square = value * value;
+		return square * square * value;
+	}
+
+	private static float log2(float value) {
+		return (float)(Math.log(value) / Math.log(2.0));
+	}
+
+	private static float dot(float[] a, float[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	private static float[] cross(float ax, float ay, float az, float bx, float by, float bz) {
+		return new float[] {ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx};
+	}
+
+	private static void normalize(float[] v) {
+		final float length = (float)Math.sqrt(dot(v, v));
+		if(length > 0.0f) {
+			v[0] /= length;
+			v[1] /= length;
+			v[2] /= length;
+		}
+	}
+
+	private static IBLBakeCache.Texture toTexture(Cubemap cubemap, int minFilter) {
+
+		IBLBakeCache.Texture texture = new IBLBakeCache.Texture();
+
+		texture.target = GL_TEXTURE_CUBE_MAP;
+		texture.internalFormat = GL_RGB16F;
+		texture.format = GL_RGB;
+		texture.width = cubemap.size;
+		texture.height = cubemap.size;
+		texture.levels = cubemap.getLevelCount();
+		texture.minFilter = minFilter;
+		texture.magFilter = GL_LINEAR;
+		texture.wrapS = GL_CLAMP_TO_EDGE;
+		texture.wrapT = GL_CLAMP_TO_EDGE;
+		texture.wrapR = GL_CLAMP_TO_EDGE;
+		texture.texels = memAlloc((int)texture.getSize());
+
+		for(int level = 0;level < texture.levels;level++) {
+			for(int face = 0;face < 6;face++) {
+				putHalfFloats(texture.getFace(level, face), cubemap.texels[level][face]);
+			}
+		}
+
+		return texture;
+	}
+
+	private static IBLBakeCache.Texture toTexture(float[] lut, int size) {
+
+		IBLBakeCache.Texture texture = new IBLBakeCache.Texture();
+
+		texture.target = GL_TEXTURE_2D;
+		texture.internalFormat = GL_RG16F;
+		texture.format = GL_RG;
+		texture.width = size;
+		texture.height = size;
+		texture.levels = 1;
+		texture.minFilter = GL_LINEAR;
+		texture.magFilter = GL_LINEAR;
+		texture.wrapS = GL_CLAMP_TO_EDGE;
+		texture.wrapT = GL_CLAMP_TO_EDGE;
+		texture.wrapR = GL_REPEAT;
+		texture.texels = memAlloc((int)texture.getSize());
+
+		putHalfFloats(texture.getFace(0, 0), lut);
+
+		return texture;
+	}
+
+	private static void putHalfFloats(ByteBuffer buffer, float[] values) {
+		for(int i = 0;i < values.length;i++) {
+			buffer.putShort(i * 2, toHalfFloat(values[i]));
+		}
+	}
+
+	/**
+	 * Converts to IEEE 754 half precision, rounding to nearest
+	 * */
+	static short toHalfFloat(float value) {
+
+		final int bits = Float.floatToIntBits(value);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+		final int mantissa = bits & 0x7FFFFF;
+
+		if(((bits >>> 23) & 0xFF) == 0xFF) {
+			// Infinity or NaN
+			return (short)(sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+
+		if(exponent >= 0x1F) {
+			// Too big, infinity
+			return (short)(sign | 0x7C00);
+		}
+
+		if(exponent <= 0) {
+
+			if(exponent < -10) {
+				return (short)sign;
+			}
+
+			// Denormalized
+			final int m = mantissa | 0x800000;
+			final int shift = 14 - exponent;
+			return (short)(sign | ((m + (1 << (shift - 1))) >> shift));
+		}
+
+		// Rounding may carry into the exponent, which is still correct
+		return (short)(sign | ((exponent << 10) | (mantissa >> 13)) + ((mantissa >> 12) & 1));
+	}
+
+	static float fromHalfFloat(short half) {
+
+		final int sign = (half & 0x8000) << 16;
+		final int exponent = (half >>> 10) & 0x1F;
+		final int mantissa = half & 0x3FF;
+
+		if(exponent == 0) {
+			// Zero or denormalized
+			return (sign != 0 ? -1.0f : 1.0f) * mantissa * (float)Math.pow(2.0, -24);
+		}
+
+		if(exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Relative RMS error of each face. irradiance_convolution.fs is not reliable around +Y and -Y,
+	 * where its tangent frame degenerates, so the faces are reported separately
+	 * */
+	private static String compare(Cubemap cubemap, Cubemap reference) {
+
+		final String[] faces = {"+X", "-X", "+Y", "-Y", "+Z", "-Z"};
+
+		StringBuilder result = new StringBuilder("relative RMS error");
+
+		for(int face = 0;face < 6;face++) {
+
+			final float[] a = cubemap.texels[0][face];
+			final float[] b = reference.texels[0][face];
+
+			double error = 0.0;
+			double energy = 0.0;
+
+			for(int i = 0;i < a.length;i++) {
+				error += (a[i] - b[i]) * (a[i] - b[i]);
+				energy += (double)b[i] * b[i];
+			}
+
+			result.append(String.format(" %s %.4f", faces[face], Math.sqrt(error / Math.max(energy, 1e-12))));
+		}
+
+		return result.toString();
+	}
+
+	private static String compare(IBLBakeCache.Texture texture, IBLBakeCache.Texture reference) {
+
+		if(texture.width != reference.width || texture.format != reference.format || texture.target != reference.target) {
+			return "different layout";
+		}
+
+		double error = 0.0;
+		double energy = 0.0;
+		double maxError = 0.0;
+
+		// Only the levels both have
+		final int levels = Math.min(texture.levels, reference.levels);
+
+		for(int level = 0;level < levels;level++) {
+			for(int face = 0;face < texture.getFaceCount();face++) {
+
+				final ByteBuffer a = texture.getFace(level, face);
+				final ByteBuffer b = reference.getFace(level, face);
+
+				for(int i = 0;i < a.limit();i += 2) {
+					final double x = fromHalfFloat(a.getShort(i));
+					final double y = fromHalfFloat(b.getShort(i));
+					error += (x - y) * (x - y);
+					energy += y * y;
+					maxError = Math.max(maxError, Math.abs(x - y) / Math.max(Math.abs(y), 1e-3));
+				}
+			}
+		}
+
+		return String.format("relative RMS error %.4f, max relative error %.4f", Math.sqrt(error / Math.max(energy, 1e-12)), maxError);
+	}
+
+}
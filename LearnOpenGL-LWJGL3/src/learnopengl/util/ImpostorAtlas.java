@@ -0,0 +1,243 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.IntBuffer;
+import java.util.logging.Logger;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Pre-rendered views of a model, to draw distant instances of it as a single quad each (impostors).
+ *
+ * The model is rendered from framesPerSide * framesPerSide directions around it into the frames of an atlas. The
+ * directions are the centers of the cells of an octahedral map: the sphere of directions is projected onto an
+ * octahedron, which is unfolded into a square, so the frames cover every direction evenly. Each frame is an
+ * orthographic view of the bounding sphere of the model, whose albedo goes to layer {@link #ALBEDO_LAYER} of a
+ * texture array, with the coverage in alpha, and whose model space normals go to layer {@link #NORMAL_LAYER}.
+ *
+ * To draw an instance, the shader finds the direction of the camera in the model space of the instance, picks the
+ * frame with the closest direction, and draws a quad facing that direction with the size of the bounding sphere.
+ * The shaders must encode directions as {@link #octEncode(Vector3fc, Vector2f)} and build the basis of a frame as
+ * {@link #frameUp(Vector3fc, Vector3f)}. The bake shader writes the albedo to its first output and the normal,
+ * scaled to [0, 1], to the second.
+ * */
+public class ImpostorAtlas {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	public static final int ALBEDO_LAYER = 0;
+	public static final int NORMAL_LAYER = 1;
+
+	// The smallest mip level keeps frames of this size, so they don't blend with their neighbours
+	private static final int MIN_FRAME_SIZE = 8;
+
+	/** Texture array with the albedo and normal atlases */
+	public final int texture;
+	/** Vertex array of the quad, with its corners in [-1, 1] at location 0 */
+	public final int vao;
+	public final int framesPerSide;
+	public final int frameSize;
+	/** Bounding sphere of the model, in model space */
+	public final Vector3f center = new Vector3f();
+	public final float radius;
+
+	private final int vbo;
+	private final int ebo;
+
+	/**
+	 * Renders framesPerSide * framesPerSide views of the model, of frameSize * frameSize pixels each, with the given
+	 * bake shader
+	 * */
+	public ImpostorAtlas(Model model, Shader bakeShader, int framesPerSide, int frameSize) {
+
+		this.framesPerSide = framesPerSide;
+		this.frameSize = frameSize;
+
+		model.aabbMin.add(model.aabbMax, center).mul(0.5f);
+		radius = center.distance(model.aabbMax);
+
+		final int size = framesPerSide * frameSize;
+
+		texture = glGenTextures();
+		GLState.bindTexture(GL_TEXTURE_2D_ARRAY, texture);
+		glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, size, size, 2, 0, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL,
+				Math.max(0, Integer.numberOfTrailingZeros(Integer.highestOneBit(frameSize / MIN_FRAME_SIZE))));
+
+		final long start = System.nanoTime();
+		bake(model, bakeShader, size);
+		logger.info(String.format("Baked %d impostor frames of %dx%d in %.1f ms", framesPerSide * framesPerSide, frameSize,
+				frameSize, (System.nanoTime() - start) / 1e6));
+
+		GLState.bindTexture(GL_TEXTURE_2D_ARRAY, texture);
+		glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+		GLState.bindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+		// Quad with its corners in [-1, 1], scaled by the radius in the shader
+		vao = glGenVertexArrays();
+		vbo = glGenBuffers();
+		ebo = glGenBuffers();
+
+		GLState.bindVertexArray(vao);
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glBufferData(GL_ARRAY_BUFFER, new float[] { -1.0f, -1.0f, 1.0f, -1.0f, 1.0f, 1.0f, -1.0f, 1.0f }, GL_STATIC_DRAW);
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 2, GL_FLOAT, false, 2 * Float.BYTES, 0);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, new int[] { 0, 1, 2, 0, 2, 3 }, GL_STATIC_DRAW);
+		GLState.bindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Binds the atlas to the given texture unit and sets the uniforms impostorAtlas, impostorFrames, impostorCenter
+	 * and impostorRadius of the given shader
+	 * */
+	public void bind(Shader shader, int unit) {
+		GLState.bindTexture(unit, GL_TEXTURE_2D_ARRAY, texture);
+		shader.getUniform("impostorAtlas").set(unit);
+		shader.getUniform("impostorFrames").set(framesPerSide);
+		shader.getUniform("impostorCenter").set(center);
+		shader.getUniform("impostorRadius").set(radius);
+	}
+
+	/**
+	 * Draws the given number of instances of the quad, with the vertex array bound and its instanced attributes set
+	 * */
+	public void drawInstanced(int instanceCount) {
+		glDrawElementsInstanced(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0L, instanceCount);
+	}
+
+	public void delete() {
+		GLState.deleteTexture(texture);
+		GLState.deleteVertexArray(vao);
+		glDeleteBuffers(vbo);
+		glDeleteBuffers(ebo);
+	}
+
+	/**
+	 * Maps a direction to the octahedral square [0, 1]^2, with +Y at the center and -Y at the corners
+	 * */
+	public static Vector2f octEncode(Vector3fc direction, Vector2f dest) {
+
+		final float sum = Math.abs(direction.x()) + Math.abs(direction.y()) + Math.abs(direction.z());
+		float x = direction.x() / sum;
+		float z = direction.z() / sum;
+
+		if(direction.y() < 0.0f) {
+			final float foldedX = (1.0f - Math.abs(z)) * (x >= 0.0f ? 1.0f : -1.0f);
+			z = (1.0f - Math.abs(x)) * (z >= 0.0f ? 1.0f : -1.0f);
+			x = foldedX;
+		}
+
+		return dest.set(x * 0.5f + 0.5f, z * 0.5f + 0.5f);
+	}
+
+	/**
+	 * Maps a point of the octahedral square back to a unit direction
+	 * */
+	public static Vector3f octDecode(float u, float v, Vector3f dest) {
+
+		float x = u * 2.0f - 1.0f;
+		float z = v * 2.0f - 1.0f;
+		final float y = 1.0f - Math.abs(x) - Math.abs(z);
+
+		if(y < 0.0f) {
+			final float foldedX = (1.0f - Math.abs(z)) * (x >= 0.0f ? 1.0f : -1.0f);
+			z = (1.0f - Math.abs(x)) * (z >= 0.0f ? 1.0f : -1.0f);
+			x = foldedX;
+		}
+
+		return dest.set(x, y, z).normalize();
+	}
+
+	/**
+	 * Returns the up vector of the frame that looks at the model from the given unit direction: +Y, or +Z when the
+	 * direction is close to Y
+	 * */
+	public static Vector3f frameUp(Vector3fc direction, Vector3f dest) {
+		return Math.abs(direction.y()) > 0.999f ? dest.set(0.0f, 0.0f, 1.0f) : dest.set(0.0f, 1.0f, 0.0f);
+	}
+
+	// ========== Utility functions ===========
+
+	private void bake(Model model, Shader bakeShader, int size) {
+
+		// Textures are decoded in the background, and the frames need the real ones
+		TextureLoader.finish();
+
+		final int fbo = glGenFramebuffers();
+		final int depth = glGenRenderbuffers();
+
+		GLState.bindFramebuffer(GL_FRAMEBUFFER, fbo);
+		glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, texture, 0, ALBEDO_LAYER);
+		glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, texture, 0, NORMAL_LAYER);
+		glBindRenderbuffer(GL_RENDERBUFFER, depth);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, size, size);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depth);
+		glDrawBuffers(new int[] { GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1 });
+
+		if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+			logger.severe("Impostor framebuffer not complete!");
+		}
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			final IntBuffer viewport = stack.mallocInt(4);
+			glGetIntegerv(GL_VIEWPORT, viewport);
+
+			// The frames don't overlap, so one clear is enough for all of them
+			GLState.viewport(0, 0, size, size);
+			glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+			final Matrix4f projection = new Matrix4f().setOrtho(-radius, radius, -radius, radius, 0.0f, 2.0f * radius);
+			final Matrix4f view = new Matrix4f();
+			final Matrix4f modelMatrix = new Matrix4f();
+			final Vector3f direction = new Vector3f();
+			final Vector3f eye = new Vector3f();
+			final Vector3f up = new Vector3f();
+
+			bakeShader.use();
+			bakeShader.setMat4("projection", projection);
+
+			for(int y = 0;y < framesPerSide;y++) {
+				for(int x = 0;x < framesPerSide;x++) {
+
+					octDecode((x + 0.5f) / framesPerSide, (y + 0.5f) / framesPerSide, direction);
+
+					// The camera is one radius away from the center, so the sphere fits between the near and far planes
+					direction.mul(radius, eye).add(center);
+					view.setLookAt(eye, center, frameUp(direction, up));
+					bakeShader.setMat4("view", view);
+					bakeShader.setMat4("model", modelMatrix);
+
+					GLState.viewport(x * frameSize, y * frameSize, frameSize, frameSize);
+					model.draw(bakeShader);
+				}
+			}
+
+			GLState.viewport(viewport.get(0), viewport.get(1), viewport.get(2), viewport.get(3));
+		}
+
+		GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
+		GLState.deleteFramebuffer(fbo);
+		glDeleteRenderbuffers(depth);
+	}
+
+}
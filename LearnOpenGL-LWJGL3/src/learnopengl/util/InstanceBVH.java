@@ -0,0 +1,416 @@
+package learnopengl.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Bounding volume hierarchy over the bounding spheres of many instances, to find the visible ones without testing
+ * each of them.
+ *
+ * The bounds are given as 4 floats per instance (center x, y, z and radius), in world space. The tree is built top
+ * down, splitting the instances of each node in half along the longest axis of their centers, until they fit in a
+ * leaf. Each node covers a contiguous range of {@link #getInstances()}, which holds the instance indices sorted in
+ * tree order, so nearby instances are also near in memory.
+ *
+ * Building, refitting and culling run on the common ForkJoinPool:
+ *
+ * - {@link #build(float[], int)} builds the subtrees of large nodes in parallel.
+ * - {@link #refit(float[])} recomputes the bounds of the nodes, keeping the tree, after the instances move.
+ * - {@link #cull(Frustum, int[])} descends the top of the tree skipping the nodes outside the frustum and adding
+ *   the nodes inside it as a whole, and the remaining subtrees are culled in parallel. Each subtree writes its visible
+ *   instances to its own range of the output, and the ranges are then compacted, so the visible indices come out
+ *   in tree order.
+ *
+ * The cost of culling grows with the number of nodes that intersect the frustum and the visible instances, not
+ * with the total number of instances.
+ * */
+public class InstanceBVH {
+
+	// Maximum instances per leaf. Leaves have between LEAF_SIZE / 2 and LEAF_SIZE instances
+	private static final int LEAF_SIZE = 16;
+	// Subtrees with fewer instances are built, refitted or culled by a single task
+	private static final int TASK_SIZE = 8192;
+
+	private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private int instanceCount;
+	private int[] instances = new int[0];
+
+	/* Nodes. The children of a node are consecutive, and left is -1 for leaves */
+	private final AtomicInteger nodeCount = new AtomicInteger();
+	private float[] bounds = new float[0];
+	private int[] left = new int[0];
+	private int[] start = new int[0];
+	private int[] count = new int[0];
+
+	/* Culling */
+	private int[] tasks = new int[64];
+	private int taskCount;
+	private int[] taskVisible = new int[64];
+
+	private float[] spheres;
+
+	/**
+	 * Builds the tree over the first count instances of the given bounds, 4 floats per instance.
+	 * The array is kept, {@link #refit(float[])} can be called with the same one after modifying it
+	 * */
+	public void build(float[] spheres, int count) {
+
+		this.spheres = spheres;
+		instanceCount = count;
+
+		if(instances.length < count) {
+			instances = new int[count];
+		}
+		for(int i = 0;i < count;i++) {
+			instances[i] = i;
+		}
+
+		// With leaves of at least LEAF_SIZE / 2 instances, there are at most 4 * count / LEAF_SIZE nodes
+		final int maxNodes = Math.max(1, 4 * count / LEAF_SIZE + 1);
+		if(left.length < maxNodes) {
+			bounds = new float[maxNodes * 6];
+			left = new int[maxNodes];
+			start = new int[maxNodes];
+			this.count = new int[maxNodes];
+		}
+
+		nodeCount.set(1);
+
+		pool.invoke(new BuildTask(0, 0, count));
+	}
+
+	/**
+	 * Updates the bounds of the nodes after the instances have moved, without changing the tree. Cheaper than a
+	 * build, but the tree gets less efficient if the instances move far from their neighbours
+	 * */
+	public void refit(float[] spheres) {
+		this.spheres = spheres;
+		pool.invoke(new RefitTask(0));
+	}
+
+	/**
+	 * Writes the indices of the instances that may be visible in the frustum to visible, which must be able to hold
+	 * all the instances, and returns how many there are
+	 * */
+	public int cull(Frustum frustum, int[] visible) {
+
+		if(instanceCount == 0) {
+			return 0;
+		}
+
+		// Descend the top of the tree, until the nodes are small enough to be culled by a single task
+		taskCount = 0;
+		collectTasks(frustum, 0);
+
+		if(taskVisible.length < taskCount) {
+			taskVisible = new int[tasks.length];
+		}
+
+		IntStream.range(0, taskCount).parallel().forEach(task -> taskVisible[task] = cullTask(frustum, tasks[task], visible));
+
+		// Each task wrote to the start of the range of its node, move them together
+		int visibleCount = 0;
+		for(int task = 0;task < taskCount;task++) {
+			final int node = tasks[task] < 0 ? ~tasks[task] : tasks[task];
+			System.arraycopy(visible, start[node], visible, visibleCount, taskVisible[task]);
+			visibleCount += taskVisible[task];
+		}
+
+		return visibleCount;
+	}
+
+	/**
+	 * Returns the instance indices in tree order. The range of each node is contiguous
+	 * */
+	public int[] getInstances() {
+		return instances;
+	}
+
+	public int getNodeCount() {
+		return nodeCount.get();
+	}
+
+	public int getInstanceCount() {
+		return instanceCount;
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Adds the nodes to cull in parallel. Nodes entirely inside the frustum are added as ~node
+	 * */
+	private void collectTasks(Frustum frustum, int node) {
+
+		final int o = node * 6;
+		final int result = frustum.intersectAab(bounds[o], bounds[o + 1], bounds[o + 2], bounds[o + 3], bounds[o + 4], bounds[o + 5]);
+
+		if(result == Frustum.OUTSIDE) {
+			return;
+		}
+
+		if(result == Frustum.INSIDE) {
+			addTask(~node);
+		} else if(count[node] <= TASK_SIZE || left[node] < 0) {
+			addTask(node);
+		} else {
+			collectTasks(frustum, left[node]);
+			collectTasks(frustum, left[node] + 1);
+		}
+	}
+
+	private void addTask(int task) {
+		if(taskCount == tasks.length) {
+			tasks = Arrays.copyOf(tasks, tasks.length * 2);
+		}
+		tasks[taskCount++] = task;
+	}
+
+	/**
+	 * Culls the subtree of a task, writing its visible instances from the start of its range. Returns how many
+	 * */
+	private int cullTask(Frustum frustum, int task, int[] visible) {
+
+		if(task < 0) {
+			// Entirely inside, all its instances are visible
+			final int node = ~task;
+			System.arraycopy(instances, start[node], visible, start[node], count[node]);
+			return count[node];
+		}
+
+		int written = start[task];
+
+		// The tree is balanced, so its depth is at most log2 of the node count
+		final int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = task;
+
+		while(top > 0) {
+
+			final int node = stack[--top];
+			final int o = node * 6;
+			final int result = frustum.intersectAab(bounds[o], bounds[o + 1], bounds[o + 2], bounds[o + 3], bounds[o + 4], bounds[o + 5]);
+
+			if(result == Frustum.OUTSIDE) {
+				continue;
+			}
+
+			if(result == Frustum.INSIDE) {
+				System.arraycopy(instances, start[node], visible, written, count[node]);
+				written += count[node];
+			} else if(left[node] < 0) {
+				// Leaf, test each instance
+				for(int i = start[node];i < start[node] + count[node];i++) {
+					final int instance = instances[i];
+					final int s = instance * 4;
+					if(frustum.testSphere(spheres[s], spheres[s + 1], spheres[s + 2], spheres[s + 3])) {
+						visible[written++] = instance;
+					}
+				}
+			} else {
+				// Push the right child first, so the left one is culled first and the output keeps the tree order
+				stack[top++] = left[node] + 1;
+				stack[top++] = left[node];
+			}
+		}
+
+		return written - start[task];
+	}
+
+	/**
+	 * Builds the node covering the given range of instances, and its subtree
+	 * */
+	private final class BuildTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int node;
+		private final int first;
+		private final int size;
+
+		BuildTask(int node, int first, int size) {
+			this.node = node;
+			this.first = first;
+			this.size = size;
+		}
+
+		@Override
+		protected void compute() {
+			build(node, first, size);
+		}
+
+		private void build(int node, int first, int size) {
+
+			start[node] = first;
+			count[node] = size;
+
+			if(size <= LEAF_SIZE) {
+				left[node] = -1;
+				computeLeafBounds(node);
+				return;
+			}
+
+			final int axis = getLongestAxis(first, size);
+			final int half = size / 2;
+
+			// Put the half of the instances with the smallest centers on that axis first
+			select(first, first + size - 1, first + half, axis);
+
+			final int children = nodeCount.getAndAdd(2);
+			left[node] = children;
+
+			if(size > TASK_SIZE) {
+				invokeAll(new BuildTask(children, first, half), new BuildTask(children + 1, first + half, size - half));
+			} else {
+				build(children, first, half);
+				build(children + 1, first + half, size - half);
+			}
+
+			mergeBounds(node, children);
+		}
+
+		private int getLongestAxis(int first, int size) {
+
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+
+			for(int i = first;i < first + size;i++) {
+				final int s = instances[i] * 4;
+				minX = Math.min(minX, spheres[s]);
+				minY = Math.min(minY, spheres[s + 1]);
+				minZ = Math.min(minZ, spheres[s + 2]);
+				maxX = Math.max(maxX, spheres[s]);
+				maxY = Math.max(maxY, spheres[s + 1]);
+				maxZ = Math.max(maxZ, spheres[s + 2]);
+			}
+
+			final float x = maxX - minX;
+			final float y = maxY - minY;
+			final float z = maxZ - minZ;
+
+			return x >= y && x >= z ? 0 : y >= z ? 1 : 2;
+		}
+
+		/**
+		 * Quickselect: reorders the range so the instance at k has the center it would have if the range was sorted
+		 * along the axis, with smaller ones before it and larger ones after it
+		 * */
+		private void select(int low, int high, int k, int axis) {
+
+			while(high > low) {
+
+				final float pivot = center(instances[(low + high) >>> 1], axis);
+
+				int i = low;
+				int j = high;
+
+				while(i <= j) {
+					while(center(instances[i], axis) < pivot) {
+						++i;
+					}
+					while(center(instances[j], axis) > pivot) {
+						--j;
+					}
+					if(i <= j) {
+						final int tmp = instances[i];
+						instances[i] = instances[j];
+						instances[j] = tmp;
+						++i;
+						--j;
+					}
+				}
+
+				if(k <= j) {
+					high = j;
+				} else if(k >= i) {
+					low = i;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private float center(int instance, int axis) {
+			return spheres[instance * 4 + axis];
+		}
+
+	}
+
+	/**
+	 * Recomputes the bounds of the subtree of a node
+	 * */
+	private final class RefitTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int node;
+
+		RefitTask(int node) {
+			this.node = node;
+		}
+
+		@Override
+		protected void compute() {
+			refit(node);
+		}
+
+		private void refit(int node) {
+
+			if(left[node] < 0) {
+				computeLeafBounds(node);
+				return;
+			}
+
+			final int children = left[node];
+
+			if(count[node] > TASK_SIZE) {
+				invokeAll(new RefitTask(children), new RefitTask(children + 1));
+			} else {
+				refit(children);
+				refit(children + 1);
+			}
+
+			mergeBounds(node, children);
+		}
+
+	}
+
+	private void computeLeafBounds(int node) {
+
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+
+		for(int i = start[node];i < start[node] + count[node];i++) {
+			final int s = instances[i] * 4;
+			final float radius = spheres[s + 3];
+			minX = Math.min(minX, spheres[s] - radius);
+			minY = Math.min(minY, spheres[s + 1] - radius);
+			minZ = Math.min(minZ, spheres[s + 2] - radius);
+			maxX = Math.max(maxX, spheres[s] + radius);
+			maxY = Math.max(maxY, spheres[s + 1] + radius);
+			maxZ = Math.max(maxZ, spheres[s + 2] + radius);
+		}
+
+		final int o = node * 6;
+		bounds[o] = minX;
+		bounds[o + 1] = minY;
+		bounds[o + 2] = minZ;
+		bounds[o + 3] = maxX;
+		bounds[o + 4] = maxY;
+		bounds[o + 5] = maxZ;
+	}
+
+	private void mergeBounds(int node, int children) {
+		final int o = node * 6;
+		final int l = children * 6;
+		final int r = l + 6;
+		for(int i = 0;i < 3;i++) {
+			bounds[o + i] = Math.min(bounds[l + i], bounds[r + i]);
+			bounds[o + 3 + i] = Math.max(bounds[l + 3 + i], bounds[r + 3 + i]);
+		}
+	}
+
+}
@@ -0,0 +1,591 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.EXTTextureSRGB.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Minimal reader and writer of KTX2 containers with block compressed 2D textures.
+ *
+ * Only the subset written by {@link TextureCompressor} is supported: a single 2D image with its mip chain,
+ * no supercompression, in one of the BC1, BC3, BC4 or BC5 formats.
+ * The compressed variant of an image is stored next to it, with the extension replaced by '.ktx2'.
+ * Color images also have a variant whose mip levels are averaged in linear space, for the textures loaded as sRGB,
+ * with the extension replaced by '.srgb.ktx2'.
+ * */
+final class KTX2 {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	static final String EXTENSION = ".ktx2";
+	static final String SRGB_EXTENSION = ".srgb.ktx2";
+
+	private static final byte[] IDENTIFIER = {
+			(byte)0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte)0xBB, '\r', '\n', 0x1A, '\n'
+	};
+
+	// Vulkan formats
+	static final int VK_FORMAT_BC1_RGB_UNORM_BLOCK = 131;
+	static final int VK_FORMAT_BC3_UNORM_BLOCK = 137;
+	static final int VK_FORMAT_BC4_UNORM_BLOCK = 139;
+	static final int VK_FORMAT_BC5_UNORM_BLOCK = 141;
+
+	// Data format descriptor color models
+	private static final int KHR_DF_MODEL_BC1A = 128;
+	private static final int KHR_DF_MODEL_BC3 = 130;
+	private static final int KHR_DF_MODEL_BC4 = 131;
+	private static final int KHR_DF_MODEL_BC5 = 132;
+
+	private static final int HEADER_SIZE = IDENTIFIER.length + 9 * Integer.BYTES;
+	private static final int INDEX_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+	private static final int LEVEL_INDEX_SIZE = 3 * Long.BYTES;
+
+	// Key of the number of channels of the source image, as it is not told by the format
+	private static final String CHANNELS_KEY = "LearnOpenGL.channels";
+
+	/**
+	 * A compressed image with all its mip levels, in a single native buffer
+	 * */
+	static class Image {
+
+		int vkFormat;
+		int width;
+		int height;
+		// Number of channels of the source image, 0 if the file does not tell
+		int channels;
+		ByteBuffer data;
+		// Offset and size in data of each level, from the largest to the smallest
+		int[] levelOffsets;
+		int[] levelSizes;
+
+		int getLevelCount() {
+			return levelOffsets.length;
+		}
+
+		ByteBuffer getLevel(int level) {
+			ByteBuffer buffer = data.duplicate();
+			buffer.position(levelOffsets[level]);
+			buffer.limit(levelOffsets[level] + levelSizes[level]);
+			return buffer.slice();
+		}
+
+		/**
+		 * Returns whether the source image had an alpha channel, even if it was opaque and compressed without it
+		 * */
+		boolean hasAlpha() {
+			return channels != 0 ? channels == 4 : vkFormat == VK_FORMAT_BC3_UNORM_BLOCK;
+		}
+
+		void free() {
+			memFree(data);
+			data = null;
+		}
+
+	}
+
+	private KTX2() {}
+
+	/**
+	 * Returns the path of the compressed variant of the given image, with its mip levels averaged in linear space
+	 * if srgb is true
+	 * */
+	static String getCompressedPath(String path, boolean srgb) {
+
+		final String suffix = srgb ? SRGB_EXTENSION : EXTENSION;
+		final int extension = path.lastIndexOf('.');
+
+		if(extension <= Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'))) {
+			return path + suffix;
+		}
+
+		return path.substring(0, extension) + suffix;
+	}
+
+	/**
+	 * Returns the up to date compressed variant of the given image, or null if there is none.
+	 * Compressed images are ignored when their source image has been modified after them.
+	 * */
+	static File findCompressed(String path, boolean srgb) {
+
+		final File source = new File(path);
+		final File compressed = new File(getCompressedPath(path, srgb));
+
+		if(!compressed.isFile()) {
+			return null;
+		}
+
+		if(source.isFile() && source.lastModified() > compressed.lastModified()) {
+			return null;
+		}
+
+		return compressed;
+	}
+
+	/**
+	 * Reads the given KTX2 file, returns null if it is not supported
+	 * */
+	static Image read(File file) {
+
+		ByteBuffer buffer = null;
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			if(channel.size() > Integer.MAX_VALUE) {
+				logger.warning("KTX2 file too big: " + file);
+				return null;
+			}
+
+			buffer = memAlloc((int)channel.size());
+
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+
+			buffer.flip();
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			for(final byte b : IDENTIFIER) {
+				if(buffer.get() != b) {
+					throw new IllegalArgumentException("not a KTX2 file");
+				}
+			}
+
+			Image image = new Image();
+
+			image.vkFormat = buffer.getInt();
+			buffer.getInt(); // typeSize
+			image.width = buffer.getInt();
+			image.height = buffer.getInt();
+			final int depth = buffer.getInt();
+			final int layerCount = buffer.getInt();
+			final int faceCount = buffer.getInt();
+			final int levelCount = Math.max(1, buffer.getInt());
+			final int supercompressionScheme = buffer.getInt();
+
+			if(getBlockSize(image.vkFormat) == 0 || depth != 0 || layerCount != 0 || faceCount != 1 || supercompressionScheme != 0) {
+				logger.warning("Unsupported KTX2 texture: " + file);
+				memFree(buffer);
+				return null;
+			}
+
+			// Skip the data format descriptor and supercompression global data indices
+			buffer.getInt(); // dfdByteOffset
+			buffer.getInt(); // dfdByteLength
+			final int kvdOffset = buffer.getInt();
+			final int kvdLength = buffer.getInt();
+			buffer.getLong(); // sgdByteOffset
+			buffer.getLong(); // sgdByteLength
+
+			if(kvdOffset < 0 || kvdLength < 0 || (long)kvdOffset + kvdLength > buffer.limit()) {
+				throw new IllegalArgumentException("invalid key/value data");
+			}
+
+			final String channels = getKeyValue(buffer, kvdOffset, kvdLength, CHANNELS_KEY);
+
+			if(channels != null) {
+				try {
+					image.channels = Integer.parseInt(channels);
+				} catch(NumberFormatException e) {
+					throw new IllegalArgumentException("invalid " + CHANNELS_KEY + ": " + channels);
+				}
+			}
+
+			image.levelOffsets = new int[levelCount];
+			image.levelSizes = new int[levelCount];
+
+			for(int level = 0;level < levelCount;level++) {
+
+				final long offset = buffer.getLong();
+				final long size = buffer.getLong();
+				buffer.getLong(); // uncompressedByteLength
+
+				if(offset < 0 || size != getLevelSize(image, level) || offset + size > buffer.limit()) {
+					throw new IllegalArgumentException("invalid level " + level);
+				}
+
+				image.levelOffsets[level] = (int)offset;
+				image.levelSizes[level] = (int)size;
+			}
+
+			buffer.clear();
+			image.data = buffer;
+
+			return image;
+
+		} catch(IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.warning("Failed to read KTX2 file " + file + ": " + e);
+		}
+
+		memFree(buffer);
+
+		return null;
+	}
+
+	/**
+	 * Writes the given compressed levels, from the largest to the smallest, to a KTX2 file.
+	 * The number of channels of the source image is stored with them, see {@link Image#hasAlpha()}
+	 * */
+	static void write(Path path, int vkFormat, int width, int height, int channels, ByteBuffer[] levels) throws IOException {
+
+		final ByteBuffer dfd = createDataFormatDescriptor(vkFormat);
+		final ByteBuffer kvd = createKeyValueData(channels);
+
+		final int dfdOffset = HEADER_SIZE + INDEX_SIZE + levels.length * LEVEL_INDEX_SIZE;
+		final int kvdOffset = dfdOffset + dfd.remaining();
+
+		// Levels are stored from the smallest to the largest, aligned to the block size
+		final int alignment = getBlockSize(vkFormat);
+		final long[] levelOffsets = new long[levels.length];
+
+		long size = kvdOffset + kvd.remaining();
+
+		for(int level = levels.length - 1;level >= 0;level--) {
+			size = (size + alignment - 1) / alignment * alignment;
+			levelOffsets[level] = size;
+			size += levels[level].remaining();
+		}
+
+		final ByteBuffer buffer = memAlloc((int)size).order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+
+			memSet(buffer, 0);
+
+			buffer.put(IDENTIFIER);
+
+			buffer.putInt(vkFormat);
+			buffer.putInt(1); // typeSize
+			buffer.putInt(width);
+			buffer.putInt(height);
+			buffer.putInt(0); // pixelDepth
+			buffer.putInt(0); // layerCount
+			buffer.putInt(1); // faceCount
+			buffer.putInt(levels.length);
+			buffer.putInt(0); // supercompressionScheme
+
+			buffer.putInt(dfdOffset).putInt(dfd.remaining());
+			buffer.putInt(kvdOffset).putInt(kvd.remaining());
+			buffer.putLong(0L).putLong(0L); // No supercompression global data
+
+			for(int level = 0;level < levels.length;level++) {
+				buffer.putLong(levelOffsets[level]);
+				buffer.putLong(levels[level].remaining());
+				buffer.putLong(levels[level].remaining());
+			}
+
+			buffer.put(dfd);
+			buffer.put(kvd);
+
+			for(int level = 0;level < levels.length;level++) {
+				buffer.position((int)levelOffsets[level]);
+				buffer.put(levels[level].duplicate());
+			}
+
+			buffer.clear();
+
+			final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+
+		} finally {
+			memFree(buffer);
+		}
+	}
+
+	/**
+	 * Flips the image on the y-axis by reordering its blocks and the rows inside them.
+	 * Returns false if the image cannot be flipped without decompressing it, which happens when
+	 * the height of a level is neither a multiple of the block height nor smaller than it.
+	 * */
+	static boolean flip(Image image) {
+
+		for(int level = 0;level < image.getLevelCount();level++) {
+			final int height = getLevelHeight(image, level);
+			if(height > 4 && height % 4 != 0) {
+				return false;
+			}
+		}
+
+		final int blockSize = getBlockSize(image.vkFormat);
+		final int[] rows = new int[4];
+
+		for(int level = 0;level < image.getLevelCount();level++) {
+
+			final int height = getLevelHeight(image, level);
+			final int blocksX = (getLevelWidth(image, level) + 3) / 4;
+			final int blocksY = (height + 3) / 4;
+			final int rowSize = blocksX * blockSize;
+			final long address = memAddress(image.data) + image.levelOffsets[level];
+
+			// Reverse the order of the rows of blocks
+			ByteBuffer tmp = memAlloc(rowSize);
+
+			for(int top = 0, bottom = blocksY - 1;top < bottom;top++, bottom--) {
+				final long topRow = address + (long)top * rowSize;
+				final long bottomRow = address + (long)bottom * rowSize;
+				memCopy(topRow, memAddress(tmp), rowSize);
+				memCopy(bottomRow, topRow, rowSize);
+				memCopy(memAddress(tmp), bottomRow, rowSize);
+			}
+
+			memFree(tmp);
+
+			// Then reverse the rows of pixels inside each block. Rows past the height of the level are just padding
+			final int validRows = Math.min(height, 4);
+
+			for(int row = 0;row < 4;row++) {
+				rows[row] = row < validRows ? validRows - 1 - row : row;
+			}
+
+			for(int block = 0;block < blocksX * blocksY;block++) {
+				flipBlock(image.vkFormat, address + (long)block * blockSize, rows);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the OpenGL internal format of the given Vulkan format
+	 * */
+	static int getInternalFormat(int vkFormat, boolean gammaCorrection) {
+
+		switch(vkFormat) {
+
+		case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+			return gammaCorrection ? GL_COMPRESSED_SRGB_S3TC_DXT1_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+		case VK_FORMAT_BC3_UNORM_BLOCK:
+			return gammaCorrection ? GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5_EXT : GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+		case VK_FORMAT_BC4_UNORM_BLOCK:
+			return GL_COMPRESSED_RED_RGTC1;
+		case VK_FORMAT_BC5_UNORM_BLOCK:
+			return GL_COMPRESSED_RG_RGTC2;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns whether the given format needs the S3TC extension. RGTC formats are core since OpenGL 3.0
+	 * */
+	static boolean isS3TC(int vkFormat) {
+		return vkFormat == VK_FORMAT_BC1_RGB_UNORM_BLOCK || vkFormat == VK_FORMAT_BC3_UNORM_BLOCK;
+	}
+
+	static int getBlockSize(int vkFormat) {
+
+		switch(vkFormat) {
+
+		case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+		case VK_FORMAT_BC4_UNORM_BLOCK:
+			return 8;
+		case VK_FORMAT_BC3_UNORM_BLOCK:
+		case VK_FORMAT_BC5_UNORM_BLOCK:
+			return 16;
+		default:
+			return 0;
+		}
+	}
+
+	static int getLevelWidth(Image image, int level) {
+		return Math.max(1, image.width >> level);
+	}
+
+	static int getLevelHeight(Image image, int level) {
+		return Math.max(1, image.height >> level);
+	}
+
+	// ========== Utility functions ===========
+
+	private static long getLevelSize(Image image, int level) {
+		final long blocksX = (getLevelWidth(image, level) + 3) / 4;
+		final long blocksY = (getLevelHeight(image, level) + 3) / 4;
+		return blocksX * blocksY * getBlockSize(image.vkFormat);
+	}
+
+	private static void flipBlock(int vkFormat, long block, int[] rows) {
+
+		switch(vkFormat) {
+
+		case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+			flipColorBlock(block, rows);
+			break;
+		case VK_FORMAT_BC3_UNORM_BLOCK:
+			flipAlphaBlock(block, rows);
+			flipColorBlock(block + 8, rows);
+			break;
+		case VK_FORMAT_BC4_UNORM_BLOCK:
+			flipAlphaBlock(block, rows);
+			break;
+		case VK_FORMAT_BC5_UNORM_BLOCK:
+			flipAlphaBlock(block, rows);
+			flipAlphaBlock(block + 8, rows);
+			break;
+		}
+	}
+
+	/**
+	 * BC1 block: 2 endpoints of 16 bits, then one byte of 2 bit indices per row
+	 * */
+	private static void flipColorBlock(long block, int[] rows) {
+
+		final int indices = memGetInt(block + 4);
+		int flipped = 0;
+
+		for(int row = 0;row < 4;row++) {
+			flipped |= ((indices >>> (row * 8)) & 0xFF) << (rows[row] * 8);
+		}
+
+		memPutInt(block + 4, flipped);
+	}
+
+	/**
+	 * BC4 block: 2 endpoints of 8 bits, then 48 bits of 3 bit indices, 12 bits per row
+	 * */
+	private static void flipAlphaBlock(long block, int[] rows) {
+
+		final long indices = memGetLong(block) >>> 16;
+		long flipped = 0;
+
+		for(int row = 0;row < 4;row++) {
+			flipped |= ((indices >>> (row * 12)) & 0xFFFL) << (rows[row] * 12);
+		}
+
+		memPutLong(block, (memGetLong(block) & 0xFFFFL) | (flipped << 16));
+	}
+
+	private static ByteBuffer createDataFormatDescriptor(int vkFormat) {
+
+		final int colorModel;
+		final int[] channels;
+
+		switch(vkFormat) {
+
+		case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+			colorModel = KHR_DF_MODEL_BC1A;
+			channels = new int[] {0};
+			break;
+		case VK_FORMAT_BC3_UNORM_BLOCK:
+			// Alpha block first, then color block
+			colorModel = KHR_DF_MODEL_BC3;
+			channels = new int[] {15, 0};
+			break;
+		case VK_FORMAT_BC4_UNORM_BLOCK:
+			colorModel = KHR_DF_MODEL_BC4;
+			channels = new int[] {0};
+			break;
+		case VK_FORMAT_BC5_UNORM_BLOCK:
+			colorModel = KHR_DF_MODEL_BC5;
+			channels = new int[] {0, 1};
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported format: " + vkFormat);
+		}
+
+		final int blockSize = 24 + 16 * channels.length;
+
+		ByteBuffer dfd = ByteBuffer.allocate(Integer.BYTES + blockSize).order(ByteOrder.LITTLE_ENDIAN);
+
+		dfd.putInt(Integer.BYTES + blockSize); // dfdTotalSize
+		dfd.putInt(0); // vendorId, descriptorType: Khronos basic descriptor
+		dfd.putInt(2 | (blockSize << 16)); // versionNumber, descriptorBlockSize
+		// colorModel, colorPrimaries (BT709), transferFunction (linear), flags (straight alpha)
+		dfd.put((byte)colorModel).put((byte)1).put((byte)1).put((byte)0);
+		dfd.put((byte)3).put((byte)3).put((byte)0).put((byte)0); // texelBlockDimension: 4x4x1x1
+		dfd.putInt(getBlockSize(vkFormat)); // bytesPlane0
+		dfd.putInt(0); // bytesPlane4..7
+
+		for(int i = 0;i < channels.length;i++) {
+			// bitOffset, bitLength - 1, channelType
+			dfd.putShort((short)(i * 64)).put((byte)63).put((byte)channels[i]);
+			dfd.putInt(0); // samplePosition
+			dfd.putInt(0); // sampleLower
+			dfd.putInt(0xFFFFFFFF); // sampleUpper
+		}
+
+		dfd.flip();
+
+		return dfd;
+	}
+
+	private static ByteBuffer createKeyValueData(int channels) {
+
+		ByteBuffer kvd = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+		// Rows are stored from top to bottom, as in the source image
+		putKeyValue(kvd, "KTXorientation", "rd");
+		putKeyValue(kvd, "KTXwriter", "LearnOpenGL-LWJGL3 TextureCompressor");
+		putKeyValue(kvd, CHANNELS_KEY, Integer.toString(channels));
+
+		kvd.flip();
+
+		return kvd;
+	}
+
+	private static void putKeyValue(ByteBuffer kvd, String key, String value) {
+
+		final byte[] bytes = (key + '\0' + value + '\0').getBytes(StandardCharsets.UTF_8);
+
+		kvd.putInt(bytes.length);
+		kvd.put(bytes);
+		kvd.position((kvd.position() + 3) & ~3);
+	}
+
+	/**
+	 * Returns the value of the given key in the key/value data, or null if it is not there
+	 * */
+	private static String getKeyValue(ByteBuffer buffer, int offset, int length, String key) {
+
+		final int end = offset + length;
+		int position = offset;
+
+		while(position + Integer.BYTES <= end) {
+
+			final int size = buffer.getInt(position);
+			position += Integer.BYTES;
+
+			if(size < 0 || size > end - position) {
+				throw new IllegalArgumentException("invalid key/value data");
+			}
+
+			final byte[] bytes = new byte[size];
+			for(int i = 0;i < size;i++) {
+				bytes[i] = buffer.get(position + i);
+			}
+
+			// The key and the value are both terminated by a null character
+			final String keyValue = new String(bytes, StandardCharsets.UTF_8);
+			final int separator = keyValue.indexOf('\0');
+
+			if(separator >= 0 && keyValue.substring(0, separator).equals(key)) {
+				final int terminator = keyValue.indexOf('\0', separator + 1);
+				return keyValue.substring(separator + 1, terminator >= 0 ? terminator : keyValue.length());
+			}
+
+			position = (position + size + 3) & ~3;
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,128 @@
+package learnopengl.util;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+
+/**
+ * Picks the level of detail of the instances of a model from their projected size on the screen.
+ *
+ * Each level of detail of the model has an error: how far its surface may be from the full resolution one. The
+ * errors are stored relative to the bounding sphere of the model, so they scale with each instance. A level is used
+ * when its error, projected at the distance of the instance, covers less than the given number of pixels, which
+ * happens when the distance is larger than {@link #getDistanceFactor(int)} times the radius of the instance.
+ *
+ * Past the levels of detail, instances can be drawn as impostors (see {@link ImpostorAtlas}) once their bounding
+ * sphere covers less than a given radius in pixels. Between {@link #getImpostorStart()} and {@link #getImpostorEnd()}
+ * times the radius, both the mesh and the impostor are drawn, and crossfaded.
+ *
+ * The factors depend on the projection and the size of the viewport, so {@link #update(Matrix4fc, int)} must be
+ * called when any of them change.
+ * */
+public class LodSelector {
+
+	// Error of each level, relative to the radius of the bounding sphere of the model
+	private final float[] errors;
+	// Distance, relative to the radius of an instance, from which each level is used
+	private final float[] distanceFactors;
+	private final float pixelError;
+
+	// Projected radius, in pixels, below which instances are impostors, and how much larger the crossfade starts
+	private float impostorPixels;
+	private float impostorFade;
+	private float impostorStart = Float.POSITIVE_INFINITY;
+	private float impostorEnd = Float.POSITIVE_INFINITY;
+
+	/**
+	 * Creates a selector for the levels of detail of the given model, whose error must stay under the given
+	 * number of pixels
+	 * */
+	public LodSelector(Model model, float pixelError) {
+
+		this.pixelError = pixelError;
+
+		final Vector3f center = model.aabbMin.add(model.aabbMax, new Vector3f()).mul(0.5f);
+		final float radius = Math.max(center.distance(model.aabbMax), Float.MIN_NORMAL);
+
+		errors = new float[model.getLodCount()];
+		distanceFactors = new float[errors.length];
+
+		for(int i = 0;i < errors.length;i++) {
+			errors[i] = model.getLodError(i) / radius;
+		}
+	}
+
+	/**
+	 * Computes the distances of the levels for the given perspective projection and viewport height, in pixels
+	 * */
+	public void update(Matrix4fc projection, int viewportHeight) {
+
+		// Pixels covered by a length of one at a distance of one
+		final float pixelsPerUnit = projection.m11() * viewportHeight * 0.5f;
+
+		for(int i = 0;i < errors.length;i++) {
+			distanceFactors[i] = errors[i] * pixelsPerUnit / pixelError;
+		}
+
+		if(impostorPixels > 0.0f) {
+			impostorEnd = pixelsPerUnit / impostorPixels;
+			impostorStart = pixelsPerUnit / (impostorPixels * (1.0f + impostorFade));
+		} else {
+			impostorStart = Float.POSITIVE_INFINITY;
+			impostorEnd = Float.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Draws the instances whose bounding sphere covers less than the given radius, in pixels, as impostors, or none if
+	 * it is 0. The crossfade starts at (1 + fade) times that radius. Takes effect on the next
+	 * {@link #update(Matrix4fc, int)}
+	 * */
+	public void setImpostors(float pixelRadius, float fade) {
+		impostorPixels = pixelRadius;
+		impostorFade = fade;
+	}
+
+	/**
+	 * Returns the distance, relative to the radius of an instance, from which its impostor starts fading in,
+	 * or infinity without impostors
+	 * */
+	public float getImpostorStart() {
+		return impostorStart;
+	}
+
+	/**
+	 * Returns the distance, relative to the radius of an instance, from which only its impostor is drawn,
+	 * or infinity without impostors
+	 * */
+	public float getImpostorEnd() {
+		return impostorEnd;
+	}
+
+	/**
+	 * Returns the level of detail of an instance whose bounding sphere, of the given radius, is at the given
+	 * distance from the camera
+	 * */
+	public int select(float distance, float radius) {
+
+		int lod = 0;
+
+		// The errors grow with each level, so the first level that is too close ends the search
+		while(lod + 1 < distanceFactors.length && distance >= distanceFactors[lod + 1] * radius) {
+			++lod;
+		}
+
+		return lod;
+	}
+
+	public int getLodCount() {
+		return errors.length;
+	}
+
+	/**
+	 * Returns the distance, relative to the radius of an instance, from which the given level is used
+	 * */
+	public float getDistanceFactor(int lod) {
+		return distanceFactors[lod];
+	}
+
+}
@@ -4,7 +4,10 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.List;
@@ -12,12 +15,28 @@ import java.util.logging.Logger;
 
 import org.joml.Vector2f;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 import org.lwjgl.system.MemoryUtil;
 
 public class Mesh {
 
 	private static Logger logger = Logger.getAnonymousLogger();
 
+	// Shared buffers new meshes are allocated from, or null to give each mesh its own buffers
+	private static MeshArena arena;
+
+	/**
+	 * Sets the arena the meshes created from now on take their vertices and indices from, sharing its vertex array.
+	 * If null, each mesh creates its own vertex array and buffers
+	 * */
+	public static void setArena(MeshArena arena) {
+		Mesh.arena = arena;
+	}
+
+	public static MeshArena getArena() {
+		return arena;
+	}
+
 	public static class Vertex {
 
 		public static int sizeof() {
@@ -44,10 +63,31 @@ public class Mesh {
 	public List<Vertex> vertices;
 	public List<Integer> indices;
 	public List<Texture> textures;
+	// Compact copies of the data uploaded to the GPU, null if the mesh was created without retaining them
+	public float[] vertexData;
+	public int[] indexData;
+	// Indices of the full resolution mesh, the first level of detail
+	public int indexCount;
+	// Axis aligned bounding box of the vertex positions, in model space
+	public final Vector3f aabbMin = new Vector3f();
+	public final Vector3f aabbMax = new Vector3f();
+	// Bounding sphere of the vertex positions, centered in the bounding box, in model space
+	public final Vector3f sphereCenter = new Vector3f();
+	public float sphereRadius;
 	public int vao;
 	/* Render Data */
 	private int vbo;
 	private int ebo;
+	// Ranges of the shared buffers of the arena, if the mesh was allocated from one
+	private MeshArena meshArena;
+	private MeshArena.Allocation allocation;
+	// Ranges of the index buffer of each level of detail, and their error in model space
+	private int[] lodFirstIndex;
+	private int[] lodIndexCount;
+	private float[] lodError;
+	// Sampler uniforms of the textures in the last shader used to draw the mesh
+	private Shader samplersShader;
+	private Shader.Uniform[] samplers = new Shader.Uniform[0];
 
 	/* Functions */
 
@@ -58,17 +98,180 @@ public class Mesh {
 		this.vertices = vertices;
 		this.indices = indices;
 		this.textures = textures;
+		indexCount = indices.size();
+		setLods(new int[] { indexCount }, new float[] { 0.0f });
+
+		computeBounds();
 
 		// Now that we have all the required data, set the vertex buffers and its attribute pointers.
 		setupMesh();
 	}
 
+	/**
+	 * Constructs a new Mesh directly from already interleaved vertex data (laid out as described by 
+	 * {@link Vertex}) and 32 bit indices. No per-vertex objects are created, so {@link #vertices} and 
+	 * {@link #indices} remain null. The buffers are only read during construction.
+	 * The indices hold the levels of detail one after the other, with the given number of indices and error each.
+	 * If retainData is true, a copy of the data is kept in {@link #vertexData} and {@link #indexData}, only
+	 * with the indices of the first level.
+	 * */
+	public Mesh(ByteBuffer vertexData, ByteBuffer indexData, int[] lodIndexCounts, float[] lodErrors, List<Texture> textures, 
+			Vector3fc aabbMin, Vector3fc aabbMax, boolean retainData) {
+		this.textures = textures;
+		setLods(lodIndexCounts, lodErrors);
+		indexCount = lodIndexCounts[0];
+		this.aabbMin.set(aabbMin);
+		this.aabbMax.set(aabbMax);
+
+		computeBoundingSphere(vertexData);
+
+		if(retainData) {
+			this.vertexData = new float[vertexData.remaining() / Float.BYTES];
+			vertexData.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer().get(this.vertexData);
+			this.indexData = new int[indexCount];
+			indexData.duplicate().order(ByteOrder.nativeOrder()).asIntBuffer().get(this.indexData);
+		}
+
+		setupBuffers(vertexData, indexData);
+	}
+
+	/**
+	 * Constructs a new Mesh from interleaved vertex data and indices with a single level of detail
+	 * */
+	public Mesh(ByteBuffer vertexData, ByteBuffer indexData, List<Texture> textures, Vector3fc aabbMin, Vector3fc aabbMax,
+			boolean retainData) {
+		this(vertexData, indexData, new int[] { indexData.remaining() / Integer.BYTES }, new float[] { 0.0f }, textures, 
+				aabbMin, aabbMax, retainData);
+	}
+
+	/**
+	 * Constructs a new Mesh from interleaved vertex data and indices, keeping a copy of them
+	 * */
+	public Mesh(ByteBuffer vertexData, ByteBuffer indexData, List<Texture> textures, Vector3fc aabbMin, Vector3fc aabbMax) {
+		this(vertexData, indexData, textures, aabbMin, aabbMax, true);
+	}
+
 	/**
 	 * Render the mesh
 	 * */
 	public void draw(Shader shader) {
+		draw(shader, 0);
+	}
+
+	/**
+	 * Render the given level of detail of the mesh
+	 * */
+	public void draw(Shader shader, int lod) {
+
+		bindTextures(shader);
+
+		// Draw mesh
+		GLState.bindVertexArray(vao);
+		if(allocation != null) {
+			// The allocation may have been moved by a defragmentation, so it is read on every draw
+			glDrawElementsBaseVertex(GL_TRIANGLES, lodIndexCount[lod], GL_UNSIGNED_INT,
+					(long)(allocation.getFirstIndex() + lodFirstIndex[lod]) * Integer.BYTES, allocation.getBaseVertex());
+		} else {
+			glDrawElements(GL_TRIANGLES, lodIndexCount[lod], GL_UNSIGNED_INT, (long)lodFirstIndex[lod] * Integer.BYTES);
+		}
+
+		// Always good practice to set everything back to defaults once configured.
+		// When the state is tracked, the next draw binds what it needs and unbinding would be wasted
+		if(!GLState.isFiltering()) {
+			GLState.bindVertexArray(0);
+			GLState.activeTexture(0);
+		}
+	}
+
+	/**
+	 * Binds the textures of the mesh to the first texture units, and sets the samplers of the shader to them
+	 * */
+	public void bindTextures(Shader shader) {
+
+		// Resolve the sampler uniforms once per shader, instead of building their names on every draw
+		if(shader != samplersShader || samplers.length != textures.size()) {
+			samplers = getSamplers(shader);
+			samplersShader = shader;
+		}
 
 		// Bind appropiate textures
+		for(int i = 0;i < textures.size();i++) {
+
+			// Set the sampler to the correct texture unit
+			samplers[i].set(i);
+			// And bind the texture to it. The unit is only activated if the texture is not already bound
+			GLState.bindTexture(i, GL_TEXTURE_2D, textures.get(i).id);
+		}
+	}
+
+	public int getLodCount() {
+		return lodIndexCount.length;
+	}
+
+	/**
+	 * Returns the first index of the given level of detail, relative to the first index of the mesh
+	 * */
+	public int getLodFirstIndex(int lod) {
+		return lodFirstIndex[lod];
+	}
+
+	public int getLodIndexCount(int lod) {
+		return lodIndexCount[lod];
+	}
+
+	/**
+	 * Returns how far, in model space, the surface of the given level of detail may be from the full resolution one
+	 * */
+	public float getLodError(int lod) {
+		return lodError[lod];
+	}
+
+	/**
+	 * Returns the ranges of the arena the mesh was allocated from, or null if it has its own buffers
+	 * */
+	MeshArena.Allocation getAllocation() {
+		return allocation;
+	}
+
+	/**
+	 * Returns the arena the mesh was allocated from, or null if it has its own buffers
+	 * */
+	MeshArena getMeshArena() {
+		return meshArena;
+	}
+
+	/**
+	 * Deletes the mesh's vertex array and buffers
+	 * */
+	public void delete() {
+		if(allocation != null) {
+			meshArena.free(allocation);
+			allocation = null;
+			return;
+		}
+		GLState.deleteVertexArray(vao);
+		glDeleteBuffers(vbo);
+		glDeleteBuffers(ebo);	
+	}
+
+	private void setLods(int[] indexCounts, float[] errors) {
+
+		lodFirstIndex = new int[indexCounts.length];
+		lodIndexCount = indexCounts.clone();
+		lodError = errors.clone();
+
+		for(int i = 1;i < indexCounts.length;i++) {
+			lodFirstIndex[i] = lodFirstIndex[i - 1] + indexCounts[i - 1];
+		}
+	}
+
+	/**
+	 * Returns the sampler uniform of each texture in the given shader
+	 * */
+	private Shader.Uniform[] getSamplers(Shader shader) {
+
+		Shader.Uniform[] samplers = new Shader.Uniform[textures.size()];
+
 		int diffuseNr = 1;
 		int specularNr = 1;
 		int normalNr = 1;
@@ -76,8 +279,6 @@ public class Mesh {
 
 		for(int i = 0;i < textures.size();i++) {
 
-			glActiveTexture(GL_TEXTURE0 + i); // Active proper texture unit before binding
-
 			// Retrieve the texture number (the N in diffuse_textureN)
 			int number = 0;
 			final String name = textures.get(i).type;
@@ -100,51 +301,70 @@ public class Mesh {
 				logger.severe("Unknown texture type: " + name);
 			}
 
-			// Now set the sampler to the correct texture unit
-			shader.setInt(name + number, i);
-			// And finally bind the texture
-			glBindTexture(GL_TEXTURE_2D, textures.get(i).id);
+			samplers[i] = shader.getUniform(name + number);
 		}
 
-		// Draw mesh
-		glBindVertexArray(vao);
-		glDrawElements(GL_TRIANGLES, indices.size(), GL_UNSIGNED_INT, 0L);
-		glBindVertexArray(0);
-
-		// Always good practice to set everything back to defaults once configured.
-		glActiveTexture(GL_TEXTURE0);
+		return samplers;
 	}
 
 	/**
-	 * Deletes the mesh's vertex array and buffers
+	 * Initializes all the buffer objects/arrays
 	 * */
-	public void delete() {
-		glDeleteVertexArrays(vao);
-		glDeleteBuffers(vbo);
-		glDeleteBuffers(ebo);	
+	private void setupMesh() {
+
+		// Since we are programming in Java, we have to manually convert our vertices list into a FloatBuffer
+		FloatBuffer vertexData = getVertexData();
+		// Same with the indices, we have to convert it to a IntBuffer
+		IntBuffer indicesData = getIndicesData(); 
+
+		setupBuffers(
+				MemoryUtil.memByteBuffer(MemoryUtil.memAddress(vertexData), vertexData.remaining() * Float.BYTES), 
+				MemoryUtil.memByteBuffer(MemoryUtil.memAddress(indicesData), indicesData.remaining() * Integer.BYTES));
+
+		// Free the dynamically allocated buffers
+		MemoryUtil.memFree(vertexData);
+		MemoryUtil.memFree(indicesData);
 	}
 
 	/**
-	 * Initializes all the buffer objects/arrays
+	 * Creates the vertex array and uploads the interleaved vertex data and the indices, or copies them to the arena
 	 * */
-	private void setupMesh() {
+	private void setupBuffers(ByteBuffer vertexData, ByteBuffer indicesData) {
+
+		if(arena != null) {
+			meshArena = arena;
+			allocation = arena.allocate(vertexData, indicesData);
+			vao = arena.vao;
+			return;
+		}
 
 		// Create buffers/arrays
 		vao = glGenVertexArrays();
 		vbo = glGenBuffers();
 		ebo = glGenBuffers();
 
-		glBindVertexArray(vao);
+		GLState.bindVertexArray(vao);
 		
 		// Load data into vertex buffers
 		glBindBuffer(GL_ARRAY_BUFFER, vbo);
-		// Since we are programming in Java, we have to manually convert our vertices list into a FloatBuffer
-		FloatBuffer vertexData = getVertexData();
 		glBufferData(GL_ARRAY_BUFFER, vertexData, GL_STATIC_DRAW);  
 
+		// Set the vertex attribute pointers
+		setVertexAttributes();
+		
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesData, GL_STATIC_DRAW);
+
+		GLState.bindVertexArray(0);
+	}
+
+	/**
+	 * Sets the attribute pointers of the {@link Vertex} layout for the bound vertex array and vertex buffer
+	 * */
+	static void setVertexAttributes() {
+
 		final int sizeofVertex = Vertex.sizeof();
 
-		// Set the vertex attribute pointers
 		// Vertex Positions
 		glEnableVertexAttribArray(0);	
 		glVertexAttribPointer(0, 3, GL_FLOAT, false, sizeofVertex, 0);
@@ -160,17 +380,55 @@ public class Mesh {
 		// Vertex bitangent
 		glEnableVertexAttribArray(4);
 		glVertexAttribPointer(4, 3, GL_FLOAT, false, sizeofVertex, 11 * Float.BYTES);
-		
-		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
-		// Same with the indices, we have to convert it to a IntBuffer
-		IntBuffer indicesData = getIndicesData(); 
-		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesData, GL_STATIC_DRAW);
+	}
 
-		glBindVertexArray(0);
+	private void computeBounds() {
 
-		// Free the dynamically allocated buffers
-		MemoryUtil.memFree(vertexData);
-		MemoryUtil.memFree(indicesData);
+		if(vertices.isEmpty()) {
+			aabbMin.zero();
+			aabbMax.zero();
+			return;
+		}
+
+		aabbMin.set(Float.POSITIVE_INFINITY);
+		aabbMax.set(Float.NEGATIVE_INFINITY);
+
+		for(final Vertex vertex : vertices) {
+			aabbMin.min(vertex.position);
+			aabbMax.max(vertex.position);
+		}
+
+		aabbMin.add(aabbMax, sphereCenter).mul(0.5f);
+
+		float radiusSquared = 0.0f;
+		for(final Vertex vertex : vertices) {
+			radiusSquared = Math.max(radiusSquared, sphereCenter.distanceSquared(vertex.position));
+		}
+		sphereRadius = (float)Math.sqrt(radiusSquared);
+	}
+
+	/**
+	 * Computes the smallest sphere centered in the bounding box that contains all the vertex positions,
+	 * which is usually tighter than the sphere around the box
+	 * */
+	private void computeBoundingSphere(ByteBuffer data) {
+
+		aabbMin.add(aabbMax, sphereCenter).mul(0.5f);
+
+		// The data may come from a mapped file, whose byte order is not the native one
+		final ByteBuffer vertexData = data.duplicate().order(ByteOrder.nativeOrder());
+
+		final int stride = Vertex.sizeof();
+		final int start = vertexData.position();
+		final int count = vertexData.remaining() / stride;
+
+		float radiusSquared = 0.0f;
+		for(int i = 0;i < count;i++) {
+			final int position = start + i * stride;
+			radiusSquared = Math.max(radiusSquared, sphereCenter.distanceSquared(
+					vertexData.getFloat(position), vertexData.getFloat(position + 4), vertexData.getFloat(position + 8)));
+		}
+		sphereRadius = (float)Math.sqrt(radiusSquared);
 	}
 
 	private FloatBuffer getVertexData() {
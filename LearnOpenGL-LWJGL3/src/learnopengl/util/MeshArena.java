@@ -0,0 +1,298 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Shared vertex and index buffers the meshes of one vertex format are suballocated from.
+ *
+ * Instead of a vertex array and two buffers per mesh, each mesh gets a range of vertices and a range of indices of
+ * two large buffers, handed out by a {@link RangeAllocator}, and all of them share one vertex array. Meshes are drawn
+ * with glDrawElementsBaseVertex, so their indices stay relative to their first vertex and consecutive meshes don't
+ * need a vertex array bind.
+ *
+ * When a buffer runs out of space it is replaced by one twice as large. When meshes are deleted and the free space
+ * becomes too fragmented, the live ranges are moved to the start of new buffers with glCopyBufferSubData. The
+ * {@link Allocation} of each mesh is updated in place, so it must be read again on every draw.
+ *
+ * Mesh uses the arena set with {@link Mesh#setArena(MeshArena)}.
+ * */
+public class MeshArena {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	// Free space fragmentation above which deleting a mesh compacts the buffers
+	private static final float DEFRAGMENT_THRESHOLD = 0.5f;
+
+	/**
+	 * Ranges of the vertices and indices of a mesh, in elements
+	 * */
+	public static final class Allocation {
+
+		private int baseVertex;
+		private int vertexCount;
+		private int firstIndex;
+		private int indexCount;
+
+		private Allocation() {
+		}
+
+		public int getBaseVertex() {
+			return baseVertex;
+		}
+
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		public int getFirstIndex() {
+			return firstIndex;
+		}
+
+		public int getIndexCount() {
+			return indexCount;
+		}
+
+	}
+
+	public final int vao;
+	public final int vertexSize;
+
+	// Sets the attribute pointers of the vertex format, with the vertex buffer bound
+	private final Runnable vertexFormat;
+
+	private int vbo;
+	private int ebo;
+	private final RangeAllocator vertices;
+	private final RangeAllocator indices;
+	private final List<Allocation> allocations = new ArrayList<>();
+
+	private int defragmentations;
+
+	/**
+	 * Creates an arena for vertices of the given size, in bytes, whose attributes are set by vertexFormat
+	 * */
+	public MeshArena(int vertexSize, Runnable vertexFormat, int vertexCapacity, int indexCapacity) {
+
+		this.vertexSize = vertexSize;
+		this.vertexFormat = vertexFormat;
+
+		vertices = new RangeAllocator(vertexCapacity);
+		indices = new RangeAllocator(indexCapacity);
+
+		vao = glGenVertexArrays();
+		vbo = createBuffer((long)vertexCapacity * vertexSize);
+		ebo = createBuffer((long)indexCapacity * Integer.BYTES);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+		bindBuffers();
+	}
+
+	/**
+	 * Creates an arena for the vertex format of {@link Mesh}
+	 * */
+	public MeshArena(int vertexCapacity, int indexCapacity) {
+		this(Mesh.Vertex.sizeof(), Mesh::setVertexAttributes, vertexCapacity, indexCapacity);
+	}
+
+	/**
+	 * Copies the given interleaved vertices and 32 bit indices into the arena
+	 * */
+	public Allocation allocate(ByteBuffer vertexData, ByteBuffer indexData) {
+
+		final Allocation allocation = new Allocation();
+		allocation.vertexCount = vertexData.remaining() / vertexSize;
+		allocation.indexCount = indexData.remaining() / Integer.BYTES;
+
+		allocation.baseVertex = vertices.allocate(allocation.vertexCount);
+		if(allocation.baseVertex < 0) {
+			resize(Math.max(vertices.getCapacity() * 2, vertices.getUsed() + allocation.vertexCount), indices.getCapacity());
+			allocation.baseVertex = vertices.allocate(allocation.vertexCount);
+		}
+
+		allocation.firstIndex = indices.allocate(allocation.indexCount);
+		if(allocation.firstIndex < 0) {
+			resize(vertices.getCapacity(), Math.max(indices.getCapacity() * 2, indices.getUsed() + allocation.indexCount));
+			allocation.firstIndex = indices.allocate(allocation.indexCount);
+		}
+
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glBufferSubData(GL_ARRAY_BUFFER, (long)allocation.baseVertex * vertexSize, vertexData);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		glBindBuffer(GL_COPY_WRITE_BUFFER, ebo);
+		glBufferSubData(GL_COPY_WRITE_BUFFER, (long)allocation.firstIndex * Integer.BYTES, indexData);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+		allocations.add(allocation);
+
+		return allocation;
+	}
+
+	/**
+	 * Returns the ranges of the allocation to the arena, and compacts it if the free space is too fragmented
+	 * */
+	public void free(Allocation allocation) {
+
+		if(!allocations.remove(allocation)) {
+			return;
+		}
+
+		vertices.free(allocation.baseVertex, allocation.vertexCount);
+		indices.free(allocation.firstIndex, allocation.indexCount);
+
+		if(vertices.getFragmentation() > DEFRAGMENT_THRESHOLD || indices.getFragmentation() > DEFRAGMENT_THRESHOLD) {
+			defragment();
+		}
+	}
+
+	/**
+	 * Moves all the allocations to the start of the buffers, so all the free space is at the end
+	 * */
+	public void defragment() {
+		resize(vertices.getCapacity(), indices.getCapacity());
+		++defragmentations;
+	}
+
+	/**
+	 * Returns the vertex buffer, which is replaced when the arena is resized or defragmented
+	 * */
+	public int getVertexBuffer() {
+		return vbo;
+	}
+
+	/**
+	 * Returns the index buffer, which is replaced when the arena is resized or defragmented
+	 * */
+	public int getIndexBuffer() {
+		return ebo;
+	}
+
+	public int getVertexCapacity() {
+		return vertices.getCapacity();
+	}
+
+	public int getUsedVertices() {
+		return vertices.getUsed();
+	}
+
+	public int getIndexCapacity() {
+		return indices.getCapacity();
+	}
+
+	public int getUsedIndices() {
+		return indices.getUsed();
+	}
+
+	public float getVertexFragmentation() {
+		return vertices.getFragmentation();
+	}
+
+	public float getIndexFragmentation() {
+		return indices.getFragmentation();
+	}
+
+	public int getAllocations() {
+		return allocations.size();
+	}
+
+	public int getDefragmentations() {
+		return defragmentations;
+	}
+
+	public String getStats() {
+		return String.format("MeshArena: %d meshes, vertices %d/%d (%.0f%% fragmented), indices %d/%d (%.0f%% fragmented), %d defragmentations",
+				allocations.size(), vertices.getUsed(), vertices.getCapacity(), vertices.getFragmentation() * 100.0f,
+				indices.getUsed(), indices.getCapacity(), indices.getFragmentation() * 100.0f, defragmentations);
+	}
+
+	public void delete() {
+		GLState.deleteVertexArray(vao);
+		glDeleteBuffers(vbo);
+		glDeleteBuffers(ebo);
+		allocations.clear();
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Replaces the buffers with new ones of the given capacities, copying the allocations packed at their start
+	 * */
+	private void resize(int vertexCapacity, int indexCapacity) {
+
+		logger.fine("Resizing mesh arena to " + vertexCapacity + " vertices and " + indexCapacity + " indices");
+
+		final int newVbo = createBuffer((long)vertexCapacity * vertexSize);
+		glBindBuffer(GL_COPY_READ_BUFFER, vbo);
+
+		allocations.sort(Comparator.comparingInt(Allocation::getBaseVertex));
+
+		int vertexHead = 0;
+		for(final Allocation allocation : allocations) {
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long)allocation.baseVertex * vertexSize,
+					(long)vertexHead * vertexSize, (long)allocation.vertexCount * vertexSize);
+			allocation.baseVertex = vertexHead;
+			vertexHead += allocation.vertexCount;
+		}
+
+		final int newEbo = createBuffer((long)indexCapacity * Integer.BYTES);
+		glBindBuffer(GL_COPY_READ_BUFFER, ebo);
+
+		allocations.sort(Comparator.comparingInt(Allocation::getFirstIndex));
+
+		int indexHead = 0;
+		for(final Allocation allocation : allocations) {
+			// Indices are relative to the base vertex, so moving the vertices doesn't change them
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long)allocation.firstIndex * Integer.BYTES,
+					(long)indexHead * Integer.BYTES, (long)allocation.indexCount * Integer.BYTES);
+			allocation.firstIndex = indexHead;
+			indexHead += allocation.indexCount;
+		}
+
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+		glDeleteBuffers(vbo);
+		glDeleteBuffers(ebo);
+		vbo = newVbo;
+		ebo = newEbo;
+
+		vertices.grow(vertexCapacity);
+		vertices.compact(vertexHead);
+		indices.grow(indexCapacity);
+		indices.compact(indexHead);
+
+		bindBuffers();
+	}
+
+	/**
+	 * Attaches the current buffers to the vertex array
+	 * */
+	private void bindBuffers() {
+		GLState.bindVertexArray(vao);
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		vertexFormat.run();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+		GLState.bindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Creates a buffer of the given size, leaving it bound to GL_COPY_WRITE_BUFFER. Binding it to
+	 * GL_ELEMENT_ARRAY_BUFFER instead would attach it to whatever vertex array is bound
+	 * */
+	private static int createBuffer(long size) {
+		final int buffer = glGenBuffers();
+		glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+		glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+		return buffer;
+	}
+
+}
@@ -0,0 +1,279 @@
+package learnopengl.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import learnopengl.util.Mesh.Vertex;
+
+/**
+ * Binary cache of the meshes imported by {@link Model}, stored next to the source asset.
+ *
+ * Once a model has been imported with ASSIMP, its meshes are written to 'path.meshcache'. The next time
+ * the same model is loaded, the cache file is memory mapped and the vertex and index data is passed
+ * directly to OpenGL, so there is no ASSIMP import and no per-vertex objects at all.
+ * The cache is invalidated when the size or the last modified time of the source file change.
+ *
+ * Layout (little endian):
+ *
+ * header: magic, version, source size, source last modified, mesh count
+ * per mesh: vertex count, index count, AABB min, AABB max, LOD count, index count and error of each LOD,
+ * 			 texture count, texture references (type, path), padding to 4 bytes, interleaved vertices,
+ * 			 indices of all the LODs
+ * */
+final class MeshCache {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	static final String EXTENSION = ".meshcache";
+
+	private static final int MAGIC = 0x4D474C4F; // "OLGM"
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+	private static final int MESH_HEADER_SIZE = 2 * Integer.BYTES + 6 * Float.BYTES + 2 * Integer.BYTES;
+
+	/**
+	 * The data of a single mesh as it is stored in the cache
+	 * */
+	static class Entry {
+
+		// Slices of the mapped file, only valid while the entry is reachable
+		ByteBuffer vertexData;
+		ByteBuffer indexData;
+		// Number of indices and error of each level of detail, stored one after the other in indexData
+		int[] lodIndexCounts;
+		float[] lodErrors;
+		final Vector3f aabbMin = new Vector3f();
+		final Vector3f aabbMax = new Vector3f();
+		String[] textureTypes;
+		String[] texturePaths;
+
+	}
+
+	private MeshCache() {}
+
+	/**
+	 * Maps the cache of the given model and returns its meshes, or null if there is no valid cache for it
+	 * */
+	static List<Entry> load(String sourcePath) {
+
+		final File source = new File(sourcePath);
+		final File cache = new File(sourcePath + EXTENSION);
+
+		if(!cache.isFile() || !isSupported()) {
+			return null;
+		}
+
+		try(FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+
+			// The mapping remains valid after the channel is closed
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.warning("Ignoring mesh cache with unknown format: " + cache);
+				return null;
+			}
+
+			if(buffer.getLong() != source.length() || buffer.getLong() != source.lastModified()) {
+				// The source asset has changed since the cache was written
+				return null;
+			}
+
+			final int meshCount = buffer.getInt();
+
+			List<Entry> entries = new ArrayList<>(meshCount);
+
+			for(int i = 0;i < meshCount;i++) {
+
+				Entry entry = new Entry();
+
+				final int vertexCount = buffer.getInt();
+				final int indexCount = buffer.getInt();
+
+				entry.aabbMin.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+				entry.aabbMax.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+
+				final int lodCount = buffer.getInt();
+				if(lodCount < 1) {
+					throw new IllegalArgumentException("Invalid LOD count " + lodCount);
+				}
+				entry.lodIndexCounts = new int[lodCount];
+				entry.lodErrors = new float[lodCount];
+
+				for(int j = 0;j < lodCount;j++) {
+					entry.lodIndexCounts[j] = buffer.getInt();
+					entry.lodErrors[j] = buffer.getFloat();
+				}
+
+				final int textureCount = buffer.getInt();
+				entry.textureTypes = new String[textureCount];
+				entry.texturePaths = new String[textureCount];
+
+				for(int j = 0;j < textureCount;j++) {
+					entry.textureTypes[j] = getString(buffer);
+					entry.texturePaths[j] = getString(buffer);
+				}
+
+				align(buffer);
+
+				entry.vertexData = slice(buffer, vertexCount * Vertex.sizeof());
+				entry.indexData = slice(buffer, indexCount * Integer.BYTES);
+
+				entries.add(entry);
+			}
+
+			return entries;
+
+		} catch(IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.warning("Failed to read mesh cache " + cache + ": " + e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Writes the given meshes, imported from the given source file, to its cache file
+	 * */
+	static void write(String sourcePath, List<Entry> entries) {
+
+		if(!isSupported()) {
+			return;
+		}
+
+		final File source = new File(sourcePath);
+		final Path cache = new File(sourcePath + EXTENSION).toPath();
+		final Path tmp = new File(sourcePath + EXTENSION + ".tmp").toPath();
+
+		ByteBuffer buffer = null;
+
+		try {
+
+			buffer = MemoryUtil.memAlloc(computeSize(entries));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putLong(source.length()).putLong(source.lastModified());
+			buffer.putInt(entries.size());
+
+			for(final Entry entry : entries) {
+
+				buffer.putInt(entry.vertexData.remaining() / Vertex.sizeof());
+				buffer.putInt(entry.indexData.remaining() / Integer.BYTES);
+
+				buffer.putFloat(entry.aabbMin.x).putFloat(entry.aabbMin.y).putFloat(entry.aabbMin.z);
+				buffer.putFloat(entry.aabbMax.x).putFloat(entry.aabbMax.y).putFloat(entry.aabbMax.z);
+
+				buffer.putInt(entry.lodIndexCounts.length);
+
+				for(int i = 0;i < entry.lodIndexCounts.length;i++) {
+					buffer.putInt(entry.lodIndexCounts[i]).putFloat(entry.lodErrors[i]);
+				}
+
+				buffer.putInt(entry.texturePaths.length);
+
+				for(int i = 0;i < entry.texturePaths.length;i++) {
+					putString(buffer, entry.textureTypes[i]);
+					putString(buffer, entry.texturePaths[i]);
+				}
+
+				align(buffer);
+
+				buffer.put(entry.vertexData.duplicate());
+				buffer.put(entry.indexData.duplicate());
+			}
+
+			buffer.flip();
+
+			// Write to a temporary file first, so a partially written cache is never read
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+
+		} catch(IOException | IllegalStateException e) {
+			logger.warning("Failed to write mesh cache " + cache + ": " + e);
+		} finally {
+			MemoryUtil.memFree(buffer);
+		}
+
+	}
+
+	// ========== Utility functions ===========
+
+	private static boolean isSupported() {
+		// Vertex data is handed as is to OpenGL, so the cache is only valid in little endian machines
+		return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	}
+
+	private static int computeSize(List<Entry> entries) {
+
+		long size = HEADER_SIZE;
+
+		for(final Entry entry : entries) {
+
+			size += MESH_HEADER_SIZE;
+			size += entry.lodIndexCounts.length * (Integer.BYTES + Float.BYTES);
+
+			for(int i = 0;i < entry.texturePaths.length;i++) {
+				size += Integer.BYTES + entry.textureTypes[i].getBytes(StandardCharsets.UTF_8).length;
+				size += Integer.BYTES + entry.texturePaths[i].getBytes(StandardCharsets.UTF_8).length;
+			}
+
+			size = (size + 3) & ~3;
+
+			size += entry.vertexData.remaining();
+			size += entry.indexData.remaining();
+		}
+
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Model too big to be cached: " + size + " bytes");
+		}
+
+		return (int)size;
+	}
+
+	private static void align(ByteBuffer buffer) {
+		buffer.position((buffer.position() + 3) & ~3);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int size) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(buffer.position() + size);
+		buffer.position(buffer.position() + size);
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void putString(ByteBuffer buffer, String str) {
+		final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
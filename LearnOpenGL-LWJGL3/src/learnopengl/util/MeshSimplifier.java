@@ -0,0 +1,534 @@
+package learnopengl.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reduces the triangles of an indexed mesh with quadric error metrics, to generate its levels of detail.
+ *
+ * Each position accumulates the quadric of the planes of its triangles: the sum of the squared distances to them.
+ * The edges are collapsed by moving one of their positions onto the other, cheapest first, where the cost is the
+ * sum of the quadrics of both positions evaluated at the one that remains. The quadric of the removed position is
+ * added to the remaining one, so the cost keeps measuring the distance to the planes of the original surface.
+ *
+ * Only indices change: the simplified triangles reference a subset of the original vertices, so all the levels can
+ * share the vertex buffer of the mesh. Vertices are welded by position to find the edges, so the texture seams of
+ * the mesh don't split it into pieces. A position with several vertices on a seam is only collapsed along the seam,
+ * where each of its vertices has a vertex of the other position in the same texture chart to move to. Positions on
+ * the borders of the mesh are never moved, and collapses that would flip a triangle are skipped.
+ *
+ * The levels are generated in sequence, each one from the previous, with {@link #simplify(int)}, or all at once
+ * with {@link #generateLods(ByteBuffer, int, ByteBuffer, int, float, float[])}.
+ * */
+public final class MeshSimplifier {
+
+	// Collapses that turn a triangle by more than this (as the cosine of the angle) are skipped
+	private static final double MAX_NORMAL_CHANGE = 0.25;
+
+	private final float[] positions;
+	// Welded position of each vertex
+	private final int[] positionIds;
+	// A vertex with each welded position
+	private final int[] representatives;
+	private final double[] quadrics;
+	private final boolean[] locked;
+
+	private final int[] triangles;
+	private int indexCount;
+	private double error;
+
+	/**
+	 * Creates a simplifier for the given interleaved vertices, whose stride is given in floats and whose first eight
+	 * floats are the position, normal and texture coordinates as in {@link Mesh.Vertex}, and the given indices
+	 * */
+	public MeshSimplifier(FloatBuffer vertices, int stride, IntBuffer indices) {
+
+		final int vertexCount = vertices.remaining() / stride;
+		final int base = vertices.position();
+
+		positions = new float[vertexCount * 3];
+		positionIds = new int[vertexCount];
+
+		// Vertices with the same attributes are merged, and vertices with the same position are welded
+		final int[] canonical = new int[vertexCount];
+		final Map<VertexKey, Integer> uniqueVertices = new HashMap<>();
+		final Map<VertexKey, Integer> uniquePositions = new HashMap<>();
+
+		for(int i = 0;i < vertexCount;i++) {
+
+			final float[] attributes = new float[8];
+			for(int j = 0;j < 8;j++) {
+				attributes[j] = vertices.get(base + i * stride + j);
+			}
+			System.arraycopy(attributes, 0, positions, i * 3, 3);
+
+			canonical[i] = uniqueVertices.computeIfAbsent(new VertexKey(attributes, 8), key -> uniqueVertices.size());
+			positionIds[i] = uniquePositions.computeIfAbsent(new VertexKey(attributes, 3), key -> uniquePositions.size());
+		}
+
+		// Map the merged vertices back to the first of them
+		final int[] firstVertex = new int[uniqueVertices.size()];
+		representatives = new int[uniquePositions.size()];
+		Arrays.fill(firstVertex, -1);
+		for(int i = vertexCount - 1;i >= 0;i--) {
+			firstVertex[canonical[i]] = i;
+			representatives[positionIds[i]] = i;
+		}
+
+		indexCount = indices.remaining() - indices.remaining() % 3;
+		triangles = new int[indexCount];
+		for(int i = 0;i < indexCount;i++) {
+			triangles[i] = firstVertex[canonical[indices.get(indices.position() + i)]];
+		}
+
+		quadrics = new double[uniquePositions.size() * 10];
+		locked = new boolean[uniquePositions.size()];
+
+		computeQuadrics();
+		lockBorders();
+		removeDegenerateTriangles();
+	}
+
+	/**
+	 * Collapses edges until there are at most the given number of indices, or no edge can be collapsed,
+	 * and returns the remaining indices. It continues from the result of the previous call
+	 * */
+	public int[] simplify(int targetIndexCount) {
+
+		while(indexCount > targetIndexCount) {
+			if(collapseEdges((indexCount - targetIndexCount) / 3) == 0) {
+				break;
+			}
+		}
+
+		return Arrays.copyOf(triangles, indexCount);
+	}
+
+	/**
+	 * Returns the largest distance from the removed positions to the original surface the simplified mesh may have,
+	 * as the square root of the largest quadric cost of the collapses so far, in the units of the positions
+	 * */
+	public float getError() {
+		return (float)Math.sqrt(error);
+	}
+
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	/**
+	 * Generates the given number of levels of detail, including the original as level 0, for the given interleaved
+	 * vertices (as in {@link Mesh.Vertex}) and 32 bit indices in native order. Each level tries to keep the given
+	 * ratio of the triangles of the previous one, and levels that don't remove at least a tenth of them are not
+	 * generated. Returns the indices of each level, and writes the error of each level to errors
+	 * */
+	public static int[][] generateLods(ByteBuffer vertexData, int stride, ByteBuffer indexData, int levels, float ratio,
+			float[] errors) {
+
+		final IntBuffer indices = indexData.duplicate().order(ByteOrder.nativeOrder()).asIntBuffer();
+		final FloatBuffer vertices = vertexData.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		final int[][] lods = new int[levels][];
+		lods[0] = new int[indices.remaining()];
+		indices.duplicate().get(lods[0]);
+		errors[0] = 0.0f;
+
+		final MeshSimplifier simplifier = new MeshSimplifier(vertices, stride, indices);
+
+		int count = 1;
+		for(;count < levels;count++) {
+
+			final int previous = lods[count - 1].length;
+			final int target = (int)(previous / 3 * ratio) * 3;
+			final int[] lod = simplifier.simplify(target);
+
+			if(lod.length > previous * 0.9f || lod.length == 0) {
+				break;
+			}
+
+			lods[count] = lod;
+			errors[count] = simplifier.getError();
+		}
+
+		return Arrays.copyOf(lods, count);
+	}
+
+	/**
+	 * Same as {@link #generateLods(ByteBuffer, int, ByteBuffer, int, float, float[])}, without the errors
+	 * */
+	public static int[][] generateLods(ByteBuffer vertexData, int stride, ByteBuffer indexData, int levels, float ratio) {
+		return generateLods(vertexData, stride, indexData, levels, ratio, new float[levels]);
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Collapses the cheapest edges that don't touch each other, removing up to the given number of triangles,
+	 * and returns the number of collapses
+	 * */
+	private int collapseEdges(int maxRemovedTriangles) {
+
+		final int triangleCount = indexCount / 3;
+		final int positionCount = locked.length;
+
+		// Triangles around each position
+		final int[] offsets = new int[positionCount + 1];
+		for(int i = 0;i < indexCount;i++) {
+			++offsets[positionIds[triangles[i]] + 1];
+		}
+		for(int i = 0;i < positionCount;i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		final int[] adjacency = new int[indexCount];
+		final int[] heads = Arrays.copyOf(offsets, positionCount);
+		for(int i = 0;i < indexCount;i++) {
+			adjacency[heads[positionIds[triangles[i]]]++] = i / 3;
+		}
+
+		// Both directions of the edges of every triangle, sorted by cost. Costs are positive floats, so their bits
+		// sort like them
+		final long[] candidates = new long[triangleCount * 6];
+		int candidateCount = 0;
+
+		for(int i = 0;i < indexCount;i++) {
+
+			final int from = positionIds[triangles[i]];
+			final int to = positionIds[triangles[i - i % 3 + (i + 1) % 3]];
+
+			if(!locked[from]) {
+				candidates[candidateCount++] = (long)Float.floatToIntBits(cost(from, to)) << 32 | (long)i << 1;
+			}
+
+			if(!locked[to]) {
+				candidates[candidateCount++] = (long)Float.floatToIntBits(cost(to, from)) << 32 | (long)i << 1 | 1;
+			}
+		}
+
+		Arrays.sort(candidates, 0, candidateCount);
+
+		// Positions whose triangles changed in this pass, so the checks of other collapses are still valid
+		final boolean[] touched = new boolean[positionCount];
+		final int[] remap = new int[positions.length / 3];
+		for(int i = 0;i < remap.length;i++) {
+			remap[i] = i;
+		}
+
+		int collapses = 0;
+		int removedTriangles = 0;
+
+		for(int c = 0;c < candidateCount && removedTriangles < maxRemovedTriangles;c++) {
+
+			final int corner = (int)(candidates[c] & 0xFFFFFFFFL) >>> 1;
+			final boolean reversed = (candidates[c] & 1) != 0;
+
+			final int edgeStart = triangles[corner];
+			final int edgeEnd = triangles[corner - corner % 3 + (corner + 1) % 3];
+			final int from = positionIds[reversed ? edgeEnd : edgeStart];
+			final int to = positionIds[reversed ? edgeStart : edgeEnd];
+
+			if(from == to || touched[from] || touched[to]) {
+				continue;
+			}
+
+			final int removed = tryCollapse(from, to, offsets, adjacency, remap);
+
+			if(removed < 0) {
+				continue;
+			}
+
+			error = Math.max(error, Float.intBitsToFloat((int)(candidates[c] >>> 32)));
+
+			for(int i = 0;i < 10;i++) {
+				quadrics[to * 10 + i] += quadrics[from * 10 + i];
+			}
+
+			// Every position of the triangles around the collapsed one keeps its triangles until the next pass
+			for(int i = offsets[from];i < offsets[from + 1];i++) {
+				final int triangle = adjacency[i];
+				for(int j = 0;j < 3;j++) {
+					touched[positionIds[triangles[triangle * 3 + j]]] = true;
+				}
+			}
+
+			removedTriangles += removed;
+			++collapses;
+		}
+
+		for(int i = 0;i < indexCount;i++) {
+			triangles[i] = remap[triangles[i]];
+		}
+
+		removeDegenerateTriangles();
+
+		return collapses;
+	}
+
+	/**
+	 * Finds the vertex each vertex of the position from moves to, and checks that no triangle flips. If the collapse
+	 * is valid, writes the vertices to remap and returns the number of triangles it removes, otherwise returns -1
+	 * */
+	private int tryCollapse(int from, int to, int[] offsets, int[] adjacency, int[] remap) {
+
+		final int start = offsets[from];
+		final int end = offsets[from + 1];
+
+		// Each vertex of from moves to a vertex of to that shares a triangle with it, so it stays in its chart
+		final int[] wedges = new int[end - start];
+		final int[] targets = new int[end - start];
+		int wedgeCount = 0;
+		int removed = 0;
+
+		for(int i = start;i < end;i++) {
+
+			final int triangle = adjacency[i];
+			int fromVertex = -1;
+			int toVertex = -1;
+
+			for(int j = 0;j < 3;j++) {
+				final int vertex = triangles[triangle * 3 + j];
+				if(positionIds[vertex] == from) {
+					fromVertex = vertex;
+				} else if(positionIds[vertex] == to) {
+					toVertex = vertex;
+				}
+			}
+
+			if(toVertex != -1) {
+				++removed;
+				if(indexOf(wedges, wedgeCount, fromVertex) == -1) {
+					wedges[wedgeCount] = fromVertex;
+					targets[wedgeCount++] = toVertex;
+				}
+			}
+		}
+
+		final float tx = positions[representatives[to] * 3];
+		final float ty = positions[representatives[to] * 3 + 1];
+		final float tz = positions[representatives[to] * 3 + 2];
+
+		for(int i = start;i < end;i++) {
+
+			final int triangle = adjacency[i];
+			int fromCorner = -1;
+			boolean hasTo = false;
+
+			for(int j = 0;j < 3;j++) {
+				final int id = positionIds[triangles[triangle * 3 + j]];
+				if(id == from) {
+					fromCorner = j;
+				} else if(id == to) {
+					hasTo = true;
+				}
+			}
+
+			// A vertex in a chart that doesn't reach the other position would stretch the texture across a seam
+			if(indexOf(wedges, wedgeCount, triangles[triangle * 3 + fromCorner]) == -1) {
+				return -1;
+			}
+
+			if(!hasTo && flips(triangle, fromCorner, tx, ty, tz)) {
+				return -1;
+			}
+		}
+
+		for(int i = 0;i < wedgeCount;i++) {
+			remap[wedges[i]] = targets[i];
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Returns true if moving the given corner of the triangle to the given position turns it too much
+	 * */
+	private boolean flips(int triangle, int corner, float x, float y, float z) {
+
+		final int a = triangles[triangle * 3 + corner] * 3;
+		final int b = triangles[triangle * 3 + (corner + 1) % 3] * 3;
+		final int c = triangles[triangle * 3 + (corner + 2) % 3] * 3;
+
+		// Edges from the moving corner to the other two, before and after the move
+		final double bx = positions[b] - positions[a], by = positions[b + 1] - positions[a + 1], bz = positions[b + 2] - positions[a + 2];
+		final double cx = positions[c] - positions[a], cy = positions[c + 1] - positions[a + 1], cz = positions[c + 2] - positions[a + 2];
+		final double nbx = positions[b] - x, nby = positions[b + 1] - y, nbz = positions[b + 2] - z;
+		final double ncx = positions[c] - x, ncy = positions[c + 1] - y, ncz = positions[c + 2] - z;
+
+		final double nx = by * cz - bz * cy, ny = bz * cx - bx * cz, nz = bx * cy - by * cx;
+		final double mx = nby * ncz - nbz * ncy, my = nbz * ncx - nbx * ncz, mz = nbx * ncy - nby * ncx;
+
+		final double dot = nx * mx + ny * my + nz * mz;
+		final double lengths = Math.sqrt((nx * nx + ny * ny + nz * nz) * (mx * mx + my * my + mz * mz));
+
+		return dot <= MAX_NORMAL_CHANGE * lengths;
+	}
+
+	/**
+	 * Returns the cost of moving the position from onto the position to
+	 * */
+	private float cost(int from, int to) {
+
+		final int vertex = representatives[to];
+		final double x = positions[vertex * 3];
+		final double y = positions[vertex * 3 + 1];
+		final double z = positions[vertex * 3 + 2];
+
+		final double cost = evaluate(from, x, y, z) + evaluate(to, x, y, z);
+
+		return (float)Math.max(cost, 0.0);
+	}
+
+	private double evaluate(int position, double x, double y, double z) {
+		final double[] q = quadrics;
+		final int i = position * 10;
+		return q[i] * x * x + 2.0 * q[i + 1] * x * y + 2.0 * q[i + 2] * x * z + 2.0 * q[i + 3] * x
+				+ q[i + 4] * y * y + 2.0 * q[i + 5] * y * z + 2.0 * q[i + 6] * y
+				+ q[i + 7] * z * z + 2.0 * q[i + 8] * z
+				+ q[i + 9];
+	}
+
+	/**
+	 * Adds the plane of each triangle to the quadrics of its positions
+	 * */
+	private void computeQuadrics() {
+
+		for(int i = 0;i < indexCount;i += 3) {
+
+			final int a = triangles[i] * 3;
+			final int b = triangles[i + 1] * 3;
+			final int c = triangles[i + 2] * 3;
+
+			final double ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1], uz = positions[b + 2] - positions[a + 2];
+			final double vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1], vz = positions[c + 2] - positions[a + 2];
+
+			double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+			final double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+			if(length == 0.0) {
+				continue;
+			}
+
+			nx /= length;
+			ny /= length;
+			nz /= length;
+			final double d = -(nx * positions[a] + ny * positions[a + 1] + nz * positions[a + 2]);
+
+			for(int j = 0;j < 3;j++) {
+				final int q = positionIds[triangles[i + j]] * 10;
+				quadrics[q] += nx * nx;
+				quadrics[q + 1] += nx * ny;
+				quadrics[q + 2] += nx * nz;
+				quadrics[q + 3] += nx * d;
+				quadrics[q + 4] += ny * ny;
+				quadrics[q + 5] += ny * nz;
+				quadrics[q + 6] += ny * d;
+				quadrics[q + 7] += nz * nz;
+				quadrics[q + 8] += nz * d;
+				quadrics[q + 9] += d * d;
+			}
+		}
+	}
+
+	/**
+	 * Locks the positions on edges with a single triangle, so the outline of open meshes is kept
+	 * */
+	private void lockBorders() {
+
+		final Map<Long, Integer> edges = new HashMap<>();
+
+		for(int i = 0;i < indexCount;i++) {
+			final int a = positionIds[triangles[i]];
+			final int b = positionIds[triangles[i - i % 3 + (i + 1) % 3]];
+			edges.merge((long)Math.min(a, b) << 32 | Math.max(a, b), 1, Integer::sum);
+		}
+
+		for(final Map.Entry<Long, Integer> edge : edges.entrySet()) {
+			if(edge.getValue() == 1) {
+				locked[(int)(edge.getKey() >>> 32)] = true;
+				locked[(int)(edge.getKey() & 0xFFFFFFFFL)] = true;
+			}
+		}
+	}
+
+	private void removeDegenerateTriangles() {
+
+		int head = 0;
+
+		for(int i = 0;i < indexCount;i += 3) {
+
+			final int a = positionIds[triangles[i]];
+			final int b = positionIds[triangles[i + 1]];
+			final int c = positionIds[triangles[i + 2]];
+
+			if(a != b && b != c && a != c) {
+				triangles[head++] = triangles[i];
+				triangles[head++] = triangles[i + 1];
+				triangles[head++] = triangles[i + 2];
+			}
+		}
+
+		indexCount = head;
+	}
+
+	private static int indexOf(int[] array, int length, int value) {
+		for(int i = 0;i < length;i++) {
+			if(array[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Attributes of a vertex compared by value
+	 * */
+	private static final class VertexKey {
+
+		private final float[] values;
+		private final int length;
+		private final int hash;
+
+		VertexKey(float[] values, int length) {
+			this.values = values;
+			this.length = length;
+			int hash = 1;
+			for(int i = 0;i < length;i++) {
+				hash = 31 * hash + Float.floatToIntBits(values[i]);
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if(!(obj instanceof VertexKey)) {
+				return false;
+			}
+
+			final VertexKey other = (VertexKey)obj;
+
+			if(other.length != length) {
+				return false;
+			}
+
+			for(int i = 0;i < length;i++) {
+				if(Float.floatToIntBits(values[i]) != Float.floatToIntBits(other.values[i])) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+	}
+
+}
@@ -1,8 +1,7 @@
 package learnopengl.util;
 
 import static org.lwjgl.assimp.Assimp.*;
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.system.MemoryUtil.*;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
@@ -12,7 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
-import org.joml.Vector2f;
+import org.joml.Matrix4fc;
 import org.joml.Vector3f;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.AIFace;
@@ -22,7 +21,6 @@ import org.lwjgl.assimp.AINode;
 import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.AIString;
 import org.lwjgl.assimp.AIVector3D;
-import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 
 import learnopengl.util.Mesh.Texture;
@@ -32,74 +30,57 @@ public class Model {
 
 	private static Logger logger = Logger.getAnonymousLogger();
 
-	private static int textureFromFile(String path, String directory, boolean gamma) {
-
-		final String filename = directory + '/' + path;
-
-		final int textureID = glGenTextures();
-
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-
-			IntBuffer width = stack.ints(0);
-			IntBuffer height = stack.ints(0);
-			IntBuffer nrComponents = stack.ints(0);
-			
-			final ByteBuffer data = STBImage.stbi_load(filename, width, height, nrComponents, 0);
-
-			if(data == null) {
-				logger.severe("Texture failed to load at path: " + filename);
-				return textureID;
-			}
-
-			int format = 0;
-
-			switch(nrComponents.get(0)) {
-
-			case 1:
-				format = GL_RED;
-				break;
-			case 2:
-				format = GL_RG;
-				break;
-			case 3:
-				format = GL_RGB;
-				break;
-			case 4:
-				format = GL_RGBA;
-			}
-			
-			glBindTexture(GL_TEXTURE_2D, textureID);
-			glTexImage2D(GL_TEXTURE_2D, 0, format, width.get(0), height.get(0), 0, format, GL_UNSIGNED_BYTE, data);
-			glGenerateMipmap(GL_TEXTURE_2D);
-
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-			
-			STBImage.stbi_image_free(data);
-
-			return textureID;
-		}
+	/** Levels of detail generated for each mesh of the models that ask for them, including the full resolution one */
+	public static final int MAX_LODS = 4;
+	// Fraction of the triangles of the previous level each level keeps
+	private static final float LOD_RATIO = 0.5f;
 
+	private static int textureFromFile(String path, String directory, boolean gamma) {
+		// The image is decoded in the background, the texture shows a placeholder until then
+		return TextureLoader.loadTexture(directory + '/' + path, false, gamma);
 	}
 
 	/* Model Data */
 	// Stores all the textures loaded so far, optimization to make sure textures aren't loaded more than once.
 	public Map<String, Texture> texturesLoaded; 
 	public List<Mesh> meshes;
+	// Axis aligned bounding box of all the meshes, in model space
+	public final Vector3f aabbMin = new Vector3f();
+	public final Vector3f aabbMax = new Vector3f();
 	private String directory;
 	private boolean gammaCorrection;
+	private boolean retainData;
+	private boolean generateLods;
 
 	/* Functions */
 
 	/**
-	 * Constructor, expects a filepath to a 3D model
+	 * Constructor, expects a filepath to a 3D model.
+	 * If retainData is false, the meshes won't keep a CPU side copy of their vertices and indices.
+	 * If generateLods is true, the meshes are simplified into up to {@link #MAX_LODS} levels of detail when imported
 	 * */
-	public Model(String path, boolean gamma) {
+	public Model(String path, boolean gamma, boolean retainData, boolean generateLods) {
 		gammaCorrection = gamma;
+		this.retainData = retainData;
+		this.generateLods = generateLods;
 		texturesLoaded = new HashMap<>();
 		loadModel(path);
+		computeBounds();
+	}
+
+	/**
+	 * Constructor, expects a filepath to a 3D model.
+	 * If retainData is false, the meshes won't keep a CPU side copy of their vertices and indices
+	 * */
+	public Model(String path, boolean gamma, boolean retainData) {
+		this(path, gamma, retainData, false);
+	}
+
+	/**
+	 * Constructor, expects a filepath to a 3D model
+	 * */
+	public Model(String path, boolean gamma) {
+		this(path, gamma, true);
 	}
 
 	/**
@@ -118,6 +99,86 @@ public class Model {
 		}
 	}
 
+	/**
+	 * Draws the meshes of the model that may be visible in the frustum with the given model matrix.
+	 * The model matrix must be set in the shader as with {@link #draw(Shader)}
+	 * */
+	public void draw(Shader shader, Matrix4fc model, Frustum frustum) {
+
+		// If the whole model is outside, its meshes don't have to be tested
+		if(!frustum.testBox(aabbMin, aabbMax, model)) {
+			frustum.addCulled(meshes.size());
+			return;
+		}
+
+		for(final Mesh mesh : meshes) {
+			if(frustum.isVisible(mesh, model)) {
+				mesh.draw(shader);
+			}
+		}
+	}
+
+	/**
+	 * Adds an opaque draw of each mesh of the model to the queue, instead of drawing them right away
+	 * */
+	public void submit(RenderQueue queue, Shader shader, Matrix4fc model) {
+		submit(queue, shader, model, false);
+	}
+
+	/**
+	 * Adds a draw of each mesh of the model to the queue, instead of drawing them right away
+	 * */
+	public void submit(RenderQueue queue, Shader shader, Matrix4fc model, boolean translucent) {
+		for(final Mesh mesh : meshes) {
+			queue.submit(shader, mesh, model, translucent);
+		}
+	}
+
+	/**
+	 * Adds an opaque draw of each mesh of the model that may be visible in the frustum
+	 * */
+	public void submit(RenderQueue queue, Shader shader, Matrix4fc model, Frustum frustum) {
+
+		if(!frustum.testBox(aabbMin, aabbMax, model)) {
+			frustum.addCulled(meshes.size());
+			return;
+		}
+
+		for(final Mesh mesh : meshes) {
+			if(frustum.isVisible(mesh, model)) {
+				queue.submit(shader, mesh, model, false);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of levels of detail all the meshes of the model have
+	 * */
+	public int getLodCount() {
+
+		int count = MAX_LODS;
+
+		for(final Mesh mesh : meshes) {
+			count = Math.min(count, mesh.getLodCount());
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the largest error of the given level of detail among the meshes, in model space
+	 * */
+	public float getLodError(int lod) {
+
+		float error = 0.0f;
+
+		for(final Mesh mesh : meshes) {
+			error = Math.max(error, mesh.getLodError(lod));
+		}
+
+		return error;
+	}
+
 	/**
 	 * Deletes the model, thus all its meshes and textures
 	 * */
@@ -128,7 +189,7 @@ public class Model {
 
 		for(final Texture texture : texturesLoaded.values()) {
 			if(texture != null) {
-				glDeleteTextures(texture.id);
+				TextureCache.release(texture.id);
 			}
 		}
 
@@ -142,6 +203,14 @@ public class Model {
 	 */
 	private void loadModel(String path) {
 
+		// Retrieve the directory path of the filepath
+		directory = path.substring(0, path.lastIndexOf('/'));
+
+		// If this model was imported before, load it from its binary cache and skip ASSIMP altogether
+		if(loadCachedModel(path)) {
+			return;
+		}
+
 		// Read file via ASSIMP
 		final AIScene scene = aiImportFile(path, 
 				  aiProcess_Triangulate
@@ -156,23 +225,64 @@ public class Model {
 			return;
 		}
 
-		// Retrieve the directory path of the filepath
-		directory = path.substring(0, path.lastIndexOf('/'));
-		
 		meshes = new ArrayList<>(scene.mNumMeshes());
+		// The native data of each mesh is kept until it is written to the cache
+		List<MeshCache.Entry> entries = new ArrayList<>(scene.mNumMeshes());
 
 		// Process ASSIMP's root node recursively
-		processNode(scene.mRootNode(), scene);
+		processNode(scene.mRootNode(), scene, entries);
 
 		// Release all ASSIMP allocated resources
 		aiReleaseImport(scene);
+
+		// Store the processed meshes, so next time the model can be loaded without ASSIMP
+		MeshCache.write(path, entries);
+
+		for(final MeshCache.Entry entry : entries) {
+			memFree(entry.vertexData);
+			memFree(entry.indexData);
+		}
+	}
+
+	/**
+	 * Loads the meshes from the binary cache of the model, if there is a valid one.
+	 * The vertex and index data is uploaded straight from the mapped file.
+	 * */
+	private boolean loadCachedModel(String path) {
+
+		final List<MeshCache.Entry> entries = MeshCache.load(path);
+
+		if(entries == null) {
+			return false;
+		}
+
+		// A cache written without levels of detail is imported again to generate them. One with them is fine either way
+		if(generateLods && entries.stream().allMatch(entry -> entry.lodIndexCounts.length == 1)) {
+			return false;
+		}
+
+		meshes = new ArrayList<>(entries.size());
+
+		for(final MeshCache.Entry entry : entries) {
+
+			List<Texture> textures = new ArrayList<>(entry.texturePaths.length);
+
+			for(int i = 0;i < entry.texturePaths.length;i++) {
+				textures.add(loadTexture(entry.texturePaths[i], entry.textureTypes[i]));
+			}
+
+			meshes.add(new Mesh(entry.vertexData, entry.indexData, entry.lodIndexCounts, entry.lodErrors, textures, 
+					entry.aabbMin, entry.aabbMax, retainData));
+		}
+
+		return true;
 	}
 
 	/**
 	 * Processes a node in a recursive fashion. Processes each individual mesh located 
 	 * at the node and repeats this process on its children nodes (if any).
 	 * */
-	private void processNode(AINode node, AIScene scene) {
+	private void processNode(AINode node, AIScene scene, List<MeshCache.Entry> entries) {
 		
 		// Process each mesh located at the current node
 		final int numMeshes = node.mNumMeshes();
@@ -182,7 +292,7 @@ public class Model {
 			// The node object only contains indices to index the actual objects in the scene. 
 			// The scene contains all the data, node is just to keep stuff organized (like relations between nodes).
 			AIMesh mesh = AIMesh.createSafe(meshesBuffer.get(meshesIndicesBuffer.get(i)));
-			meshes.add(processMesh(mesh, scene));
+			meshes.add(processMesh(mesh, scene, entries));
 		}
 
 		// After we've processed all of the meshes (if any) we then recursively process each of the children nodes
@@ -190,72 +300,55 @@ public class Model {
 		PointerBuffer childrenBuffer = node.mChildren();
 		for(int i = 0;i < numChildren;i++) {
 			AINode child = AINode.createSafe(childrenBuffer.get(i));
-			processNode(child, scene);
+			processNode(child, scene, entries);
 		}
 
 	}
 	
-	private Mesh processMesh(AIMesh mesh, AIScene scene) {
+	/**
+	 * Creates a mesh from the given ASSIMP mesh. The vertex attributes and the indices are copied directly from 
+	 * ASSIMP's native arrays into a single interleaved native buffer, so no per-vertex objects are created.
+	 * */
+	private Mesh processMesh(AIMesh mesh, AIScene scene, List<MeshCache.Entry> entries) {
 
 		// Data to fill
-		ArrayList<Vertex> vertices = new ArrayList<>();
-		ArrayList<Integer> indices = new ArrayList<>();
 		ArrayList<Texture> textures = new ArrayList<>();
 
 		final int numVertices = mesh.mNumVertices();
+		final int stride = Vertex.sizeof();
+
+		// Missing attributes are left as zeros
+		ByteBuffer vertexData = memCalloc(numVertices * stride);
+		final long vertices = memAddress(vertexData);
 
-		AIVector3D.Buffer verticesBuffer = mesh.mVertices();
-		AIVector3D.Buffer normalsBuffer = mesh.mNormals();
+		// Copy each attribute into its place of the interleaved buffer (see Vertex)
+		copyAttribute(mesh.mVertices(), numVertices, 3, vertices, 0, stride);
+		copyAttribute(mesh.mNormals(), numVertices, 3, vertices, 3 * Float.BYTES, stride);
 		// A vertex can contain up to 8 different texture coordinates. We thus make the assumption that we won't 
 		// use models where a vertex can have multiple texture coordinates so we always take the first set (0).
-		AIVector3D.Buffer texCoordsBuffer = mesh.mTextureCoords(0);
-		AIVector3D.Buffer tangentBuffer = mesh.mTangents();
-		AIVector3D.Buffer bitangentBuffer = mesh.mBitangents();
-
-		// Walk through each of the mesh's vertices
-		for(int i = 0;i < numVertices;i++) {
-
-			Vertex vertex = new Vertex();
-
-			// Position
-			AIVector3D pos = verticesBuffer.get(i);
-			vertex.position = new Vector3f(pos.x(), pos.y(), pos.z());
-
-			// Normal
-			AIVector3D normal = normalsBuffer.get(i);
-			vertex.normal = new Vector3f(normal.x(), normal.y(), normal.z());
-
-			// Texture coordinates
-			if(texCoordsBuffer != null) { // Does the mesh contain texture coordinates?
-				AIVector3D texCoords = texCoordsBuffer.get(i);
-				vertex.texCoords = new Vector2f(texCoords.x(), texCoords.y());
-			} else {
-				vertex.texCoords = new Vector2f(0.0f);
-			}
-			
-			// Tangent
-			AIVector3D tangent = tangentBuffer.get(i);
-			vertex.tangent = new Vector3f(tangent.x(), tangent.y(), tangent.z());
+		// ASSIMP stores them as 3D vectors, we only take the first 2 components.
+		copyAttribute(mesh.mTextureCoords(0), numVertices, 2, vertices, 6 * Float.BYTES, stride);
+		copyAttribute(mesh.mTangents(), numVertices, 3, vertices, 8 * Float.BYTES, stride);
+		copyAttribute(mesh.mBitangents(), numVertices, 3, vertices, 11 * Float.BYTES, stride);
 
-			// Bitangent
-			AIVector3D bitangent = bitangentBuffer.get(i);
-			vertex.bitangent = new Vector3f(bitangent.x(), bitangent.y(), bitangent.z());
+		// Now walk through each of the mesh's faces (a face is a mesh its triangle) and 
+		// copy the corresponding vertex indices. We read the faces by address to avoid creating an AIFace per face
+		final int numFaces = mesh.mNumFaces();
+		final long faces = mesh.mFaces().address();
 
-			vertices.add(vertex);
+		int numIndices = 0;
+		for(int i = 0;i < numFaces;i++) {
+			numIndices += AIFace.nmNumIndices(faces + (long)i * AIFace.SIZEOF);
 		}
 
-		// Now walk through each of the mesh's faces (a face is a mesh its triangle) and 
-		// retrieve the corresponding vertex indices.
-		final int numFaces = mesh.mNumFaces();
-		AIFace.Buffer facesBuffer = mesh.mFaces();
+		ByteBuffer indexData = memAlloc(numIndices * Integer.BYTES);
+		long indices = memAddress(indexData);
+
 		for(int i = 0;i < numFaces;i++) {
-			AIFace face = facesBuffer.get(i);
-			// Retrieve all indices of the face and store them into the indices list
-			final int numIndices = face.mNumIndices();
-			IntBuffer indicesBuffer = face.mIndices();
-			for(int j = 0;j < numIndices;j++) {
-				indices.add(indicesBuffer.get(j));
-			}
+			final long face = faces + (long)i * AIFace.SIZEOF;
+			final long size = (long)AIFace.nmNumIndices(face) * Integer.BYTES;
+			memCopy(memGetAddress(face + AIFace.MINDICES), indices, size);
+			indices += size;
 		}
 
 		// Process materials
@@ -282,13 +375,124 @@ public class Model {
 			loadMaterialTextures(material, aiTextureType_HEIGHT, "texture_height", textures);
 		}
 
-		// Shrink the lists to save memory
-		vertices.trimToSize();
-		indices.trimToSize();
 		textures.trimToSize();
-		
+
+		MeshCache.Entry entry = new MeshCache.Entry();
+		entry.vertexData = vertexData;
+		if(generateLods) {
+			entry.indexData = generateLods(vertexData, indexData, numFaces, entry);
+		} else {
+			entry.indexData = indexData;
+			entry.lodIndexCounts = new int[] { indexData.remaining() / Integer.BYTES };
+			entry.lodErrors = new float[] { 0.0f };
+		}
+		computeBounds(mesh.mVertices(), numVertices, entry);
+		entry.textureTypes = new String[textures.size()];
+		entry.texturePaths = new String[textures.size()];
+		for(int i = 0;i < textures.size();i++) {
+			entry.textureTypes[i] = textures.get(i).type;
+			entry.texturePaths[i] = textures.get(i).path;
+		}
+		entries.add(entry);
+
 		// Return a mesh object created from the extracted mesh data
-		return new Mesh(vertices, indices, textures);
+		return new Mesh(vertexData, entry.indexData, entry.lodIndexCounts, entry.lodErrors, textures, 
+				entry.aabbMin, entry.aabbMax, retainData);
+	}
+
+	/**
+	 * Simplifies the mesh into its levels of detail, and returns the indices of all of them one after the other,
+	 * freeing the given indices. Meshes with points or lines are kept as they are
+	 * */
+	private static ByteBuffer generateLods(ByteBuffer vertexData, ByteBuffer indexData, int numFaces, MeshCache.Entry entry) {
+
+		final int indexCount = indexData.remaining() / Integer.BYTES;
+
+		if(indexCount != numFaces * 3) {
+			entry.lodIndexCounts = new int[] { indexCount };
+			entry.lodErrors = new float[] { 0.0f };
+			return indexData;
+		}
+
+		final float[] errors = new float[MAX_LODS];
+		final int[][] lods = MeshSimplifier.generateLods(vertexData, Vertex.sizeof() / Float.BYTES, indexData, MAX_LODS, 
+				LOD_RATIO, errors);
+
+		entry.lodIndexCounts = new int[lods.length];
+		entry.lodErrors = new float[lods.length];
+
+		int totalIndices = 0;
+		for(int i = 0;i < lods.length;i++) {
+			entry.lodIndexCounts[i] = lods[i].length;
+			entry.lodErrors[i] = errors[i];
+			totalIndices += lods[i].length;
+		}
+
+		final ByteBuffer lodData = memAlloc(totalIndices * Integer.BYTES);
+		final IntBuffer lodIndices = lodData.asIntBuffer();
+		for(final int[] lod : lods) {
+			lodIndices.put(lod);
+		}
+
+		memFree(indexData);
+
+		return lodData;
+	}
+
+	/**
+	 * Computes the bounding box of the model from the bounding boxes of its meshes
+	 * */
+	private void computeBounds() {
+
+		if(meshes == null || meshes.isEmpty()) {
+			return;
+		}
+
+		aabbMin.set(Float.POSITIVE_INFINITY);
+		aabbMax.set(Float.NEGATIVE_INFINITY);
+
+		for(final Mesh mesh : meshes) {
+			aabbMin.min(mesh.aabbMin);
+			aabbMax.max(mesh.aabbMax);
+		}
+	}
+
+	/**
+	 * Copies the first components of each vector into the interleaved vertex buffer
+	 * */
+	private static void copyAttribute(AIVector3D.Buffer src, int count, int components, long dst, int offset, int stride) {
+
+		if(src == null) {
+			return;
+		}
+
+		final long srcAddress = src.address();
+		final long size = components * Float.BYTES;
+
+		for(int i = 0;i < count;i++) {
+			memCopy(srcAddress + (long)i * AIVector3D.SIZEOF, dst + (long)i * stride + offset, size);
+		}
+	}
+
+	private static void computeBounds(AIVector3D.Buffer positions, int count, MeshCache.Entry entry) {
+
+		if(count == 0) {
+			return;
+		}
+
+		entry.aabbMin.set(Float.POSITIVE_INFINITY);
+		entry.aabbMax.set(Float.NEGATIVE_INFINITY);
+
+		final long address = positions.address();
+
+		for(int i = 0;i < count;i++) {
+			final long position = address + (long)i * AIVector3D.SIZEOF;
+			final float x = memGetFloat(position);
+			final float y = memGetFloat(position + Float.BYTES);
+			final float z = memGetFloat(position + 2 * Float.BYTES);
+			entry.aabbMin.set(Math.min(entry.aabbMin.x, x), Math.min(entry.aabbMin.y, y), Math.min(entry.aabbMin.z, z));
+			entry.aabbMax.set(Math.max(entry.aabbMax.x, x), Math.max(entry.aabbMax.y, y), Math.max(entry.aabbMax.z, z));
+		}
 	}
 
 	/**
@@ -313,24 +517,32 @@ public class Model {
 					continue;
 				}
 
-				// Check if texture was loaded before and if so, continue to next iteration: skip loading a new texture
-				if(texturesLoaded.containsKey(path)) {
-					textures.add(texturesLoaded.get(path));
-
-				} else { // If texture hasn't been loaded already, load it
-					Texture texture = new Texture();
-					texture.id = textureFromFile(path, directory, false);
-					texture.type = typeName;
-					texture.path = path;
-					textures.add(texture);
-					// Store it as texture loaded for entire model, to ensure we won't unnecesary load duplicate textures.
-					texturesLoaded.put(path, texture);
-				}
-
+				textures.add(loadTexture(path, typeName));
 			}
 
 		}
 
 	}
 
+	/**
+	 * Returns the texture at the given path, loading it if it hasn't been loaded yet
+	 * */
+	private Texture loadTexture(String path, String typeName) {
+
+		// Check if texture was loaded before and if so, return it: skip loading a new texture
+		if(texturesLoaded.containsKey(path)) {
+			return texturesLoaded.get(path);
+		}
+
+		// If texture hasn't been loaded already, load it
+		Texture texture = new Texture();
+		texture.id = textureFromFile(path, directory, false);
+		texture.type = typeName;
+		texture.path = path;
+		// Store it as texture loaded for entire model, to ensure we won't unnecesary load duplicate textures.
+		texturesLoaded.put(path, texture);
+
+		return texture;
+	}
+
 }
@@ -0,0 +1,492 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Matrix4fc;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Draws many instances of one or more models with a few draw calls.
+ *
+ * The meshes of all the models are packed into a single vertex buffer and a single index buffer, sharing one
+ * vertex array, so drawing them doesn't need a vertex array bind per mesh. If all of them were allocated from the
+ * same {@link MeshArena}, they are drawn from its buffers instead, at the ranges of each mesh. The model matrix of
+ * each instance is an instanced vertex attribute, a mat4 at location {@link #INSTANCE_MATRIX_LOCATION}, so the
+ * vertex shader must declare it instead of the model uniform:
+ *
+ * layout (location = 5) in mat4 aInstanceMatrix;
+ *
+ * With OpenGL 4.3, or ARB_multi_draw_indirect and ARB_base_instance, the draws are written as
+ * DrawElementsIndirectCommand records, one per mesh of each instance, whose baseInstance selects the matrix of the
+ * instance, and drawn with glMultiDrawElementsIndirect. Without bindless textures, all the draws of a call must share
+ * the same textures, so there is one call per material (set of textures) instead of one per mesh and instance.
+ * Otherwise, each draw is issued with glDrawElementsBaseVertex, pointing the instanced attribute to its matrix.
+ *
+ * Meshes that are not in an arena must keep a copy of their data, see {@link Model#Model(String, boolean, boolean)}.
+ *
+ * Usage, once per frame:
+ *
+ * batch.add(nanosuit, modelMatrix);
+ * ...
+ * batch.draw(shader);
+ * */
+public class ModelBatch {
+
+	public static final int INSTANCE_MATRIX_LOCATION = 5;
+
+	// count, instanceCount, firstIndex, baseVertex, baseInstance
+	private static final int COMMAND_SIZE = 5 * Integer.BYTES;
+	private static final int MATRIX_SIZE = 16 * Float.BYTES;
+
+	public final boolean multiDrawIndirect;
+	public final int maxInstances;
+
+	private final int vao;
+	private final int vbo;
+	private final int ebo;
+	// Arena all the meshes were allocated from, or null if they are packed into vbo and ebo
+	private final MeshArena arena;
+	private final MeshArena.Allocation[][] allocations;
+	// Buffers of the arena the vertex array points to, as they are replaced when it is resized
+	private int arenaVertexBuffer;
+	private int arenaIndexBuffer;
+	private final StreamBuffer instanceBuffer;
+	private final StreamBuffer commandBuffer;
+
+	private final List<Model> models;
+	// Location of each mesh of each model in the shared buffers, and its material
+	private final int[][] indexCounts;
+	private final int[][] firstIndices;
+	private final int[][] baseVertices;
+	private final int[][] meshMaterials;
+	// Mesh whose textures are bound for each material
+	private final List<Mesh> materials = new ArrayList<>();
+	// Number of draws of each material in the current frame, and the offset of their commands
+	private final int[] materialDraws;
+	private final int[] materialOffsets;
+	private final int maxDraws;
+
+	/* Instances of the frame */
+	private int instanceCount;
+	private final int[] instanceModels;
+	private final float[] instanceMatrices;
+
+	private int drawCalls;
+
+	/**
+	 * Creates a batch that can draw up to maxInstances instances of the given models per frame
+	 * */
+	public ModelBatch(int maxInstances, Model... models) {
+
+		this.maxInstances = maxInstances;
+		this.models = Arrays.asList(models);
+
+		final GLCapabilities caps = GL.getCapabilities();
+
+		multiDrawIndirect = caps.OpenGL43 || (caps.GL_ARB_multi_draw_indirect && caps.GL_ARB_base_instance);
+
+		arena = getSharedArena(models);
+
+		indexCounts = new int[models.length][];
+		firstIndices = new int[models.length][];
+		baseVertices = new int[models.length][];
+		meshMaterials = new int[models.length][];
+		allocations = new MeshArena.Allocation[models.length][];
+
+		int vertexFloats = 0;
+		int indexCount = 0;
+		int maxMeshes = 0;
+
+		final Map<List<Integer>, Integer> materialIds = new HashMap<>();
+
+		for(int i = 0;i < models.length;i++) {
+
+			final List<Mesh> meshes = models[i].meshes;
+
+			indexCounts[i] = new int[meshes.size()];
+			firstIndices[i] = new int[meshes.size()];
+			baseVertices[i] = new int[meshes.size()];
+			meshMaterials[i] = new int[meshes.size()];
+			allocations[i] = new MeshArena.Allocation[meshes.size()];
+
+			maxMeshes = Math.max(maxMeshes, meshes.size());
+
+			for(int j = 0;j < meshes.size();j++) {
+
+				final Mesh mesh = meshes.get(j);
+
+				indexCounts[i][j] = mesh.indexCount;
+				meshMaterials[i][j] = getMaterial(mesh, materialIds);
+
+				if(arena != null) {
+					// Its ranges are read on every draw, as they move when the arena is defragmented
+					allocations[i][j] = mesh.getAllocation();
+					continue;
+				}
+
+				if(mesh.vertexData == null || mesh.indexData == null) {
+					throw new IllegalArgumentException("The meshes of batched models must retain their data");
+				}
+
+				firstIndices[i][j] = indexCount;
+				baseVertices[i][j] = vertexFloats / (Mesh.Vertex.sizeof() / Float.BYTES);
+
+				vertexFloats += mesh.vertexData.length;
+				indexCount += mesh.indexCount;
+			}
+		}
+
+		materialDraws = new int[materials.size()];
+		materialOffsets = new int[materials.size()];
+		maxDraws = maxInstances * maxMeshes;
+
+		instanceModels = new int[maxInstances];
+		instanceMatrices = new float[maxInstances * 16];
+
+		vao = glGenVertexArrays();
+
+		GLState.bindVertexArray(vao);
+
+		if(arena != null) {
+
+			// The vertex array has its own instance attribute, but takes the vertices and indices from the arena
+			vbo = 0;
+			ebo = 0;
+			setArenaBuffers();
+
+		} else {
+
+			// Pack the data of all the meshes
+			final FloatBuffer vertices = memAllocFloat(vertexFloats);
+			final IntBuffer indices = memAllocInt(indexCount);
+
+			for(final Model model : models) {
+				for(final Mesh mesh : model.meshes) {
+					vertices.put(mesh.vertexData);
+					indices.put(mesh.indexData);
+				}
+			}
+
+			vertices.flip();
+			indices.flip();
+
+			vbo = glGenBuffers();
+			ebo = glGenBuffers();
+
+			glBindBuffer(GL_ARRAY_BUFFER, vbo);
+			glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+			Mesh.setVertexAttributes();
+
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+
+			memFree(vertices);
+			memFree(indices);
+		}
+
+		// The matrices of each frame are streamed, and the base instance of each draw selects its matrix
+		instanceBuffer = new StreamBuffer(GL_ARRAY_BUFFER, maxInstances * MATRIX_SIZE);
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer.id);
+		setInstanceAttribute(0L);
+
+		GLState.bindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		commandBuffer = multiDrawIndirect ? new StreamBuffer(GL_DRAW_INDIRECT_BUFFER, maxDraws * COMMAND_SIZE) : null;
+	}
+
+	/**
+	 * Adds an instance of the given model to the next draw. The model must be one of the models of the batch
+	 * */
+	public void add(Model model, Matrix4fc transform) {
+
+		if(instanceCount == maxInstances) {
+			throw new IllegalStateException("Too many instances, the batch was created for " + maxInstances);
+		}
+
+		final int index = models.indexOf(model);
+
+		if(index < 0) {
+			throw new IllegalArgumentException("The model is not part of this batch");
+		}
+
+		instanceModels[instanceCount] = index;
+		transform.get(instanceMatrices, instanceCount * 16);
+
+		++instanceCount;
+	}
+
+	/**
+	 * Draws all the instances added since the last draw, with the given shader. It must be called once per frame
+	 * */
+	public void draw(Shader shader) {
+
+		drawCalls = 0;
+
+		instanceBuffer.beginFrame();
+
+		// Matrices are aligned to their size, so the offset is a whole number of instances
+		final int instanceOffset = instanceBuffer.allocate(Math.max(instanceCount, 1) * MATRIX_SIZE, MATRIX_SIZE);
+		final ByteBuffer instanceData = instanceBuffer.getData();
+		for(int i = 0;i < instanceCount * 16;i++) {
+			instanceData.putFloat(instanceOffset + i * Float.BYTES, instanceMatrices[i]);
+		}
+		instanceBuffer.flush();
+
+		final int baseInstance = instanceOffset / MATRIX_SIZE;
+
+		shader.use();
+		GLState.bindVertexArray(vao);
+
+		if(arena != null) {
+			updateArenaRanges();
+		}
+
+		if(multiDrawIndirect) {
+			drawIndirect(shader, baseInstance);
+		} else {
+			drawDirect(shader, baseInstance);
+		}
+
+		instanceBuffer.endFrame();
+
+		instanceCount = 0;
+	}
+
+	/**
+	 * Returns the number of draw calls issued by the last draw
+	 * */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	public void delete() {
+		GLState.deleteVertexArray(vao);
+		// The buffers of an arena belong to it
+		if(arena == null) {
+			glDeleteBuffers(vbo);
+			glDeleteBuffers(ebo);
+		}
+		instanceBuffer.delete();
+		if(commandBuffer != null) {
+			commandBuffer.delete();
+		}
+	}
+
+	// ========== Utility functions ===========
+
+	private void drawIndirect(Shader shader, int baseInstance) {
+
+		commandBuffer.beginFrame();
+
+		final ByteBuffer commands = commandBuffer.getData();
+
+		// Count the draws of each material, to reserve the space of its commands
+		Arrays.fill(materialDraws, 0);
+		for(int instance = 0;instance < instanceCount;instance++) {
+			for(final int material : meshMaterials[instanceModels[instance]]) {
+				++materialDraws[material];
+			}
+		}
+
+		// Write the commands of all the materials before binding the indirect buffer, so they are sent at once
+		for(int material = 0;material < materials.size();material++) {
+
+			if(materialDraws[material] == 0) {
+				continue;
+			}
+
+			final int offset = commandBuffer.allocate(materialDraws[material] * COMMAND_SIZE, Integer.BYTES);
+			materialOffsets[material] = offset;
+			int command = offset;
+
+			for(int instance = 0;instance < instanceCount;instance++) {
+
+				final int model = instanceModels[instance];
+
+				for(int mesh = 0;mesh < meshMaterials[model].length;mesh++) {
+
+					if(meshMaterials[model][mesh] != material) {
+						continue;
+					}
+
+					commands.putInt(command, indexCounts[model][mesh]);
+					commands.putInt(command + 4, 1);
+					commands.putInt(command + 8, firstIndices[model][mesh]);
+					commands.putInt(command + 12, baseVertices[model][mesh]);
+					commands.putInt(command + 16, baseInstance + instance);
+					command += COMMAND_SIZE;
+				}
+			}
+		}
+
+		commandBuffer.flush();
+
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer.id);
+
+		for(int material = 0;material < materials.size();material++) {
+
+			if(materialDraws[material] == 0) {
+				continue;
+			}
+
+			materials.get(material).bindTextures(shader);
+			glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, materialOffsets[material], materialDraws[material], 0);
+
+			++drawCalls;
+		}
+
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+
+		commandBuffer.endFrame();
+	}
+
+	private void drawDirect(Shader shader, int baseInstance) {
+
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer.id);
+
+		for(int material = 0;material < materials.size();material++) {
+
+			boolean bound = false;
+
+			for(int instance = 0;instance < instanceCount;instance++) {
+
+				final int model = instanceModels[instance];
+
+				for(int mesh = 0;mesh < meshMaterials[model].length;mesh++) {
+
+					if(meshMaterials[model][mesh] != material) {
+						continue;
+					}
+
+					if(!bound) {
+						materials.get(material).bindTextures(shader);
+						bound = true;
+					}
+
+					// Without base instances, the instanced attribute is pointed to the matrix of the instance
+					pointInstanceAttribute((long)(baseInstance + instance) * MATRIX_SIZE);
+					glDrawElementsBaseVertex(GL_TRIANGLES, indexCounts[model][mesh], GL_UNSIGNED_INT,
+							(long)firstIndices[model][mesh] * Integer.BYTES, baseVertices[model][mesh]);
+
+					++drawCalls;
+				}
+			}
+		}
+
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Reads the ranges of the meshes in the arena again, and points the vertex array to the buffers of the arena if
+	 * they were replaced. The vertex array must be bound
+	 * */
+	private void updateArenaRanges() {
+
+		for(int model = 0;model < allocations.length;model++) {
+			for(int mesh = 0;mesh < allocations[model].length;mesh++) {
+				firstIndices[model][mesh] = allocations[model][mesh].getFirstIndex();
+				baseVertices[model][mesh] = allocations[model][mesh].getBaseVertex();
+			}
+		}
+
+		if(arena.getVertexBuffer() != arenaVertexBuffer || arena.getIndexBuffer() != arenaIndexBuffer) {
+			setArenaBuffers();
+		}
+	}
+
+	/**
+	 * Points the vertex attributes and the element buffer of the bound vertex array to the buffers of the arena
+	 * */
+	private void setArenaBuffers() {
+
+		arenaVertexBuffer = arena.getVertexBuffer();
+		arenaIndexBuffer = arena.getIndexBuffer();
+
+		glBindBuffer(GL_ARRAY_BUFFER, arenaVertexBuffer);
+		Mesh.setVertexAttributes();
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, arenaIndexBuffer);
+	}
+
+	/**
+	 * Returns the arena all the meshes of the models were allocated from, or null if any has its own buffers or they
+	 * come from different arenas
+	 * */
+	private static MeshArena getSharedArena(Model[] models) {
+
+		MeshArena shared = null;
+
+		for(final Model model : models) {
+			for(final Mesh mesh : model.meshes) {
+
+				if(mesh.getMeshArena() == null || (shared != null && mesh.getMeshArena() != shared)) {
+					return null;
+				}
+
+				shared = mesh.getMeshArena();
+			}
+		}
+
+		return shared;
+	}
+
+	/**
+	 * Meshes with the same textures, in the same order, share the material
+	 * */
+	private int getMaterial(Mesh mesh, Map<List<Integer>, Integer> materialIds) {
+
+		final List<Integer> textures = new ArrayList<>(mesh.textures.size());
+
+		for(final Mesh.Texture texture : mesh.textures) {
+			textures.add(texture.id);
+		}
+
+		Integer id = materialIds.get(textures);
+
+		if(id == null) {
+			id = materials.size();
+			materialIds.put(textures, id);
+			materials.add(mesh);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Points the instance matrix attribute, one vec4 column per location, to the given offset of the bound buffer
+	 * */
+	private static void setInstanceAttribute(long offset) {
+		for(int i = 0;i < 4;i++) {
+			glEnableVertexAttribArray(INSTANCE_MATRIX_LOCATION + i);
+			glVertexAttribDivisor(INSTANCE_MATRIX_LOCATION + i, 1);
+		}
+		pointInstanceAttribute(offset);
+	}
+
+	private static void pointInstanceAttribute(long offset) {
+		for(int i = 0;i < 4;i++) {
+			glVertexAttribPointer(INSTANCE_MATRIX_LOCATION + i, 4, GL_FLOAT, false, MATRIX_SIZE, offset + i * 4 * Float.BYTES);
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package learnopengl.util;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import learnopengl.util.RangeTask.Range;
+
+/**
+ * Instances orbiting the Y axis in a belt, each spinning around its own axis, simulated in parallel every frame.
+ *
+ * The state is kept as a structure of arrays: one float array per parameter (orbit radius, height, angular speed,
+ * scale, spin axis and speed...), so each pass reads only the parameters it needs, contiguously. The angles are
+ * not stored, but their cosine and sine, which {@link #update(float)} rotates by the step of each instance with only
+ * multiplications and additions, and renormalizes, so no trigonometric function is evaluated per instance and frame.
+ *
+ * Every update also computes the bounding sphere of each instance in world space, in the layout of
+ * {@link InstanceBVH} (4 floats per instance), so the instances can be culled before their matrices are computed.
+ * The matrices, T * S * R as in the asteroids sample, are written directly to memory, for example a persistently
+ * mapped buffer, with {@link #writeMatrices(int[], int, long)}, either for all the instances or only the given ones.
+ *
+ * The instances are split in ranges of {@link #TASK_SIZE}, processed by the given ForkJoinPool. The belt is
+ * generated in parallel too, with one random generator per range seeded from the given seed, so it only depends on
+ * the seed, and not on the number of threads.
+ * */
+public class OrbitSimulation {
+
+	/** Instances processed by a single task */
+	public static final int TASK_SIZE = 8192;
+
+	private static final int MATRIX_SIZE = 16 * Float.BYTES;
+
+	// Longest step of a single update, in seconds. Longer frames slow the belt down instead of losing precision
+	private static final float MAX_STEP = 0.1f;
+
+	public final int instanceCount;
+
+	private final ForkJoinPool pool;
+
+	/* Orbit: radius, height and angular speed around the Y axis, and the cosine and sine of the current angle */
+	private final float[] orbitRadius;
+	private final float[] orbitHeight;
+	private final float[] orbitSpeed;
+	private final float[] orbitCos;
+	private final float[] orbitSin;
+
+	/* Spin: scale, axis and angular speed of each instance, and the cosine and sine of the current angle */
+	private final float[] scale;
+	private final float[] axisX;
+	private final float[] axisY;
+	private final float[] axisZ;
+	private final float[] spinSpeed;
+	private final float[] spinCos;
+	private final float[] spinSin;
+
+	private final float[] spheres;
+
+	// Bounding sphere of the model, in model space
+	private final Vector3f center = new Vector3f();
+	private final float radius;
+
+	/**
+	 * Generates count instances of a model with the given bounding sphere, in model space, orbiting at the given
+	 * radius, displaced by up to offset in each direction (less vertically), as the asteroids sample
+	 * */
+	public OrbitSimulation(int count, long seed, float beltRadius, float offset, Vector3fc modelCenter, float modelRadius,
+			ForkJoinPool pool) {
+
+		this.instanceCount = count;
+		this.pool = pool;
+		this.radius = modelRadius;
+		center.set(modelCenter);
+
+		orbitRadius = new float[count];
+		orbitHeight = new float[count];
+		orbitSpeed = new float[count];
+		orbitCos = new float[count];
+		orbitSin = new float[count];
+		scale = new float[count];
+		axisX = new float[count];
+		axisY = new float[count];
+		axisZ = new float[count];
+		spinSpeed = new float[count];
+		spinCos = new float[count];
+		spinSin = new float[count];
+		spheres = new float[count * 4];
+
+		// One full orbit every two minutes at the radius of the belt, slower outside and faster inside, as planets
+		final double period = 120.0;
+		final double speed = 2.0 * Math.PI / period;
+
+		run((start, end) -> {
+
+			final SplittableRandom random = new SplittableRandom(seed + start / TASK_SIZE * 0x9E3779B97F4A7C15L);
+
+			for(int i = start;i < end;i++) {
+
+				// Displace along the circle in [-offset, offset], less vertically
+				final double angle = 2.0 * Math.PI * i / count;
+				final double x = Math.sin(angle) * beltRadius + random.nextDouble(-offset, offset);
+				final double z = Math.cos(angle) * beltRadius + random.nextDouble(-offset, offset);
+				final double r = Math.max(Math.sqrt(x * x + z * z), 1e-3);
+				final double a = Math.atan2(x, z);
+
+				orbitRadius[i] = (float)r;
+				orbitHeight[i] = (float)(random.nextDouble(-offset, offset) * 0.4);
+				orbitSpeed[i] = (float)(speed * Math.pow(beltRadius / r, 1.5));
+				orbitCos[i] = (float)Math.cos(a);
+				orbitSin[i] = (float)Math.sin(a);
+
+				// Scale between 0.05 and 0.25, and a random rotation around a random axis
+				scale[i] = (float)random.nextDouble(0.05, 0.25);
+
+				final double axisHeight = random.nextDouble(-1.0, 1.0);
+				final double axisAngle = random.nextDouble(2.0 * Math.PI);
+				final double axisRadius = Math.sqrt(1.0 - axisHeight * axisHeight);
+				axisX[i] = (float)(axisRadius * Math.cos(axisAngle));
+				axisY[i] = (float)axisHeight;
+				axisZ[i] = (float)(axisRadius * Math.sin(axisAngle));
+
+				final double spin = random.nextDouble(2.0 * Math.PI);
+				spinSpeed[i] = (float)random.nextDouble(-1.0, 1.0);
+				spinCos[i] = (float)Math.cos(spin);
+				spinSin[i] = (float)Math.sin(spin);
+			}
+
+			computeSpheres(start, end);
+		});
+	}
+
+	/**
+	 * Advances the instances by the given time, in seconds, and recomputes their bounding spheres
+	 * */
+	public void update(float deltaTime) {
+
+		final float step = Math.min(deltaTime, MAX_STEP);
+
+		run((start, end) -> {
+			rotate(orbitCos, orbitSin, orbitSpeed, step, start, end);
+			rotate(spinCos, spinSin, spinSpeed, step, start, end);
+			computeSpheres(start, end);
+		});
+	}
+
+	/**
+	 * Writes the matrices (16 floats each) of the first count instances of indices, or of the first count instances if
+	 * indices is null, consecutively from the given address
+	 * */
+	public void writeMatrices(int[] indices, int count, long address) {
+
+		run(0, count, (start, end) -> {
+			for(int i = start;i < end;i++) {
+				writeMatrix(indices != null ? indices[i] : i, address + (long)i * MATRIX_SIZE);
+			}
+		});
+	}
+
+	/**
+	 * Returns the bounding spheres of the instances, in world space, as 4 floats each: center and radius. The array
+	 * is the same after each update
+	 * */
+	public float[] getSpheres() {
+		return spheres;
+	}
+
+	public int getInstanceCount() {
+		return instanceCount;
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Rotates the angles of the range, given as their cosine and sine, by their speed times the step
+	 * */
+	private static void rotate(float[] cos, float[] sin, float[] speed, float step, int start, int end) {
+
+		for(int i = start;i < end;i++) {
+
+			// The steps are small, so a few terms of the series are as precise as floats
+			final float angle = speed[i] * step;
+			final float angle2 = angle * angle;
+			final float stepCos = 1.0f - angle2 * (0.5f - angle2 * (1.0f / 24.0f));
+			final float stepSin = angle * (1.0f - angle2 * (1.0f / 6.0f - angle2 * (1.0f / 120.0f)));
+
+			final float c = cos[i] * stepCos - sin[i] * stepSin;
+			final float s = sin[i] * stepCos + cos[i] * stepSin;
+
+			// One Newton step towards a unit length, so the rounding errors don't add up over the frames
+			final float normalize = 1.5f - 0.5f * (c * c + s * s);
+			cos[i] = c * normalize;
+			sin[i] = s * normalize;
+		}
+	}
+
+	private void computeSpheres(int start, int end) {
+
+		final float cx = center.x;
+		final float cy = center.y;
+		final float cz = center.z;
+
+		for(int i = start;i < end;i++) {
+
+			// Rotate the center of the model around the spin axis, as in writeMatrix
+			final float x = axisX[i], y = axisY[i], z = axisZ[i];
+			final float c = spinCos[i], s = spinSin[i], t = 1.0f - c;
+			final float dot = (x * cx + y * cy + z * cz) * t;
+			final float rx = cx * c + (y * cz - z * cy) * s + x * dot;
+			final float ry = cy * c + (z * cx - x * cz) * s + y * dot;
+			final float rz = cz * c + (x * cy - y * cx) * s + z * dot;
+
+			final int o = i * 4;
+			spheres[o] = orbitRadius[i] * orbitSin[i] + rx * scale[i];
+			spheres[o + 1] = orbitHeight[i] + ry * scale[i];
+			spheres[o + 2] = orbitRadius[i] * orbitCos[i] + rz * scale[i];
+			spheres[o + 3] = radius * scale[i];
+		}
+	}
+
+	/**
+	 * Writes the matrix translation * scale * rotation of the given instance, in column major order
+	 * */
+	private void writeMatrix(int i, long address) {
+
+		final float x = axisX[i], y = axisY[i], z = axisZ[i];
+		final float c = spinCos[i], s = spinSin[i], t = 1.0f - c;
+		final float k = scale[i];
+
+		memPutFloat(address, (t * x * x + c) * k);
+		memPutFloat(address + 4, (t * x * y + s * z) * k);
+		memPutFloat(address + 8, (t * x * z - s * y) * k);
+		memPutFloat(address + 12, 0.0f);
+
+		memPutFloat(address + 16, (t * x * y - s * z) * k);
+		memPutFloat(address + 20, (t * y * y + c) * k);
+		memPutFloat(address + 24, (t * y * z + s * x) * k);
+		memPutFloat(address + 28, 0.0f);
+
+		memPutFloat(address + 32, (t * x * z + s * y) * k);
+		memPutFloat(address + 36, (t * y * z - s * x) * k);
+		memPutFloat(address + 40, (t * z * z + c) * k);
+		memPutFloat(address + 44, 0.0f);
+
+		memPutFloat(address + 48, orbitRadius[i] * orbitSin[i]);
+		memPutFloat(address + 52, orbitHeight[i]);
+		memPutFloat(address + 56, orbitRadius[i] * orbitCos[i]);
+		memPutFloat(address + 60, 1.0f);
+	}
+
+	private void run(Range range) {
+		run(0, instanceCount, range);
+	}
+
+	private void run(int start, int end, Range range) {
+		RangeTask.run(pool, start, end, TASK_SIZE, range);
+	}
+
+}
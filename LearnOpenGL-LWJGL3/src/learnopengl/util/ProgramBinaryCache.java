@@ -0,0 +1,275 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Persistent cache of linked shader programs.
+ *
+ * Programs are identified by a hash of the sources of their stages and of the vendor, renderer and version strings
+ * of the driver. After a program is linked from source, its binary is retrieved with glGetProgramBinary and stored in
+ * build/shadercache, and the next runs create it from that binary with glProgramBinary instead of compiling and
+ * linking the sources again.
+ *
+ * The driver may still reject a binary, for example after an update that keeps the same version string. In that
+ * case the program is compiled from source as usual and its binary is stored again.
+ *
+ * It requires OpenGL 4.1 or ARB_get_program_binary and at least one binary format. Otherwise, programs are always
+ * compiled from source.
+ *
+ * Layout (little endian):
+ *
+ * header: magic, version, key, binary format, binary length
+ * then the program binary
+ * */
+public final class ProgramBinaryCache {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	private static final File DIRECTORY = new File("build/shadercache");
+	private static final String EXTENSION = ".progbin";
+
+	private static final int MAGIC = 0x42475250; // "PRGB"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+
+	private static boolean enabled = true;
+
+	private static Boolean supported;
+	private static long driverHash;
+
+	private static long hits;
+	private static long misses;
+	private static long programTime;
+
+	public static void setEnabled(boolean enabled) {
+		ProgramBinaryCache.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static long getHits() {
+		return hits;
+	}
+
+	public static long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the total time spent creating programs, either from the cache or from source, in milliseconds
+	 * */
+	public static double getProgramTime() {
+		return programTime / 1e6;
+	}
+
+	public static String getStats() {
+		return String.format("ProgramBinaryCache: %d hits, %d misses, %.2f ms creating programs", hits, misses, getProgramTime());
+	}
+
+	// ========== Used by the Shader classes ===========
+
+	/**
+	 * Returns the program whose stages have the given sources, from the cache if possible.
+	 * Otherwise, the program is created with the given compiler and stored in the cache if it links successfully
+	 * */
+	static int getProgram(IntSupplier compiler, String... sources) {
+
+		final long start = System.nanoTime();
+
+		try {
+
+			if(!isSupported()) {
+				return compiler.getAsInt();
+			}
+
+			final long key = computeKey(sources);
+			final File cache = getCacheFile(key);
+
+			int program = load(cache, key);
+
+			if(program != 0) {
+				++hits;
+				return program;
+			}
+
+			++misses;
+
+			program = compiler.getAsInt();
+
+			if(glGetProgrami(program, GL_LINK_STATUS) == GL_TRUE) {
+				save(cache, key, program);
+			}
+
+			return program;
+
+		} finally {
+			programTime += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Asks the driver to keep the binary of the given program retrievable. Must be called before linking it
+	 * */
+	static void setRetrievable(int program) {
+		if(isSupported()) {
+			glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+		}
+	}
+
+	// ========== Utility functions ===========
+
+	private static boolean isSupported() {
+
+		if(supported == null) {
+
+			final GLCapabilities caps = GL.getCapabilities();
+
+			supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary) && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+
+			if(supported) {
+				driverHash = hashString(glGetString(GL_VENDOR), 0);
+				driverHash = hashString(glGetString(GL_RENDERER), driverHash);
+				driverHash = hashString(glGetString(GL_VERSION), driverHash);
+			}
+		}
+
+		return enabled && supported;
+	}
+
+	private static long computeKey(String... sources) {
+
+		long key = driverHash;
+
+		for(final String source : sources) {
+			key = hashString(source, key);
+		}
+
+		return key;
+	}
+
+	private static File getCacheFile(long key) {
+		return new File(DIRECTORY, Long.toHexString(key) + EXTENSION);
+	}
+
+	private static int load(File cache, long key) {
+
+		if(!cache.isFile()) {
+			return 0;
+		}
+
+		try(FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != key) {
+				logger.warning("Ignoring invalid program binary cache: " + cache);
+				return 0;
+			}
+
+			final int format = buffer.getInt();
+			final int length = buffer.getInt();
+
+			if(length != buffer.remaining()) {
+				logger.warning("Ignoring truncated program binary cache: " + cache);
+				return 0;
+			}
+
+			final int program = glCreateProgram();
+
+			glProgramBinary(program, format, buffer);
+
+			if(glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+				// The driver does not accept this binary anymore, it will be replaced with the one linked from source
+				logger.info("Program binary rejected by the driver, compiling from source: " + cache);
+				glDeleteProgram(program);
+				return 0;
+			}
+
+			return program;
+
+		} catch(IOException e) {
+			logger.warning("Failed to read program binary cache " + cache + ": " + e);
+			return 0;
+		}
+	}
+
+	private static void save(File cache, long key, int program) {
+
+		final int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+
+		if(length <= 0) {
+			return;
+		}
+
+		ByteBuffer buffer = memAlloc(HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			IntBuffer written = stack.mallocInt(1);
+			IntBuffer format = stack.mallocInt(1);
+
+			glGetProgramBinary(program, written, format, memSlice(buffer, HEADER_SIZE, length));
+
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(format.get(0)).putInt(written.get(0));
+			buffer.limit(HEADER_SIZE + written.get(0));
+			buffer.rewind();
+
+			DIRECTORY.mkdirs();
+
+			final Path tmp = new File(cache.getPath() + ".tmp").toPath();
+
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			Files.move(tmp, cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} catch(IOException e) {
+			logger.warning("Failed to write program binary cache " + cache + ": " + e);
+		} finally {
+			memFree(buffer);
+		}
+	}
+
+	private static long hashString(String str, long seed) {
+
+		// The sources may not fit in the stack
+		ByteBuffer utf8 = memUTF8(str, false);
+
+		try {
+			return XXH64(utf8, seed);
+		} finally {
+			memFree(utf8);
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+package learnopengl.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Allocates ranges of a linear space, like the elements of a buffer, keeping track of the free ranges.
+ *
+ * It doesn't touch any memory, it only hands out offsets. The free ranges are kept sorted by offset, to merge
+ * them with their neighbours when a range is freed, and by size, to find the smallest free range that fits a request
+ * (best fit) in logarithmic time.
+ * */
+public final class RangeAllocator {
+
+	private int capacity;
+	private int used;
+
+	// Size of each free range, by offset
+	private final TreeMap<Integer, Integer> freeByOffset = new TreeMap<>();
+	// Free ranges as size << 32 | offset, so they are sorted by size and then by offset
+	private final TreeSet<Long> freeBySize = new TreeSet<>();
+
+	public RangeAllocator(int capacity) {
+		this.capacity = capacity;
+		addFree(0, capacity);
+	}
+
+	/**
+	 * Returns the offset of a free range of the given size, or -1 if there is no free range large enough
+	 * */
+	public int allocate(int size) {
+
+		if(size == 0) {
+			return 0;
+		}
+
+		final Long block = freeBySize.ceiling((long)size << 32);
+
+		if(block == null) {
+			return -1;
+		}
+
+		final int offset = (int)(block & 0xFFFFFFFFL);
+		final int blockSize = (int)(block >>> 32);
+
+		removeFree(offset, blockSize);
+
+		if(blockSize > size) {
+			addFree(offset + size, blockSize - size);
+		}
+
+		used += size;
+
+		return offset;
+	}
+
+	/**
+	 * Returns the given range to the free ranges, merging it with the adjacent free ranges
+	 * */
+	public void free(int offset, int size) {
+
+		if(size == 0) {
+			return;
+		}
+
+		used -= size;
+
+		int start = offset;
+		int end = offset + size;
+
+		final Map.Entry<Integer, Integer> previous = freeByOffset.floorEntry(offset);
+
+		if(previous != null && previous.getKey() + previous.getValue() == offset) {
+			start = previous.getKey();
+			removeFree(previous.getKey(), previous.getValue());
+		}
+
+		final Integer nextSize = freeByOffset.get(end);
+
+		if(nextSize != null) {
+			removeFree(end, nextSize);
+			end += nextSize;
+		}
+
+		addFree(start, end - start);
+	}
+
+	/**
+	 * Increases the capacity, adding the new space at the end
+	 * */
+	public void grow(int capacity) {
+
+		if(capacity <= this.capacity) {
+			return;
+		}
+
+		final int oldCapacity = this.capacity;
+		this.capacity = capacity;
+
+		// Freeing the new space as if it had been allocated merges it with a free range at the end
+		used += capacity - oldCapacity;
+		free(oldCapacity, capacity - oldCapacity);
+	}
+
+	/**
+	 * Marks the first used elements as allocated and the rest as free, after the allocations have been compacted
+	 * */
+	public void compact(int used) {
+		freeByOffset.clear();
+		freeBySize.clear();
+		this.used = used;
+		addFree(used, capacity - used);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getUsed() {
+		return used;
+	}
+
+	public int getFree() {
+		return capacity - used;
+	}
+
+	public int getFreeRanges() {
+		return freeByOffset.size();
+	}
+
+	public int getLargestFreeRange() {
+		return freeBySize.isEmpty() ? 0 : (int)(freeBySize.last() >>> 32);
+	}
+
+	/**
+	 * Returns the fraction of the free space that is not part of the largest free range, from 0 (all the free space
+	 * is contiguous) to almost 1 (the free space is split into many small ranges)
+	 * */
+	public float getFragmentation() {
+		final int free = getFree();
+		return free == 0 ? 0.0f : 1.0f - (float)getLargestFreeRange() / free;
+	}
+
+	// ========== Utility functions ===========
+
+	private void addFree(int offset, int size) {
+		if(size > 0) {
+			freeByOffset.put(offset, size);
+			freeBySize.add((long)size << 32 | offset);
+		}
+	}
+
+	private void removeFree(int offset, int size) {
+		freeByOffset.remove(offset);
+		freeBySize.remove((long)size << 32 | offset);
+	}
+
+}
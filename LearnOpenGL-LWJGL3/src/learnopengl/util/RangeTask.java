@@ -0,0 +1,53 @@
+package learnopengl.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range in halves, down to the given grain, aligned to the grain so the ranges don't depend on the splits.
+ * Used by the classes that run their work on a given ForkJoinPool, such as {@link OrbitSimulation} and
+ * {@link ClusteredLights}
+ * */
+final class RangeTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	interface Range {
+		void run(int start, int end);
+	}
+
+	private final Range range;
+	private final int start;
+	private final int end;
+	private final int grain;
+
+	private RangeTask(Range range, int start, int end, int grain) {
+		this.range = range;
+		this.start = start;
+		this.end = end;
+		this.grain = grain;
+	}
+
+	/**
+	 * Runs the range from start to end on the pool, in ranges of at most grain elements, and waits for them
+	 * */
+	static void run(ForkJoinPool pool, int start, int end, int grain, Range range) {
+		if(end > start) {
+			pool.invoke(new RangeTask(range, start, end, grain));
+		}
+	}
+
+	@Override
+	protected void compute() {
+
+		if(end - start <= grain) {
+			range.run(start, end);
+			return;
+		}
+
+		final int tasks = (end - start + grain - 1) / grain;
+		final int middle = start + tasks / 2 * grain;
+		invokeAll(new RangeTask(range, start, middle, grain), new RangeTask(range, middle, end, grain));
+	}
+
+}
@@ -0,0 +1,382 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+
+/**
+ * Collects the draws of a frame and submits them sorted, instead of in the order the code issues them.
+ *
+ * Each submitted draw (shader, mesh, model matrix) is turned into a 64 bit key, and the keys are sorted with a
+ * radix sort before drawing:
+ *
+ * opaque:      0 | program (10) | material (16) | mesh (13) | depth (24)
+ * translucent: 1 | inverted depth (24) | program (10) | material (16) | mesh (13)
+ *
+ * So opaque draws are grouped by program, then by material (the textures of the mesh) and mesh, and the draws with
+ * the same state are ordered front to back, to make the most of early depth testing. Translucent draws come after all
+ * the opaque ones, back to front, with blending enabled.
+ *
+ * Programs, materials and meshes get small ids in the order they are first seen. The depth is the view space depth
+ * of the center of the bounding box of the mesh, set with {@link #setView(Matrix4fc)}. Positive floats sort as their
+ * bits, so the depth keeps the 24 most significant bits of its float representation.
+ *
+ * The draws are stored in arrays that only grow, so submitting and sorting don't allocate once the queue is warm.
+ *
+ * queue.setView(view);
+ * model.submit(queue, shader, modelMatrix);
+ * queue.flush();
+ * */
+public class RenderQueue {
+
+	private static final int PROGRAM_BITS = 10;
+	private static final int MATERIAL_BITS = 16;
+	private static final int MESH_BITS = 13;
+	private static final int DEPTH_BITS = 24;
+
+	private static final long TRANSLUCENT = 1L << 63;
+
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX = 1 << RADIX_BITS;
+	private static final int PASSES = Long.SIZE / RADIX_BITS;
+
+	// Name of the mat4 uniform the model matrix of each draw is set to
+	private final String modelUniform;
+
+	private final Matrix4f view = new Matrix4f();
+	private final Matrix4f modelView = new Matrix4f();
+	private final Matrix4f model = new Matrix4f();
+	private final Vector3f center = new Vector3f();
+
+	// Small ids of the programs, materials and meshes seen so far
+	private final Map<Shader, Integer> programIds = new IdentityHashMap<>();
+	private final List<Shader.Uniform> modelUniforms = new ArrayList<>();
+	private final Map<List<Integer>, Integer> materialIds = new HashMap<>();
+	private final Map<Mesh, Integer> meshMaterials = new IdentityHashMap<>();
+	private final Map<Mesh, Integer> meshIds = new IdentityHashMap<>();
+
+	/* Draws */
+	private int count;
+	private Shader[] shaders = new Shader[64];
+	private Mesh[] meshes = new Mesh[64];
+	private float[] matrices = new float[64 * 16];
+	private long[] keys = new long[64];
+	private int[] order = new int[64];
+	// Scratch buffers of the radix sort
+	private long[] sortedKeys = new long[64];
+	private int[] sortedOrder = new int[64];
+	private final int[] histograms = new int[PASSES * RADIX];
+
+	/* Stats of the last flush */
+	private int draws;
+	private int programChanges;
+	private int materialChanges;
+	private int meshChanges;
+
+	/**
+	 * Creates a queue that sets the model matrix of each draw to the given mat4 uniform
+	 * */
+	public RenderQueue(String modelUniform) {
+		this.modelUniform = modelUniform;
+	}
+
+	/**
+	 * Creates a queue that sets the model matrix of each draw to the uniform "model"
+	 * */
+	public RenderQueue() {
+		this("model");
+	}
+
+	/**
+	 * Sets the view matrix used to compute the depth of the draws submitted from now on
+	 * */
+	public void setView(Matrix4fc view) {
+		this.view.set(view);
+	}
+
+	/**
+	 * Adds an opaque draw of the mesh with the given shader and model matrix
+	 * */
+	public void submit(Shader shader, Mesh mesh, Matrix4fc model) {
+		submit(shader, mesh, model, false);
+	}
+
+	/**
+	 * Adds a draw of the mesh with the given shader and model matrix. The matrix is copied, so it can be reused
+	 * */
+	public void submit(Shader shader, Mesh mesh, Matrix4fc model, boolean translucent) {
+
+		if(count == keys.length) {
+			grow();
+		}
+
+		shaders[count] = shader;
+		meshes[count] = mesh;
+		model.get(matrices, count * 16);
+		keys[count] = computeKey(shader, mesh, model, translucent);
+		order[count] = count;
+
+		++count;
+	}
+
+	/**
+	 * Returns the number of draws submitted since the last flush
+	 * */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Sorts and draws all the submitted draws, and empties the queue.
+	 * Translucent draws are drawn with GL_BLEND enabled, with the blend function set by the caller
+	 * */
+	public void flush() {
+
+		sort();
+
+		draws = count;
+		programChanges = 0;
+		materialChanges = 0;
+		meshChanges = 0;
+
+		Shader lastShader = null;
+		long lastMaterial = -1;
+		Mesh lastMesh = null;
+		boolean blending = false;
+
+		for(int i = 0;i < count;i++) {
+
+			final int draw = order[i];
+			final Shader shader = shaders[draw];
+			final Mesh mesh = meshes[draw];
+
+			if(!blending && (keys[i] & TRANSLUCENT) != 0) {
+				GLState.enable(GL_BLEND);
+				blending = true;
+			}
+
+			if(shader != lastShader) {
+				shader.use();
+				lastShader = shader;
+				++programChanges;
+			}
+
+			final int material = meshMaterials.get(mesh);
+			if(material != lastMaterial) {
+				lastMaterial = material;
+				++materialChanges;
+			}
+
+			if(mesh != lastMesh) {
+				lastMesh = mesh;
+				++meshChanges;
+			}
+
+			modelUniforms.get(programIds.get(shader)).set(model.set(matrices, draw * 16));
+			mesh.draw(shader);
+		}
+
+		if(blending) {
+			GLState.disable(GL_BLEND);
+		}
+
+		clear();
+	}
+
+	/**
+	 * Discards the submitted draws without drawing them
+	 * */
+	public void clear() {
+		// Drop the references so deleted shaders and meshes can be collected
+		Arrays.fill(shaders, 0, count, null);
+		Arrays.fill(meshes, 0, count, null);
+		count = 0;
+	}
+
+	/**
+	 * Forgets the ids of the programs, materials and meshes seen so far. Call it after deleting them
+	 * */
+	public void reset() {
+		clear();
+		programIds.clear();
+		modelUniforms.clear();
+		materialIds.clear();
+		meshMaterials.clear();
+		meshIds.clear();
+	}
+
+	public int getDraws() {
+		return draws;
+	}
+
+	public int getProgramChanges() {
+		return programChanges;
+	}
+
+	public int getMaterialChanges() {
+		return materialChanges;
+	}
+
+	public int getMeshChanges() {
+		return meshChanges;
+	}
+
+	public String getStats() {
+		return String.format("RenderQueue: %d draws, %d program changes, %d material changes, %d mesh changes",
+				draws, programChanges, materialChanges, meshChanges);
+	}
+
+	// ========== Utility functions ===========
+
+	private long computeKey(Shader shader, Mesh mesh, Matrix4fc model, boolean translucent) {
+
+		final long program = getProgramId(shader) & mask(PROGRAM_BITS);
+		final long material = getMaterialId(mesh) & mask(MATERIAL_BITS);
+		final long meshId = getMeshId(mesh) & mask(MESH_BITS);
+
+		// View space depth of the center of the bounding box. The camera looks down -z
+		mesh.aabbMin.add(mesh.aabbMax, center).mul(0.5f);
+		view.mul(model, modelView).transformPosition(center);
+		final float depth = Math.max(-center.z, 0.0f);
+
+		// The sign bit is always 0, so the next 24 bits are the most significant ones
+		final long depthBits = (Float.floatToRawIntBits(depth) >>> (31 - DEPTH_BITS)) & mask(DEPTH_BITS);
+
+		final long state = (program << (MATERIAL_BITS + MESH_BITS)) | (material << MESH_BITS) | meshId;
+
+		if(translucent) {
+			// Farther draws first
+			return TRANSLUCENT | ((mask(DEPTH_BITS) - depthBits) << (PROGRAM_BITS + MATERIAL_BITS + MESH_BITS)) | state;
+		}
+
+		return (state << DEPTH_BITS) | depthBits;
+	}
+
+	private int getProgramId(Shader shader) {
+
+		Integer id = programIds.get(shader);
+
+		if(id == null) {
+			id = programIds.size();
+			programIds.put(shader, id);
+			modelUniforms.add(shader.getUniform(modelUniform));
+		}
+
+		return id;
+	}
+
+	/**
+	 * Meshes with the same textures, in the same order, share the material id
+	 * */
+	private int getMaterialId(Mesh mesh) {
+
+		Integer id = meshMaterials.get(mesh);
+
+		if(id == null) {
+
+			final List<Integer> textures = new ArrayList<>(mesh.textures.size());
+
+			for(final Mesh.Texture texture : mesh.textures) {
+				textures.add(texture.id);
+			}
+
+			id = materialIds.get(textures);
+
+			if(id == null) {
+				id = materialIds.size();
+				materialIds.put(textures, id);
+			}
+
+			meshMaterials.put(mesh, id);
+		}
+
+		return id;
+	}
+
+	private int getMeshId(Mesh mesh) {
+
+		Integer id = meshIds.get(mesh);
+
+		if(id == null) {
+			id = meshIds.size();
+			meshIds.put(mesh, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Sorts the keys and the draw order with them, with a least significant digit radix sort of 8 bit digits.
+	 * Digits that are the same in all the keys, like the high bits of the ids, are skipped
+	 * */
+	private void sort() {
+
+		Arrays.fill(histograms, 0);
+
+		for(int i = 0;i < count;i++) {
+			final long key = keys[i];
+			for(int pass = 0;pass < PASSES;pass++) {
+				++histograms[pass * RADIX + (int)((key >>> (pass * RADIX_BITS)) & (RADIX - 1))];
+			}
+		}
+
+		for(int pass = 0;pass < PASSES;pass++) {
+
+			final int histogram = pass * RADIX;
+			final int shift = pass * RADIX_BITS;
+
+			// If all the keys have the same digit, this pass wouldn't change the order
+			if(histograms[histogram + (int)((keys[0] >>> shift) & (RADIX - 1))] == count) {
+				continue;
+			}
+
+			// Turn the counts into the first position of each digit
+			int position = 0;
+			for(int digit = 0;digit < RADIX;digit++) {
+				final int digitCount = histograms[histogram + digit];
+				histograms[histogram + digit] = position;
+				position += digitCount;
+			}
+
+			for(int i = 0;i < count;i++) {
+				final long key = keys[i];
+				final int destination = histograms[histogram + (int)((key >>> shift) & (RADIX - 1))]++;
+				sortedKeys[destination] = key;
+				sortedOrder[destination] = order[i];
+			}
+
+			final long[] tmpKeys = keys;
+			keys = sortedKeys;
+			sortedKeys = tmpKeys;
+
+			final int[] tmpOrder = order;
+			order = sortedOrder;
+			sortedOrder = tmpOrder;
+		}
+	}
+
+	private void grow() {
+		final int capacity = keys.length * 2;
+		shaders = Arrays.copyOf(shaders, capacity);
+		meshes = Arrays.copyOf(meshes, capacity);
+		matrices = Arrays.copyOf(matrices, capacity * 16);
+		keys = Arrays.copyOf(keys, capacity);
+		order = Arrays.copyOf(order, capacity);
+		sortedKeys = new long[capacity];
+		sortedOrder = new int[capacity];
+	}
+
+	private static long mask(int bits) {
+		return (1L << bits) - 1;
+	}
+
+}
@@ -2,13 +2,20 @@ package learnopengl.util;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.*;
 import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.joml.Matrix3fc;
@@ -28,98 +35,487 @@ public class Shader {
 
 	private static Logger logger = Logger.getAnonymousLogger();
 	
+	private static long nameLookups;
+	private static long uniformUploads;
+	private static long elidedUploads;
+
+	private static boolean elision = true;
+
+	/**
+	 * Handle of an active uniform of a program, with its location already resolved.
+	 * The program must be in use when setting its value, as with the Shader setters.
+	 *
+	 * Each handle keeps a copy of the last value it uploaded, and setting the same value again
+	 * doesn't call glUniform. Values set behind its back, for example with glUniform and the program id,
+	 * must be followed by {@link Shader#invalidateUniforms()}
+	 * */
+	public static final class Uniform {
+
+		public final String name;
+		public final int location;
+		// GL type of the uniform, for example GL_FLOAT_VEC3 or GL_SAMPLER_2D. 0 if not active
+		public final int type;
+		// Number of elements if it is an array, 1 otherwise
+		public final int size;
+
+		// Bits of the last uploaded value, up to a 4x4 matrix
+		private final int[] shadow = new int[16];
+		private boolean valid;
+		// Handles of every element, if this is the first element of an array
+		private Uniform[] elements;
+
+		private Uniform(String name, int location, int type, int size) {
+			this.name = name;
+			this.location = location;
+			this.type = type;
+			this.size = size;
+		}
+
+		public boolean isActive() {
+			return location != -1;
+		}
+
+		public void set(boolean value) {
+			set(value ? 1 : 0);
+		}
+
+		public void set(int value) {
+			if(!skip(update(0, value))) {
+				glUniform1i(location, value);
+			}
+		}
+
+		public void set(float value) {
+			if(!skip(update(0, value))) {
+				glUniform1f(location, value);
+			}
+		}
+
+		public void set(Vector2fc value) {
+			set(value.x(), value.y());
+		}
+
+		public void set(float x, float y) {
+			if(!skip(update(0, x) | update(1, y))) {
+				glUniform2f(location, x, y);
+			}
+		}
+
+		public void set(Vector3fc value) {
+			set(value.x(), value.y(), value.z());
+		}
+
+		public void set(float x, float y, float z) {
+			if(!skip(update(0, x) | update(1, y) | update(2, z))) {
+				glUniform3f(location, x, y, z);
+			}
+		}
+
+		public void set(Vector4fc value) {
+			set(value.x(), value.y(), value.z(), value.w());
+		}
+
+		public void set(float x, float y, float z, float w) {
+			if(!skip(update(0, x) | update(1, y) | update(2, z) | update(3, w))) {
+				glUniform4f(location, x, y, z, w);
+			}
+		}
+
+		public void set(Matrix3fc matrix) {
+
+			final boolean changed = update(0, matrix.m00()) | update(1, matrix.m01()) | update(2, matrix.m02())
+					| update(3, matrix.m10()) | update(4, matrix.m11()) | update(5, matrix.m12())
+					| update(6, matrix.m20()) | update(7, matrix.m21()) | update(8, matrix.m22());
+
+			if(!skip(changed)) {
+				try(MemoryStack stack = MemoryStack.stackPush()) {
+					glUniformMatrix3fv(location, false, matrix.get(stack.mallocFloat(9)));
+				}
+			}
+		}
+
+		public void set(Matrix4fc matrix) {
+
+			final boolean changed = update(0, matrix.m00()) | update(1, matrix.m01()) | update(2, matrix.m02()) | update(3, matrix.m03())
+					| update(4, matrix.m10()) | update(5, matrix.m11()) | update(6, matrix.m12()) | update(7, matrix.m13())
+					| update(8, matrix.m20()) | update(9, matrix.m21()) | update(10, matrix.m22()) | update(11, matrix.m23())
+					| update(12, matrix.m30()) | update(13, matrix.m31()) | update(14, matrix.m32()) | update(15, matrix.m33());
+
+			if(!skip(changed)) {
+				try(MemoryStack stack = MemoryStack.stackPush()) {
+					glUniformMatrix4fv(location, false, matrix.get(stack.mallocFloat(16)));
+				}
+			}
+		}
+
+		/**
+		 * Forgets the last uploaded value, so the next one is always uploaded
+		 * */
+		public void invalidate() {
+			valid = false;
+		}
+
+		private boolean update(int index, float value) {
+			return update(index, Float.floatToRawIntBits(value));
+		}
+
+		private boolean update(int index, int bits) {
+
+			if(shadow[index] == bits) {
+				return false;
+			}
+
+			shadow[index] = bits;
+
+			return true;
+		}
+
+		/**
+		 * Returns true if the upload can be skipped, because the value didn't change or the uniform is not active
+		 * */
+		private boolean skip(boolean changed) {
+
+			if(location == -1 || (valid && !changed && elision)) {
+				++elidedUploads;
+				return true;
+			}
+
+			valid = true;
+			++uniformUploads;
+
+			return false;
+		}
+
+	}
+
 	public final int id;
+
+	// Active uniforms by name. Arrays are registered with and without [0], and with the name of each element
+	private final Map<String, Uniform> uniforms = new HashMap<>();
+	// Active uniform blocks by name, with their indices
+	private final Map<String, Integer> uniformBlocks = new HashMap<>();
+	// Handles returned for names that are not active uniforms
+	private final Map<String, Uniform> inactiveUniforms = new HashMap<>();
 	
 	public Shader(String vertexPath, String fragmentPath) {
-		final int vertex = createShader(GL_VERTEX_SHADER, readFile(vertexPath));
-		final int fragment = createShader(GL_FRAGMENT_SHADER, readFile(fragmentPath));
+		final String vertexSource = readFile(vertexPath);
+		final String fragmentSource = readFile(fragmentPath);
+
+		id = ProgramBinaryCache.getProgram(() -> {
+
+			final int vertex = createShader(GL_VERTEX_SHADER, vertexSource);
+			final int fragment = createShader(GL_FRAGMENT_SHADER, fragmentSource);
+
+			final int program = createShaderProgram(vertex, fragment);
+
+			glDeleteShader(vertex);
+			glDeleteShader(fragment);
 
-		id = createShaderProgram(vertex, fragment);
+			return program;
 
-		glDeleteShader(vertex);
-		glDeleteShader(fragment);
+		}, vertexSource, fragmentSource);
+
+		reflect();
 	}
 	
 	public Shader(String vertexPath, String fragmentPath, String geometryPath) {
-		final int vertex = createShader(GL_VERTEX_SHADER, readFile(vertexPath));
-		final int fragment = createShader(GL_FRAGMENT_SHADER, readFile(fragmentPath));
-		final int geometry = createShader(GL_GEOMETRY_SHADER, readFile(geometryPath));
+		final String vertexSource = readFile(vertexPath);
+		final String fragmentSource = readFile(fragmentPath);
+		final String geometrySource = readFile(geometryPath);
+
+		id = ProgramBinaryCache.getProgram(() -> {
+
+			final int vertex = createShader(GL_VERTEX_SHADER, vertexSource);
+			final int fragment = createShader(GL_FRAGMENT_SHADER, fragmentSource);
+			final int geometry = createShader(GL_GEOMETRY_SHADER, geometrySource);
+
+			final int program = createShaderProgram(vertex, fragment, geometry);
 
-		id = createShaderProgram(vertex, fragment, geometry);
+			glDeleteShader(vertex);
+			glDeleteShader(fragment);
+			glDeleteShader(geometry);
 
-		glDeleteShader(vertex);
-		glDeleteShader(fragment);
-		glDeleteShader(geometry);
+			return program;
+
+		}, vertexSource, fragmentSource, geometrySource);
+
+		reflect();
+	}
+
+	/**
+	 * Creates a compute program. It requires OpenGL 4.3 or ARB_compute_shader
+	 * */
+	public Shader(String computePath) {
+		final String computeSource = readFile(computePath);
+
+		id = ProgramBinaryCache.getProgram(() -> {
+
+			final int compute = createShader(GL_COMPUTE_SHADER, computeSource);
+
+			final int program = createShaderProgram(compute);
+
+			glDeleteShader(compute);
+
+			return program;
+
+		}, computeSource);
+
+		reflect();
 	}
 
 	public void use() {
-		glUseProgram(id);
+		GLState.useProgram(id);
 	}
 	
 	public void setBool(String name, boolean value) {
-		setInt(name, value ? 1 : 0);
+		getUniform(name).set(value);
 	}
 	
 	public void setInt(String name, int value) {
-		glUniform1i(glGetUniformLocation(id, name), value);
+		getUniform(name).set(value);
 	}
 	
 	public void setFloat(String name, float value) {
-		glUniform1f(glGetUniformLocation(id, name), value);
+		getUniform(name).set(value);
 	}
 	
 	public void setVec2(String name, Vector2fc value) {
-		setVec2(name, value.x(), value.y());
+		getUniform(name).set(value);
 	}
 	
 	public void setVec2(String name, float x, float y) {
-		glUniform2f(glGetUniformLocation(id, name), x, y);
+		getUniform(name).set(x, y);
 	}
 	
 	public void setVec3(String name, Vector3fc value) {
-		setVec3(name, value.x(), value.y(), value.z());
+		getUniform(name).set(value);
 	}
 	
 	public void setVec3(String name, float x, float y, float z) {
-		glUniform3f(glGetUniformLocation(id, name), x, y, z);
+		getUniform(name).set(x, y, z);
 	}
 	
 	public void setVec4(String name, Vector4fc value) {
-		setVec4(name, value.x(), value.y(), value.z(), value.w());
+		getUniform(name).set(value);
 	}
 	
 	public void setVec4(String name, float x, float y, float z, float w) {
-		glUniform4f(glGetUniformLocation(id, name), x, y, z, w);
+		getUniform(name).set(x, y, z, w);
 	}
 	
 	public void setMat3(String name, Matrix3fc matrix) {
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-			glUniformMatrix3fv(glGetUniformLocation(id, name), false, matrix.get(stack.mallocFloat(9)));
-		}
+		getUniform(name).set(matrix);
 	}
 	
 	public void setMat4(String name, Matrix4fc matrix) {
-		try(MemoryStack stack = MemoryStack.stackPush()) {
-			glUniformMatrix4fv(glGetUniformLocation(id, name), false, matrix.get(stack.mallocFloat(16)));
-		}
+		getUniform(name).set(matrix);
 	}
 	
 	public void setMat4Array(String name, Matrix4f[] array) {
+
+		final Uniform uniform = getUniform(name);
+
 		try(MemoryStack stack = MemoryStack.stackPush()) {
 			FloatBuffer buffer = stack.mallocFloat(16 * array.length);
 			for(int i = 0;i < array.length;i++) {
 				array[i].get(i*16, buffer);
 			}
-			nglUniformMatrix4fv(glGetUniformLocation(id, name), array.length, false, MemoryUtil.memAddress(buffer));
+			nglUniformMatrix4fv(uniform.location, array.length, false, MemoryUtil.memAddress(buffer));
+
+			// The handles of the elements keep these values, so setting one of them to the same matrix is still skipped
+			final Uniform[] elements = uniform.elements != null ? uniform.elements : new Uniform[] { uniform };
+			for(int i = 0;i < Math.min(array.length, elements.length);i++) {
+				for(int j = 0;j < 16;j++) {
+					elements[i].update(j, buffer.get(i * 16 + j));
+				}
+				elements[i].valid = true;
+			}
+		}
+
+		++uniformUploads;
+	}
+
+	/**
+	 * Returns the handle of the given uniform, resolved when the program was linked.
+	 * Inactive uniforms return a handle with location -1, whose setters are ignored by OpenGL, as glUniform does.
+	 * Keep the handles of the uniforms updated every frame, so the name is only looked up once
+	 * */
+	public Uniform getUniform(String name) {
+
+		++nameLookups;
+
+		final Uniform uniform = uniforms.get(name);
+
+		return uniform != null ? uniform : inactiveUniform(name);
+	}
+
+	/**
+	 * Returns the handles of the given uniform array, or of the same member of an array of structs,
+	 * for example getUniformArray("lights[%d].Position", 32)
+	 * */
+	public Uniform[] getUniformArray(String format, int length) {
+
+		Uniform[] array = new Uniform[length];
+
+		for(int i = 0;i < length;i++) {
+			array[i] = getUniform(String.format(format, i));
+		}
+
+		return array;
+	}
+
+	/**
+	 * Returns all the active uniforms of the program, outside uniform blocks.
+	 * Arrays appear once per element, plus their name with and without [0]
+	 * */
+	public Collection<Uniform> getUniforms() {
+		return Collections.unmodifiableCollection(uniforms.values());
+	}
+
+	/**
+	 * Returns the index of the given uniform block, or GL_INVALID_INDEX if it is not active
+	 * */
+	public int getUniformBlockIndex(String name) {
+		final Integer index = uniformBlocks.get(name);
+		return index != null ? index : GL_INVALID_INDEX;
+	}
+
+	/**
+	 * Returns the names of the active uniform blocks of the program
+	 * */
+	public Set<String> getUniformBlocks() {
+		return Collections.unmodifiableSet(uniformBlocks.keySet());
+	}
+
+	/**
+	 * Returns the number of uniforms looked up by name, by any shader, since the last reset
+	 * */
+	public static long getNameLookups() {
+		return nameLookups;
+	}
+
+	/**
+	 * Forgets the last values uploaded through the uniform handles of this shader
+	 * */
+	public void invalidateUniforms() {
+		for(final Uniform uniform : uniforms.values()) {
+			uniform.invalidate();
 		}
 	}
+
+	/**
+	 * Returns the number of glUniform calls issued through the shaders since the last reset
+	 * */
+	public static long getUniformUploads() {
+		return uniformUploads;
+	}
+
+	/**
+	 * Returns the number of glUniform calls skipped since the last reset, because the uniform already had that value
+	 * */
+	public static long getElidedUploads() {
+		return elidedUploads;
+	}
+
+	/**
+	 * Resets the counters. Call it once per frame to get the counts of each frame
+	 * */
+	public static void resetCounters() {
+		nameLookups = 0;
+		uniformUploads = 0;
+		elidedUploads = 0;
+	}
+
+	public static String getStats() {
+		return String.format("Shader: %d uniform name lookups, %d uploads issued, %d elided", nameLookups, uniformUploads, 
+				elidedUploads);
+	}
+
+	/**
+	 * Enables or disables skipping the uploads of unchanged values, enabled by default
+	 * */
+	public static void setElision(boolean enabled) {
+		elision = enabled;
+	}
+
+	public static boolean isElision() {
+		return elision;
+	}
 	
 	public void delete() {
-		glDeleteProgram(id);
+		GLState.deleteProgram(id);
 	}
 	
 	
 	// ========== Utility functions ===========
+
+	/**
+	 * Queries the active uniforms and uniform blocks of the program, once, after linking it
+	 * */
+	private void reflect() {
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			IntBuffer size = stack.mallocInt(1);
+			IntBuffer type = stack.mallocInt(1);
+
+			final int uniformCount = glGetProgrami(id, GL_ACTIVE_UNIFORMS);
+
+			for(int i = 0;i < uniformCount;i++) {
+
+				final String name = glGetActiveUniform(id, i, size, type);
+				final int location = glGetUniformLocation(id, name);
+
+				// Members of uniform blocks have no location, they are set through their buffer
+				if(location == -1) {
+					continue;
+				}
+
+				final Uniform uniform = new Uniform(name, location, type.get(0), size.get(0));
+
+				uniforms.put(name, uniform);
+
+				if(name.endsWith("[0]")) {
+
+					// Arrays are reported by their first element, but each element has its own location.
+					// The name without [0] shares the handle of the first element, so they share its last value too
+					final String arrayName = name.substring(0, name.length() - 3);
+
+					uniforms.put(arrayName, uniform);
+
+					uniform.elements = new Uniform[size.get(0)];
+					uniform.elements[0] = uniform;
+
+					for(int element = 1;element < size.get(0);element++) {
+						final String elementName = arrayName + '[' + element + ']';
+						uniform.elements[element] = new Uniform(elementName, glGetUniformLocation(id, elementName), type.get(0), 1);
+						uniforms.put(elementName, uniform.elements[element]);
+					}
+				}
+			}
+
+			final int blockCount = glGetProgrami(id, GL_ACTIVE_UNIFORM_BLOCKS);
+
+			for(int i = 0;i < blockCount;i++) {
+
+				final String name = glGetActiveUniformBlockName(id, i);
+
+				uniformBlocks.put(name, i);
+
+				// GLSL 3.30 can't declare the binding of a block, so the standard ones are bound here
+				final int binding = UniformBuffer.getBinding(name);
+
+				if(binding != -1) {
+					glUniformBlockBinding(id, i, binding);
+				}
+			}
+		}
+	}
+
+	private Uniform inactiveUniform(String name) {
+		// Cache it too, so looking it up again doesn't allocate another handle
+		return inactiveUniforms.computeIfAbsent(name, key -> new Uniform(key, -1, 0, 0));
+	}
 	
 	private String readFile(String path) {
 		
@@ -149,6 +545,8 @@ public class Shader {
 			glAttachShader(program, shader);
 		}
 
+		ProgramBinaryCache.setRetrievable(program);
+
 		glLinkProgram(program);
 
 		// Check for linking errors
@@ -27,13 +27,22 @@ public class Shader2 {
 	public final int id;
 	
 	public Shader2(String vertexPath, String fragmentPath) {
-		final int vertex = createShader(GL_VERTEX_SHADER, readFile(vertexPath));
-		final int fragment = createShader(GL_FRAGMENT_SHADER, readFile(fragmentPath));
+		final String vertexSource = readFile(vertexPath);
+		final String fragmentSource = readFile(fragmentPath);
 
-		id = createShaderProgram(vertex, fragment);
+		id = ProgramBinaryCache.getProgram(() -> {
 
-		glDeleteShader(vertex);
-		glDeleteShader(fragment);
+			final int vertex = createShader(GL_VERTEX_SHADER, vertexSource);
+			final int fragment = createShader(GL_FRAGMENT_SHADER, fragmentSource);
+
+			final int program = createShaderProgram(vertex, fragment);
+
+			glDeleteShader(vertex);
+			glDeleteShader(fragment);
+
+			return program;
+
+		}, vertexSource, fragmentSource);
 	}
 	
 	public void use() {
@@ -122,6 +131,8 @@ public class Shader2 {
 		glAttachShader(program, vertexShader);
 		glAttachShader(program, fragmentShader);
 
+		ProgramBinaryCache.setRetrievable(program);
+
 		glLinkProgram(program);
 
 		// Check for linking errors
@@ -0,0 +1,241 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Ring buffer to stream data that changes every frame, like instance matrices, light arrays or the contents of
+ * uniform blocks, without waiting for the GPU to finish reading the data of the previous frames.
+ *
+ * With OpenGL 4.4 or ARB_buffer_storage, the buffer is split into one region per frame in flight, and it is mapped
+ * once with glBufferStorage and MAP_PERSISTENT | MAP_COHERENT. Each frame writes to its own region, and a fence is
+ * inserted at the end of the frame. A region is only reused once its fence is signaled, so the GPU never reads
+ * data that is being overwritten. If the CPU has to wait for it, the frame counts as a stall.
+ *
+ * Otherwise, as in the OpenGL 3.3 contexts of the samples, the buffer has a single region, which is orphaned with
+ * glBufferData at the start of every frame, and the data is written to memory and sent with {@link #flush()}.
+ *
+ * The buffer is only ever bound to GL_COPY_WRITE_BUFFER to be allocated, orphaned or updated, so whatever the caller
+ * has bound to the target of the buffer, like an indirect command buffer or the element buffer of a vertex array,
+ * stays bound.
+ *
+ * Usage, once per frame:
+ *
+ * stream.beginFrame();
+ * final int offset = stream.allocate(size, alignment);
+ * stream.getData().putFloat(offset, ...);
+ * stream.flush();
+ * glBindBufferRange(GL_UNIFORM_BUFFER, binding, stream.id, offset, size);
+ * ... draw ...
+ * stream.endFrame();
+ * */
+public class StreamBuffer {
+
+	/** Number of frames the GPU may be behind the CPU */
+	public static final int FRAMES_IN_FLIGHT = 3;
+
+	public final int id;
+	public final int target;
+	// Size of the region of each frame
+	public final int frameSize;
+	public final boolean persistent;
+
+	// The persistently mapped buffer, or the memory the current frame is written to before being flushed
+	private final ByteBuffer data;
+	private final long[] fences = new long[FRAMES_IN_FLIGHT];
+
+	private int frame;
+	private int frameStart;
+	private int head;
+	private int flushed;
+
+	private long stalls;
+	private long frameBytes;
+	private long totalBytes;
+
+	/**
+	 * Creates a stream buffer that can hold up to frameSize bytes per frame, to be bound to the given target
+	 * */
+	public StreamBuffer(int target, int frameSize) {
+
+		this.target = target;
+		this.frameSize = frameSize;
+
+		final GLCapabilities caps = GL.getCapabilities();
+
+		persistent = caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+
+		id = glGenBuffers();
+		glBindBuffer(GL_COPY_WRITE_BUFFER, id);
+
+		if(persistent) {
+
+			final int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+			final long size = (long)frameSize * FRAMES_IN_FLIGHT;
+
+			glBufferStorage(GL_COPY_WRITE_BUFFER, size, flags);
+			data = glMapBufferRange(GL_COPY_WRITE_BUFFER, 0, size, flags);
+
+		} else {
+			nglBufferData(GL_COPY_WRITE_BUFFER, frameSize, NULL, GL_STREAM_DRAW);
+			data = memAlloc(frameSize);
+		}
+
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+	}
+
+	/**
+	 * Starts writing the data of a new frame. With a persistent buffer, it waits until the GPU has finished
+	 * reading the region of this frame, written FRAMES_IN_FLIGHT frames ago
+	 * */
+	public void beginFrame() {
+
+		if(persistent) {
+
+			final long fence = fences[frame];
+
+			if(fence != NULL) {
+
+				if(glClientWaitSync(fence, 0, 0) == GL_TIMEOUT_EXPIRED) {
+
+					++stalls;
+
+					// Flush the commands so the fence can be signaled, and wait for it
+					int status;
+					do {
+						status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L);
+					} while(status == GL_TIMEOUT_EXPIRED);
+				}
+
+				glDeleteSync(fence);
+				fences[frame] = NULL;
+			}
+
+			frameStart = frame * frameSize;
+
+		} else {
+
+			// Orphan the storage the GPU may still be reading, and get a new one
+			glBindBuffer(GL_COPY_WRITE_BUFFER, id);
+			nglBufferData(GL_COPY_WRITE_BUFFER, frameSize, NULL, GL_STREAM_DRAW);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+			frameStart = 0;
+		}
+
+		head = frameStart;
+		flushed = frameStart;
+	}
+
+	/**
+	 * Reserves size bytes for this frame, with the given alignment, for example GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT
+	 * for uniform blocks. Returns the offset of the range, both in {@link #getData()} and in the buffer
+	 * */
+	public int allocate(int size, int alignment) {
+
+		final int offset = (head + alignment - 1) / alignment * alignment;
+
+		if(offset + size > frameStart + frameSize) {
+			throw new IllegalStateException("Stream buffer overflow: " + size + " bytes requested, "
+					+ (frameStart + frameSize - offset) + " left of " + frameSize);
+		}
+
+		head = offset + size;
+
+		return offset;
+	}
+
+	/**
+	 * Returns the memory to write the allocated ranges to, at the offsets returned by {@link #allocate(int, int)}
+	 * */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	/**
+	 * Makes the data written since the last flush visible to the GPU. It must be called before drawing with it.
+	 * Persistent buffers are coherent, so it does nothing for them
+	 * */
+	public void flush() {
+
+		if(!persistent && head > flushed) {
+			glBindBuffer(GL_COPY_WRITE_BUFFER, id);
+			nglBufferSubData(GL_COPY_WRITE_BUFFER, flushed, head - flushed, memAddress(data) + flushed);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		}
+
+		flushed = head;
+	}
+
+	/**
+	 * Ends the frame, so its region is not reused until the GPU has executed the commands issued until now
+	 * */
+	public void endFrame() {
+
+		flush();
+
+		if(persistent) {
+			fences[frame] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+			frame = (frame + 1) % FRAMES_IN_FLIGHT;
+		}
+
+		frameBytes = head - frameStart;
+		totalBytes += frameBytes;
+	}
+
+	/**
+	 * Returns the number of frames that had to wait for the GPU to release their region
+	 * */
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Returns the number of bytes streamed in the last frame
+	 * */
+	public long getFrameBytes() {
+		return frameBytes;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public void delete() {
+
+		for(int i = 0;i < FRAMES_IN_FLIGHT;i++) {
+			if(fences[i] != NULL) {
+				glDeleteSync(fences[i]);
+				fences[i] = NULL;
+			}
+		}
+
+		if(persistent) {
+			glBindBuffer(GL_COPY_WRITE_BUFFER, id);
+			glUnmapBuffer(GL_COPY_WRITE_BUFFER);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		} else {
+			memFree(data);
+		}
+
+		glDeleteBuffers(id);
+	}
+
+	/**
+	 * Returns the alignment required for the offsets of the ranges bound to uniform blocks
+	 * */
+	public static int getUniformAlignment() {
+		return glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+	}
+
+}
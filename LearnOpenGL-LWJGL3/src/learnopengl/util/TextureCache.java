@@ -0,0 +1,229 @@
+package learnopengl.util;
+
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Process-wide cache of the textures loaded by {@link TextureLoader}.
+ *
+ * Textures are identified by their file, from its real path, size and modification time, and their sampling
+ * parameters, so the same image is only uploaded once no matter how many models or samples use it, or through
+ * which relative path it is loaded. The file itself is not read, so the thread that owns the OpenGL context never
+ * waits for the disk to find a texture.
+ * Each {@link TextureLoader} load counts as a reference, and each reference must be given back with
+ * {@link #release(int)} instead of deleting the texture. Textures without references stay resident, so
+ * loading them again is free, until the resident size exceeds the budget. Then the least recently used
+ * unreferenced textures are deleted.
+ *
+ * All the methods must be called from the thread that owns the OpenGL context.
+ * */
+public class TextureCache {
+
+	static final long NO_KEY = 0L;
+
+	private static final long DEFAULT_BUDGET = 512L * 1024L * 1024L;
+
+	private static class Entry {
+
+		long key;
+		int texture;
+		int references;
+		// Estimated GPU memory, only known once the image has been uploaded
+		long bytes;
+		boolean resident;
+
+	}
+
+	private static final Map<Long, Entry> entries = new HashMap<>();
+	private static final Map<Integer, Entry> textures = new HashMap<>();
+	// Entries without references, from least to most recently used. These are the only ones that can be evicted
+	private static final LinkedHashMap<Integer, Entry> unreferenced = new LinkedHashMap<>();
+
+	private static long budget = DEFAULT_BUDGET;
+	private static long residentBytes;
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+
+	private TextureCache() {}
+
+	/**
+	 * Gives back a reference to the given texture. When a texture is not referenced anymore,
+	 * it stays in the cache until it needs to be evicted.
+	 * */
+	public static void release(int texture) {
+
+		final Entry entry = textures.get(texture);
+
+		if(entry == null) {
+			// Not shared, so nobody else can be using it. Its image may still be loading
+			TextureLoader.cancel(texture);
+			GLState.deleteTexture(texture);
+			return;
+		}
+
+		if(--entry.references == 0) {
+			unreferenced.put(texture, entry);
+			evict();
+		}
+	}
+
+	/**
+	 * Sets the maximum GPU memory, in bytes, the cached textures should use.
+	 * Referenced textures are never evicted, so the budget can be exceeded if all of them are in use.
+	 * */
+	public static void setBudget(long bytes) {
+		budget = bytes;
+		evict();
+	}
+
+	public static long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the estimated GPU memory used by the cached textures, in bytes
+	 * */
+	public static long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public static int getTextureCount() {
+		return entries.size();
+	}
+
+	public static long getHits() {
+		return hits;
+	}
+
+	public static long getMisses() {
+		return misses;
+	}
+
+	public static long getEvictions() {
+		return evictions;
+	}
+
+	public static String getStats() {
+		return String.format("TextureCache: %d textures, %.2f / %.2f MB resident, %d hits, %d misses, %d evictions",
+				entries.size(), residentBytes / (1024.0 * 1024.0), budget / (1024.0 * 1024.0), hits, misses, evictions);
+	}
+
+	// ========== Used by TextureLoader ===========
+
+	/**
+	 * Computes the key of a texture from the real path, size and modification time of its file and a hash of its
+	 * parameters. Returns NO_KEY if the file cannot be found, so the texture is not cached.
+	 * */
+	static long computeKey(String path, long parameters) {
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			final Path file = Paths.get(path).toRealPath();
+			final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			final String identity = file + "\0" + attributes.size() + "\0" + attributes.lastModifiedTime().toMillis();
+
+			final long key = XXH64(stack.UTF8(identity, false), parameters);
+
+			return key == NO_KEY ? 1L : key;
+
+		} catch(IOException | RuntimeException e) {
+			return NO_KEY;
+		}
+	}
+
+	/**
+	 * Returns a new reference to the texture with the given key, or 0 if it is not in the cache
+	 * */
+	static int acquire(long key) {
+
+		final Entry entry = key == NO_KEY ? null : entries.get(key);
+
+		if(entry == null) {
+			++misses;
+			return 0;
+		}
+
+		++hits;
+
+		if(entry.references++ == 0) {
+			unreferenced.remove(entry.texture);
+		}
+
+		return entry.texture;
+	}
+
+	/**
+	 * Adds a just created texture to the cache, with one reference
+	 * */
+	static void add(long key, int texture) {
+
+		if(key == NO_KEY) {
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.key = key;
+		entry.texture = texture;
+		entry.references = 1;
+
+		entries.put(key, entry);
+		textures.put(texture, entry);
+	}
+
+	/**
+	 * Called once the image of the given texture has been uploaded
+	 * */
+	static void uploaded(int texture, long bytes) {
+
+		final Entry entry = textures.get(texture);
+
+		if(entry == null) {
+			return;
+		}
+
+		entry.bytes = bytes;
+		entry.resident = true;
+		residentBytes += bytes;
+
+		evict();
+	}
+
+	// ========== Utility functions ===========
+
+	private static void evict() {
+
+		Iterator<Entry> iterator = unreferenced.values().iterator();
+
+		while(residentBytes > budget && iterator.hasNext()) {
+
+			final Entry entry = iterator.next();
+
+			// Its image is still being decoded, it will be evicted after it is uploaded
+			if(!entry.resident) {
+				continue;
+			}
+
+			iterator.remove();
+			entries.remove(entry.key);
+			textures.remove(entry.texture);
+
+			GLState.deleteTexture(entry.texture);
+
+			residentBytes -= entry.bytes;
+			++evictions;
+		}
+	}
+
+}
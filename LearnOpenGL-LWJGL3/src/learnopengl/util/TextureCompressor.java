@@ -0,0 +1,364 @@
+package learnopengl.util;
+
+import static org.lwjgl.stb.STBDXT.*;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.stb.STBImageResize.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Offline tool that converts the PNG/JPG textures into KTX2 files with block compressed formats
+ * and their full mip chain, so {@link TextureLoader} can upload them as they are.
+ *
+ * The format is chosen from the channels of the source image, so the compressed texture samples
+ * the same channels as the uncompressed one:
+ *
+ * 1 channel: BC4
+ * 2 channels: BC5
+ * 3 channels, or 4 channels without transparency: BC1
+ * 4 channels: BC3
+ *
+ * The number of channels is also stored in the file, so an opaque image with an alpha channel is still
+ * known to have one when loaded.
+ *
+ * The mip levels are averaged as glGenerateMipmap does for the texture the image is loaded into: as they are
+ * for the linear formats, and in linear space for the sRGB formats. Color images get a second file with the
+ * latter, used by the textures loaded with gamma correction, see {@link KTX2#getCompressedPath(String, boolean)}.
+ * Images whose name tells they hold data instead of colors (normal, disp, spec, metallic...) only get the first.
+ *
+ * Usage: TextureCompressor [--force] [files or directories...]
+ * By default, all the images in resources/textures and resources/objects are converted. Images whose
+ * compressed file is up to date are skipped unless --force is given.
+ * It can also be run with 'gradlew compressTextures'.
+ * */
+public class TextureCompressor {
+
+	private static final String[] DEFAULT_PATHS = {"resources/textures", "resources/objects"};
+	private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".tga", ".bmp"};
+	// Words in the names of the images that hold data instead of colors
+	private static final String[] DATA_NAMES = {"normal", "disp", "spec", "specular", "metallic", "roughness", "ao", "height"};
+
+	public static void main(String[] args) throws IOException {
+
+		boolean force = false;
+		List<String> paths = new ArrayList<>();
+
+		for(final String arg : args) {
+			if(arg.equals("--force")) {
+				force = true;
+			} else {
+				paths.add(arg);
+			}
+		}
+
+		if(paths.isEmpty()) {
+			paths.addAll(Arrays.asList(DEFAULT_PATHS));
+		}
+
+		int converted = 0;
+		int skipped = 0;
+		int failed = 0;
+
+		for(final Path image : findImages(paths)) {
+
+			final File source = image.toFile();
+			final File compressed = new File(KTX2.getCompressedPath(source.getPath(), false));
+			final File srgbCompressed = hasSRGBVariant(source.getPath()) ? new File(KTX2.getCompressedPath(source.getPath(), true)) : null;
+
+			if(!force && isUpToDate(source, compressed) && (srgbCompressed == null || isUpToDate(source, srgbCompressed))) {
+				++skipped;
+				continue;
+			}
+
+			if(compress(source.getPath(), compressed.toPath(), srgbCompressed != null ? srgbCompressed.toPath() : null)) {
+				++converted;
+			} else {
+				++failed;
+			}
+		}
+
+		System.out.println(converted + " textures converted, " + skipped + " up to date, " + failed + " failed");
+	}
+
+	/**
+	 * Compresses the given image into a KTX2 file, and into a second one with the mip levels averaged in
+	 * linear space if srgbDestination is not null. Returns false if the image cannot be loaded
+	 * */
+	public static boolean compress(String path, Path destination, Path srgbDestination) throws IOException {
+
+		ByteBuffer image;
+		int width;
+		int height;
+		int channels;
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			IntBuffer widthBuffer = stack.mallocInt(1);
+			IntBuffer heightBuffer = stack.mallocInt(1);
+			IntBuffer channelsBuffer = stack.mallocInt(1);
+
+			// Always expand to RGBA, the original number of channels decides the format
+			image = stbi_load(path, widthBuffer, heightBuffer, channelsBuffer, 4);
+
+			if(image == null) {
+				System.err.println("Failed to load " + path + ": " + stbi_failure_reason());
+				return false;
+			}
+
+			width = widthBuffer.get(0);
+			height = heightBuffer.get(0);
+			channels = channelsBuffer.get(0);
+		}
+
+		final int vkFormat = getFormat(image, channels);
+
+		try {
+
+			write(image, width, height, channels, vkFormat, false, destination);
+
+			if(srgbDestination != null) {
+				write(image, width, height, channels, vkFormat, true, srgbDestination);
+			}
+
+		} finally {
+			stbi_image_free(image);
+		}
+
+		System.out.println(path + " -> " + destination + (srgbDestination != null ? ", " + srgbDestination : "")
+				+ " (" + width + "x" + height + ", " + getFormatName(vkFormat) + ")");
+
+		return true;
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Writes the image with its mip chain, averaged in linear space if srgb is true, as glGenerateMipmap would do
+	 * */
+	private static void write(ByteBuffer image, int width, int height, int channels, int vkFormat, boolean srgb, Path destination) throws IOException {
+
+		final int levelCount = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+		ByteBuffer[] levels = new ByteBuffer[levelCount];
+
+		ByteBuffer pixels = image;
+		int levelWidth = width;
+		int levelHeight = height;
+
+		try {
+
+			for(int level = 0;level < levelCount;level++) {
+
+				if(level > 0) {
+					// Downsample the previous level
+					final int nextWidth = Math.max(1, levelWidth / 2);
+					final int nextHeight = Math.max(1, levelHeight / 2);
+					ByteBuffer next = memAlloc(nextWidth * nextHeight * 4);
+					if(srgb) {
+						stbir_resize_uint8_srgb(pixels, levelWidth, levelHeight, 0, next, nextWidth, nextHeight, 0, 4,
+								channels == 4 ? 3 : STBIR_ALPHA_CHANNEL_NONE, 0);
+					} else {
+						stbir_resize_uint8(pixels, levelWidth, levelHeight, 0, next, nextWidth, nextHeight, 0, 4);
+					}
+					if(pixels != image) {
+						memFree(pixels);
+					}
+					pixels = next;
+					levelWidth = nextWidth;
+					levelHeight = nextHeight;
+				}
+
+				levels[level] = compressLevel(pixels, levelWidth, levelHeight, vkFormat);
+			}
+
+			KTX2.write(destination, vkFormat, width, height, channels, levels);
+
+		} finally {
+
+			if(pixels != image) {
+				memFree(pixels);
+			}
+
+			for(final ByteBuffer level : levels) {
+				memFree(level);
+			}
+		}
+	}
+
+	private static boolean isUpToDate(File source, File compressed) {
+		return compressed.isFile() && compressed.lastModified() >= source.lastModified();
+	}
+
+	/**
+	 * Returns whether the given image is compressed to BC1 or BC3, which have sRGB formats, and holds colors
+	 * */
+	private static boolean hasSRGBVariant(String path) {
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			IntBuffer width = stack.mallocInt(1);
+			IntBuffer height = stack.mallocInt(1);
+			IntBuffer channels = stack.mallocInt(1);
+
+			if(!stbi_info(path, width, height, channels)) {
+				return false;
+			}
+
+			return channels.get(0) >= 3 && !isData(path);
+		}
+	}
+
+	private static List<Path> findImages(List<String> paths) throws IOException {
+
+		List<Path> images = new ArrayList<>();
+
+		for(final String path : paths) {
+			try(Stream<Path> files = Files.walk(Paths.get(path))) {
+				images.addAll(files.filter(Files::isRegularFile).filter(TextureCompressor::isImage).collect(Collectors.toList()));
+			}
+		}
+
+		return images;
+	}
+
+	private static boolean isImage(Path path) {
+
+		final String name = path.getFileName().toString().toLowerCase();
+
+		for(final String extension : EXTENSIONS) {
+			if(name.endsWith(extension)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean isData(String path) {
+
+		final String name = Paths.get(path).getFileName().toString().toLowerCase();
+
+		for(final String word : name.substring(0, Math.max(0, name.lastIndexOf('.'))).split("[^a-z0-9]+")) {
+			for(final String dataName : DATA_NAMES) {
+				if(word.equals(dataName)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private static int getFormat(ByteBuffer image, int channels) {
+
+		switch(channels) {
+
+		case 1:
+			return KTX2.VK_FORMAT_BC4_UNORM_BLOCK;
+		case 2:
+			return KTX2.VK_FORMAT_BC5_UNORM_BLOCK;
+		case 3:
+			return KTX2.VK_FORMAT_BC1_RGB_UNORM_BLOCK;
+		default:
+			return isOpaque(image) ? KTX2.VK_FORMAT_BC1_RGB_UNORM_BLOCK : KTX2.VK_FORMAT_BC3_UNORM_BLOCK;
+		}
+	}
+
+	private static boolean isOpaque(ByteBuffer image) {
+
+		for(int i = 3;i < image.limit();i += 4) {
+			if(image.get(i) != (byte)0xFF) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static ByteBuffer compressLevel(ByteBuffer pixels, int width, int height, int vkFormat) {
+
+		final int blocksX = (width + 3) / 4;
+		final int blocksY = (height + 3) / 4;
+		final int blockSize = KTX2.getBlockSize(vkFormat);
+
+		ByteBuffer compressed = memAlloc(blocksX * blocksY * blockSize);
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			ByteBuffer rgba = stack.malloc(16 * 4);
+			ByteBuffer channels = stack.malloc(16 * 2);
+
+			for(int by = 0;by < blocksY;by++) {
+				for(int bx = 0;bx < blocksX;bx++) {
+
+					// Gather the 4x4 block, repeating the last row and column for the blocks on the edges
+					for(int y = 0;y < 4;y++) {
+						for(int x = 0;x < 4;x++) {
+							final int px = Math.min(bx * 4 + x, width - 1);
+							final int py = Math.min(by * 4 + y, height - 1);
+							rgba.putInt((y * 4 + x) * 4, pixels.getInt((py * width + px) * 4));
+						}
+					}
+
+					ByteBuffer block = memSlice(compressed, (by * blocksX + bx) * blockSize, blockSize);
+
+					switch(vkFormat) {
+
+					case KTX2.VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+						stb_compress_dxt_block(block, rgba, false, STB_DXT_HIGHQUAL);
+						break;
+					case KTX2.VK_FORMAT_BC3_UNORM_BLOCK:
+						stb_compress_dxt_block(block, rgba, true, STB_DXT_HIGHQUAL);
+						break;
+					case KTX2.VK_FORMAT_BC4_UNORM_BLOCK:
+						for(int i = 0;i < 16;i++) {
+							channels.put(i, rgba.get(i * 4));
+						}
+						stb_compress_bc4_block(block, channels);
+						break;
+					case KTX2.VK_FORMAT_BC5_UNORM_BLOCK:
+						// Grey and alpha, as they are uploaded to the red and green channels when uncompressed
+						for(int i = 0;i < 16;i++) {
+							channels.put(i * 2, rgba.get(i * 4));
+							channels.put(i * 2 + 1, rgba.get(i * 4 + 3));
+						}
+						stb_compress_bc5_block(block, channels);
+						break;
+					}
+				}
+			}
+		}
+
+		return compressed;
+	}
+
+	private static String getFormatName(int vkFormat) {
+
+		switch(vkFormat) {
+
+		case KTX2.VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+			return "BC1";
+		case KTX2.VK_FORMAT_BC3_UNORM_BLOCK:
+			return "BC3";
+		case KTX2.VK_FORMAT_BC4_UNORM_BLOCK:
+			return "BC4";
+		default:
+			return "BC5";
+		}
+	}
+
+}
@@ -0,0 +1,516 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Shared texture loading service.
+ *
+ * Images are decoded with stb_image in a pool of worker threads. The decoded pixels are handed back to the
+ * OpenGL thread through a queue, where they are uploaded the next time {@link #update()} (or {@link #finish()})
+ * is called. The texture object is created right away, so callers get a valid texture handle immediately,
+ * which samples a 1x1 placeholder until the real image is uploaded into it.
+ *
+ * If an image has an up to date compressed variant (see {@link TextureCompressor}), the compressed blocks and
+ * their mip chain are uploaded instead. Otherwise, or if the driver doesn't support its format,
+ * the source image is used.
+ *
+ * Textures are shared through the {@link TextureCache}, so loading an image that is already resident returns
+ * the same texture. Every texture returned by this class must be released with {@link TextureCache#release(int)}.
+ *
+ * All the methods must be called from the thread that owns the OpenGL context.
+ * */
+public class TextureLoader {
+
+	private static Logger logger = Logger.getAnonymousLogger();
+
+	/**
+	 * Wrapping mode that uses GL_CLAMP_TO_EDGE for images with alpha channel and GL_REPEAT otherwise,
+	 * so the borders of transparent textures don't bleed into each other
+	 * */
+	public static final int WRAP_CLAMP_IF_ALPHA = -1;
+
+	// Mid gray, so the placeholder doesn't stand out while the real image is being loaded
+	private static final int PLACEHOLDER_COLOR = 0xFF808080;
+
+	private static class Request {
+
+		// Requested
+		int texture;
+		String path;
+		boolean flipY;
+		boolean gammaCorrection;
+		boolean hdr;
+		int wrapping;
+		int minFilter;
+		int magFilter;
+		boolean mipmaps;
+		// Whether the S3TC formats (BC1 and BC3) can be used for this texture
+		boolean s3tc;
+
+		// Decoded, the data is null if the image could not be loaded
+		Buffer data;
+		int width;
+		int height;
+		int channels;
+		// Set instead of data when the compressed variant of the image is used
+		KTX2.Image compressed;
+
+		long hashParameters() {
+			return Objects.hash(flipY, gammaCorrection, hdr, wrapping, minFilter, magFilter, mipmaps);
+		}
+
+	}
+
+	private static ExecutorService workers;
+	// Decoded images waiting to be uploaded by the OpenGL thread
+	private static final BlockingQueue<Request> decoded = new LinkedBlockingQueue<>();
+	// Requested textures not uploaded yet, even if released since. Only accessed from the OpenGL thread
+	private static int pending;
+	// Requests of the textures not uploaded yet, by texture. Only accessed from the OpenGL thread
+	private static final Map<Integer, Request> loading = new HashMap<>();
+
+	private TextureLoader() {}
+
+	/**
+	 * Loads a texture with repeat wrapping and trilinear filtering
+	 * */
+	public static int loadTexture(String path) {
+		return loadTexture(path, false);
+	}
+
+	/**
+	 * Loads a texture with repeat wrapping and trilinear filtering, optionally flipped on the y-axis
+	 * */
+	public static int loadTexture(String path, boolean flipY) {
+		return loadTexture(path, flipY, false);
+	}
+
+	/**
+	 * Loads a texture with repeat wrapping and trilinear filtering. If gammaCorrection is true,
+	 * the color data is stored as sRGB so it is linearized when sampled
+	 * */
+	public static int loadTexture(String path, boolean flipY, boolean gammaCorrection) {
+		return loadTexture(path, flipY, gammaCorrection, GL_REPEAT, GL_LINEAR_MIPMAP_LINEAR, GL_LINEAR);
+	}
+
+	/**
+	 * Loads a texture with the same filtering for minification and magnification
+	 * */
+	public static int loadTexture(String path, boolean flipY, int wrapping, int filtering) {
+		return loadTexture(path, flipY, false, wrapping, filtering, filtering);
+	}
+
+	/**
+	 * Loads a texture, mipmaps are always generated.
+	 * Returns the texture handle, which can be used right away.
+	 * */
+	public static int loadTexture(String path, boolean flipY, boolean gammaCorrection, int wrapping, int minFilter, int magFilter) {
+
+		Request request = new Request();
+		request.path = path;
+		request.flipY = flipY;
+		request.gammaCorrection = gammaCorrection;
+		request.wrapping = wrapping;
+		request.minFilter = minFilter;
+		request.magFilter = magFilter;
+		request.mipmaps = true;
+
+		return submit(request);
+	}
+
+	/**
+	 * Loads a high dynamic range image (as .hdr) into a floating point texture, flipped on the y-axis,
+	 * with clamp to edge wrapping and linear filtering
+	 * */
+	public static int loadHDRTexture(String path) {
+
+		Request request = new Request();
+		request.path = path;
+		request.flipY = true;
+		request.hdr = true;
+		request.wrapping = GL_CLAMP_TO_EDGE;
+		request.minFilter = GL_LINEAR;
+		request.magFilter = GL_LINEAR;
+
+		return submit(request);
+	}
+
+	/**
+	 * Uploads all the textures that have already been decoded. Call this once per frame
+	 * */
+	public static void update() {
+
+		if(decoded.isEmpty()) {
+			return;
+		}
+
+		final int binding = glGetInteger(GL_TEXTURE_BINDING_2D);
+
+		Request request;
+		while((request = decoded.poll()) != null) {
+			upload(request);
+		}
+
+		// Leave the texture binding as it was
+		GLState.bindTexture(GL_TEXTURE_2D, binding);
+	}
+
+	/**
+	 * Waits until all the requested textures have been decoded and uploaded
+	 * */
+	public static void finish() {
+
+		final int binding = glGetInteger(GL_TEXTURE_BINDING_2D);
+
+		try {
+
+			while(pending > 0) {
+				upload(decoded.take());
+			}
+
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		GLState.bindTexture(GL_TEXTURE_2D, binding);
+	}
+
+	/**
+	 * Returns the number of requested textures that are still showing their placeholder
+	 * */
+	public static int pending() {
+		return loading.size();
+	}
+
+	/**
+	 * Called by the {@link TextureCache} when a texture is deleted, so its image is not uploaded into the deleted
+	 * texture, or into a new texture given the same name
+	 * */
+	static void cancel(int texture) {
+		loading.remove(texture);
+	}
+
+	// ========== Utility functions ===========
+
+	private static int submit(Request request) {
+
+		// Share the texture if the same image with the same parameters is already loaded
+		final long key = TextureCache.computeKey(request.path, request.hashParameters());
+		final int cached = TextureCache.acquire(key);
+
+		if(cached != 0) {
+			return cached;
+		}
+
+		request.texture = glGenTextures();
+		TextureCache.add(key, request.texture);
+
+		final GLCapabilities capabilities = GL.getCapabilities();
+		request.s3tc = capabilities.GL_EXT_texture_compression_s3tc && (!request.gammaCorrection || capabilities.GL_EXT_texture_sRGB);
+
+		GLState.bindTexture(GL_TEXTURE_2D, request.texture);
+		setParameters(request, false);
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, stack.ints(PLACEHOLDER_COLOR));
+		}
+
+		++pending;
+		loading.put(request.texture, request);
+		getWorkers().execute(() -> decode(request));
+
+		return request.texture;
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+
+		if(workers == null) {
+
+			final int count = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+			workers = Executors.newFixedThreadPool(count, runnable -> {
+				Thread thread = new Thread(runnable, "TextureLoader");
+				// Don't keep the application alive because of pending loads
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		return workers;
+	}
+
+	/**
+	 * Runs in a worker thread
+	 * */
+	private static void decode(Request request) {
+
+		try(MemoryStack stack = MemoryStack.stackPush()) {
+
+			if(!request.hdr && (request.compressed = decodeCompressed(request)) != null) {
+				decoded.add(request);
+				return;
+			}
+
+			IntBuffer width = stack.mallocInt(1);
+			IntBuffer height = stack.mallocInt(1);
+			IntBuffer channels = stack.mallocInt(1);
+
+			// stb_image's flip flag is global, so it is never changed here. Images are flipped afterwards instead.
+			if(request.hdr) {
+				request.data = stbi_loadf(request.path, width, height, channels, 0);
+			} else {
+				request.data = stbi_load(request.path, width, height, channels, 0);
+			}
+
+			if(request.data != null) {
+
+				request.width = width.get(0);
+				request.height = height.get(0);
+				request.channels = channels.get(0);
+
+				if(request.flipY) {
+					final int componentSize = request.hdr ? Float.BYTES : Byte.BYTES;
+					flip(memAddress(request.data), request.width * request.channels * componentSize, request.height);
+				}
+			}
+
+		} catch(Throwable e) {
+			logger.severe("Failed to decode texture " + request.path + ": " + e);
+		}
+
+		decoded.add(request);
+	}
+
+	/**
+	 * Returns the compressed variant of the requested image, or null if it cannot be used
+	 * */
+	private static KTX2.Image decodeCompressed(Request request) {
+
+		// Textures loaded as sRGB need the variant whose mip levels are averaged in linear space
+		File file = request.gammaCorrection ? KTX2.findCompressed(request.path, true) : null;
+		final boolean srgbMips = file != null;
+
+		if(file == null) {
+			file = KTX2.findCompressed(request.path, false);
+		}
+
+		if(file == null) {
+			return null;
+		}
+
+		KTX2.Image image = KTX2.read(file);
+
+		if(image == null) {
+			return null;
+		}
+
+		// Only BC4 and BC5, which are never sRGB, can use the same mip levels either way
+		if(request.gammaCorrection && !srgbMips && KTX2.isS3TC(image.vkFormat)) {
+			image.free();
+			return null;
+		}
+
+		if(KTX2.isS3TC(image.vkFormat) && !request.s3tc) {
+			image.free();
+			return null;
+		}
+
+		if(request.flipY && !KTX2.flip(image)) {
+			logger.warning("Cannot flip compressed texture " + file + ", using its source image");
+			image.free();
+			return null;
+		}
+
+		return image;
+	}
+
+	private static void flip(long address, int rowSize, int rows) {
+
+		ByteBuffer tmp = memAlloc(rowSize);
+		final long tmpAddress = memAddress(tmp);
+
+		for(int top = 0, bottom = rows - 1;top < bottom;top++, bottom--) {
+			final long topRow = address + (long)top * rowSize;
+			final long bottomRow = address + (long)bottom * rowSize;
+			memCopy(topRow, tmpAddress, rowSize);
+			memCopy(bottomRow, topRow, rowSize);
+			memCopy(tmpAddress, bottomRow, rowSize);
+		}
+
+		memFree(tmp);
+	}
+
+	private static void upload(Request request) {
+
+		--pending;
+
+		if(loading.get(request.texture) != request) {
+			// Released while it was being decoded
+			discard(request);
+			return;
+		}
+
+		loading.remove(request.texture);
+
+		if(request.compressed != null) {
+			uploadCompressed(request);
+			return;
+		}
+
+		if(request.data == null) {
+			logger.severe("Failed to load texture: " + request.path);
+			// Only the placeholder is resident
+			TextureCache.uploaded(request.texture, 4);
+			return;
+		}
+
+		GLState.bindTexture(GL_TEXTURE_2D, request.texture);
+
+		if(request.hdr) {
+			// Note how we specify the texture's data value to be float
+			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, request.width, request.height, 0, GL_RGB, GL_FLOAT, (FloatBuffer)request.data);
+		} else {
+			final int format = getImageFormat(request.channels);
+			final int internalFormat = getImageInternalFormat(format, request.gammaCorrection);
+			// Rows are tightly packed, so they are not always 4 bytes aligned
+			glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+			glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, request.width, request.height, 0, format, GL_UNSIGNED_BYTE, (ByteBuffer)request.data);
+			glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+		}
+
+		if(request.mipmaps) {
+			glGenerateMipmap(GL_TEXTURE_2D);
+		}
+
+		setParameters(request, request.channels == 4);
+
+		// RGB16F for HDR images, 1 byte per channel otherwise
+		long bytes = (long)request.width * request.height * (request.hdr ? 3 * 2 : request.channels);
+		if(request.mipmaps) {
+			// The whole mipmap chain adds a third of the base level
+			bytes += bytes / 3;
+		}
+		TextureCache.uploaded(request.texture, bytes);
+
+		if(request.hdr) {
+			stbi_image_free((FloatBuffer)request.data);
+		} else {
+			stbi_image_free((ByteBuffer)request.data);
+		}
+
+		request.data = null;
+	}
+
+	private static void uploadCompressed(Request request) {
+
+		final KTX2.Image image = request.compressed;
+		final int internalFormat = KTX2.getInternalFormat(image.vkFormat, request.gammaCorrection);
+		final int levelCount = request.mipmaps ? image.getLevelCount() : 1;
+
+		GLState.bindTexture(GL_TEXTURE_2D, request.texture);
+
+		long bytes = 0;
+
+		for(int level = 0;level < levelCount;level++) {
+			ByteBuffer data = image.getLevel(level);
+			glCompressedTexImage2D(GL_TEXTURE_2D, level, internalFormat,
+					KTX2.getLevelWidth(image, level), KTX2.getLevelHeight(image, level), 0, data);
+			bytes += data.remaining();
+		}
+
+		// The mip chain comes with the file, and it may be incomplete
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levelCount - 1);
+
+		setParameters(request, image.hasAlpha());
+
+		TextureCache.uploaded(request.texture, bytes);
+
+		image.free();
+		request.compressed = null;
+	}
+
+	private static void discard(Request request) {
+
+		if(request.compressed != null) {
+			request.compressed.free();
+			request.compressed = null;
+		} else if(request.data instanceof FloatBuffer) {
+			stbi_image_free((FloatBuffer)request.data);
+		} else if(request.data != null) {
+			stbi_image_free((ByteBuffer)request.data);
+		}
+
+		request.data = null;
+	}
+
+	private static void setParameters(Request request, boolean alpha) {
+
+		int wrapping = request.wrapping;
+
+		if(wrapping == WRAP_CLAMP_IF_ALPHA) {
+			wrapping = alpha ? GL_CLAMP_TO_EDGE : GL_REPEAT;
+		}
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrapping);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrapping);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, request.minFilter);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, request.magFilter);
+	}
+
+	private static int getImageFormat(int channels) {
+
+		switch(channels) {
+
+		case 1:
+			return GL_RED;
+		case 2:
+			return GL_RG;
+		case 3:
+			return GL_RGB;
+		case 4:
+			return GL_RGBA;
+		default:
+			logger.severe("Unexpected number of channels: " + channels);
+			return GL_RGB;
+		}
+	}
+
+	private static int getImageInternalFormat(int format, boolean gammaCorrection) {
+
+		if(gammaCorrection) {
+
+			if(format == GL_RGB) {
+				return GL_SRGB;
+			} else if(format == GL_RGBA) {
+				return GL_SRGB_ALPHA;
+			}
+		}
+
+		return format;
+	}
+
+}
@@ -0,0 +1,242 @@
+package learnopengl.util;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joml.Matrix3fc;
+import org.joml.Matrix4fc;
+import org.joml.Vector2fc;
+import org.joml.Vector3fc;
+import org.joml.Vector4fc;
+
+/**
+ * Uniform buffer object with a std140 {@link UniformLayout}, bound to a fixed binding point.
+ *
+ * Values are written to a copy of the buffer in memory, and {@link #upload()} sends the range that changed since
+ * the last upload with a single glBufferSubData call, or nothing if no value changed. This way, the data shared by
+ * all the programs, like the camera, is set once per frame instead of once per program, and material blocks are only
+ * uploaded when they are modified.
+ *
+ * The blocks named as the standard binding points below are bound to them by {@link Shader} when the program is
+ * linked, so GLSL 3.30 shaders only have to declare them:
+ *
+ * layout (std140) uniform Frame { mat4 projection; mat4 view; vec3 viewPos; };
+ * */
+public class UniformBuffer {
+
+	/** Per-frame data shared by all the programs, like the camera. Block "Frame" */
+	public static final int FRAME = 0;
+	/** Data of the current render pass, like the light of a shadow pass. Block "Pass" */
+	public static final int PASS = 1;
+	/** Material of the current draw. Block "Material" */
+	public static final int MATERIAL = 2;
+	/** Clusters of the lights, see {@link ClusteredLights}. Block "Lights" */
+	public static final int LIGHTS = 3;
+
+	private static final Map<String, Integer> BINDINGS = new HashMap<>();
+
+	static {
+		BINDINGS.put("Frame", FRAME);
+		BINDINGS.put("Pass", PASS);
+		BINDINGS.put("Material", MATERIAL);
+		BINDINGS.put("Lights", LIGHTS);
+	}
+
+	private static long uploads;
+	private static long uploadedBytes;
+
+	/**
+	 * Returns the standard binding point of the uniform block with the given name, or -1 if it has none
+	 * */
+	public static int getBinding(String blockName) {
+		final Integer binding = BINDINGS.get(blockName);
+		return binding != null ? binding : -1;
+	}
+
+	/**
+	 * Returns the number of glBufferSubData calls issued by all the uniform buffers since the last reset
+	 * */
+	public static long getUploads() {
+		return uploads;
+	}
+
+	public static long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	public static void resetCounters() {
+		uploads = 0;
+		uploadedBytes = 0;
+	}
+
+	public final int id;
+	public final int binding;
+	public final UniformLayout layout;
+
+	private final ByteBuffer data;
+	// Range of bytes modified since the last upload. Empty if dirtyStart >= dirtyEnd
+	private int dirtyStart = Integer.MAX_VALUE;
+	private int dirtyEnd;
+
+	/**
+	 * Creates the buffer, with all its values set to 0. It is bound to the given binding point with {@link #bind()}
+	 * */
+	public UniformBuffer(UniformLayout layout, int binding) {
+
+		if(layout.packing != UniformLayout.Packing.STD140) {
+			throw new IllegalArgumentException("Uniform blocks must use the std140 layout");
+		}
+
+		this.layout = layout;
+		this.binding = binding;
+
+		data = memCalloc(layout.getSize());
+
+		id = glGenBuffers();
+		glBindBuffer(GL_UNIFORM_BUFFER, id);
+		glBufferData(GL_UNIFORM_BUFFER, data, GL_DYNAMIC_DRAW);
+		glBindBuffer(GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Binds the buffer to its binding point. Buffers that are the only ones using their binding point,
+	 * like the per-frame one, only have to be bound once
+	 * */
+	public void bind() {
+		upload();
+		glBindBufferBase(GL_UNIFORM_BUFFER, binding, id);
+	}
+
+	/**
+	 * Uploads the values that changed since the last upload, if any
+	 * */
+	public void upload() {
+
+		if(dirtyStart >= dirtyEnd) {
+			return;
+		}
+
+		glBindBuffer(GL_UNIFORM_BUFFER, id);
+		nglBufferSubData(GL_UNIFORM_BUFFER, dirtyStart, dirtyEnd - dirtyStart, memAddress(data) + dirtyStart);
+		glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+		++uploads;
+		uploadedBytes += dirtyEnd - dirtyStart;
+
+		dirtyStart = Integer.MAX_VALUE;
+		dirtyEnd = 0;
+	}
+
+	public boolean isDirty() {
+		return dirtyStart < dirtyEnd;
+	}
+
+	public UniformBuffer set(String name, boolean value) {
+		return set(name, value ? 1 : 0);
+	}
+
+	public UniformBuffer set(String name, int value) {
+
+		final int offset = layout.getOffset(name);
+
+		if(data.getInt(offset) != value) {
+			data.putInt(offset, value);
+			markDirty(offset, Integer.BYTES);
+		}
+
+		return this;
+	}
+
+	public UniformBuffer set(String name, float value) {
+		final int offset = layout.getOffset(name);
+		put(offset, 0, value, 1);
+		return this;
+	}
+
+	public UniformBuffer set(String name, Vector2fc value) {
+		return set(name, value.x(), value.y());
+	}
+
+	public UniformBuffer set(String name, float x, float y) {
+		final int offset = layout.getOffset(name);
+		put(offset, 0, x, 2);
+		put(offset, 1, y, 2);
+		return this;
+	}
+
+	public UniformBuffer set(String name, Vector3fc value) {
+		return set(name, value.x(), value.y(), value.z());
+	}
+
+	public UniformBuffer set(String name, float x, float y, float z) {
+		final int offset = layout.getOffset(name);
+		put(offset, 0, x, 3);
+		put(offset, 1, y, 3);
+		put(offset, 2, z, 3);
+		return this;
+	}
+
+	public UniformBuffer set(String name, Vector4fc value) {
+		return set(name, value.x(), value.y(), value.z(), value.w());
+	}
+
+	public UniformBuffer set(String name, float x, float y, float z, float w) {
+		final int offset = layout.getOffset(name);
+		put(offset, 0, x, 4);
+		put(offset, 1, y, 4);
+		put(offset, 2, z, 4);
+		put(offset, 3, w, 4);
+		return this;
+	}
+
+	public UniformBuffer set(String name, Matrix3fc matrix) {
+		// Each column takes a vec4, so the matrix spans 11 floats from its first to its last component
+		final int offset = layout.getOffset(name);
+		put(offset, 0, matrix.m00(), 11); put(offset, 1, matrix.m01(), 11); put(offset, 2, matrix.m02(), 11);
+		put(offset, 4, matrix.m10(), 11); put(offset, 5, matrix.m11(), 11); put(offset, 6, matrix.m12(), 11);
+		put(offset, 8, matrix.m20(), 11); put(offset, 9, matrix.m21(), 11); put(offset, 10, matrix.m22(), 11);
+		return this;
+	}
+
+	public UniformBuffer set(String name, Matrix4fc matrix) {
+		final int offset = layout.getOffset(name);
+		put(offset, 0, matrix.m00(), 16); put(offset, 1, matrix.m01(), 16); put(offset, 2, matrix.m02(), 16); put(offset, 3, matrix.m03(), 16);
+		put(offset, 4, matrix.m10(), 16); put(offset, 5, matrix.m11(), 16); put(offset, 6, matrix.m12(), 16); put(offset, 7, matrix.m13(), 16);
+		put(offset, 8, matrix.m20(), 16); put(offset, 9, matrix.m21(), 16); put(offset, 10, matrix.m22(), 16); put(offset, 11, matrix.m23(), 16);
+		put(offset, 12, matrix.m30(), 16); put(offset, 13, matrix.m31(), 16); put(offset, 14, matrix.m32(), 16); put(offset, 15, matrix.m33(), 16);
+		return this;
+	}
+
+	public void delete() {
+		glDeleteBuffers(id);
+		memFree(data);
+	}
+
+	// ========== Utility functions ===========
+
+	/**
+	 * Writes the given component of a vector of the given number of components, and marks the whole vector as
+	 * modified if its value changed
+	 * */
+	private void put(int offset, int component, float value, int components) {
+
+		final int position = offset + component * Float.BYTES;
+
+		if(Float.floatToRawIntBits(data.getFloat(position)) != Float.floatToRawIntBits(value)) {
+			data.putFloat(position, value);
+			markDirty(offset, components * Float.BYTES);
+		}
+	}
+
+	private void markDirty(int offset, int size) {
+		dirtyStart = Math.min(dirtyStart, offset);
+		dirtyEnd = Math.max(dirtyEnd, offset + size);
+	}
+
+}
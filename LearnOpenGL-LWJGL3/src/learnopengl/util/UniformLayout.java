@@ -0,0 +1,203 @@
+package learnopengl.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes the offsets of the members of a uniform or shader storage block, following the std140 or std430 rules,
+ * so they can be written from Java to the same offsets GLSL reads them from.
+ *
+ * Members are added in the same order they are declared in the block. Arrays are registered with and without [0]
+ * and with the name of each element, and the members of structs as struct.member, for example lights[1].position.
+ *
+ * UniformLayout lights = new UniformLayout(Packing.STD140).add("position", Type.VEC3).add("color", Type.VEC3);
+ * UniformLayout frame = new UniformLayout(Packing.STD140).add("view", Type.MAT4).add("lights", lights, 4);
+ * */
+public final class UniformLayout {
+
+	public enum Packing {
+		/** Uniform blocks. The stride of arrays and the alignment of structs are rounded up to a vec4 */
+		STD140,
+		/** Shader storage blocks (OpenGL 4.3). Arrays of scalars and vec2 are tightly packed */
+		STD430
+	}
+
+	public enum Type {
+
+		FLOAT(4, 4),
+		INT(4, 4),
+		// Booleans take 4 bytes, as ints
+		BOOL(4, 4),
+		VEC2(8, 8),
+		IVEC2(8, 8),
+		VEC3(12, 16),
+		IVEC3(12, 16),
+		VEC4(16, 16),
+		IVEC4(16, 16),
+		// Matrices are laid out as arrays of column vectors
+		MAT3(3 * 16, 16),
+		MAT4(4 * 16, 16);
+
+		public final int size;
+		public final int alignment;
+
+		private Type(int size, int alignment) {
+			this.size = size;
+			this.alignment = alignment;
+		}
+
+		private boolean isMatrix() {
+			return this == MAT3 || this == MAT4;
+		}
+	}
+
+	/**
+	 * Offset and type of a member. For structs, type is null
+	 * */
+	public static final class Member {
+
+		public final String name;
+		public final int offset;
+		public final Type type;
+		// Number of elements if it is an array, 1 otherwise
+		public final int length;
+		// Distance between the elements of the array, or the size of the member if it is not an array
+		public final int stride;
+
+		private Member(String name, int offset, Type type, int length, int stride) {
+			this.name = name;
+			this.offset = offset;
+			this.type = type;
+			this.length = length;
+			this.stride = stride;
+		}
+
+	}
+
+	public final Packing packing;
+
+	private final Map<String, Member> members = new LinkedHashMap<>();
+	private int size;
+	private int alignment = 4;
+
+	public UniformLayout(Packing packing) {
+		this.packing = packing;
+	}
+
+	public UniformLayout add(String name, Type type) {
+		return add(name, type, 1, false);
+	}
+
+	/**
+	 * Adds an array of the given type
+	 * */
+	public UniformLayout add(String name, Type type, int length) {
+		return add(name, type, length, true);
+	}
+
+	/**
+	 * Adds a struct, or an array of structs, with the members of the given layout
+	 * */
+	public UniformLayout add(String name, UniformLayout struct, int length) {
+		return add(name, struct, length, true);
+	}
+
+	public UniformLayout add(String name, UniformLayout struct) {
+		return add(name, struct, 1, false);
+	}
+
+	/**
+	 * Returns the given member, or throws an IllegalArgumentException if the layout doesn't have it
+	 * */
+	public Member getMember(String name) {
+
+		final Member member = members.get(name);
+
+		if(member == null) {
+			throw new IllegalArgumentException("Unknown member: " + name);
+		}
+
+		return member;
+	}
+
+	public int getOffset(String name) {
+		return getMember(name).offset;
+	}
+
+	public Map<String, Member> getMembers() {
+		return Collections.unmodifiableMap(members);
+	}
+
+	/**
+	 * Returns the size of the block, as GL_UNIFORM_BLOCK_DATA_SIZE would report it
+	 * */
+	public int getSize() {
+		// The block is padded to its alignment, as a struct would be
+		return roundUp(size, packing == Packing.STD140 ? roundUp(alignment, 16) : alignment);
+	}
+
+	// ========== Utility functions ===========
+
+	private UniformLayout add(String name, Type type, int length, boolean array) {
+
+		int memberAlignment = type.alignment;
+		int stride = type.size;
+
+		if(array || type.isMatrix()) {
+			// Elements of arrays, and the columns of matrices, are aligned as vec4 in std140
+			memberAlignment = packing == Packing.STD140 ? roundUp(memberAlignment, 16) : memberAlignment;
+			stride = roundUp(stride, memberAlignment);
+		}
+
+		final int offset = roundUp(size, memberAlignment);
+
+		addMember(name, offset, type, length, stride, array);
+
+		size = offset + stride * length;
+		alignment = Math.max(alignment, memberAlignment);
+
+		return this;
+	}
+
+	private UniformLayout add(String name, UniformLayout struct, int length, boolean array) {
+
+		final int structAlignment = packing == Packing.STD140 ? roundUp(struct.alignment, 16) : struct.alignment;
+		final int stride = roundUp(struct.size, structAlignment);
+		final int offset = roundUp(size, structAlignment);
+
+		addMember(name, offset, null, length, stride, array);
+
+		for(int i = 0;i < length;i++) {
+
+			final String element = array ? name + '[' + i + ']' : name;
+
+			for(final Member member : struct.members.values()) {
+				members.put(element + '.' + member.name, new Member(element + '.' + member.name,
+						offset + i * stride + member.offset, member.type, member.length, member.stride));
+			}
+		}
+
+		size = offset + stride * length;
+		alignment = Math.max(alignment, structAlignment);
+
+		return this;
+	}
+
+	private void addMember(String name, int offset, Type type, int length, int stride, boolean array) {
+
+		members.put(name, new Member(name, offset, type, length, stride));
+
+		if(array) {
+			for(int i = 0;i < length;i++) {
+				final String element = name + '[' + i + ']';
+				members.put(element, new Member(element, offset + i * stride, type, 1, stride));
+			}
+		}
+	}
+
+	private static int roundUp(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+}